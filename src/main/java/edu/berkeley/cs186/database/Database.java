@@ -13,19 +13,24 @@ import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.index.BPlusTree;
 import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
+import edu.berkeley.cs186.database.index.CompositeKey;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
 import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
 import edu.berkeley.cs186.database.memory.BufferManager;
 import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
 import edu.berkeley.cs186.database.memory.EvictionPolicy;
+import edu.berkeley.cs186.database.query.ParallelKeyScanOperator;
+import edu.berkeley.cs186.database.query.PlanCache;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.query.SequentialScanOperator;
 import edu.berkeley.cs186.database.query.SortOperator;
 import edu.berkeley.cs186.database.query.expr.Expression;
 import edu.berkeley.cs186.database.recovery.ARIESRecoveryManager;
 import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
+import edu.berkeley.cs186.database.recovery.LogArchiver;
 import edu.berkeley.cs186.database.recovery.RecoveryManager;
 import edu.berkeley.cs186.database.table.*;
+import edu.berkeley.cs186.database.table.stats.HyperLogLog;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.io.*;
@@ -36,6 +41,8 @@ import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 
@@ -73,19 +80,42 @@ import java.util.function.UnaryOperator;
  *   to acquire exclusive access on all of the indices of `someTable` (for example
  *   to insert a new record into every index) they would need to acquire an
  *   X lock on `database/_metadata.indices/someTable`.
+ *
+ * The statistics of a table (see TableStats) are loaded from
+ * _metadata.statistics the first time the table is used, saved there when
+ * they are refreshed and when the database is closed, and, once enabled with
+ * setStatisticsRefreshThreshold, refreshed in the background once enough of
+ * the table has changed since they were last refreshed (see
+ * StatisticsRefresher). _metadata.statistics is created the
+ * first time statistics are saved, in a partition allocated like a user
+ * table's, and is listed in _metadata.tables (but hidden from lookups of
+ * user tables). It is only synchronized, as statistics are estimates.
  */
 public class Database implements AutoCloseable {
     private static final String METADATA_TABLE_PREFIX = "_metadata.";
     private static final String TABLE_INFO_TABLE_NAME = METADATA_TABLE_PREFIX + "tables";
     private static final String INDEX_INFO_TABLE_NAME = METADATA_TABLE_PREFIX + "indices";
+    private static final String STATISTICS_TABLE_NAME = METADATA_TABLE_PREFIX + "statistics";
     private static final int DEFAULT_BUFFER_SIZE = 262144; // default of 1G
     // effective page size - table metadata size
     private static final int MAX_SCHEMA_SIZE = 4006;
+    // number of records inserted into a table at a time by a batch insert
+    private static final int INSERT_BATCH_SIZE = 1024;
+    // number of query plans cached by default
+    private static final int DEFAULT_PLAN_CACHE_SIZE = 256;
+    // number of buckets of the histograms built by background refreshes
+    private static final int STATISTICS_BUCKETS = 20;
 
     // _metadata.tables, manages all tables in the database
     private Table tableMetadata;
     // _metadata.indices, manages all indices in the database
     private Table indexMetadata;
+    // _metadata.statistics, persists the statistics of all tables, or null
+    // until statistics are first saved; guarded by statisticsLock. A thread
+    // that needs both takes the monitor of tableMetadata before
+    // statisticsLock, and never the other way around.
+    private Table statisticsMetadata;
+    private final Object statisticsLock = new Object();
     // number of transactions created
     private long numTransactions;
 
@@ -102,10 +132,22 @@ public class Database implements AutoCloseable {
     private int workMem = 1024; // default of 4M
     // number of pages of memory available total
     private int numMemoryPages;
+    // number of threads used to scan a table when bulk loading an index
+    private int indexBuildParallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+    // fraction of each B+ tree node filled when bulk loading an index
+    private float indexFillFactor = 0.9f;
     // active transactions
     private Phaser activeTransactions = new Phaser(0);
     // Statistics about the contents of the database.
     private Map<String, TableStats> stats = new ConcurrentHashMap<>();
+    // Plans chosen by the optimizer, reused by queries of the same shape
+    private final PlanCache planCache = new PlanCache(DEFAULT_PLAN_CACHE_SIZE);
+    // The version (see TableStats#getVersion) of the statistics of every
+    // table loaded from _metadata.statistics when they were last saved there,
+    // or -1 if they never were.
+    private Map<String, Long> savedStatistics = new ConcurrentHashMap<>();
+    // Refreshes the statistics of tables in the background
+    private final StatisticsRefresher statisticsRefresher = new StatisticsRefresher(this::refreshStatistics);
 
     /**
      * Creates a new database with:
@@ -170,6 +212,22 @@ public class Database implements AutoCloseable {
      */
     public Database(String fileDir, int numMemoryPages, LockManager lockManager,
                     EvictionPolicy policy, boolean useRecoveryManager) {
+        this(fileDir, numMemoryPages, lockManager, policy, useRecoveryManager, false);
+    }
+
+    /**
+     * Creates a new database.
+     *
+     * @param fileDir the directory to put the table files in
+     * @param numMemoryPages the number of pages of memory in the buffer cache
+     * @param lockManager the lock manager
+     * @param policy eviction policy for buffer cache
+     * @param useRecoveryManager flag to enable or disable the recovery manager (ARIES)
+     * @param instantRestart flag to open the database before loser transactions
+     *                       are rolled back (see RecoveryManager#setInstantRestart)
+     */
+    public Database(String fileDir, int numMemoryPages, LockManager lockManager,
+                    EvictionPolicy policy, boolean useRecoveryManager, boolean instantRestart) {
         boolean initialized = setupDirectory(fileDir);
 
         numTransactions = 0;
@@ -191,6 +249,7 @@ public class Database implements AutoCloseable {
 
         // Performs recovery
         recoveryManager.setManagers(diskSpaceManager, bufferManager);
+        recoveryManager.setInstantRestart(instantRestart);
         if (!initialized) recoveryManager.initialize();
         recoveryManager.restart();
 
@@ -250,6 +309,30 @@ public class Database implements AutoCloseable {
         indexMetadata = new Table(INDEX_INFO_TABLE_NAME, getIndexInfoSchema(), pageDirectory, indexInfoContext, stats);
     }
 
+    // create _metadata.statistics, unless statistics were saved before
+    private void initStatisticsInfo() {
+        synchronized (tableMetadata) {
+            synchronized (statisticsLock) {
+                if (statisticsMetadata != null) return;
+                TableMetadata metadata = new TableMetadata(STATISTICS_TABLE_NAME);
+                metadata.partNum = diskSpaceManager.allocPart();
+                metadata.pageNum = diskSpaceManager.allocPage(metadata.partNum);
+                metadata.schema = getStatisticsSchema();
+                tableMetadata.addRecord(metadata.toRecord());
+                openStatisticsInfo(metadata);
+            }
+        }
+    }
+
+    private void openStatisticsInfo(TableMetadata metadata) {
+        LockContext statisticsContext = new DummyLockContext("_dummyStatistics");
+        PageDirectory pageDirectory = new PageDirectory(bufferManager, metadata.partNum,
+                DiskSpaceManager.getVirtualPageNum(metadata.partNum, 0), (short) 0, statisticsContext);
+        statisticsMetadata = new Table(STATISTICS_TABLE_NAME, getStatisticsSchema(), pageDirectory,
+                                       statisticsContext, stats);
+        statisticsMetadata.setFullPageRecords();
+    }
+
     private void loadMetadataTables() {
         // Note: both metadata tables use DummyLockContexts. This is intentional,
         // since we manually synchronize both tables to improve concurrency.
@@ -268,6 +351,16 @@ public class Database implements AutoCloseable {
         indexMetadata = new Table(INDEX_INFO_TABLE_NAME, getIndexInfoSchema(), indexInfoPageDir,
                               indexInfoContext, stats);
         indexMetadata.setFullPageRecords();
+
+        // load _metadata.statistics, if statistics were ever saved
+        for (RecordId rid : (Iterable<RecordId>) tableMetadata::ridIterator) {
+            TableMetadata metadata = new TableMetadata(tableMetadata.getRecord(rid));
+            if (isStatisticsInfo(metadata.tableName)) openStatisticsInfo(metadata);
+        }
+    }
+
+    private boolean isStatisticsInfo(String tableName) {
+        return normalize(tableName).equals(STATISTICS_TABLE_NAME);
     }
 
     // wait for all transactions to finish
@@ -281,19 +374,28 @@ public class Database implements AutoCloseable {
      * Close this database.
      */
     @Override
-    public synchronized void close() {
-        // wait for all transactions to terminate
-        this.waitAllTransactions();
+    public void close() {
+        // refreshes run in transactions of their own, which could not begin
+        // while we wait for transactions below
+        this.statisticsRefresher.close();
 
-        this.bufferManager.evictAll();
+        synchronized (this) {
+            // wait for all transactions to terminate
+            this.waitAllTransactions();
+            this.saveChangedStatistics();
 
-        this.recoveryManager.close();
+            this.lockManager.setDeadlockDetectionInterval(0);
+            this.bufferManager.evictAll();
 
-        this.tableMetadata = null;
-        this.indexMetadata = null;
+            this.recoveryManager.close();
 
-        this.bufferManager.close();
-        this.diskSpaceManager.close();
+            this.tableMetadata = null;
+            this.indexMetadata = null;
+            this.statisticsMetadata = null;
+
+            this.bufferManager.close();
+            this.diskSpaceManager.close();
+        }
     }
 
     public LockManager getLockManager() {
@@ -318,6 +420,105 @@ public class Database implements AutoCloseable {
         this.workMem = workMem;
     }
 
+    public PlanCache getPlanCache() {
+        return this.planCache;
+    }
+
+    /**
+     * Prepares a statement with ? placeholders for values, which can then be
+     * executed with different values by any transaction of the database; see
+     * PreparedStatement.
+     */
+    public PreparedStatement prepare(String statement) {
+        return new PreparedStatement(statement);
+    }
+
+    /**
+     * Sets when the statistics of a table are refreshed in the background:
+     * once the number of records added to or removed from it since they were
+     * last refreshed passes thresholdBase + thresholdFraction * its number of
+     * records. Setting both to 0 (the default) disables background refreshes.
+     */
+    public void setStatisticsRefreshThreshold(int thresholdBase, float thresholdFraction) {
+        this.statisticsRefresher.configure(thresholdBase, thresholdFraction);
+        for (String tableName : savedStatistics.keySet()) {
+            TableStats tableStats = stats.get(tableName);
+            if (tableStats != null) setAutoRefresh(tableName, tableStats);
+        }
+    }
+
+    /**
+     * Waits until the statistics of every table due for a refresh are
+     * refreshed.
+     */
+    public void waitStatisticsRefreshes() {
+        this.statisticsRefresher.awaitRefreshes();
+    }
+
+    /**
+     * @return the exception thrown by the last background refresh of
+     * statistics that failed, or null if none did
+     */
+    public RuntimeException getStatisticsRefreshError() {
+        return this.statisticsRefresher.getLastError();
+    }
+
+    public int getIndexBuildParallelism() {
+        return this.indexBuildParallelism;
+    }
+
+    public void setIndexBuildParallelism(int indexBuildParallelism) {
+        if (indexBuildParallelism < 1) {
+            throw new IllegalArgumentException("index build parallelism must be positive");
+        }
+        this.indexBuildParallelism = indexBuildParallelism;
+    }
+
+    public float getIndexFillFactor() {
+        return this.indexFillFactor;
+    }
+
+    public void setIndexFillFactor(float indexFillFactor) {
+        if (indexFillFactor <= 0 || indexFillFactor > 1) {
+            throw new IllegalArgumentException("index fill factor must be in (0, 1]");
+        }
+        this.indexFillFactor = indexFillFactor;
+    }
+
+    /**
+     * Sets the group commit parameters of the recovery manager; see
+     * RecoveryManager#setGroupCommit.
+     */
+    public void setGroupCommit(long maxWaitMicros, int maxBatchSize) {
+        this.recoveryManager.setGroupCommit(maxWaitMicros, maxBatchSize);
+    }
+
+    /**
+     * Sets how often the recovery manager checkpoints in the background; see
+     * RecoveryManager#setCheckpointInterval.
+     */
+    public void setCheckpointInterval(long intervalMillis, long intervalLogPages) {
+        this.recoveryManager.setCheckpointInterval(intervalMillis, intervalLogPages);
+    }
+
+    /**
+     * Sets whether checkpoints truncate the log; see
+     * RecoveryManager#setLogTruncation.
+     */
+    public void setLogTruncation(boolean enabled, LogArchiver archiver) {
+        this.recoveryManager.setLogTruncation(enabled, archiver);
+    }
+
+    /**
+     * Sets how often the lock manager checks for deadlocks in the background;
+     * see LockManager#setDeadlockDetectionInterval. A transaction aborted to
+     * break a deadlock gets a DeadlockException from the statement that was
+     * waiting, and should be rolled back.
+     */
+    public void setDeadlockDetectionInterval(long intervalMillis) {
+        this.lockManager.setDeadlockDetectionInterval(intervalMillis);
+    }
+
     /**
      * @return Schema for _metadata.tables with fields:
      *   | field name   | field type
@@ -347,6 +548,8 @@ public class Database implements AutoCloseable {
      * 5 | key_schema_typeid   | int
      * 6 | key_schema_typesize | int
      * 7 | height              | int
+     * 8 | include_cols        | string(32)
+     * 9 | key_size            | int
      */
     public Schema getIndexInfoSchema() {
         return new Schema()
@@ -357,7 +560,33 @@ public class Database implements AutoCloseable {
                 .add("root_page_num", Type.longType())
                 .add("key_schema_typeid", Type.intType())
                 .add("key_schema_typesize", Type.intType())
-                .add("height", Type.intType());
+                .add("height", Type.intType())
+                .add("include_cols", Type.stringType(BPlusTreeMetadata.MAX_COLUMN_LIST_LENGTH))
+                .add("key_size", Type.intType());
+    }
+
+    /**
+     * @return Schema for _metadata.statistics, with a row for each column and
+     * column group of each table (see TableStats#toRecords), with fields:
+     *   | field name        | field type
+     * --+-------------------+-------------------------
+     * 0 | table_name        | string(32)
+     * 1 | columns           | string(TableStats.MAX_COLUMNS_LENGTH)
+     * 2 | num_records       | int
+     * 3 | num_modifications | int
+     * 4 | complete          | bool
+     * 5 | histogram         | byte array(TableStats.HISTOGRAM_BYTES)
+     * 6 | sketch            | byte array(HyperLogLog.NUM_BYTES)
+     */
+    public Schema getStatisticsSchema() {
+        return new Schema()
+                .add("table_name", Type.stringType(32))
+                .add("columns", Type.stringType(TableStats.MAX_COLUMNS_LENGTH))
+                .add("num_records", Type.intType())
+                .add("num_modifications", Type.intType())
+                .add("complete", Type.boolType())
+                .add("histogram", Type.byteArrayType(TableStats.HISTOGRAM_BYTES))
+                .add("sketch", Type.byteArrayType(HyperLogLog.NUM_BYTES));
     }
 
     // a single row of _metadata.tables
@@ -406,6 +635,7 @@ public class Database implements AutoCloseable {
             for(RecordId rid: (Iterable<RecordId>) tableMetadata::ridIterator) {
                 Record record = tableMetadata.getRecord(rid);
                 TableMetadata metadata = new TableMetadata(record);
+                if (isStatisticsInfo(metadata.tableName)) continue;
                 result.add(new Pair<>(rid, metadata));
             }
         }
@@ -417,6 +647,7 @@ public class Database implements AutoCloseable {
         synchronized(tableMetadata) {
             for(RecordId rid: (Iterable<RecordId>) tableMetadata::ridIterator) {
                 Record record = tableMetadata.getRecord(rid);
+                if (isStatisticsInfo(record.getValue(0).getString())) continue;
                 result.add(record);
             }
         }
@@ -445,9 +676,126 @@ public class Database implements AutoCloseable {
         LockContext tableContext = getTableContext(tableName);
         long page0 = DiskSpaceManager.getVirtualPageNum(metadata.partNum, 0);
         PageDirectory pd = new PageDirectory(bufferManager, metadata.partNum, page0, (short) 0, tableContext);
+        if (!stats.containsKey(metadata.tableName)) loadStatistics(metadata, pd);
         return new Table(metadata.tableName, metadata.schema, pd, tableContext, stats);
     }
 
+    /**
+     * @return the rids and rows of _metadata.statistics saving the statistics
+     * of tableName
+     */
+    private List<Pair<RecordId, Record>> scanStatistics(String tableName) {
+        tableName = normalize(tableName);
+        List<Pair<RecordId, Record>> result = new ArrayList<>();
+        synchronized (statisticsLock) {
+            if (statisticsMetadata == null) return result;
+            for (RecordId rid : (Iterable<RecordId>) statisticsMetadata::ridIterator) {
+                Record record = statisticsMetadata.getRecord(rid);
+                if (normalize(record.getValue(0).getString()).equals(tableName)) {
+                    result.add(new Pair<>(rid, record));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads the statistics of a table from _metadata.statistics, the first
+     * time it is used. A table with records but no saved statistics (which
+     * were lost in a crash) has them refreshed in the background right away,
+     * if background refreshes are enabled.
+     */
+    private void loadStatistics(TableMetadata metadata, PageDirectory pageDirectory) {
+        int numRecordsPerPage = Table.computeNumRecordsPerPage(pageDirectory.getEffectivePageSize(),
+                                                               metadata.schema);
+        List<Record> records = new ArrayList<>();
+        for (Pair<RecordId, Record> p : scanStatistics(metadata.tableName)) records.add(p.getSecond());
+        TableStats tableStats;
+        boolean refresh = false;
+        if (records.isEmpty()) {
+            tableStats = new TableStats(metadata.schema, numRecordsPerPage);
+            if (pageDirectory.getNumDataPages() > 0) {
+                tableStats.markSketchesIncomplete();
+                refresh = true;
+            }
+        } else {
+            tableStats = TableStats.fromRecords(metadata.schema, numRecordsPerPage, records);
+        }
+        if (stats.putIfAbsent(metadata.tableName, tableStats) != null) return;
+        savedStatistics.put(metadata.tableName, records.isEmpty() ? -1 : tableStats.getVersion());
+        if (refresh) statisticsRefresher.schedule(metadata.tableName);
+        else setAutoRefresh(metadata.tableName, tableStats);
+    }
+
+    // schedules a refresh of the statistics of tableName once enough of it changes
+    private void setAutoRefresh(String tableName, TableStats tableStats) {
+        int threshold = statisticsRefresher.getThreshold(tableStats.getNumRecords());
+        tableStats.setAutoRefresh(threshold, () -> statisticsRefresher.schedule(tableName));
+    }
+
+    /**
+     * Refreshes the statistics of tableName and saves them, in a transaction
+     * of its own; run by the StatisticsRefresher.
+     */
+    private void refreshStatistics(String tableName) {
+        try (Transaction transaction = beginTransaction()) {
+            Table table;
+            try {
+                table = transaction.getTransactionContext().getTable(tableName);
+            } catch (DatabaseException e) {
+                // the table was dropped
+                return;
+            }
+            LockUtil.ensureSufficientLockHeld(getTableContext(tableName), LockType.S);
+            TableStats tableStats = table.getStats();
+            try {
+                table.buildStatistics(STATISTICS_BUCKETS);
+            } finally {
+                setAutoRefresh(tableName, tableStats);
+            }
+            saveStatistics(tableName, tableStats);
+        }
+    }
+
+    /**
+     * Replaces the rows of _metadata.statistics saving the statistics of
+     * tableName with tableStats, unless the table was dropped.
+     */
+    private void saveStatistics(String tableName, TableStats tableStats) {
+        long version = tableStats.getVersion();
+        List<Record> records = tableStats.toRecords(normalize(tableName));
+        initStatisticsInfo();
+        synchronized (statisticsLock) {
+            if (stats.get(tableName) != tableStats) return;
+            for (Pair<RecordId, Record> p : scanStatistics(tableName)) {
+                statisticsMetadata.deleteRecord(p.getFirst());
+            }
+            for (Record record : records) statisticsMetadata.addRecord(record);
+            savedStatistics.put(tableName, version);
+        }
+    }
+
+    /**
+     * Saves the statistics of every table that changed since they were last
+     * saved, in a transaction of its own.
+     */
+    private void saveChangedStatistics() {
+        if (tableMetadata == null) return;
+        Map<String, TableStats> changed = new HashMap<>();
+        for (Map.Entry<String, Long> saved : savedStatistics.entrySet()) {
+            TableStats tableStats = stats.get(saved.getKey());
+            if (tableStats != null && tableStats.getVersion() != saved.getValue()) {
+                changed.put(saved.getKey(), tableStats);
+            }
+        }
+        if (changed.isEmpty()) return;
+        try (Transaction transaction = beginTransaction()) {
+            for (Map.Entry<String, TableStats> entry : changed.entrySet()) {
+                saveStatistics(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
     /**
      * @return (rid, metadata) pairs for all of the indices currently
      * in the database. Assumes that caller has already acquired necessary locks
@@ -528,6 +876,36 @@ public class Database implements AutoCloseable {
         return new BPlusTree(bufferManager, metadata, indexContext);
     }
 
+    /**
+     * Scans the data pages in `pageNums` of `tableName` (or all of them, if
+     * pageNums is null) in parallel, and externally sorts the (key, rid) pairs
+     * of their records in the index `metadata`.
+     */
+    private Iterator<Pair<DataBox, RecordId>> sortedIndexEntries(TransactionContext transaction,
+                                                                 String tableName,
+                                                                 BPlusTreeMetadata metadata,
+                                                                 List<Long> pageNums) {
+        Iterator<Record> sorted;
+        // the sort reads the whole scan up front; closing the scan stops its
+        // workers if the sort fails partway through
+        try (ParallelKeyScanOperator scan = new ParallelKeyScanOperator(transaction, tableName, metadata,
+                getIndexBuildParallelism(), pageNums)) {
+            sorted = new SortOperator(transaction, scan, ParallelKeyScanOperator.KEY_FIELD).iterator();
+        }
+        return new Iterator<Pair<DataBox, RecordId>>() {
+            @Override
+            public boolean hasNext() {
+                return sorted.hasNext();
+            }
+
+            @Override
+            public Pair<DataBox, RecordId> next() {
+                Record record = sorted.next();
+                return new Pair<>(record.getValue(0), ParallelKeyScanOperator.toRecordId(record));
+            }
+        };
+    }
+
     // get the lock context for database/_metadata.tables
     private LockContext getTableInfoContext() {
         return lockManager.databaseContext().childContext(TABLE_INFO_TABLE_NAME);
@@ -662,6 +1040,16 @@ public class Database implements AutoCloseable {
             return getColumnIndexMetadata(tableName, columnName) != null;
         }
 
+        @Override
+        public List<BPlusTreeMetadata> getIndices(String tableName) {
+            if (aliases.containsKey(tableName)) tableName = aliases.get(tableName);
+            List<BPlusTreeMetadata> result = new ArrayList<>();
+            for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
+                result.add(p.getSecond());
+            }
+            return result;
+        }
+
         @Override
         public void updateIndexMetadata(BPlusTreeMetadata metadata) {
             Record updated = metadata.toRecord();
@@ -713,7 +1101,7 @@ public class Database implements AutoCloseable {
             // Since we'll likely scan multiple pages of records, its better
             // to get an S lock on the whole table up front
             LockUtil.ensureSufficientLockHeld(getTableContext(tableName), LockType.S);
-            return tab.recordIterator(tree.scanGreaterEqual(startValue));
+            return tab.recordIterator(tree.scanGreaterEqual(lowerBound(tree, tab.getSchema(), startValue)));
         }
 
         @Override
@@ -721,7 +1109,64 @@ public class Database implements AutoCloseable {
             Table tab = getTable(tableName);
             tableName = tab.getName();
             BPlusTree tree = indexFromMetadata(getColumnIndexMetadata(tableName, columnName).getSecond());
-            return tab.recordIterator(tree.scanEqual(key));
+            return tab.recordIterator(scanEqual(tree, tab.getSchema(), key));
+        }
+
+        // the smallest key of `tree`, an index on a table with schema `s`,
+        // whose first key column is greater than or equal to `value`
+        private DataBox lowerBound(BPlusTree tree, Schema s, DataBox value) {
+            BPlusTreeMetadata metadata = tree.getMetadata();
+            if (!metadata.isEncoded()) return value;
+            return CompositeKey.lowerBound(value, metadata.getIndexColumnTypes(s));
+        }
+
+        // the record ids of the entries of `tree`, an index on a table with
+        // schema `s`, whose first key column is `value`
+        private Iterator<RecordId> scanEqual(BPlusTree tree, Schema s, DataBox value) {
+            BPlusTreeMetadata metadata = tree.getMetadata();
+            if (!metadata.isEncoded()) return tree.scanEqual(value);
+            List<Type> types = metadata.getIndexColumnTypes(s);
+            List<RecordId> rids = new ArrayList<>();
+            Iterator<Pair<DataBox, RecordId>> entries = tree.scanEntriesGreaterEqual(lowerBound(tree, s, value));
+            while (entries.hasNext()) {
+                Pair<DataBox, RecordId> entry = entries.next();
+                if (!CompositeKey.decode(entry.getFirst(), types).get(0).equals(value)) break;
+                rids.add(entry.getSecond());
+            }
+            return rids.iterator();
+        }
+
+        @Override
+        public Iterator<DataBox> scanIndexKeys(String tableName, String columnName, DataBox startKey) {
+            Iterator<Pair<DataBox, RecordId>> entries = scanIndexEntries(tableName, columnName, startKey);
+            return new Iterator<DataBox>() {
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public DataBox next() {
+                    return entries.next().getFirst();
+                }
+            };
+        }
+
+        @Override
+        public Iterator<Pair<DataBox, RecordId>> scanIndexEntries(String tableName, String columnName,
+                                                                 DataBox startKey) {
+            Table tab = getTable(tableName);
+            tableName = tab.getName();
+            Pair<RecordId, BPlusTreeMetadata> pair = getColumnIndexMetadata(tableName, columnName);
+            if (pair == null) {
+                throw new DatabaseException("no index on " + tableName + "(" + columnName + ")");
+            }
+            // The keys are copies of the records' values (and the record ids
+            // lead to them), so we lock the table just as a scan of the records
+            // would
+            LockUtil.ensureSufficientLockHeld(getTableContext(tableName), LockType.S);
+            BPlusTree tree = indexFromMetadata(pair.getSecond());
+            return startKey == null ? tree.scanAllEntries() : tree.scanEntriesGreaterEqual(startKey);
         }
 
         @Override
@@ -733,7 +1178,7 @@ public class Database implements AutoCloseable {
         public boolean contains(String tableName, String columnName, DataBox key) {
             tableName = aliases.getOrDefault(tableName, tableName);
             BPlusTree tree = indexFromMetadata(getColumnIndexMetadata(tableName, columnName).getSecond());
-            return tree.get(key).isPresent();
+            return scanEqual(tree, getTable(tableName).getSchema(), key).hasNext();
         }
 
         @Override
@@ -745,30 +1190,157 @@ public class Database implements AutoCloseable {
             }
             RecordId rid = tab.addRecord(record);
             Schema s = tab.getSchema();
-            List<String> colNames = s.getFieldNames();
 
             for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
                 BPlusTree tree = indexFromMetadata(p.getSecond());
-                String column = tree.getMetadata().getColName();
-                DataBox key = record.getValue(colNames.indexOf(column));
-                tree.put(key, rid);
+                tree.put(tree.getMetadata().buildKey(s.verify(record), s), rid);
             }
             return rid;
         }
 
+        @Override
+        public List<RecordId> addRecords(String tableName, Iterator<Record> records) {
+            Table tab = getTable(tableName);
+            if (tab == null) {
+                throw new DatabaseException("table `" + tableName + "` does not exist!");
+            }
+            tableName = tab.getName();
+            Schema s = tab.getSchema();
+            List<Pair<RecordId, BPlusTreeMetadata>> indices = getTableIndicesMetadata(tableName);
+
+            List<RecordId> rids = new ArrayList<>();
+            while (records.hasNext()) {
+                // the records are added in chunks, so that each chunk's index
+                // entries can be inserted in key order without holding on to
+                // every record
+                List<Record> chunk = new ArrayList<>();
+                while (chunk.size() < INSERT_BATCH_SIZE && records.hasNext()) {
+                    chunk.add(s.verify(records.next()));
+                }
+                // every key is built before the chunk is written, so that a
+                // record that can't be added leaves the table and its indices
+                // as they were
+                List<List<DataBox>> keys = new ArrayList<>();
+                for (Pair<RecordId, BPlusTreeMetadata> p: indices) {
+                    List<DataBox> indexKeys = new ArrayList<>();
+                    for (Record record : chunk) {
+                        indexKeys.add(p.getSecond().buildKey(record, s));
+                    }
+                    keys.add(indexKeys);
+                }
+                List<RecordId> chunkRids = tab.addRecords(chunk.iterator());
+
+                // (index, key) of every entry put so far, to take them back
+                // out if a later put fails
+                List<Pair<BPlusTree, DataBox>> added = new ArrayList<>();
+                try {
+                    for (int i = 0; i < indices.size(); ++i) {
+                        BPlusTree tree = indexFromMetadata(indices.get(i).getSecond());
+                        List<Pair<DataBox, RecordId>> entries = new ArrayList<>();
+                        for (int j = 0; j < chunk.size(); ++j) {
+                            entries.add(new Pair<>(keys.get(i).get(j), chunkRids.get(j)));
+                        }
+                        entries.sort(Comparator.comparing(Pair::getFirst));
+                        for (Pair<DataBox, RecordId> entry : entries) {
+                            tree.put(entry.getFirst(), entry.getSecond());
+                            added.add(new Pair<>(tree, entry.getFirst()));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. a duplicate key: remove the chunk again
+                    for (Pair<BPlusTree, DataBox> entry : added) {
+                        entry.getFirst().remove(entry.getSecond());
+                    }
+                    for (RecordId rid : chunkRids) {
+                        tab.deleteRecord(rid);
+                    }
+                    throw e;
+                }
+                rids.addAll(chunkRids);
+            }
+            return rids;
+        }
+
+        @Override
+        public long bulkLoad(String tableName, Iterator<Record> records) {
+            Table tab = getTable(tableName);
+            if (tab == null) {
+                throw new DatabaseException("table `" + tableName + "` does not exist!");
+            }
+            tableName = tab.getName();
+            Schema s = tab.getSchema();
+
+            // Stop at the first record that does not match the schema (or
+            // cannot be read), so that the records before it are still loaded
+            // and indexed before the error is thrown.
+            AtomicReference<DatabaseException> error = new AtomicReference<>();
+            AtomicLong numRecords = new AtomicLong();
+            Iterator<Record> verified = new Iterator<Record>() {
+                private Record next = null;
+
+                @Override
+                public boolean hasNext() {
+                    if (next == null && error.get() == null) {
+                        try {
+                            if (records.hasNext()) {
+                                next = s.verify(records.next());
+                            }
+                        } catch (DatabaseException e) {
+                            error.set(e);
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Record next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Record record = next;
+                    next = null;
+                    numRecords.incrementAndGet();
+                    return record;
+                }
+            };
+            List<Long> pageNums = tab.bulkLoad(verified);
+            indexLoadedPages(tableName, pageNums);
+            if (error.get() != null) {
+                throw error.get();
+            }
+            return numRecords.get();
+        }
+
+        // Adds the records on the data pages in `pageNums` of `tableName`,
+        // which are not yet in the table's indices, to them: empty indices are
+        // built bottom-up, and the rest get their new entries in key order.
+        private void indexLoadedPages(String tableName, List<Long> pageNums) {
+            for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
+                BPlusTree tree = indexFromMetadata(p.getSecond());
+                if (!tree.scanAll().hasNext()) {
+                    tree.bulkBuild(sortedIndexEntries(this, tableName, p.getSecond(), null),
+                                   getIndexFillFactor());
+                } else {
+                    Iterator<Pair<DataBox, RecordId>> entries = sortedIndexEntries(this, tableName,
+                            p.getSecond(), pageNums);
+                    while (entries.hasNext()) {
+                        Pair<DataBox, RecordId> entry = entries.next();
+                        tree.put(entry.getFirst(), entry.getSecond());
+                    }
+                }
+            }
+        }
+
         @Override
         public RecordId deleteRecord(String tableName, RecordId rid) {
             Table tab = getTable(tableName);
             tableName = tab.getName();
             Schema s = tab.getSchema();
             Record record = tab.deleteRecord(rid);
-            List<String> colNames = s.getFieldNames();
 
             for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
                 BPlusTree tree = indexFromMetadata(p.getSecond());
-                String column = tree.getMetadata().getColName();
-                DataBox key = record.getValue(colNames.indexOf(column));
-                tree.remove(key);
+                tree.remove(tree.getMetadata().buildKey(record, s));
             }
             return rid;
         }
@@ -785,13 +1357,11 @@ public class Database implements AutoCloseable {
             Schema s = tab.getSchema();
 
             Record old = tab.updateRecord(rid, updated);
-            List<String> colNames = s.getFieldNames();
 
             for (Pair<RecordId, BPlusTreeMetadata> p: getTableIndicesMetadata(tableName)) {
                 BPlusTree tree = indexFromMetadata(p.getSecond());
-                String column = tree.getMetadata().getColName();
-                DataBox oldKey = old.getValue(colNames.indexOf(column));
-                DataBox newKey = updated.getValue(colNames.indexOf(column));
+                DataBox oldKey = tree.getMetadata().buildKey(old, s);
+                DataBox newKey = tree.getMetadata().buildKey(s.verify(updated), s);
                 tree.remove(oldKey);
                 tree.put(newKey, rid);
             }
@@ -906,6 +1476,11 @@ public class Database implements AutoCloseable {
             return getTable(tableName).getNumDataPages();
         }
 
+        @Override
+        public PlanCache getPlanCache() {
+            return planCache;
+        }
+
         @Override
         public int getTreeOrder(String tableName, String columnName) {
             if (aliases.containsKey(tableName)) tableName = aliases.get(tableName);
@@ -974,6 +1549,9 @@ public class Database implements AutoCloseable {
         private long transNum;
         private boolean recoveryTransaction;
         private TransactionContext transactionContext;
+        // whether this transaction created or dropped tables or indices, whose
+        // changes a rollback undoes without going through dropTable etc.
+        private boolean changedMetadata;
 
         private TransactionImpl(long transNum, boolean recovery) {
             this.transNum = transNum;
@@ -1006,6 +1584,7 @@ public class Database implements AutoCloseable {
         @Override
         protected void startRollback() {
             recoveryManager.abort(transNum);
+            if (changedMetadata) planCache.clear();
             this.cleanup();
         }
 
@@ -1049,6 +1628,8 @@ public class Database implements AutoCloseable {
             synchronized (tableMetadata) {
                 tableMetadata.addRecord(metadata.toRecord());
             }
+            changedMetadata = true;
+            planCache.invalidate(tableName);
         }
 
         @Override
@@ -1074,7 +1655,16 @@ public class Database implements AutoCloseable {
             synchronized(tableMetadata) {
                 metadata = new TableMetadata(tableMetadata.deleteRecord(rid));
             }
+            synchronized (statisticsLock) {
+                stats.remove(metadata.tableName);
+                savedStatistics.remove(metadata.tableName);
+                for (Pair<RecordId, Record> p : scanStatistics(tableName)) {
+                    statisticsMetadata.deleteRecord(p.getFirst());
+                }
+            }
             bufferManager.freePart(metadata.partNum);
+            changedMetadata = true;
+            planCache.invalidate(tableName);
         }
 
         @Override
@@ -1089,9 +1679,18 @@ public class Database implements AutoCloseable {
 
         @Override
         public void createIndex(String tableName, String columnName, boolean bulkLoad) {
+            createIndex(tableName, Collections.singletonList(columnName), Collections.emptyList(), bulkLoad);
+        }
+
+        @Override
+        public void createIndex(String tableName, List<String> keyColumns,
+                                List<String> includeColumns, boolean bulkLoad) {
             if (tableName.contains(".") || tableName.contains(" ") || tableName.length() == 0) {
                 throw new IllegalArgumentException("name of new table may not contain '.' or ' ', or be the empty string");
             }
+            if (keyColumns.isEmpty()) {
+                throw new IllegalArgumentException("an index needs at least one key column");
+            }
             // We want to check that the table exists
             TableMetadata tableMetadata = getTableMetadata(tableName).getSecond();
             if (tableMetadata == null) {
@@ -1100,13 +1699,39 @@ public class Database implements AutoCloseable {
 
             Schema s = tableMetadata.schema;
             List<String> schemaColNames = s.getFieldNames();
-            List<Type> schemaColType = s.getFieldTypes();
-            if (!schemaColNames.contains(columnName)) {
-                throw new DatabaseException("table " + tableName + " does not have a column " + columnName);
+            List<String> indexColumns = new ArrayList<>(keyColumns);
+            indexColumns.addAll(includeColumns);
+            for (String column : indexColumns) {
+                if (!schemaColNames.contains(column)) {
+                    throw new DatabaseException("table " + tableName + " does not have a column " + column);
+                }
+            }
+            if (new HashSet<>(indexColumns).size() != indexColumns.size()) {
+                throw new DatabaseException("columns of an index must be distinct: " + indexColumns);
+            }
+            String columnName = String.join(",", keyColumns);
+            String includeColNames = String.join(",", includeColumns);
+            if (columnName.length() > BPlusTreeMetadata.MAX_COLUMN_LIST_LENGTH ||
+                    includeColNames.length() > BPlusTreeMetadata.MAX_COLUMN_LIST_LENGTH) {
+                throw new DatabaseException("column lists of an index may be at most " +
+                        BPlusTreeMetadata.MAX_COLUMN_LIST_LENGTH + " characters long");
             }
 
-            int columnIndex = schemaColNames.indexOf(columnName);
-            Type colType = schemaColType.get(columnIndex);
+            // Plain single column indices store the column's values directly;
+            // anything else stores all index columns encoded in one byte array.
+            List<Type> indexColTypes = new ArrayList<>();
+            for (String column : indexColumns) {
+                indexColTypes.add(s.getFieldType(schemaColNames.indexOf(column)));
+            }
+            Type keyType = indexColumns.size() == 1 ? indexColTypes.get(0) :
+                    Type.byteArrayType(CompositeKey.sizeInBytes(indexColTypes));
+            int keySize = indexColumns.size() == 1 ? keyType.getSizeInBytes() :
+                    CompositeKey.sizeInBytes(indexColTypes.subList(0, keyColumns.size()));
+            int order = BPlusTree.maxOrder(BufferManager.EFFECTIVE_PAGE_SIZE, keyType);
+            if (order < 1) {
+                throw new DatabaseException("index key of " + keyType.getSizeInBytes() +
+                        " bytes is too large to fit two entries on a page");
+            }
 
             // To create the index we'll need an exclusive lock on its metadata
             LockUtil.ensureSufficientLockHeld(getColumnIndexMetadataContext(tableName, columnName), LockType.X);
@@ -1115,29 +1740,27 @@ public class Database implements AutoCloseable {
                 throw new DatabaseException("index already exists on " + tableName + "(" + columnName + ")");
             }
 
-            int order = BPlusTree.maxOrder(BufferManager.EFFECTIVE_PAGE_SIZE, colType);
-            Record indexEntry = new Record(tableName, columnName, order,
-                    diskSpaceManager.allocPart(),
-                    diskSpaceManager.INVALID_PAGE_NUM,
-                    colType.getTypeId().ordinal(),
-                    colType.getSizeInBytes(), -1
-            );
+            BPlusTreeMetadata metadata = new BPlusTreeMetadata(tableName, columnName, includeColNames,
+                    keyType, keySize, order, diskSpaceManager.allocPart(), diskSpaceManager.INVALID_PAGE_NUM, -1);
             synchronized (indexMetadata) {
-                indexMetadata.addRecord(indexEntry);
+                indexMetadata.addRecord(metadata.toRecord());
             }
-            BPlusTreeMetadata metadata = new BPlusTreeMetadata(indexEntry);
             BPlusTree tree = indexFromMetadata(metadata);
 
             // load data into index
             if (bulkLoad) {
-                throw new UnsupportedOperationException("not implemented");
+                // Build the tree bottom-up from the sorted (key, rid) pairs.
+                tree.bulkBuild(sortedIndexEntries(transactionContext, tableName, metadata, null),
+                               getIndexFillFactor());
             } else {
                 Table table = tableFromMetadata(tableMetadata);
                 for (RecordId rid : (Iterable<RecordId>) table::ridIterator) {
                     Record record = table.getRecord(rid);
-                    tree.put(record.getValue(columnIndex), rid);
+                    tree.put(metadata.buildKey(record, s), rid);
                 }
             }
+            changedMetadata = true;
+            planCache.invalidate(tableName);
         }
 
         @Override
@@ -1150,6 +1773,8 @@ public class Database implements AutoCloseable {
             }
             indexMetadata.deleteRecord(pair.getFirst());
             bufferManager.freePart(pair.getSecond().getPartNum());
+            changedMetadata = true;
+            planCache.invalidate(tableName);
         }
 
         @Override
@@ -1167,6 +1792,16 @@ public class Database implements AutoCloseable {
             transactionContext.addRecord(tableName, values);
         }
 
+        @Override
+        public void insertBatch(String tableName, Iterator<Record> records) {
+            transactionContext.addRecords(tableName, records);
+        }
+
+        @Override
+        public long bulkLoad(String tableName, Iterator<Record> records) {
+            return transactionContext.bulkLoad(tableName, records);
+        }
+
         @Override
         public void update(String tableName, String targetColumnName, UnaryOperator<DataBox> targetValue) {
             update(tableName, targetColumnName, targetValue, null, null, null);
@@ -1203,6 +1838,7 @@ public class Database implements AutoCloseable {
         @Override
         public void rollbackToSavepoint(String savepointName) {
             recoveryManager.rollbackToSavepoint(transNum, savepointName);
+            if (changedMetadata) planCache.clear();
         }
 
         @Override
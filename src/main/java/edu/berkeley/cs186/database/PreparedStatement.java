@@ -0,0 +1,127 @@
+package edu.berkeley.cs186.database;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.query.QueryPlan;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A SQL statement with ? placeholders standing for values, such as
+ *
+ *   SELECT * FROM Students WHERE sid = ? AND gpa >= ?;
+ *
+ * that is executed with different values each time:
+ *
+ *   PreparedStatement statement = db.prepare(...);
+ *   statement.execute(transaction, 186, 3.5f);
+ *
+ * The values are bound as literals, so they are never parsed as SQL, and
+ * every execution of a query has the same shape: the optimizer plans it the
+ * first time it runs, and later executions reuse the plan from the plan cache
+ * (see PlanCache) as long as it is still valid.
+ *
+ * Values may be Integers, Floats (or Doubles, which are narrowed to floats),
+ * Booleans, Strings, or DataBoxes of those types.
+ */
+public class PreparedStatement {
+    private String statement;
+    // the statement split around its placeholders: placeholder i is between
+    // parts i and i + 1
+    private List<String> parts;
+
+    public PreparedStatement(String statement) {
+        this.statement = statement;
+        this.parts = split(statement);
+    }
+
+    /**
+     * Splits statement around the ? outside of string literals and quoted
+     * identifiers.
+     */
+    private static List<String> split(String statement) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        char quote = 0;
+        for (int i = 0; i < statement.length(); i++) {
+            char c = statement.charAt(i);
+            if (quote != 0) {
+                // a doubled quote stands for the quote itself, and is read as
+                // two quoted strings back to back
+                if (c == quote) quote = 0;
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '[') {
+                quote = ']';
+            } else if (c == '?') {
+                parts.add(statement.substring(start, i));
+                start = i + 1;
+            }
+        }
+        if (quote != 0) {
+            throw new DatabaseException("unterminated quote in statement: " + statement);
+        }
+        parts.add(statement.substring(start));
+        return parts;
+    }
+
+    /**
+     * @return the number of values the statement takes
+     */
+    public int getNumParameters() {
+        return parts.size() - 1;
+    }
+
+    /**
+     * Executes the statement within transaction, with the ith placeholder
+     * standing for values[i].
+     *
+     * @return the query plan of the statement if it is a query, as
+     * Transaction#execute returns
+     */
+    public Optional<QueryPlan> execute(Transaction transaction, Object... values) {
+        return transaction.execute(bind(values));
+    }
+
+    /**
+     * @return the statement with its placeholders replaced by values
+     */
+    String bind(Object... values) {
+        if (values.length != getNumParameters()) {
+            throw new IllegalArgumentException(String.format(
+                    "statement takes %d values, %d given", getNumParameters(), values.length));
+        }
+        StringBuilder result = new StringBuilder(parts.get(0));
+        for (int i = 0; i < values.length; i++) {
+            result.append(toLiteral(values[i])).append(parts.get(i + 1));
+        }
+        return result.toString();
+    }
+
+    private static String toLiteral(Object value) {
+        if (value instanceof DataBox) {
+            DataBox d = (DataBox) value;
+            switch (d.getTypeId()) {
+                case BOOL: return toLiteral(d.getBool());
+                case INT: return toLiteral(d.getInt());
+                case FLOAT: return toLiteral(d.getFloat());
+                case STRING: return toLiteral(d.getString());
+                default: break;
+            }
+        } else if (value instanceof Boolean || value instanceof Integer) {
+            return value.toString();
+        } else if (value instanceof Float || value instanceof Double) {
+            float f = ((Number) value).floatValue();
+            if (!Float.isInfinite(f) && !Float.isNaN(f)) return Float.toString(f);
+        } else if (value instanceof String) {
+            return "'" + ((String) value).replace("'", "''") + "'";
+        }
+        throw new IllegalArgumentException("cannot bind value " + value);
+    }
+
+    @Override
+    public String toString() {
+        return statement;
+    }
+}
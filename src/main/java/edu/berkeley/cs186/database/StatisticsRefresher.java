@@ -0,0 +1,220 @@
+package edu.berkeley.cs186.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Refreshes the statistics of tables in the background. A table is scheduled
+ * once the number of records added to or removed from it since its statistics
+ * were last refreshed passes
+ *
+ *   thresholdBase + thresholdFraction * (number of records at the last refresh)
+ *
+ * (see TableStats#setAutoRefresh), as PostgreSQL's autovacuum decides when to
+ * analyze a table. A single background thread, started on the first table
+ * scheduled, refreshes the scheduled tables one at a time with `refresh`.
+ *
+ * Automatic refreshes are disabled (both the base and the fraction are 0)
+ * until configure is called, as a refresh reads the whole table alongside
+ * the statements of the workload.
+ *
+ * A refresh that fails is not retried: the table is scheduled again by its
+ * next modifications. The last failure is kept (see getLastError).
+ */
+class StatisticsRefresher implements AutoCloseable {
+    private final Consumer<String> refresh;
+
+    // Protects all of the fields below.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private int thresholdBase = 0;
+    private float thresholdFraction = 0;
+    // tables waiting to be refreshed, in the order they were scheduled
+    private LinkedHashSet<String> scheduled = new LinkedHashSet<>();
+    // the table being refreshed, if any
+    private String refreshing;
+    private Thread thread;
+    private boolean closed = false;
+
+    // Number of refreshes done by the background thread, and how many of
+    // them failed, the last one with lastError.
+    private long numRefreshes = 0;
+    private long numFailures = 0;
+    private RuntimeException lastError;
+
+    StatisticsRefresher(Consumer<String> refresh) {
+        this.refresh = refresh;
+    }
+
+    /**
+     * Sets when tables are refreshed; see above.
+     */
+    void configure(int thresholdBase, float thresholdFraction) {
+        if (thresholdBase < 0 || thresholdFraction < 0) {
+            throw new IllegalArgumentException("statistics refresh threshold must be non-negative");
+        }
+        lock.lock();
+        try {
+            this.thresholdBase = thresholdBase;
+            this.thresholdFraction = thresholdFraction;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of records to add or remove from a table of
+     * numRecords records before it is refreshed, or Integer.MAX_VALUE if
+     * automatic refreshes are disabled
+     */
+    int getThreshold(int numRecords) {
+        lock.lock();
+        try {
+            if (thresholdBase == 0 && thresholdFraction == 0) return Integer.MAX_VALUE;
+            return (int) Math.min(thresholdBase + (long) Math.ceil(thresholdFraction * numRecords),
+                                  Integer.MAX_VALUE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues tableName to be refreshed, unless it already is or refreshes are
+     * disabled or stopped.
+     */
+    void schedule(String tableName) {
+        lock.lock();
+        try {
+            if (closed || (thresholdBase == 0 && thresholdFraction == 0)) return;
+            scheduled.add(tableName);
+            if (thread == null) {
+                thread = new Thread(this::run, "statistics-refresher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        lock.lock();
+        try {
+            while (!closed) {
+                if (scheduled.isEmpty()) {
+                    changed.awaitUninterruptibly();
+                    continue;
+                }
+                Iterator<String> iter = scheduled.iterator();
+                refreshing = iter.next();
+                iter.remove();
+                lock.unlock();
+                RuntimeException error = null;
+                try {
+                    refresh.accept(refreshing);
+                } catch (RuntimeException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                if (error != null) {
+                    ++numFailures;
+                    lastError = error;
+                }
+                refreshing = null;
+                ++numRefreshes;
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every scheduled table is refreshed.
+     */
+    void awaitRefreshes() {
+        lock.lock();
+        try {
+            while (!closed && (!scheduled.isEmpty() || refreshing != null)) {
+                changed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of refreshes done in the background
+     */
+    long getNumRefreshes() {
+        lock.lock();
+        try {
+            return numRefreshes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of refreshes done in the background that failed
+     */
+    long getNumFailures() {
+        lock.lock();
+        try {
+            return numFailures;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the exception the last failed refresh threw, or null if none
+     * failed
+     */
+    RuntimeException getLastError() {
+        lock.lock();
+        try {
+            return lastError;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background thread, dropping the tables waiting to be
+     * refreshed and waiting for a refresh in progress to finish.
+     */
+    @Override
+    public void close() {
+        Thread toJoin;
+        lock.lock();
+        try {
+            closed = true;
+            scheduled.clear();
+            changed.signalAll();
+            toJoin = thread;
+            thread = null;
+        } finally {
+            lock.unlock();
+        }
+        if (toJoin != null) {
+            boolean interrupted = false;
+            while (toJoin.isAlive()) {
+                try {
+                    toJoin.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -4,9 +4,13 @@ import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.databox.BoolDataBox;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.query.QueryPlan;
+import edu.berkeley.cs186.database.table.CSVRecordIterator;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
@@ -152,6 +156,26 @@ public abstract class Transaction implements AutoCloseable {
      */
     public abstract void createIndex(String tableName, String columnName, boolean bulkLoad);
 
+    /**
+     * Creates a composite and/or covering index. Equivalent to
+     *      CREATE INDEX ON tableName (keyColumns...) INCLUDE (includeColumns...)
+     * in postgres.
+     *
+     * The index is keyed on the values of keyColumns, compared column by
+     * column. The values of includeColumns are stored in the index as well,
+     * after the key columns, so that queries that only read key and included
+     * columns can be answered without visiting the table (an index-only scan).
+     * The index is identified by its key columns joined with commas, e.g. a
+     * composite index on (a, b) is dropped with dropIndex(tableName, "a,b").
+     *
+     * @param tableName name of table to create index for
+     * @param keyColumns names of the columns to key the index on, in order
+     * @param includeColumns names of non-key columns to store in the index
+     * @param bulkLoad whether to bulk load data
+     */
+    public abstract void createIndex(String tableName, List<String> keyColumns,
+                                     List<String> includeColumns, boolean bulkLoad);
+
     /**
      * Drops an index. Equivalent to
      *      DROP INDEX tableName_columnName
@@ -205,6 +229,49 @@ public abstract class Transaction implements AutoCloseable {
      */
     public abstract void insert(String tableName, Record record);
 
+    /**
+     * Inserts many rows into a table. Equivalent to calling insert on each of
+     * the records in `records`, but the rows are added to the table's data
+     * pages a page at a time, and to its indices in key order.
+     *
+     * @param tableName name of table to insert into
+     * @param records the records to be inserted
+     */
+    public abstract void insertBatch(String tableName, Iterator<Record> records);
+
+    /**
+     * Bulk loads rows into a table. The rows are appended to the table on
+     * newly allocated, fully packed data pages, each written (and logged) as
+     * a whole, and the table's indices are only updated once all of the rows
+     * are in: empty indices are built bottom-up from the sorted keys of the
+     * table, and the rest get the new keys in sorted order.
+     *
+     * If a record does not match the table's schema, the records before it
+     * are still loaded, and an exception is thrown.
+     *
+     * @param tableName name of table to load into
+     * @param records the records to be loaded
+     * @return the number of records loaded
+     */
+    public abstract long bulkLoad(String tableName, Iterator<Record> records);
+
+    /**
+     * Bulk loads rows from a CSV file into a table (see bulkLoad). Each line
+     * of the file holds the comma separated values of one row, in the order
+     * of the table's columns; the file is read as it is loaded. Equivalent to
+     *      COPY tableName FROM 'fileName' [WITH HEADER]
+     *
+     * @param tableName name of table to load into
+     * @param fileName path of the CSV file
+     * @param header whether the first line of the file is a header to skip
+     * @return the number of records loaded
+     */
+    public long copyFrom(String tableName, String fileName, boolean header) throws IOException {
+        try (CSVRecordIterator records = new CSVRecordIterator(getSchema(tableName), fileName, header)) {
+            return bulkLoad(tableName, records);
+        }
+    }
+
     /**
      * Updates rows in a table. Equivalent to
      *      UPDATE tableName SET targetColumnName = targetValue(targetColumnName)
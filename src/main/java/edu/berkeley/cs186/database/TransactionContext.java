@@ -1,9 +1,11 @@
 package edu.berkeley.cs186.database;
 
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
+import edu.berkeley.cs186.database.query.PlanCache;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.Schema;
@@ -11,6 +13,7 @@ import edu.berkeley.cs186.database.table.Table;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Condition;
@@ -35,6 +38,8 @@ public abstract class TransactionContext implements AutoCloseable {
     static Map<Long, TransactionContext> threadTransactions = new ConcurrentHashMap<>();
     private boolean blocked = false;
     private boolean startBlock = false;
+    // Thrown by block() when it returns, if set by unblockWithError().
+    private RuntimeException blockError = null;
     private final ReentrantLock transactionLock = new ReentrantLock();
     private final Condition unblocked = transactionLock.newCondition();
 
@@ -120,7 +125,10 @@ public abstract class TransactionContext implements AutoCloseable {
     // Indices /////////////////////////////////////////////////////////////////
 
     /**
-     * Perform a check to see if the database has an index on this (table,column).
+     * Perform a check to see if the database has an index on this (table,column)
+     * whose keys are plain values of the column, i.e. one that can be used
+     * with sortedScanFrom, lookupKey and contains. Composite and covering
+     * indices are listed by getIndices instead.
      *
      * @param tableName  the name of the table
      * @param columnName the name of the column
@@ -128,6 +136,12 @@ public abstract class TransactionContext implements AutoCloseable {
      */
     public abstract boolean indexExists(String tableName, String columnName);
 
+    /**
+     * @param tableName the name of the table
+     * @return the metadata of every index on `tableName`
+     */
+    public abstract List<BPlusTreeMetadata> getIndices(String tableName);
+
     public abstract void updateIndexMetadata(BPlusTreeMetadata metadata);
 
     // Scans ///////////////////////////////////////////////////////////////////
@@ -151,6 +165,21 @@ public abstract class TransactionContext implements AutoCloseable {
      */
     public abstract Iterator<Record> lookupKey(String tableName, String columnName, DataBox key);
 
+    /**
+     * Returns an iterator over the keys of the index on `tableName` identified
+     * by `columnName` (see BPlusTreeMetadata#getColName), in ascending order,
+     * starting at the first key greater than or equal to `startKey` (or at
+     * the first key if `startKey` is null). The table itself is not read.
+     */
+    public abstract Iterator<DataBox> scanIndexKeys(String tableName, String columnName, DataBox startKey);
+
+    /**
+     * Same as scanIndexKeys, but returns each key paired with the record id
+     * stored under it.
+     */
+    public abstract Iterator<Pair<DataBox, RecordId>> scanIndexEntries(String tableName, String columnName,
+                                                                      DataBox startKey);
+
     /**
      * Returns a backtracking iterator over all of the records in `tableName`.
      */
@@ -161,6 +190,27 @@ public abstract class TransactionContext implements AutoCloseable {
     // Record Operations ///////////////////////////////////////////////////////
     public abstract RecordId addRecord(String tableName, Record record);
 
+    /**
+     * Adds the records in `records` to `tableName`, in order, filling a data
+     * page at a time (see Table#addRecords), and adds them to the table's
+     * indices.
+     *
+     * The records are added in chunks. If a record does not match the schema
+     * or has a key already in one of the indices, none of the records of its
+     * chunk are added (to the table or its indices), the records of earlier
+     * chunks stay added, and an exception is thrown.
+     */
+    public abstract List<RecordId> addRecords(String tableName, Iterator<Record> records);
+
+    /**
+     * Appends the records in `records` to `tableName` on new data pages (see
+     * Table#bulkLoad), and then adds them to the table's indices: empty
+     * indices are built bottom-up, the rest get the new entries in key order.
+     *
+     * @return the number of records loaded
+     */
+    public abstract long bulkLoad(String tableName, Iterator<Record> records);
+
     public abstract RecordId deleteRecord(String tableName, RecordId rid);
 
     public abstract void deleteRecordWhere(String tableName, String predColumnName, PredicateOperator predOperator,
@@ -224,6 +274,14 @@ public abstract class TransactionContext implements AutoCloseable {
      */
     public abstract int getTreeHeight(String tableName, String columnName);
 
+    /**
+     * @return the cache of query plans shared by the transactions of the
+     * database, or null if plans aren't cached
+     */
+    public PlanCache getPlanCache() {
+        return null;
+    }
+
     // Synchronization /////////////////////////////////////////////////////////
 
     /**
@@ -241,20 +299,29 @@ public abstract class TransactionContext implements AutoCloseable {
 
     /**
      * Blocks the transaction (and thread). prepareBlock() must be called first.
+     *
+     * @throws RuntimeException the error passed to unblockWithError, if the
+     * transaction was unblocked that way
      */
     public void block() {
         if (!this.startBlock) {
             throw new IllegalStateException("prepareBlock() must be called before block()");
         }
+        RuntimeException error;
         try {
             this.blocked = true;
             while (this.blocked) {
                 this.unblocked.awaitUninterruptibly();
             }
+            error = this.blockError;
+            this.blockError = null;
         } finally {
             this.startBlock = false;
             this.transactionLock.unlock();
         }
+        if (error != null) {
+            throw error;
+        }
     }
 
     /**
@@ -270,6 +337,21 @@ public abstract class TransactionContext implements AutoCloseable {
         }
     }
 
+    /**
+     * Unblocks the transaction, making the block() call it is waiting in
+     * throw `error` instead of returning (e.g. to abort a lock request).
+     */
+    public void unblockWithError(RuntimeException error) {
+        this.transactionLock.lock();
+        try {
+            this.blockError = error;
+            this.blocked = false;
+            this.unblocked.signal();
+        } finally {
+            this.transactionLock.unlock();
+        }
+    }
+
     /**
      * @return if the transaction is blocked
      */
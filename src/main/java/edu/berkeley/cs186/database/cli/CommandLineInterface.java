@@ -11,6 +11,7 @@ import edu.berkeley.cs186.database.cli.parser.TokenMgrError;
 import edu.berkeley.cs186.database.cli.visitor.StatementListVisitor;
 import edu.berkeley.cs186.database.concurrency.LockManager;
 import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
+import edu.berkeley.cs186.database.table.CSVRecordIterator;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.Table;
@@ -165,7 +166,7 @@ public class CommandLineInterface {
         new PrettyPrinter(out).printSchema(s);
     }
 
-    private void parseMetaCommand(String input, Database db) {
+    private void parseMetaCommand(String input, Database db) throws IOException {
         input = input.substring(1); // Shave off the initial slash
         String[] tokens = input.split("\\s+");
         String cmd = tokens[0];
@@ -195,6 +196,26 @@ public class CommandLineInterface {
             } else {
                 this.out.println(db.getLockManager().getLocks(tc));
             }
+        } else if (cmd.equals("copy")) {
+            // \copy <table> from <file> [header]
+            if (tokens.length < 4 || tokens.length > 5 || !tokens[2].equalsIgnoreCase("from") ||
+                    (tokens.length == 5 && !tokens[4].equalsIgnoreCase("header"))) {
+                throw new IllegalArgumentException("usage: \\copy <table> from <file> [header]");
+            }
+            String tableName = tokens[1];
+            String fileName = tokens[3];
+            boolean header = tokens.length == 5;
+            long numRecords;
+            if (tc == null) {
+                try (Transaction t = db.beginTransaction()) {
+                    numRecords = t.copyFrom(tableName, fileName, header);
+                }
+            } else {
+                try (CSVRecordIterator records = new CSVRecordIterator(tc.getSchema(tableName), fileName, header)) {
+                    numRecords = tc.bulkLoad(tableName, records);
+                }
+            }
+            this.out.println("COPY " + numRecords);
         } else {
             throw new IllegalArgumentException(String.format(
                 "`%s` is not a valid metacommand",
@@ -107,7 +107,7 @@ public class PrettyPrinter {
         String literalLower = literal.toLowerCase();
         if(literal.charAt(0) == '\'') {
             String unescaped = literal.substring(1, literal.length() - 1);
-            String escaped = unescaped.replace("''", "''");
+            String escaped = unescaped.replace("''", "'");
             return new StringDataBox(escaped, escaped.length());
         } else if(literalLower.equals("true")) {
             return new BoolDataBox(true);
@@ -45,9 +45,7 @@ class CommonTableExpressionVisitor extends RookieParserDefaultVisitor {
 
     public void populateTable(Transaction transaction) {
         Iterator<Record> records = this.visitor.getQueryPlan(transaction).get().execute();
-        while (records.hasNext()) {
-            transaction.insert(this.alias, records.next());
-        }
+        transaction.insertBatch(this.alias, records);
     }
 
     @Override
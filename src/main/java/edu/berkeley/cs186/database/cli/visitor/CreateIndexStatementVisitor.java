@@ -12,7 +12,7 @@ class CreateIndexStatementVisitor extends StatementVisitor {
 
     @Override
     public void execute(Transaction transaction, PrintStream out) {
-        transaction.createIndex(tableName, columnName, false);
+        transaction.createIndex(tableName, columnName, true);
         out.printf("CREATE INDEX ON %s (%s)\n", tableName, columnName);
     }
 
@@ -8,12 +8,10 @@ import edu.berkeley.cs186.database.cli.parser.Token;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.query.QueryOperator;
 import edu.berkeley.cs186.database.query.QueryPlan;
-import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
 
 class CreateTableStatementVisitor extends StatementVisitor {
@@ -97,11 +95,7 @@ class CreateTableStatementVisitor extends StatementVisitor {
                     }
                 }
                 transaction.createTable(s, this.tableName);
-                Iterator<Record> records = op.iterator();
-                while (records.hasNext()) {
-                    Record r = records.next();
-                    transaction.insert(this.tableName, r);
-                }
+                transaction.insertBatch(this.tableName, op.iterator());
             } else {
                 transaction.createTable(this.schema, this.tableName);
             }
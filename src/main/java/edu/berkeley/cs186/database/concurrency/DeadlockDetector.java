@@ -0,0 +1,198 @@
+package edu.berkeley.cs186.database.concurrency;
+
+import edu.berkeley.cs186.database.TransactionContext;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * Finds deadlocks among the transactions waiting in a lock manager's queues,
+ * and breaks them by aborting a victim's waiting request.
+ *
+ * Each check builds the waits-for graph of the lock table (see
+ * LockManager#collectWaits) and looks for cycles. The graph is read one shard
+ * at a time while transactions keep running, so a cycle in it may never have
+ * existed all at once. A transaction waiting on the same request in two
+ * consecutive checks has been blocked all along, though, and a blocked
+ * transaction neither acquires nor releases locks, so a cycle among such
+ * transactions is a real deadlock. Only those transactions are considered:
+ * a deadlock is broken within two check intervals of forming.
+ *
+ * Of the transactions in a cycle, the one with the lowest cost is chosen as
+ * the victim (the youngest, on ties), and the cycle search continues without
+ * it until no cycle is left. The victim's waiting request is removed from its
+ * queue, and throws DeadlockException; the transaction keeps its other locks
+ * until it is rolled back.
+ */
+class DeadlockDetector {
+    private final LockManager lockManager;
+
+    // Protects all of the fields below.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private long intervalMillis = 0;
+    private Thread thread;
+    private ToLongFunction<TransactionContext> victimCost;
+
+    // The waiting requests seen by the last check, by transaction number.
+    private Map<Long, LockRequest> lastWaiting = new HashMap<>();
+
+    DeadlockDetector(LockManager lockManager) {
+        this.lockManager = lockManager;
+        this.victimCost = transaction -> lockManager.getLocks(transaction).size();
+    }
+
+    /**
+     * Sets the check interval, starting the background thread if necessary.
+     * The thread exits once the interval is set to 0.
+     *
+     * @param intervalMillis time between checks in milliseconds, or 0 to
+     *                       stop checking
+     */
+    void configure(long intervalMillis) {
+        if (intervalMillis < 0) {
+            throw new IllegalArgumentException("deadlock detection interval must be non-negative");
+        }
+        lock.lock();
+        try {
+            this.intervalMillis = intervalMillis;
+            if (thread == null && intervalMillis > 0) {
+                thread = new Thread(this::run, "deadlock-detector");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void setVictimCost(ToLongFunction<TransactionContext> victimCost) {
+        lock.lock();
+        try {
+            this.victimCost = victimCost;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        lock.lock();
+        try {
+            while (intervalMillis > 0) {
+                try {
+                    changed.await(intervalMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (intervalMillis > 0) {
+                    detect();
+                }
+            }
+            thread = null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks for deadlocks once, aborting a victim in each.
+     *
+     * @return the number of transactions aborted
+     */
+    int detect() {
+        lock.lock();
+        try {
+            Map<Long, LockRequest> waiting = new HashMap<>();
+            Map<Long, Set<Long>> waitsFor = new HashMap<>();
+            lockManager.collectWaits(waiting, waitsFor);
+
+            // only transactions blocked since the last check, on the same
+            // request, can be relied on to be deadlocked
+            Set<Long> stuck = new HashSet<>();
+            for (Map.Entry<Long, LockRequest> entry : waiting.entrySet()) {
+                if (lastWaiting.get(entry.getKey()) == entry.getValue()) {
+                    stuck.add(entry.getKey());
+                }
+            }
+            lastWaiting = waiting;
+
+            int numVictims = 0;
+            List<Long> cycle;
+            while ((cycle = findCycle(stuck, waitsFor)) != null) {
+                long victim = chooseVictim(cycle, waiting);
+                stuck.remove(victim);
+                LockRequest request = waiting.get(victim);
+                String message = "transaction " + victim + " aborted to break a deadlock among transactions " +
+                                 cycle + " (waiting on " + request.lock + ")";
+                if (lockManager.abortRequest(request, new DeadlockException(message))) {
+                    ++numVictims;
+                }
+            }
+            return numVictims;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long chooseVictim(List<Long> cycle, Map<Long, LockRequest> waiting) {
+        long victim = -1;
+        long victimCost = Long.MAX_VALUE;
+        for (long transNum : cycle) {
+            long cost = this.victimCost.applyAsLong(waiting.get(transNum).transaction);
+            if (victim == -1 || cost < victimCost || (cost == victimCost && transNum > victim)) {
+                victim = transNum;
+                victimCost = cost;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * Finds a cycle of the waits-for graph among the transactions in
+     * `nodes`.
+     *
+     * @return the transactions on the cycle, or null if there is none
+     */
+    private static List<Long> findCycle(Set<Long> nodes, Map<Long, Set<Long>> waitsFor) {
+        Set<Long> done = new HashSet<>();
+        for (long start : nodes) {
+            if (done.contains(start)) {
+                continue;
+            }
+            // iterative depth first search; path holds the current path, and
+            // iterators the edges left to follow from each node on it
+            List<Long> path = new ArrayList<>();
+            Set<Long> onPath = new HashSet<>();
+            Deque<Iterator<Long>> iterators = new ArrayDeque<>();
+            path.add(start);
+            onPath.add(start);
+            iterators.push(waitsFor.getOrDefault(start, Collections.emptySet()).iterator());
+            while (!iterators.isEmpty()) {
+                Iterator<Long> edges = iterators.peek();
+                if (!edges.hasNext()) {
+                    iterators.pop();
+                    long node = path.remove(path.size() - 1);
+                    onPath.remove(node);
+                    done.add(node);
+                    continue;
+                }
+                long next = edges.next();
+                if (!nodes.contains(next) || done.contains(next)) {
+                    continue;
+                }
+                if (onPath.contains(next)) {
+                    return new ArrayList<>(path.subList(path.indexOf(next), path.size()));
+                }
+                path.add(next);
+                onPath.add(next);
+                iterators.push(waitsFor.getOrDefault(next, Collections.emptySet()).iterator());
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,13 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * Thrown by a lock request that was waiting when its transaction was chosen
+ * as the victim of a deadlock. The transaction still holds the locks it had
+ * before the request, and should be rolled back.
+ */
+@SuppressWarnings("serial")
+public class DeadlockException extends RuntimeException {
+    DeadlockException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,68 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * When a transaction's locks on the children of a context (e.g. the pages of
+ * a table) are automatically escalated to one S or X lock on the context; see
+ * LockContext#autoEscalate. Escalation is due once the transaction holds more
+ * than maxChildLocks child locks, or more than maxSaturation of the context's
+ * children (if the number of children is known) and at least minChildLocks
+ * child locks. Either trigger can be turned off by setting it to 0.
+ *
+ * Escalation takes a coarser lock than the transaction needs, which may
+ * conflict with other transactions' locks. If waitOnConflict is false, an
+ * escalation that cannot be granted right away is refused instead, and the
+ * transaction keeps taking child locks.
+ */
+public class EscalationPolicy {
+    // Never escalates automatically (the default).
+    public static final EscalationPolicy NEVER = new EscalationPolicy(0, 0, 0, false);
+
+    private final int maxChildLocks;
+    private final double maxSaturation;
+    private final int minChildLocks;
+    private final boolean waitOnConflict;
+
+    /**
+     * @param maxChildLocks number of child locks above which to escalate, or 0
+     * @param maxSaturation fraction of the children locked above which to
+     *                      escalate, or 0
+     * @param minChildLocks number of child locks below which saturation does
+     *                      not trigger escalation
+     * @param waitOnConflict whether to wait for an escalated lock that
+     *                       conflicts with other transactions' locks, rather
+     *                       than refuse to escalate
+     */
+    public EscalationPolicy(int maxChildLocks, double maxSaturation, int minChildLocks,
+                            boolean waitOnConflict) {
+        if (maxChildLocks < 0 || minChildLocks < 0 || maxSaturation < 0 || maxSaturation > 1) {
+            throw new IllegalArgumentException("invalid escalation thresholds");
+        }
+        this.maxChildLocks = maxChildLocks;
+        this.maxSaturation = maxSaturation;
+        this.minChildLocks = minChildLocks;
+        this.waitOnConflict = waitOnConflict;
+    }
+
+    /**
+     * @param numChildLocks number of child locks the transaction holds
+     * @param capacity number of children of the context, or -1 if unknown
+     * @return whether the transaction's child locks should be escalated
+     */
+    public boolean shouldEscalate(int numChildLocks, int capacity) {
+        if (maxChildLocks > 0 && numChildLocks > maxChildLocks) {
+            return true;
+        }
+        return maxSaturation > 0 && capacity > 0 && numChildLocks >= minChildLocks &&
+               (double) numChildLocks / capacity > maxSaturation;
+    }
+
+    public boolean waitOnConflict() {
+        return waitOnConflict;
+    }
+
+    @Override
+    public String toString() {
+        return "EscalationPolicy(maxChildLocks=" + maxChildLocks + ", maxSaturation=" + maxSaturation +
+               ", minChildLocks=" + minChildLocks + ", waitOnConflict=" + waitOnConflict + ")";
+    }
+}
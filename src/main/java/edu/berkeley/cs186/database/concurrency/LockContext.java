@@ -41,6 +41,11 @@ public class LockContext {
     // Whether or not any new child LockContexts should be marked readonly.
     protected boolean childLocksDisabled;
 
+    // The number of children that this LockContext has, if it is known. If
+    // not known, this is -1. Kept up to date by the PageDirectory of a table
+    // as it adds and frees pages.
+    protected volatile int capacity;
+
     public LockContext(LockManager lockman, LockContext parent, String name) {
         this(lockman, parent, name, false);
     }
@@ -58,6 +63,7 @@ public class LockContext {
         this.numChildLocks = new ConcurrentHashMap<>();
         this.children = new ConcurrentHashMap<>();
         this.childLocksDisabled = readonly;
+        this.capacity = -1;
     }
 
     /**
@@ -183,6 +189,35 @@ public class LockContext {
         return;
     }
 
+    /**
+     * Escalates `transaction`'s locks on descendants of this context if it
+     * holds more child locks than the lock manager's EscalationPolicy allows.
+     * IX and SIX locks at this level are escalated to X, and IS to S, as
+     * escalate does. If the escalated lock would conflict with other
+     * transactions' locks and the policy does not wait on conflicts, the
+     * escalation is refused, and the transaction keeps its child locks.
+     *
+     * @return whether the locks were escalated
+     */
+    public boolean autoEscalate(TransactionContext transaction) {
+        EscalationPolicy policy = lockman.getEscalationPolicy();
+        if (readonly || !policy.shouldEscalate(getNumChildren(transaction), capacity)) {
+            return false;
+        }
+        LockType explicitLockType = getExplicitLockType(transaction);
+        if (!explicitLockType.isIntent()) {
+            return false;
+        }
+        LockType escalatedType = explicitLockType == LockType.IS ? LockType.S : LockType.X;
+        if (!policy.waitOnConflict() && !lockman.canGrantNow(transaction, name, escalatedType)) {
+            lockman.recordEscalation(true);
+            return false;
+        }
+        escalate(transaction);
+        lockman.recordEscalation(false);
+        return true;
+    }
+
     /**
      * Get the type of lock that `transaction` holds at this level, or NL if no
      * lock is held at this level.
@@ -266,6 +301,21 @@ public class LockContext {
         return childContext(Long.toString(name));
     }
 
+    /**
+     * Sets the number of children of this context (e.g. the number of pages
+     * of a table), for escalation based on the fraction of children locked.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Gets the number of children of this context, or -1 if unknown.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
     /**
      * Gets the number of locks held on children a single transaction.
      */
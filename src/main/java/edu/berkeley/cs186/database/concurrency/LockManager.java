@@ -3,9 +3,11 @@ package edu.berkeley.cs186.database.concurrency;
 import edu.berkeley.cs186.database.Transaction;
 import edu.berkeley.cs186.database.TransactionContext;
 
-import javax.annotation.Resource;
-import java.io.InvalidObjectException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
 
 /**
  * LockManager maintains the bookkeeping for what transactions have what locks
@@ -32,16 +34,283 @@ import java.util.*;
  *    queue: S(A) X(A) S(A)
  * only the first request should be removed from the queue when the queue is
  * processed.
+ *
+ * The lock table is split into shards by the hash of the resource name, and
+ * each shard is guarded by its own monitor, so that requests on different
+ * resources (e.g. locks on different pages) do not contend with each other.
+ * No thread ever holds two shard monitors at once: an operation on several
+ * resources (acquireAndRelease, or processing a queue whose requests release
+ * other locks) finishes with one shard before moving on to the next. A
+ * transaction's list of locks is guarded by the list's own monitor.
+ *
+ * Every transaction takes an intention lock on the database and on the tables
+ * it touches, so the entries of these few resources are hit by everyone. IS and
+ * IX locks on them are instead granted on a fast path (see FastPath) that does
+ * not take the shard monitor, as long as no S, SIX or X lock is held or
+ * waiting on the resource. Any other request on such a resource first revokes
+ * the fast path, moving the intention locks granted on it into the resource
+ * entry, and then goes through the usual queued path.
  */
 public class LockManager {
+    // Default number of shards of the lock table.
+    static final int DEFAULT_NUM_SHARDS = 64;
+    // Number of counter stripes of each resource's intention lock fast path.
+    static final int NUM_FAST_PATH_STRIPES = 16;
+    // Resources with names of at most this many parts (the database and the
+    // tables) have an intention lock fast path.
+    private static final int MAX_FAST_PATH_DEPTH = 2;
+
     // transactionLocks is a mapping from transaction number to a list of lock
-    // objects held by that transaction.
-    private Map<Long, List<Lock>> transactionLocks = new HashMap<>();
+    // objects held by that transaction, in order of acquisition. Each list is
+    // guarded by its own monitor.
+    private final Map<Long, List<Lock>> transactionLocks = new ConcurrentHashMap<>();
+
+    // The lock table: resource names are mapped to shards by hash, and each
+    // shard maps resource names to ResourceEntry objects, which contain a
+    // list of Locks on the object, as well as a queue for requests on that
+    // resource.
+    private final Shard[] shards;
+
+    // Intention lock fast paths of the database and tables, by resource
+    // name, or null if the fast path is turned off.
+    private final Map<ResourceName, FastPath> fastPaths;
+
+    // A part of the lock table. The resource entries of a shard (and the
+    // entries' locks and queues) are guarded by the shard's monitor.
+    private class Shard {
+        final Map<ResourceName, ResourceEntry> resourceEntries = new HashMap<>();
+
+        /**
+         * Helper method to fetch the resourceEntry corresponding to `name`.
+         * Inserts a new (empty) resourceEntry into the map if no entry exists yet.
+         */
+        ResourceEntry getResourceEntry(ResourceName name) {
+            return resourceEntries.computeIfAbsent(name, k -> new ResourceEntry());
+        }
+
+        /**
+         * Releases `lock` on `resourceEntry`, dropping the entry once no
+         * locks or requests are left on it.
+         *
+         * @return the requests granted while processing the queue
+         */
+        List<LockRequest> releaseLock(ResourceEntry resourceEntry, Lock lock) {
+            List<LockRequest> granted = resourceEntry.releaseLock(lock);
+            cleanUp(lock.name, resourceEntry);
+            return granted;
+        }
+
+        /**
+         * Removes `request` from the queue of `name`, if it is still waiting
+         * there.
+         *
+         * @return the requests granted while processing the queue, or null
+         * if `request` was not waiting
+         */
+        List<LockRequest> removeRequest(ResourceName name, LockRequest request) {
+            ResourceEntry resourceEntry = resourceEntries.get(name);
+            if (resourceEntry == null || !resourceEntry.waitingQueue.remove(request)) {
+                return null;
+            }
+            List<LockRequest> granted = resourceEntry.processQueue();
+            cleanUp(name, resourceEntry);
+            return granted;
+        }
+
+        /**
+         * Drops the entry of `name` once no locks or requests are left on
+         * it, and turns its fast path back on if nothing stands in the way.
+         */
+        private void cleanUp(ResourceName name, ResourceEntry resourceEntry) {
+            if (resourceEntry.locks.isEmpty() && resourceEntry.waitingQueue.isEmpty()) {
+                resourceEntries.remove(name);
+            }
+            FastPath fastPath = getFastPath(name);
+            if (fastPath != null && resourceEntry.allowsFastPath()) {
+                fastPath.enable();
+            }
+        }
+    }
+
+    // An intention lock granted on the fast path, with the order it was
+    // granted in among the resource's fast path locks.
+    private static class FastLock {
+        final Lock lock;
+        final long seqNum;
+
+        FastLock(Lock lock, long seqNum) {
+            this.lock = lock;
+            this.seqNum = seqNum;
+        }
+    }
+
+    // The intention lock fast path of a resource. IS and IX locks are
+    // compatible with each other, so while no other kind of lock is held or
+    // waiting on the resource they can be granted without looking at the
+    // other locks on it: a transaction counts itself in one of several
+    // counter stripes (picked by transaction number, so that transactions
+    // mostly touch different stripes) and records its lock in a concurrent
+    // map, without taking the shard monitor.
+    //
+    // A stripe holds the number of fast path locks counted in it, plus the
+    // DISABLED bit. To make any other request, a transaction sets the bit in
+    // every stripe under the shard monitor (revoke), which stops new fast path
+    // grants, and then moves the fast path locks into the resource entry. The
+    // fast path is turned back on when a release leaves only intention locks
+    // and no waiting requests on the resource (enable).
+    private class FastPath {
+        static final int DISABLED = 1 << 30;
+
+        final AtomicInteger[] stripes = new AtomicInteger[NUM_FAST_PATH_STRIPES];
+        final Map<Long, FastLock> locks = new ConcurrentHashMap<>();
+        final AtomicLong nextSeqNum = new AtomicLong();
+
+        FastPath() {
+            for (int i = 0; i < stripes.length; ++i) {
+                stripes[i] = new AtomicInteger();
+            }
+        }
+
+        AtomicInteger getStripe(long transNum) {
+            return stripes[(int) Math.floorMod(transNum, (long) stripes.length)];
+        }
+
+        /**
+         * Grants `lock` (IS or IX) on the fast path if it is on.
+         *
+         * @return whether the lock was granted
+         */
+        boolean tryAcquire(Lock lock) {
+            AtomicInteger stripe = getStripe(lock.transactionNum);
+            int count;
+            do {
+                count = stripe.get();
+                if ((count & DISABLED) != 0) {
+                    return false;
+                }
+            } while (!stripe.compareAndSet(count, count + 1));
+            // a revoke waits for the count to drop, so it picks the lock up
+            // once it is in the map
+            addTransactionLock(lock);
+            locks.put(lock.transactionNum, new FastLock(lock, nextSeqNum.getAndIncrement()));
+            return true;
+        }
+
+        /**
+         * Releases the fast path lock of `transNum`.
+         *
+         * @return the released lock, or null if the transaction has no lock on
+         * the fast path (e.g. because it was moved to the resource entry)
+         */
+        Lock tryRelease(long transNum) {
+            FastLock fastLock = locks.remove(transNum);
+            if (fastLock == null) {
+                return null;
+            }
+            removeTransactionLock(fastLock.lock);
+            getStripe(transNum).decrementAndGet();
+            return fastLock.lock;
+        }
+
+        /**
+         * Promotes the fast path IS lock of `transNum` to IX in place, which
+         * is always compatible while the fast path is on.
+         *
+         * @return whether the lock was promoted
+         */
+        boolean tryPromote(long transNum, ResourceName name) {
+            FastLock oldLock = locks.get(transNum);
+            if (oldLock == null || oldLock.lock.lockType != LockType.IS) {
+                return false;
+            }
+            Lock newLock = new Lock(name, LockType.IX, transNum);
+            if (!locks.replace(transNum, oldLock, new FastLock(newLock, oldLock.seqNum))) {
+                return false;
+            }
+            replaceTransactionLock(oldLock.lock, newLock);
+            return true;
+        }
+
+        /**
+         * Returns whether the fast path is on. Only stable while holding the
+         * shard monitor, as revoke and enable are called holding it.
+         */
+        boolean isOn() {
+            return (stripes[0].get() & DISABLED) == 0;
+        }
+
+        /**
+         * Returns the fast path lock of `transNum`, or null.
+         */
+        Lock getLock(long transNum) {
+            FastLock fastLock = locks.get(transNum);
+            return fastLock == null ? null : fastLock.lock;
+        }
+
+        /**
+         * Returns the fast path locks, in order of acquisition.
+         */
+        List<Lock> getLocks() {
+            List<FastLock> fastLocks = new ArrayList<>(locks.values());
+            fastLocks.sort(Comparator.comparingLong(l -> l.seqNum));
+            List<Lock> result = new ArrayList<>();
+            for (FastLock fastLock : fastLocks) {
+                result.add(fastLock.lock);
+            }
+            return result;
+        }
+
+        /**
+         * Turns the fast path off and moves its locks to the end of
+         * `resourceEntry`'s locks: they were all granted after the locks
+         * already there. Must be called holding the shard monitor.
+         */
+        void revoke(ResourceEntry resourceEntry) {
+            for (AtomicInteger stripe : stripes) {
+                int count;
+                do {
+                    count = stripe.get();
+                } while ((count & DISABLED) == 0 && !stripe.compareAndSet(count, count | DISABLED));
+            }
+            List<FastLock> moved = new ArrayList<>();
+            while (true) {
+                for (Long transNum : locks.keySet()) {
+                    FastLock fastLock = locks.remove(transNum);
+                    if (fastLock != null) {
+                        moved.add(fastLock);
+                        getStripe(transNum).decrementAndGet();
+                    }
+                }
+                // locks granted just before the stripes were disabled may not
+                // be in the map yet
+                boolean drained = true;
+                for (AtomicInteger stripe : stripes) {
+                    if (stripe.get() != DISABLED) {
+                        drained = false;
+                    }
+                }
+                if (drained) {
+                    break;
+                }
+                Thread.yield();
+            }
+            moved.sort(Comparator.comparingLong(l -> l.seqNum));
+            for (FastLock fastLock : moved) {
+                resourceEntry.locks.add(fastLock.lock);
+            }
+        }
 
-    // resourceEntries is a mapping from resource names to a ResourceEntry
-    // object, which contains a list of Locks on the object, as well as a
-    // queue for requests on that resource.
-    private Map<ResourceName, ResourceEntry> resourceEntries = new HashMap<>();
+        /**
+         * Turns the fast path back on. Must be called holding the shard
+         * monitor, when the resource has only intention locks and no waiting
+         * requests.
+         */
+        void enable() {
+            for (AtomicInteger stripe : stripes) {
+                stripe.compareAndSet(DISABLED, 0);
+            }
+        }
+    }
 
     // A ResourceEntry contains the list of locks on a resource, as well as
     // the queue for requests for locks on the resource.
@@ -51,9 +320,6 @@ public class LockManager {
         // Queue for yet-to-be-satisfied lock requests on this resource.
         Deque<LockRequest> waitingQueue = new ArrayDeque<>();
 
-        // Below are a list of helper methods we suggest you implement.
-        // You're free to modify their type signatures, delete, or ignore them.
-
         /**
          * Check if `lockType` is compatible with preexisting locks. Allows
          * conflicts for locks held by transaction with id `except`, which is
@@ -61,7 +327,6 @@ public class LockManager {
          * the resource.
          */
         public boolean checkCompatible(LockType lockType, long except) {
-            // TODO(proj4_part1): implement
             for (Lock lock : locks) {
                 if (lock.transactionNum == except) continue;
                 if (!LockType.compatible(lockType, lock.lockType)) return false;
@@ -72,22 +337,29 @@ public class LockManager {
         /**
          * Gives the transaction the lock `lock`. Assumes that the lock is
          * compatible. Updates lock on resource if the transaction already has a
-         * lock.
+         * lock, keeping its acquisition time.
          */
         public void grantOrUpdateLock(Lock lock) {
-            // TODO(proj4_part1): implement
-            if (locks.contains(lock)) return;
-            locks.add(lock);
+            Lock oldLock = getTransactionLock(lock.transactionNum);
+            if (oldLock == null) {
+                locks.add(lock);
+                addTransactionLock(lock);
+            } else {
+                locks.set(locks.indexOf(oldLock), lock);
+                replaceTransactionLock(oldLock, lock);
+            }
         }
 
         /**
          * Releases the lock `lock` and processes the queue. Assumes that the
          * lock has been granted before.
+         *
+         * @return the requests granted while processing the queue
          */
-        public void releaseLock(Lock lock) {
-            // TODO(proj4_part1): implement
+        public List<LockRequest> releaseLock(Lock lock) {
             locks.remove(lock);
-            processQueue();
+            removeTransactionLock(lock);
+            return processQueue();
         }
 
         /**
@@ -95,53 +367,67 @@ public class LockManager {
          * the end otherwise.
          */
         public void addToQueue(LockRequest request, boolean addFront) {
-            // TODO(proj4_part1): implement
             if (addFront) waitingQueue.addFirst(request);
             else waitingQueue.addLast(request);
         }
 
         /**
          * Grant locks to requests from front to back of the queue, stopping
-         * when the next lock cannot be granted. Once a request is completely
-         * granted, the transaction that made the request can be unblocked.
+         * when the next lock cannot be granted. The locks the granted requests
+         * release are on other resources (possibly in other shards), so
+         * releasing them and unblocking the transactions is left to the
+         * caller, once it has left this shard (see finishRequests).
+         *
+         * @return the requests granted
          */
-        private void processQueue() {
-            Iterator<LockRequest> requests = waitingQueue.iterator();
-
-            // TODO(proj4_part1): implement
-            while (requests.hasNext()) {
-                LockRequest lockRequest = requests.next();
-                if (checkCompatible(lockRequest.lock.lockType, -1)) {
-                    if (lockRequest.releasedLocks.isEmpty()) {
-                        waitingQueue.pollFirst();
-                        // call acquire
-                        acquireAndRelease(lockRequest.transaction, lockRequest.lock.name, lockRequest.lock.lockType, new ArrayList<ResourceName>());
-                    } else {
-                        // call acquireAndRelease
-                        List<ResourceName> requestResourceNames = new ArrayList<>();
-                        for (Lock lock : lockRequest.releasedLocks) {
-                            requestResourceNames.add(lock.name);
-                        }
-                        acquireAndRelease(lockRequest.transaction, lockRequest.lock.name, lockRequest.lock.lockType, requestResourceNames);
-                    }
-                    lockRequest.transaction.unblock();
-                } else {
+        private List<LockRequest> processQueue() {
+            List<LockRequest> granted = new ArrayList<>();
+            while (!waitingQueue.isEmpty()) {
+                LockRequest request = waitingQueue.peekFirst();
+                if (!checkCompatible(request.lock.lockType, request.lock.transactionNum)) {
                     break;
                 }
+                waitingQueue.pollFirst();
+                grantOrUpdateLock(request.lock);
+                granted.add(request);
+            }
+            return granted;
+        }
+
+        /**
+         * Gets the lock `transaction` has on this resource, or null.
+         */
+        public Lock getTransactionLock(long transaction) {
+            for (Lock lock : locks) {
+                if (lock.transactionNum == transaction) {
+                    return lock;
+                }
             }
+            return null;
         }
 
         /**
          * Gets the type of lock `transaction` has on this resource.
          */
         public LockType getTransactionLockType(long transaction) {
-            // TODO(proj4_part1): implement
+            Lock lock = getTransactionLock(transaction);
+            return lock == null ? LockType.NL : lock.lockType;
+        }
+
+        /**
+         * Returns whether intention locks can be granted on the fast path
+         * alongside this resource's locks and requests.
+         */
+        public boolean allowsFastPath() {
+            if (!waitingQueue.isEmpty()) {
+                return false;
+            }
             for (Lock lock : locks) {
-                if (lock.transactionNum == transaction) {
-                    return lock.lockType;
+                if (lock.lockType != LockType.IS && lock.lockType != LockType.IX) {
+                    return false;
                 }
             }
-            return LockType.NL;
+            return true;
         }
 
         @Override
@@ -152,25 +438,225 @@ public class LockManager {
     }
 
     // You should not modify or use this directly.
-    private Map<String, LockContext> contexts = new HashMap<>();
+    private Map<String, LockContext> contexts = new ConcurrentHashMap<>();
+
+    // Finds and breaks deadlocks in the background, when turned on.
+    private final DeadlockDetector deadlockDetector = new DeadlockDetector(this);
+
+    // Lock wait statistics: the number of requests that had to wait, the
+    // total and longest time they waited, and the number of requests aborted
+    // to break deadlocks.
+    private final AtomicLong numLockWaits = new AtomicLong();
+    private final AtomicLong lockWaitNanos = new AtomicLong();
+    private final AtomicLong maxLockWaitNanos = new AtomicLong();
+    private final AtomicLong numDeadlockVictims = new AtomicLong();
+
+    // When lock contexts escalate child locks automatically, and how many
+    // escalations were done and refused.
+    private volatile EscalationPolicy escalationPolicy = EscalationPolicy.NEVER;
+    private final AtomicLong numEscalations = new AtomicLong();
+    private final AtomicLong numRefusedEscalations = new AtomicLong();
+
+    public LockManager() {
+        this(DEFAULT_NUM_SHARDS, true);
+    }
+
+    /**
+     * @param numShards number of shards to split the lock table into
+     * @param fastPath whether to grant intention locks on the database and
+     *                 tables on the fast path
+     */
+    LockManager(int numShards, boolean fastPath) {
+        if (numShards <= 0) {
+            throw new IllegalArgumentException("number of shards must be positive");
+        }
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; ++i) {
+            this.shards[i] = new Shard();
+        }
+        this.fastPaths = fastPath ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Returns the shard of the lock table that `name` belongs to.
+     */
+    private Shard getShard(ResourceName name) {
+        int hash = name.hashCode();
+        // spread the high bits, since names that differ only in the last
+        // component (page numbers) differ mostly in the low bits
+        hash ^= hash >>> 16;
+        return shards[Math.floorMod(hash, shards.length)];
+    }
+
+    /**
+     * Returns the intention lock fast path of `name`, or null if it has none.
+     */
+    private FastPath getFastPath(ResourceName name) {
+        if (fastPaths == null || name.getNames().size() > MAX_FAST_PATH_DEPTH) {
+            return null;
+        }
+        // computeIfAbsent locks the map's bin even when the key is present,
+        // and every transaction looks up the same few names
+        FastPath fastPath = fastPaths.get(name);
+        return fastPath != null ? fastPath : fastPaths.computeIfAbsent(name, k -> new FastPath());
+    }
+
+    /**
+     * Returns `shard`'s entry for `name`, with the locks granted on the fast
+     * path (which is turned off) moved into it. Must be called holding the
+     * shard monitor.
+     */
+    private ResourceEntry getRevokedResourceEntry(Shard shard, ResourceName name) {
+        ResourceEntry resourceEntry = shard.getResourceEntry(name);
+        FastPath fastPath = getFastPath(name);
+        if (fastPath != null) {
+            fastPath.revoke(resourceEntry);
+        }
+        return resourceEntry;
+    }
+
+    private List<Lock> getTransactionLocks(long transNum) {
+        return transactionLocks.computeIfAbsent(transNum, k -> new ArrayList<>());
+    }
+
+    private void addTransactionLock(Lock lock) {
+        List<Lock> locks = getTransactionLocks(lock.transactionNum);
+        synchronized (locks) {
+            locks.add(lock);
+        }
+    }
+
+    private void replaceTransactionLock(Lock oldLock, Lock newLock) {
+        List<Lock> locks = getTransactionLocks(oldLock.transactionNum);
+        synchronized (locks) {
+            locks.set(locks.indexOf(oldLock), newLock);
+        }
+    }
+
+    private boolean holdsLock(long transNum, ResourceName name) {
+        List<Lock> locks = transactionLocks.get(transNum);
+        if (locks == null) {
+            return false;
+        }
+        synchronized (locks) {
+            for (Lock lock : locks) {
+                if (lock.name.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void removeTransactionLock(Lock lock) {
+        List<Lock> locks = getTransactionLocks(lock.transactionNum);
+        synchronized (locks) {
+            locks.remove(lock);
+        }
+    }
+
+    /**
+     * Releases `lock`, and finishes the requests that this lets through.
+     */
+    private void releaseLock(Lock lock) {
+        FastPath fastPath = getFastPath(lock.name);
+        if (fastPath != null && fastPath.tryRelease(lock.transactionNum) != null) {
+            return;
+        }
+        Shard shard = getShard(lock.name);
+        List<LockRequest> granted;
+        synchronized (shard) {
+            granted = shard.releaseLock(shard.getResourceEntry(lock.name), lock);
+        }
+        finishRequests(granted);
+    }
+
+    /**
+     * Finishes requests granted off a queue: releases the locks each request
+     * gives up in exchange for its new lock, and then unblocks the requesting
+     * transaction. Must be called without holding any shard monitor.
+     */
+    private void finishRequests(List<LockRequest> granted) {
+        for (LockRequest request : granted) {
+            for (Lock lock : request.releasedLocks) {
+                releaseLock(lock);
+            }
+            request.transaction.unblock();
+        }
+    }
+
+    /**
+     * Blocks `transaction`, which is waiting on a request, and records how
+     * long it waited.
+     */
+    private void waitForLock(TransactionContext transaction) {
+        long start = System.nanoTime();
+        try {
+            transaction.block();
+        } finally {
+            long waited = System.nanoTime() - start;
+            numLockWaits.incrementAndGet();
+            lockWaitNanos.addAndGet(waited);
+            maxLockWaitNanos.accumulateAndGet(waited, Math::max);
+        }
+    }
 
     /**
-     * Helper method to fetch the resourceEntry corresponding to `name`.
-     * Inserts a new (empty) resourceEntry into the map if no entry exists yet.
+     * Aborts `request`, if it is still waiting: it is removed from its queue,
+     * and the block() call of its transaction throws `error`.
+     *
+     * @return whether the request was aborted
      */
-    private ResourceEntry getResourceEntry(ResourceName name) {
-        resourceEntries.putIfAbsent(name, new ResourceEntry());
-        return resourceEntries.get(name);
+    boolean abortRequest(LockRequest request, RuntimeException error) {
+        Shard shard = getShard(request.lock.name);
+        List<LockRequest> granted;
+        synchronized (shard) {
+            granted = shard.removeRequest(request.lock.name, request);
+        }
+        if (granted == null) {
+            return false;
+        }
+        finishRequests(granted);
+        numDeadlockVictims.incrementAndGet();
+        request.transaction.unblockWithError(error);
+        return true;
     }
 
-    private void grantNewLock(ResourceEntry resourceEntry, Lock newLock, TransactionContext transaction) {
-        resourceEntry.grantOrUpdateLock(newLock);
-        transactionLocks.putIfAbsent(transaction.getTransNum(), new ArrayList<>());
-        List<Lock> allLocksHeldByTransaction = transactionLocks.get(transaction.getTransNum());
-        if (allLocksHeldByTransaction.contains(newLock)) {
-            throw new DuplicateLockRequestException("Duplicate locks acquired during acquireAndRelease");
+    /**
+     * Adds the waits-for edges of the requests waiting in the lock table to
+     * `waitsFor`: a transaction waits for every other transaction that holds
+     * a conflicting lock on the resource it is waiting on, or that is ahead
+     * of it in the resource's queue. The request each transaction is waiting
+     * on is put in `waiting`.
+     *
+     * The shards are read one at a time, so the graph is not a consistent
+     * snapshot of the whole lock table; see DeadlockDetector.
+     */
+    void collectWaits(Map<Long, LockRequest> waiting, Map<Long, Set<Long>> waitsFor) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                for (ResourceEntry resourceEntry : shard.resourceEntries.values()) {
+                    List<LockRequest> ahead = new ArrayList<>();
+                    for (LockRequest request : resourceEntry.waitingQueue) {
+                        long transNum = request.lock.transactionNum;
+                        waiting.put(transNum, request);
+                        Set<Long> edges = waitsFor.computeIfAbsent(transNum, k -> new HashSet<>());
+                        for (Lock lock : resourceEntry.locks) {
+                            if (lock.transactionNum != transNum &&
+                                    !LockType.compatible(request.lock.lockType, lock.lockType)) {
+                                edges.add(lock.transactionNum);
+                            }
+                        }
+                        for (LockRequest other : ahead) {
+                            if (other.lock.transactionNum != transNum) {
+                                edges.add(other.lock.transactionNum);
+                            }
+                        }
+                        ahead.add(request);
+                    }
+                }
+            }
         }
-        allLocksHeldByTransaction.add(newLock);
     }
 
     /**
@@ -199,50 +685,46 @@ public class LockManager {
     public void acquireAndRelease(TransactionContext transaction, ResourceName name,
                                   LockType lockType, List<ResourceName> releaseNames)
             throws DuplicateLockRequestException, NoLockHeldException {
-        // TODO(proj4_part1): implement
-        // You may modify any part of this method. You are not required to keep
-        // all your code within the given synchronized block and are allowed to
-        // move the synchronized block elsewhere if you wish.
-        boolean shouldBlock = false;
-        synchronized (this) {
-            ResourceEntry resourceEntry = getResourceEntry(name);
-            Lock newLock = new Lock(name, lockType, transaction.getTransNum());
-            if (resourceEntry.checkCompatible(lockType, transaction.getTransNum())) {
-                // generate a new lock, add to transactionLock and resourceEntry
-                grantNewLock(resourceEntry, newLock, transaction);
-
-                // release locks in the releaseNames
-                List<Lock> shouldDelete = new ArrayList<>();
-                List<Boolean> releaseFlags = new ArrayList<>();
-                for (int i = 0; i < releaseNames.size(); i++) {
-                    releaseFlags.add(false);
-                }
-                List<Lock> allLocksHeldByTransaction = transactionLocks.get(transaction.getTransNum());
-                for (Lock lock : allLocksHeldByTransaction) {
-                    if (releaseNames.contains(lock.name) && !lock.equals(newLock)) {
-                        getResourceEntry(lock.name).releaseLock(lock);
-                        shouldDelete.add(lock);
-                        releaseFlags.set(releaseNames.indexOf(lock.name), true);
-                    }
-                }
-
-                for (int i = 0; i < releaseFlags.size(); i++) {
-                    if (!releaseFlags.get(i)) {
-                        throw new NoLockHeldException("This transaction doesn't hold " + releaseNames.get(i));
-                    }
-                }
+        long transNum = transaction.getTransNum();
+        // Only this transaction changes which locks it holds while it is
+        // running, so the checks hold until the locks are changed below.
+        List<Lock> released = new ArrayList<>();
+        for (ResourceName releaseName : releaseNames) {
+            Lock lock = getLock(transNum, releaseName);
+            if (lock == null) {
+                throw new NoLockHeldException("transaction " + transNum + " doesn't hold a lock on " +
+                                              releaseName);
+            }
+            // a lock on `name` itself is replaced by the new lock
+            if (!releaseName.equals(name)) {
+                released.add(lock);
+            }
+        }
+        if (getLock(transNum, name) != null && !releaseNames.contains(name)) {
+            throw new DuplicateLockRequestException("transaction " + transNum + " already holds a lock on " +
+                                                    name);
+        }
 
-                for (Lock lock : shouldDelete) {
-                    allLocksHeldByTransaction.remove(lock);
-                }
+        boolean shouldBlock = false;
+        Shard shard = getShard(name);
+        synchronized (shard) {
+            ResourceEntry resourceEntry = getRevokedResourceEntry(shard, name);
+            Lock newLock = new Lock(name, lockType, transNum);
+            if (resourceEntry.checkCompatible(lockType, transNum)) {
+                resourceEntry.grantOrUpdateLock(newLock);
             } else {
-                resourceEntry.addToQueue(new LockRequest(transaction, newLock), true);
-                if (!transaction.getBlocked()) transaction.prepareBlock();
+                // whoever grants the request releases `released`
+                resourceEntry.addToQueue(new LockRequest(transaction, newLock, released), true);
+                transaction.prepareBlock();
                 shouldBlock = true;
             }
         }
-        if (shouldBlock && !transaction.getBlocked()) {
-            transaction.block();
+        if (shouldBlock) {
+            waitForLock(transaction);
+            return;
+        }
+        for (Lock lock : released) {
+            releaseLock(lock);
         }
     }
 
@@ -259,39 +741,40 @@ public class LockManager {
      */
     public void acquire(TransactionContext transaction, ResourceName name,
                         LockType lockType) throws DuplicateLockRequestException {
-        // TODO(proj4_part1): implement
-        // You may modify any part of this method. You are not required to keep all your
-        // code within the given synchronized block and are allowed to move the
-        // synchronized block elsewhere if you wish.
+        long transNum = transaction.getTransNum();
+        FastPath fastPath = getFastPath(name);
+        if (fastPath != null && (lockType == LockType.IS || lockType == LockType.IX)) {
+            // only this transaction changes which locks it holds, so the
+            // check holds until the lock is granted; the transaction's own
+            // list is checked, rather than the resource entry, to stay off
+            // the shard monitor
+            if (holdsLock(transNum, name)) {
+                throw new DuplicateLockRequestException("transaction " + transNum + " already holds a lock on " +
+                                                        name);
+            }
+            if (fastPath.tryAcquire(new Lock(name, lockType, transNum))) {
+                return;
+            }
+        }
         boolean shouldBlock = false;
-        synchronized (this) {
-           ResourceEntry resourceEntry = getResourceEntry(name);
-           Lock newLock = new Lock(name, lockType, transaction.getTransNum());
-           List<Lock> allLocksHeldByTransaction = transactionLocks.get(transaction.getTransNum());
-           if (allLocksHeldByTransaction != null && allLocksHeldByTransaction.contains(newLock)) {
-               throw new DuplicateLockRequestException("Duplicate Lock Request in aquire method");
-           }
-
-           if (resourceEntry.waitingQueue.isEmpty()) {
-               if (resourceEntry.checkCompatible(lockType, -1)) {
-                   // grant the lock immediately
-                   grantNewLock(resourceEntry, newLock, transaction);
-               } else {
-                   // add to the waiting queue
-                   resourceEntry.addToQueue(new LockRequest(transaction, newLock), false);
-                   shouldBlock = true;
-               }
-           } else {
-               resourceEntry.addToQueue(new LockRequest(transaction, newLock), false);
-               shouldBlock = true;
-           }
-
-           if (shouldBlock) {
-               transaction.prepareBlock();
-           }
+        Shard shard = getShard(name);
+        synchronized (shard) {
+            ResourceEntry resourceEntry = getRevokedResourceEntry(shard, name);
+            if (resourceEntry.getTransactionLock(transNum) != null) {
+                throw new DuplicateLockRequestException("transaction " + transNum + " already holds a lock on " +
+                                                        name);
+            }
+            Lock newLock = new Lock(name, lockType, transNum);
+            if (resourceEntry.waitingQueue.isEmpty() && resourceEntry.checkCompatible(lockType, -1)) {
+                resourceEntry.grantOrUpdateLock(newLock);
+            } else {
+                resourceEntry.addToQueue(new LockRequest(transaction, newLock), false);
+                transaction.prepareBlock();
+                shouldBlock = true;
+            }
         }
         if (shouldBlock) {
-            transaction.block();
+            waitForLock(transaction);
         }
     }
 
@@ -307,29 +790,22 @@ public class LockManager {
      */
     public void release(TransactionContext transaction, ResourceName name)
             throws NoLockHeldException {
-        // TODO(proj4_part1): implement
-        // You may modify any part of this method.
-        synchronized (this) {
-            List<Lock> allLocksHeldByTransaction = transactionLocks.get(transaction.getTransNum());
-            ResourceEntry resourceEntry = getResourceEntry(name);
-            // check if no lock on 'name' is held by 'transaction' while iterating.
-            if (allLocksHeldByTransaction == null) throw new NoLockHeldException("No such lock held!");
-            else {
-                boolean noSuchLockHeldFlag = true;
-                List<Lock> shouldRemoveLocks = new ArrayList<>();
-                for (Lock lock : allLocksHeldByTransaction) {
-                    if (lock.name == name) {
-                        noSuchLockHeldFlag = false;
-                        resourceEntry.releaseLock(lock);
-                        shouldRemoveLocks.add(lock);
-                    }
-                }
-                for (Lock lock :shouldRemoveLocks) {
-                    allLocksHeldByTransaction.remove(lock);
-                }
-                if (noSuchLockHeldFlag) throw new NoLockHeldException("No such lock held!");
+        long transNum = transaction.getTransNum();
+        FastPath fastPath = getFastPath(name);
+        if (fastPath != null && fastPath.tryRelease(transNum) != null) {
+            return;
+        }
+        List<LockRequest> granted;
+        Shard shard = getShard(name);
+        synchronized (shard) {
+            ResourceEntry resourceEntry = shard.resourceEntries.get(name);
+            Lock lock = resourceEntry == null ? null : resourceEntry.getTransactionLock(transNum);
+            if (lock == null) {
+                throw new NoLockHeldException("transaction " + transNum + " doesn't hold a lock on " + name);
             }
+            granted = shard.releaseLock(resourceEntry, lock);
         }
+        finishRequests(granted);
     }
 
     /**
@@ -356,87 +832,235 @@ public class LockManager {
     public void promote(TransactionContext transaction, ResourceName name,
                         LockType newLockType)
             throws DuplicateLockRequestException, NoLockHeldException, InvalidLockException {
-        // TODO(proj4_part1): implement
-       boolean shouldBlock = false;
-        synchronized (this) {
-            ResourceEntry thisEntry = getResourceEntry(name);
-            if (thisEntry.getTransactionLockType(transaction.getTransNum()) == newLockType)
-                throw new DuplicateLockRequestException("There is already a lock by" + transaction.getTransNum()
-                        + "on" + name.toString() + "which type is new one, " + newLockType.toString());
-            if (thisEntry.getTransactionLockType(transaction.getTransNum()) == LockType.NL)
-                // NL is no locks
-                throw new NoLockHeldException("There is no lock by" + transaction.getTransNum() +
-                        "on" + name.toString());
-            LockType oldType = thisEntry.getTransactionLockType(transaction.getTransNum());
-            if (!(oldType != newLockType && LockType.substitutable(newLockType, oldType))) {
-                throw new InvalidLockException("The new type" + newLockType.toString() +
-                            "is not a promotion to old lock type" + oldType.toString());
-            }
-            if (!thisEntry.checkCompatible(newLockType, transaction.getTransNum())) {
-                shouldBlock = true;
-                transaction.prepareBlock();
-                thisEntry.addToQueue(new LockRequest(transaction, new Lock(name, newLockType, transaction.getTransNum())), true);
+        long transNum = transaction.getTransNum();
+        FastPath fastPath = getFastPath(name);
+        if (fastPath != null && newLockType == LockType.IX && fastPath.tryPromote(transNum, name)) {
+            return;
+        }
+        boolean shouldBlock = false;
+        Shard shard = getShard(name);
+        synchronized (shard) {
+            ResourceEntry resourceEntry = getRevokedResourceEntry(shard, name);
+            LockType oldType = resourceEntry.getTransactionLockType(transNum);
+            if (oldType == newLockType) {
+                throw new DuplicateLockRequestException("transaction " + transNum + " already holds a " +
+                                                        newLockType + " lock on " + name);
+            }
+            if (oldType == LockType.NL) {
+                throw new NoLockHeldException("transaction " + transNum + " doesn't hold a lock on " + name);
+            }
+            if (!LockType.substitutable(newLockType, oldType)) {
+                throw new InvalidLockException(newLockType + " is not a promotion of " + oldType);
+            }
+            Lock newLock = new Lock(name, newLockType, transNum);
+            if (resourceEntry.checkCompatible(newLockType, transNum)) {
+                resourceEntry.grantOrUpdateLock(newLock);
             } else {
-                for (Lock oldLock: transactionLocks.get(transaction.getTransNum())) {
-                    if (oldLock.name.equals(name)) {
-                        oldLock.lockType = newLockType;
-                    }
-                }
-                thisEntry.grantOrUpdateLock(new Lock(name, newLockType, transaction.getTransNum()));
+                resourceEntry.addToQueue(new LockRequest(transaction, newLock), true);
+                transaction.prepareBlock();
+                shouldBlock = true;
             }
         }
         if (shouldBlock) {
-            transaction.block();
-        } 
+            waitForLock(transaction);
+        }
     }
 
     /**
-     * Return the type of lock `transaction` has on `name` or NL if no lock is
-     * held.
+     * Returns whether `transaction` could be given a `lockType` lock on `name`
+     * (in place of any lock it holds there) right now, without waiting.
      */
-    public synchronized LockType getLockType(TransactionContext transaction, ResourceName name) {
-        // TODO(proj4_part1): implement
-        List<Lock> locks = transactionLocks.get(transaction.getTransNum());
-        if  (locks == null) return LockType.NL;
-        for (Lock lock : locks) {
-            if (lock.name == name) {
-                return lock.lockType;
+    boolean canGrantNow(TransactionContext transaction, ResourceName name, LockType lockType) {
+        long transNum = transaction.getTransNum();
+        FastPath fastPath = getFastPath(name);
+        Shard shard = getShard(name);
+        synchronized (shard) {
+            // while the fast path is on, the resource only has intention
+            // locks, which never conflict with another intention lock
+            if (fastPath != null && fastPath.isOn() &&
+                    (lockType == LockType.IS || lockType == LockType.IX)) {
+                return true;
+            }
+            ResourceEntry resourceEntry = shard.resourceEntries.get(name);
+            if (resourceEntry != null && !resourceEntry.checkCompatible(lockType, transNum)) {
+                return false;
             }
         }
-        return LockType.NL;
+        // intention locks granted on the fast path conflict with S and X
+        if (fastPath != null) {
+            for (Lock lock : fastPath.getLocks()) {
+                if (lock.transactionNum != transNum && !LockType.compatible(lockType, lock.lockType)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the lock `transNum` holds on `name`, or null.
+     */
+    private Lock getLock(long transNum, ResourceName name) {
+        FastPath fastPath = getFastPath(name);
+        if (fastPath != null) {
+            Lock lock = fastPath.getLock(transNum);
+            if (lock != null) {
+                return lock;
+            }
+        }
+        Shard shard = getShard(name);
+        synchronized (shard) {
+            ResourceEntry resourceEntry = shard.resourceEntries.get(name);
+            return resourceEntry == null ? null : resourceEntry.getTransactionLock(transNum);
+        }
+    }
+
+    /**
+     * Return the type of lock `transaction` has on `name` or NL if no lock is
+     * held.
+     */
+    public LockType getLockType(TransactionContext transaction, ResourceName name) {
+        Lock lock = getLock(transaction.getTransNum(), name);
+        return lock == null ? LockType.NL : lock.lockType;
     }
 
     /**
      * Returns the list of locks held on `name`, in order of acquisition.
      */
-    public synchronized List<Lock> getLocks(ResourceName name) {
-        return new ArrayList<>(resourceEntries.getOrDefault(name, new ResourceEntry()).locks);
+    public List<Lock> getLocks(ResourceName name) {
+        Shard shard = getShard(name);
+        List<Lock> locks = new ArrayList<>();
+        synchronized (shard) {
+            ResourceEntry resourceEntry = shard.resourceEntries.get(name);
+            if (resourceEntry != null) {
+                locks.addAll(resourceEntry.locks);
+            }
+        }
+        // fast path locks were granted after the locks in the entry
+        FastPath fastPath = getFastPath(name);
+        if (fastPath != null) {
+            locks.addAll(fastPath.getLocks());
+        }
+        return locks;
     }
 
     /**
      * Returns the list of locks held by `transaction`, in order of acquisition.
      */
-    public synchronized List<Lock> getLocks(TransactionContext transaction) {
-        return new ArrayList<>(transactionLocks.getOrDefault(transaction.getTransNum(),
-                Collections.emptyList()));
+    public List<Lock> getLocks(TransactionContext transaction) {
+        List<Lock> locks = transactionLocks.get(transaction.getTransNum());
+        if (locks == null) {
+            return new ArrayList<>();
+        }
+        synchronized (locks) {
+            return new ArrayList<>(locks);
+        }
+    }
+
+    /**
+     * Sets how often the lock table is checked for deadlocks in the
+     * background. A transaction in a deadlock is aborted by making its
+     * waiting request throw DeadlockException; see DeadlockDetector. Off
+     * (0) by default.
+     *
+     * @param intervalMillis time between checks in milliseconds, or 0 to
+     *                       not check for deadlocks
+     */
+    public void setDeadlockDetectionInterval(long intervalMillis) {
+        deadlockDetector.configure(intervalMillis);
+    }
+
+    /**
+     * Sets how deadlock victims are chosen: of the transactions in a cycle
+     * of the waits-for graph, the one with the lowest cost is aborted, the
+     * youngest (highest transaction number) on ties. By default, the cost of
+     * a transaction is the number of locks it holds.
+     */
+    public void setDeadlockVictimCost(ToLongFunction<TransactionContext> victimCost) {
+        deadlockDetector.setVictimCost(victimCost);
+    }
+
+    /**
+     * Checks for deadlocks once, aborting victims; see DeadlockDetector.
+     *
+     * @return the number of transactions aborted
+     */
+    int detectDeadlocks() {
+        return deadlockDetector.detect();
+    }
+
+    /**
+     * Sets when lock contexts escalate a transaction's child locks
+     * automatically; see LockContext#autoEscalate. Never by default.
+     */
+    public void setEscalationPolicy(EscalationPolicy escalationPolicy) {
+        this.escalationPolicy = escalationPolicy;
+    }
+
+    public EscalationPolicy getEscalationPolicy() {
+        return escalationPolicy;
+    }
+
+    void recordEscalation(boolean refused) {
+        (refused ? numRefusedEscalations : numEscalations).incrementAndGet();
+    }
+
+    /**
+     * @return the number of automatic lock escalations done
+     */
+    public long getNumEscalations() {
+        return numEscalations.get();
+    }
+
+    /**
+     * @return the number of automatic lock escalations refused because the
+     * escalated lock conflicted with other transactions' locks
+     */
+    public long getNumRefusedEscalations() {
+        return numRefusedEscalations.get();
+    }
+
+    /**
+     * @return the number of lock requests that had to wait
+     */
+    public long getNumLockWaits() {
+        return numLockWaits.get();
+    }
+
+    /**
+     * @return the total time lock requests waited, in nanoseconds
+     */
+    public long getLockWaitNanos() {
+        return lockWaitNanos.get();
+    }
+
+    /**
+     * @return the longest time a lock request waited, in nanoseconds
+     */
+    public long getMaxLockWaitNanos() {
+        return maxLockWaitNanos.get();
+    }
+
+    /**
+     * @return the number of lock requests aborted to break deadlocks
+     */
+    public long getNumDeadlockVictims() {
+        return numDeadlockVictims.get();
     }
 
     /**
      * Creates a lock context. See comments at the top of this file and the top
      * of LockContext.java for more information.
      */
-    public synchronized LockContext context(String name) {
-        if (!contexts.containsKey(name)) {
-            contexts.put(name, new LockContext(this, null, name));
-        }
-        return contexts.get(name);
+    public LockContext context(String name) {
+        return contexts.computeIfAbsent(name, k -> new LockContext(this, null, k));
     }
 
     /**
      * Create a lock context for the database. See comments at the top of this
      * file and the top of LockContext.java for more information.
      */
-    public synchronized LockContext databaseContext() {
+    public LockContext databaseContext() {
         return context("database");
     }
 }
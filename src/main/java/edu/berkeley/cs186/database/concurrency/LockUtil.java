@@ -38,6 +38,11 @@ public class LockUtil {
 
         // You may find these variables useful
         LockContext parentContext = lockContext.parentContext();
+        // Escalate first if the transaction holds many locks under the
+        // parent; the escalated lock may already cover this request.
+        if (parentContext != null && requestType != LockType.NL) {
+            parentContext.autoEscalate(transaction);
+        }
         LockType effectiveLockType = lockContext.getEffectiveLockType(transaction);
         LockType explicitLockType = lockContext.getExplicitLockType(transaction);
 
@@ -1,5 +1,7 @@
 package edu.berkeley.cs186.database.databox;
 
+import java.util.Arrays;
+
 public class ByteArrayDataBox extends DataBox {
     byte[] bytes;
 
@@ -26,9 +28,35 @@ public class ByteArrayDataBox extends DataBox {
     }
 
     @Override
-    public int compareTo(DataBox other) {
-        throw new RuntimeException("Cannot compare byte arrays");
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ByteArrayDataBox)) return false;
+        ByteArrayDataBox other = (ByteArrayDataBox) o;
+        return Arrays.equals(this.bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    // Byte arrays are compared lexicographically, treating each byte as
+    // unsigned. A shorter array that is a prefix of a longer one sorts first.
+    @Override
+    public int compareTo(DataBox d) {
+        if (!(d instanceof ByteArrayDataBox)) {
+            String err = String.format("Invalid comparison between %s and %s.",
+                                       toString(), d.toString());
+            throw new IllegalArgumentException(err);
+        }
+        byte[] other = ((ByteArrayDataBox) d).bytes;
+        for (int i = 0; i < Math.min(bytes.length, other.length); ++i) {
+            int cmp = Integer.compare(bytes[i] & 0xFF, other[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return Integer.compare(bytes.length, other.length);
     }
+
     @Override
     public String toString() {
         return "byte_array";
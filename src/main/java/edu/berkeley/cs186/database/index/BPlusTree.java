@@ -11,6 +11,7 @@ import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
 import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.Page;
 import edu.berkeley.cs186.database.table.RecordId;
 
 import javax.xml.crypto.Data;
@@ -240,6 +241,29 @@ public class BPlusTree {
         return new BPlusTreeIterator(key);
     }
 
+    /**
+     * Returns an iterator over all the (key, rid) pairs stored in the B+ tree,
+     * in ascending order of key. Unlike scanAll, this exposes the keys
+     * themselves, which lets callers answer queries on the indexed columns
+     * without fetching the records.
+     */
+    public Iterator<Pair<DataBox, RecordId>> scanAllEntries() {
+        LockUtil.ensureSufficientLockHeld(lockContext, LockType.NL);
+
+        return new EntryIterator(null);
+    }
+
+    /**
+     * Returns an iterator over all the (key, rid) pairs stored in the B+ tree
+     * with a key greater than or equal to `key`, in ascending order of key.
+     */
+    public Iterator<Pair<DataBox, RecordId>> scanEntriesGreaterEqual(DataBox key) {
+        typecheck(key);
+        LockUtil.ensureSufficientLockHeld(lockContext, LockType.NL);
+
+        return new EntryIterator(key);
+    }
+
     /**
      * Inserts a (key, rid) pair into a B+ tree. If the key already exists in
      * the B+ tree, then the pair is not inserted and an exception is raised.
@@ -248,12 +272,25 @@ public class BPlusTree {
      *   RecordId rid = new RecordId(42, (short) 42);
      *   tree.put(key, rid); // Success :)
      *   tree.put(key, rid); // BPlusTreeException :(
+     *
+     * Keys of trees with included columns are duplicates if their key columns
+     * are equal (see BPlusTreeMetadata#sameKeyColumns).
      */
     public void put(DataBox key, RecordId rid) {
         typecheck(key);
         // TODO(proj4_integration): Update the following line
         LockUtil.ensureSufficientLockHeld(lockContext, LockType.NL);
 
+        if (!metadata.getIncludeColumns().isEmpty()) {
+            // the key with the same key columns and the smallest included
+            // columns comes first, so it is enough to look at the first key
+            // from there
+            Iterator<Pair<DataBox, RecordId>> entries = new EntryIterator(metadata.keyColumnsLowerBound(key));
+            if (entries.hasNext() && metadata.sameKeyColumns(entries.next().getFirst(), key)) {
+                throw new BPlusTreeException("duplicate keys");
+            }
+        }
+
         // TODO(proj2): implement
         // Note: You should NOT update the root variable directly.
         // Use the provided updateRoot() helper method to change
@@ -320,6 +357,132 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * Builds the tree bottom-up from `data`, which must be sorted by key.
+     * Unlike bulkLoad, which descends the rightmost path of the tree for every
+     * leaf it adds, this writes the leaf level left to right, chaining each
+     * leaf to the page allocated for its right sibling, and then builds each
+     * inner level from the (first key, page number) pairs of the level below
+     * it. Every node, leaf or inner, is written exactly once.
+     *
+     * fillFactor applies to every level: leaves hold ceil(2d * fillFactor)
+     * entries and inner nodes hold ceil(2d * fillFactor) keys, except for the
+     * last node of each level, which holds whatever is left over.
+     *
+     * The tree must be empty. Unlike bulkLoad, the data is checked as it is
+     * consumed, and a BPlusTreeException is raised if it contains a duplicate
+     * or out of order key. If that (or any other exception) happens, the pages
+     * written so far are freed and the tree is left empty, as it was before
+     * the call.
+     */
+    public void bulkBuild(Iterator<Pair<DataBox, RecordId>> data, float fillFactor) {
+        LockUtil.ensureSufficientLockHeld(lockContext, LockType.X);
+
+        if (root != root.getLeftmostLeaf() || ((LeafNode) root).getKeys().size() > 0) {
+            throw new BPlusTreeException("Tree is not empty when bulk building");
+        }
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new BPlusTreeException("fill factor must be in (0, 1], got " + fillFactor);
+        }
+        int maxEntries = 2 * metadata.getOrder();
+        int entriesPerNode = Math.max(1, Math.min(maxEntries, (int) Math.ceil(maxEntries * fillFactor)));
+
+        // Leaf level. The first leaf reuses the page of the (empty) root, so the
+        // tree never has an orphaned page even if it ends up as a single leaf.
+        List<Pair<DataBox, Long>> level = new ArrayList<>();
+        List<DataBox> keys = new ArrayList<>();
+        List<RecordId> rids = new ArrayList<>();
+        DataBox prev = null;
+        // the pages allocated for the leaves after the first
+        List<Long> allocated = new ArrayList<>();
+        Page page = root.getPage();
+        page.pin();
+        try {
+            while (data.hasNext()) {
+                Pair<DataBox, RecordId> entry = data.next();
+                DataBox key = entry.getFirst();
+                typecheck(key);
+                if (prev != null && prev.compareTo(key) >= 0) {
+                    throw new BPlusTreeException(prev.equals(key) ? "duplicate keys" :
+                                                 "bulk build data is not sorted");
+                }
+                if (prev != null && metadata.sameKeyColumns(prev, key)) {
+                    throw new BPlusTreeException("duplicate keys");
+                }
+                if (keys.size() == entriesPerNode) {
+                    Page full = page;
+                    page = bufferManager.fetchNewPage(lockContext, metadata.getPartNum());
+                    allocated.add(page.getPageNum());
+                    new LeafNode(metadata, bufferManager, full, keys, rids, Optional.of(page.getPageNum()),
+                                 lockContext);
+                    level.add(new Pair<>(keys.get(0), full.getPageNum()));
+                    keys = new ArrayList<>();
+                    rids = new ArrayList<>();
+                }
+                keys.add(key);
+                rids.add(entry.getSecond());
+                prev = key;
+            }
+        } catch (RuntimeException e) {
+            page.unpin();
+            undoBulkBuild(allocated);
+            throw e;
+        }
+        LeafNode leaf = new LeafNode(metadata, bufferManager, page, keys, rids, Optional.empty(), lockContext);
+        if (level.isEmpty()) {
+            // everything fit in the root leaf
+            this.root = leaf;
+            return;
+        }
+        level.add(new Pair<>(keys.get(0), page.getPageNum()));
+
+        // Inner levels. Each inner node takes up to entriesPerNode + 1 children;
+        // the last node of a level is never left with a single child.
+        BPlusNode node = leaf;
+        while (level.size() > 1) {
+            List<Pair<DataBox, Long>> parents = new ArrayList<>();
+            int start = 0;
+            while (start < level.size()) {
+                int end = Math.min(level.size(), start + entriesPerNode + 1);
+                if (level.size() - end == 1) {
+                    end += (end - start > 2) ? -1 : 1;
+                }
+                List<DataBox> innerKeys = new ArrayList<>();
+                List<Long> children = new ArrayList<>();
+                for (int i = start; i < end; ++i) {
+                    if (i > start) {
+                        innerKeys.add(level.get(i).getFirst());
+                    }
+                    children.add(level.get(i).getSecond());
+                }
+                node = new InnerNode(metadata, bufferManager, innerKeys, children, lockContext);
+                parents.add(new Pair<>(level.get(start).getFirst(), node.getPage().getPageNum()));
+                start = end;
+            }
+            level = parents;
+            if (level.size() > 1) {
+                metadata.incrementHeight();
+            }
+        }
+        updateRoot(node);
+    }
+
+    /**
+     * Frees the leaf pages `pageNums` written by a failed bulkBuild, and
+     * empties the root leaf again, whose page holds the first leaf written.
+     */
+    private void undoBulkBuild(List<Long> pageNums) {
+        for (long pageNum : pageNums) {
+            Page page = bufferManager.fetchPage(lockContext, pageNum);
+            bufferManager.freePage(page);
+            page.unpin();
+        }
+        Page rootPage = root.getPage();
+        rootPage.pin();
+        this.root = new LeafNode(metadata, bufferManager, rootPage, new ArrayList<>(), new ArrayList<>(),
+                                 Optional.empty(), lockContext);
+    }
+
     /**
      * Deletes a (key, rid) pair from a B+ tree.
      *
@@ -483,4 +646,33 @@ public class BPlusTree {
             throw new NoSuchElementException();
         }
     }
+
+    // Iterates over the (key, rid) pairs of the leaves, skipping leaves that
+    // have been emptied by deletes.
+    private class EntryIterator implements Iterator<Pair<DataBox, RecordId>> {
+        private LeafNode currentLeafNode;
+        private Iterator<Pair<DataBox, RecordId>> currentEntryIt;
+
+        private EntryIterator(DataBox key) {
+            currentLeafNode = key == null ? root.getLeftmostLeaf() : root.get(key);
+            currentEntryIt = currentLeafNode.scanEntriesGreaterEqual(key);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!currentEntryIt.hasNext() && currentLeafNode.hasRightSibling()) {
+                currentLeafNode = currentLeafNode.getRightSibling().get();
+                currentEntryIt = currentLeafNode.scanEntriesGreaterEqual(null);
+            }
+            return currentEntryIt.hasNext();
+        }
+
+        @Override
+        public Pair<DataBox, RecordId> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return currentEntryIt.next();
+        }
+    }
 }
@@ -1,21 +1,45 @@
 package edu.berkeley.cs186.database.index;
 
+import edu.berkeley.cs186.database.databox.ByteArrayDataBox;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /** Metadata about a B+ tree. */
 public class BPlusTreeMetadata {
+    // The longest list of key or included column names that can be stored in
+    // _metadata.indices.
+    public static final int MAX_COLUMN_LIST_LENGTH = 32;
+
     // Table for which this B+ tree is for
     private final String tableName;
 
-    // Column that this B+ tree uses as a search key
+    // Column that this B+ tree uses as a search key. Composite keys list
+    // their columns separated by commas, e.g. "a,b".
     private final String colName;
 
+    // Comma separated columns whose values are stored in the tree after the
+    // key columns, so that queries only reading key and included columns
+    // can be answered from the index alone. Empty if there are none.
+    private final String includeColNames;
+
     // B+ trees map keys (of some type) to record ids. This is the type of the
     // keys.
     private final Type keySchema;
 
+    // The number of leading bytes of a key that hold the key columns; the
+    // rest hold the included columns. Two keys with the same key columns are
+    // duplicates, whatever their included columns.
+    private final int keySize;
+
     // The order of the tree. Given a tree of order d, its inner nodes store
     // between d and 2d keys and between d+1 and 2d+1 children pointers. Leaf
     // nodes store between d and 2d (key, record id) pairs. Notable exceptions
@@ -35,9 +59,23 @@ public class BPlusTreeMetadata {
 
     public BPlusTreeMetadata(String tableName, String colName, Type keySchema, int order, int partNum,
                              long rootPageNum, int height) {
+        this(tableName, colName, "", keySchema, keySchema.getSizeInBytes(), order, partNum, rootPageNum,
+             height);
+    }
+
+    public BPlusTreeMetadata(String tableName, String colName, String includeColNames, Type keySchema,
+                             int keySize, int order, int partNum, long rootPageNum, int height) {
+        for (String columns : Arrays.asList(colName, includeColNames)) {
+            if (columns.length() > MAX_COLUMN_LIST_LENGTH) {
+                throw new IllegalArgumentException(String.format(
+                    "column list `%s` is longer than %d characters", columns, MAX_COLUMN_LIST_LENGTH));
+            }
+        }
         this.tableName = tableName;
         this.colName = colName;
+        this.includeColNames = includeColNames;
         this.keySchema = keySchema;
+        this.keySize = keySize;
         this.order = order;
         this.partNum = partNum;
         this.rootPageNum = rootPageNum;
@@ -54,6 +92,18 @@ public class BPlusTreeMetadata {
         int typeIdIndex = record.getValue(5).getInt();
         int typeSize = record.getValue(6).getInt();
         this.keySchema = new Type(TypeId.values()[typeIdIndex], typeSize);
+        // Indices saved before included columns existed have neither of the
+        // last two fields; read in the current layout, their records have
+        // an empty list and a key size of 0 there instead (the rest of their
+        // page is zeroed). Such an index includes no columns, and its key
+        // columns make up its whole key.
+        if (record.size() > 9 && record.getValue(9).getInt() > 0) {
+            this.includeColNames = record.getValue(8).getString();
+            this.keySize = record.getValue(9).getInt();
+        } else {
+            this.includeColNames = "";
+            this.keySize = keySchema.getSizeInBytes();
+        }
     }
 
     /**
@@ -63,7 +113,7 @@ public class BPlusTreeMetadata {
     public Record toRecord() {
         return new Record(tableName, colName, order, partNum, rootPageNum,
                 keySchema.getTypeId().ordinal(), keySchema.getSizeInBytes(),
-                height
+                height, new StringDataBox(includeColNames, MAX_COLUMN_LIST_LENGTH), keySize
         );
     }
 
@@ -75,6 +125,110 @@ public class BPlusTreeMetadata {
         return colName;
     }
 
+    /**
+     * @return the columns making up the search key, in order
+     */
+    public List<String> getKeyColumns() {
+        return Arrays.asList(colName.split(","));
+    }
+
+    /**
+     * @return the non-key columns stored in the tree, in order
+     */
+    public List<String> getIncludeColumns() {
+        if (includeColNames.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(includeColNames.split(","));
+    }
+
+    /**
+     * @return the key columns followed by the included columns; these are all
+     * the columns whose values can be read from the tree without visiting the
+     * table
+     */
+    public List<String> getIndexColumns() {
+        List<String> columns = new ArrayList<>(getKeyColumns());
+        columns.addAll(getIncludeColumns());
+        return columns;
+    }
+
+    /**
+     * @return true if the keys of this tree are index columns encoded with
+     * CompositeKey rather than plain values of the key column
+     */
+    public boolean isEncoded() {
+        return getIndexColumns().size() > 1;
+    }
+
+    /**
+     * @return the types of the index columns in `schema`, the schema of the
+     * indexed table
+     */
+    public List<Type> getIndexColumnTypes(Schema schema) {
+        List<Type> types = new ArrayList<>();
+        for (String column : getIndexColumns()) {
+            types.add(schema.getFieldType(schema.findField(column)));
+        }
+        return types;
+    }
+
+    /**
+     * @return the key that `record`, a record of the indexed table with
+     * schema `schema`, is stored under in this tree
+     */
+    public DataBox buildKey(Record record, Schema schema) {
+        if (!isEncoded()) {
+            return record.getValue(schema.findField(colName));
+        }
+        List<DataBox> values = new ArrayList<>();
+        for (String column : getIndexColumns()) {
+            values.add(record.getValue(schema.findField(column)));
+        }
+        return CompositeKey.encode(values, getIndexColumnTypes(schema));
+    }
+
+    /**
+     * @return true if `key1` and `key2`, keys of this tree, have the same
+     * values in the key columns, which makes them duplicates
+     */
+    public boolean sameKeyColumns(DataBox key1, DataBox key2) {
+        if (getIncludeColumns().isEmpty()) {
+            return key1.equals(key2);
+        }
+        byte[] bytes1 = key1.toBytes();
+        byte[] bytes2 = key2.toBytes();
+        for (int i = 0; i < keySize; ++i) {
+            if (bytes1[i] != bytes2[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the smallest key with the same key columns as `key`, a key of
+     * this tree: the included columns of the encoded key are zeroed, which
+     * sorts before any values
+     */
+    public DataBox keyColumnsLowerBound(DataBox key) {
+        if (getIncludeColumns().isEmpty()) {
+            return key;
+        }
+        byte[] bytes = key.toBytes().clone();
+        Arrays.fill(bytes, keySize, bytes.length, (byte) 0);
+        return new ByteArrayDataBox(bytes, bytes.length);
+    }
+
+    /**
+     * @return the values of the index columns stored in `key`, a key of this
+     * tree, as a record
+     */
+    public Record decodeKey(DataBox key, Schema schema) {
+        if (!isEncoded()) {
+            return new Record(key);
+        }
+        return new Record(CompositeKey.decode(key, getIndexColumnTypes(schema)));
+    }
+
     public String getName() {
         return tableName + "," + colName;
     }
@@ -83,6 +237,10 @@ public class BPlusTreeMetadata {
         return keySchema;
     }
 
+    public int getKeySize() {
+        return keySize;
+    }
+
     public int getOrder() {
         return order;
     }
@@ -0,0 +1,150 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
+import edu.berkeley.cs186.database.databox.ByteArrayDataBox;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.LongDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes a list of values into a single byte array key whose unsigned
+ * lexicographic order (see ByteArrayDataBox#compareTo) matches the order of
+ * the values compared column by column. This lets a B+ tree that only knows
+ * about single keys index several columns at once.
+ *
+ * Every value is encoded in a fixed number of bytes (the size of its type), so
+ * the i-th value of a key always starts at the same offset:
+ *
+ *   - bools are a single 0 or 1 byte,
+ *   - ints and longs are big-endian with the sign bit flipped so that negative
+ *     numbers sort before positive ones,
+ *   - floats are big-endian IEEE 754 with the sign bit flipped for positive
+ *     numbers and all bits flipped for negative ones,
+ *   - strings are padded with null bytes, and
+ *   - byte arrays are stored as is.
+ */
+public final class CompositeKey {
+    private CompositeKey() {}
+
+    /**
+     * @return the number of bytes in an encoded key of values of type `types`
+     */
+    public static int sizeInBytes(List<Type> types) {
+        int size = 0;
+        for (Type t : types) {
+            size += t.getSizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Encodes `values` into a single key. values.get(i) must be of type
+     * types.get(i).
+     */
+    public static ByteArrayDataBox encode(List<DataBox> values, List<Type> types) {
+        if (values.size() != types.size()) {
+            throw new IllegalArgumentException(String.format(
+                "expected %d values, got %d", types.size(), values.size()));
+        }
+        byte[] key = new byte[sizeInBytes(types)];
+        int offset = 0;
+        for (int i = 0; i < values.size(); ++i) {
+            if (!values.get(i).type().equals(types.get(i))) {
+                throw new IllegalArgumentException(String.format(
+                    "DataBox %s is not of type %s", values.get(i), types.get(i)));
+            }
+            byte[] bytes = encodeValue(values.get(i));
+            System.arraycopy(bytes, 0, key, offset, bytes.length);
+            offset += bytes.length;
+        }
+        return new ByteArrayDataBox(key, key.length);
+    }
+
+    /**
+     * Returns the smallest key whose first value is `value`: every key that
+     * starts with `value` is greater than or equal to it, and every key that
+     * starts with a smaller value is less than it.
+     */
+    public static ByteArrayDataBox lowerBound(DataBox value, List<Type> types) {
+        if (!value.type().equals(types.get(0))) {
+            throw new IllegalArgumentException(String.format(
+                "DataBox %s is not of type %s", value, types.get(0)));
+        }
+        byte[] key = new byte[sizeInBytes(types)];
+        byte[] bytes = encodeValue(value);
+        System.arraycopy(bytes, 0, key, 0, bytes.length);
+        return new ByteArrayDataBox(key, key.length);
+    }
+
+    /**
+     * Decodes a key produced by encode(values, types) back into values.
+     */
+    public static List<DataBox> decode(DataBox key, List<Type> types) {
+        byte[] bytes = key.toBytes();
+        if (bytes.length != sizeInBytes(types)) {
+            throw new IllegalArgumentException(String.format(
+                "key of %d bytes does not match types %s", bytes.length, types));
+        }
+        List<DataBox> values = new ArrayList<>();
+        int offset = 0;
+        for (Type t : types) {
+            byte[] b = new byte[t.getSizeInBytes()];
+            System.arraycopy(bytes, offset, b, 0, b.length);
+            offset += b.length;
+            values.add(decodeValue(b, t));
+        }
+        return values;
+    }
+
+    private static byte[] encodeValue(DataBox value) {
+        switch (value.getTypeId()) {
+            case INT: {
+                byte[] bytes = new byte[Integer.BYTES];
+                ByteBuffer.wrap(bytes).putInt(value.getInt() ^ Integer.MIN_VALUE);
+                return bytes;
+            }
+            case LONG: {
+                byte[] bytes = new byte[Long.BYTES];
+                ByteBuffer.wrap(bytes).putLong(value.getLong() ^ Long.MIN_VALUE);
+                return bytes;
+            }
+            case FLOAT: {
+                int bits = Float.floatToIntBits(value.getFloat());
+                byte[] bytes = new byte[Integer.BYTES];
+                ByteBuffer.wrap(bytes).putInt(bits < 0 ? ~bits : bits ^ Integer.MIN_VALUE);
+                return bytes;
+            }
+            default: {
+                // bools, null padded strings and byte arrays already sort
+                // correctly as unsigned bytes
+                return value.toBytes();
+            }
+        }
+    }
+
+    private static DataBox decodeValue(byte[] bytes, Type type) {
+        Buffer buf = ByteBuffer.wrap(bytes);
+        switch (type.getTypeId()) {
+            case INT: {
+                return new IntDataBox(buf.getInt() ^ Integer.MIN_VALUE);
+            }
+            case LONG: {
+                return new LongDataBox(buf.getLong() ^ Long.MIN_VALUE);
+            }
+            case FLOAT: {
+                int bits = buf.getInt();
+                bits = bits < 0 ? bits ^ Integer.MIN_VALUE : ~bits;
+                return new FloatDataBox(Float.intBitsToFloat(bits));
+            }
+            default: {
+                return DataBox.fromBytes(buf, type);
+            }
+        }
+    }
+}
@@ -122,11 +122,12 @@ class LeafNode extends BPlusNode {
     }
 
     /**
-     * Construct a leaf node that is persisted to page `page`.
+     * Construct a leaf node that is persisted to page `page`. `page` must be
+     * pinned, and is unpinned once the node has been written to it.
      */
-    private LeafNode(BPlusTreeMetadata metadata, BufferManager bufferManager, Page page,
-                     List<DataBox> keys,
-                     List<RecordId> rids, Optional<Long> rightSibling, LockContext treeContext) {
+    LeafNode(BPlusTreeMetadata metadata, BufferManager bufferManager, Page page,
+             List<DataBox> keys,
+             List<RecordId> rids, Optional<Long> rightSibling, LockContext treeContext) {
         try {
             assert (keys.size() == rids.size());
             assert (keys.size() <= 2 * metadata.getOrder());
@@ -260,6 +261,20 @@ class LeafNode extends BPlusNode {
         return rids.subList(index, rids.size()).iterator();
     }
 
+    /**
+     * Returns an iterator over the (key, record id) pairs of this leaf that
+     * have a key greater than or equal to `key`, in ascending order of key.
+     * If `key` is null, all pairs of this leaf are returned.
+     */
+    Iterator<Pair<DataBox, RecordId>> scanEntriesGreaterEqual(DataBox key) {
+        int index = key == null ? 0 : InnerNode.numLessThan(key, keys);
+        List<Pair<DataBox, RecordId>> entries = new ArrayList<>();
+        for (int i = index; i < keys.size(); ++i) {
+            entries.add(new Pair<>(keys.get(i), rids.get(i)));
+        }
+        return entries.iterator();
+    }
+
     // Helpers /////////////////////////////////////////////////////////////////
     @Override
     public Page getPage() {
@@ -10,6 +10,7 @@ import edu.berkeley.cs186.database.recovery.RecoveryManager;
 
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
 
@@ -38,6 +39,12 @@ public class BufferManager implements AutoCloseable {
     // Map of page number to frame index
     private Map<Long, Integer> pageToFrame;
 
+    // Frames evicted by fetchPageFrame that may still be being flushed, by
+    // page number. A page in this map must not be read back from disk until
+    // the frame's lock is released. Frames are added under managerLock, and
+    // removed without it once flushed.
+    private Map<Long, Frame> evictingFrames = new ConcurrentHashMap<>();
+
     // Lock on buffer manager
     private ReentrantLock managerLock;
 
@@ -395,47 +402,78 @@ public class BufferManager implements AutoCloseable {
      * @return buffer frame with specified page loaded
      */
     Frame fetchPageFrame(long pageNum) {
-        this.managerLock.lock();
-        Frame newFrame;
-        Frame evictedFrame;
-        // figure out what frame to load data to, and update manager state
-        try {
-            if (!this.diskSpaceManager.pageAllocated(pageNum)) {
-                throw new PageException("page " + pageNum + " not allocated");
-            }
-            if (this.pageToFrame.containsKey(pageNum)) {
-                newFrame = this.frames[this.pageToFrame.get(pageNum)];
-                newFrame.pin();
-                return newFrame;
-            }
-            // prioritize free frames over eviction
-            if (this.firstFreeIndex < this.frames.length) {
-                evictedFrame = this.frames[this.firstFreeIndex];
-                evictedFrame.setUsed();
-            } else {
-                evictedFrame = (Frame) evictionPolicy.evict(frames);
-                this.pageToFrame.remove(evictedFrame.pageNum, evictedFrame.index);
-                evictionPolicy.cleanup(evictedFrame);
-            }
-            int frameIndex = evictedFrame.index;
-            newFrame = this.frames[frameIndex] = new Frame(evictedFrame.contents, frameIndex, pageNum);
-            evictionPolicy.init(newFrame);
+        Frame newFrame = null;
+        Frame evictedFrame = null;
+        Frame pendingFlush = null;
+        while (true) {
+            Frame pinnedFrame = null;
+            this.managerLock.lock();
+            // figure out what frame to load data to, and update manager state
+            try {
+                if (!this.diskSpaceManager.pageAllocated(pageNum)) {
+                    throw new PageException("page " + pageNum + " not allocated");
+                }
+                if (this.pageToFrame.containsKey(pageNum)) {
+                    newFrame = this.frames[this.pageToFrame.get(pageNum)];
+                    if (newFrame.frameLock.tryLock()) {
+                        try {
+                            newFrame.pin();
+                        } finally {
+                            newFrame.frameLock.unlock();
+                        }
+                        return newFrame;
+                    }
+                    pinnedFrame = newFrame;
+                } else {
+                    // prioritize free frames over eviction
+                    if (this.firstFreeIndex < this.frames.length) {
+                        evictedFrame = this.frames[this.firstFreeIndex];
+                        evictedFrame.setUsed();
+                    } else {
+                        evictedFrame = (Frame) evictionPolicy.evict(frames);
+                        this.pageToFrame.remove(evictedFrame.pageNum, evictedFrame.index);
+                        evictionPolicy.cleanup(evictedFrame);
+                        this.evictingFrames.put(evictedFrame.pageNum, evictedFrame);
+                    }
+                    pendingFlush = this.evictingFrames.get(pageNum);
+                    int frameIndex = evictedFrame.index;
+                    newFrame = this.frames[frameIndex] = new Frame(evictedFrame.contents, frameIndex, pageNum);
+                    evictionPolicy.init(newFrame);
 
-            evictedFrame.frameLock.lock();
-            newFrame.frameLock.lock();
+                    evictedFrame.frameLock.lock();
+                    newFrame.frameLock.lock();
 
-            this.pageToFrame.put(pageNum, frameIndex);
-        } finally {
-            this.managerLock.unlock();
+                    this.pageToFrame.put(pageNum, frameIndex);
+                }
+            } finally {
+                this.managerLock.unlock();
+            }
+            if (pinnedFrame == null) {
+                break;
+            }
+            // the page is loaded, but pinned by another thread: wait for the
+            // pin without holding managerLock (the other thread may need it
+            // before unpinning), then try again, as the frame may have been
+            // evicted in the meantime
+            pinnedFrame.frameLock.lock();
+            pinnedFrame.frameLock.unlock();
         }
         // flush evicted frame
+        long evictedPageNum = evictedFrame.pageNum;
         try {
             evictedFrame.invalidate();
         } finally {
             evictedFrame.frameLock.unlock();
+            this.evictingFrames.remove(evictedPageNum, evictedFrame);
         }
         // read new page into frame
         try {
+            if (pendingFlush != null) {
+                // our page was just evicted by another thread: wait for it to
+                // be written out before reading it back
+                pendingFlush.frameLock.lock();
+                pendingFlush.frameLock.unlock();
+            }
             newFrame.pageNum = pageNum;
             newFrame.pin();
             BufferManager.this.diskSpaceManager.readPage(pageNum, newFrame.contents);
@@ -457,6 +495,7 @@ public class BufferManager implements AutoCloseable {
      * @return specified page
      */
     public Page fetchPage(LockContext parentContext, long pageNum) {
+        this.recoveryManager.pageFetchHook(pageNum);
         return this.frameToPage(parentContext, pageNum, this.fetchPageFrame(pageNum));
     }
 
@@ -488,6 +527,26 @@ public class BufferManager implements AutoCloseable {
         return this.frameToPage(parentContext, newFrame.getPageNum(), newFrame);
     }
 
+    /**
+     * Fetches a new page with a specific page number, with a loaded and pinned
+     * buffer frame.
+     *
+     * @param parentContext parent lock context of the new page
+     * @param pageNum       page number of the new page
+     * @return the new page
+     */
+    public Page fetchNewPageAt(LockContext parentContext, long pageNum) {
+        this.diskSpaceManager.allocPage(pageNum);
+        this.managerLock.lock();
+        Frame newFrame;
+        try {
+            newFrame = fetchPageFrame(pageNum);
+        } finally {
+            this.managerLock.unlock();
+        }
+        return this.frameToPage(parentContext, pageNum, newFrame);
+    }
+
     /**
      * Frees a page - evicts the page from cache, and tells the disk space manager
      * that the page is no longer needed. Page must be pinned before this call,
@@ -604,6 +663,18 @@ public class BufferManager implements AutoCloseable {
         }
     }
 
+    /**
+     * Reads a page straight from disk, without loading it into the buffer
+     * cache. Only safe for pages with no unflushed changes.
+     *
+     * @param pageNum page number of the page to read
+     * @param buf page-sized buffer to read the page into
+     */
+    public void readPageUncached(long pageNum, byte[] buf) {
+        this.diskSpaceManager.readPage(pageNum, buf);
+        this.incrementIOs();
+    }
+
     /**
      * Get the number of I/Os since the buffer manager was started, excluding anything used in disk
      * space management, and not counting allocation/free. This is not really useful except as a
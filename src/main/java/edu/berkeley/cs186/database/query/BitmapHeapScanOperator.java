@@ -0,0 +1,238 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.*;
+
+/**
+ * An index scan that visits the table in page order. Where IndexScanOperator
+ * fetches the record of every matching index entry as soon as it is read from
+ * the leaves, jumping back and forth between data pages, this operator
+ * collects the record ids of the matching entries into a batch sorted by page,
+ * and then fetches each data page in the batch only once to read all of its
+ * matching records.
+ *
+ * A batch holds as many record ids as fit in the transaction's work memory.
+ * Records are returned in page order within a batch, so unlike a plain index
+ * scan the output is not sorted on the index column.
+ */
+class BitmapHeapScanOperator extends QueryOperator {
+    private TransactionContext transaction;
+    private String tableName;
+    private String columnName;
+    private PredicateOperator predicate;
+    private DataBox value;
+
+    private int columnIndex;
+
+    /**
+     * A bitmap heap scan operator.
+     *
+     * @param transaction the transaction containing this operator
+     * @param tableName the table to iterate over
+     * @param columnName the name of the column the index is on
+     */
+    BitmapHeapScanOperator(TransactionContext transaction,
+                           String tableName,
+                           String columnName,
+                           PredicateOperator predicate,
+                           DataBox value) {
+        super(OperatorType.INDEX_SCAN);
+        if (predicate == PredicateOperator.NOT_EQUALS) {
+            throw new IllegalArgumentException("cannot scan an index for " + predicate.toSymbol());
+        }
+        this.tableName = tableName;
+        this.transaction = transaction;
+        this.columnName = columnName;
+        this.predicate = predicate;
+        this.setOutputSchema(this.computeSchema());
+        this.columnIndex = this.getSchema().findField(columnName);
+        // cast the value to the type of the column (e.g. pad strings) so that
+        // it can be used as a key of the index
+        Schema valueSchema = new Schema().add(columnName, this.getSchema().getFieldType(columnIndex));
+        this.value = valueSchema.verify(new Record(value)).getValue(0);
+        this.stats = this.estimateStats();
+    }
+
+    @Override
+    public boolean isIndexScan() {
+        return true;
+    }
+
+    @Override
+    public String str() {
+        return String.format("Bitmap Index Scan for %s%s%s on %s (cost=%d)",
+            this.columnName, this.predicate.toSymbol(), this.value, this.tableName,
+            this.estimateIOCost());
+    }
+
+    /**
+     * Returns the column name that the index scan is on
+     *
+     * @return columnName
+     */
+    public String getColumnName() {
+        return this.columnName;
+    }
+
+    @Override
+    public TableStats estimateStats() {
+        TableStats stats = this.transaction.getStats(this.tableName);
+        return stats.copyWithPredicate(this.columnIndex,
+                                       this.predicate,
+                                       this.value);
+    }
+
+    /**
+     * @return the maximum number of record ids collected before the data pages
+     * they point to are read
+     */
+    private int getBatchSize() {
+        int bytes = Math.max(1, transaction.getWorkMemSize()) * DiskSpaceManager.PAGE_SIZE;
+        return Math.max(1, bytes / RecordId.getSizeInBytes());
+    }
+
+    @Override
+    public int estimateIOCost() {
+        int height = transaction.getTreeHeight(tableName, columnName);
+        int order = transaction.getTreeOrder(tableName, columnName);
+        int numPages = transaction.getNumDataPages(tableName);
+        TableStats tableStats = transaction.getStats(tableName);
+
+        int count = tableStats.getHistograms().get(columnIndex).copyWithPredicate(predicate,
+                    value).getCount();
+        // Leaves are read as in IndexScanOperator. For the data pages, we
+        // assume the matching records of each batch are spread uniformly over
+        // the table, so a batch of k records touches on average
+        // numPages * (1 - (1 - 1/numPages)^k) distinct pages (Cardenas'
+        // formula), and each of those is read once per batch.
+        double heapPages = 0;
+        if (count > 0 && numPages > 0) {
+            int numBatches = (int) Math.ceil(count / (double) getBatchSize());
+            double perBatch = count / (double) numBatches;
+            double pagesPerBatch = numPages * (1 - Math.pow(1 - 1.0 / numPages, perBatch));
+            heapPages = numBatches * Math.min(pagesPerBatch, perBatch);
+        }
+        return (int) (height + Math.ceil(count / (1.5 * order)) + Math.ceil(heapPages));
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return new BitmapHeapScanIterator();
+    }
+
+    @Override
+    public Schema computeSchema() {
+        return this.transaction.getFullyQualifiedSchema(this.tableName);
+    }
+
+    /**
+     * An implementation of Iterator that provides an iterator interface for this operator.
+     */
+    private class BitmapHeapScanIterator implements Iterator<Record> {
+        private Table table;
+        private Iterator<Pair<DataBox, RecordId>> entryIterator;
+        // set once an entry past the end of the scanned range is read
+        private boolean done;
+        // the data pages of the current batch that are yet to be read, each
+        // with the entries on it to return
+        private Iterator<Map.Entry<Long, List<Short>>> pageIterator;
+        private Iterator<Record> recordIterator;
+
+        private BitmapHeapScanIterator() {
+            this.table = BitmapHeapScanOperator.this.transaction.getTable(tableName);
+            DataBox startKey = null;
+            if (predicate == PredicateOperator.EQUALS ||
+                predicate == PredicateOperator.GREATER_THAN ||
+                predicate == PredicateOperator.GREATER_THAN_EQUALS) {
+                startKey = value;
+            }
+            this.entryIterator = BitmapHeapScanOperator.this.transaction.scanIndexEntries(
+                                     tableName, columnName, startKey);
+            this.pageIterator = Collections.emptyIterator();
+            this.recordIterator = Collections.emptyIterator();
+        }
+
+        /**
+         * Reads up to a batch of matching record ids from the index, grouped
+         * by data page.
+         *
+         * @return false if there were no more matching record ids
+         */
+        private boolean fetchBatch() {
+            SortedMap<Long, List<Short>> batch = new TreeMap<>();
+            int batchSize = getBatchSize();
+            int size = 0;
+            while (size < batchSize && !this.done && this.entryIterator.hasNext()) {
+                Pair<DataBox, RecordId> entry = this.entryIterator.next();
+                int cmp = entry.getFirst().compareTo(value);
+                boolean matches;
+                switch (predicate) {
+                    case EQUALS:
+                        matches = cmp == 0;
+                        this.done = cmp > 0;
+                        break;
+                    case LESS_THAN:
+                        matches = cmp < 0;
+                        this.done = !matches;
+                        break;
+                    case LESS_THAN_EQUALS:
+                        matches = cmp <= 0;
+                        this.done = !matches;
+                        break;
+                    case GREATER_THAN:
+                        matches = cmp > 0;
+                        break;
+                    default:
+                        matches = true;
+                }
+                if (matches) {
+                    RecordId rid = entry.getSecond();
+                    batch.computeIfAbsent(rid.getPageNum(), k -> new ArrayList<>()).add(rid.getEntryNum());
+                    ++size;
+                }
+            }
+            this.pageIterator = batch.entrySet().iterator();
+            return size > 0;
+        }
+
+        /**
+         * @return true if this iterator has another record to yield, otherwise
+         * false
+         */
+        @Override
+        public boolean hasNext() {
+            while (!this.recordIterator.hasNext()) {
+                if (!this.pageIterator.hasNext() && !fetchBatch()) {
+                    return false;
+                }
+                Map.Entry<Long, List<Short>> page = this.pageIterator.next();
+                List<Short> entryNums = page.getValue();
+                Collections.sort(entryNums);
+                this.recordIterator = this.table.getRecords(page.getKey(), entryNums).iterator();
+            }
+            return true;
+        }
+
+        /**
+         * @return the next record from this iterator
+         * @throws NoSuchElementException if there are no more records to yield
+         */
+        @Override
+        public Record next() {
+            if (this.hasNext()) {
+                return this.recordIterator.next();
+            }
+            throw new NoSuchElementException();
+        }
+    }
+}
@@ -65,12 +65,15 @@ class GroupByOperator extends QueryOperator {
 
     /**
      * Estimates the table statistics for the result of executing this query operator.
+     * The records of each group are aggregated into one by the projection
+     * above, so the result has one record per distinct combination of values
+     * of the grouping columns.
      *
      * @return estimated TableStats
      */
     @Override
     public TableStats estimateStats() {
-        return this.getSource().estimateStats();
+        return this.getSource().estimateStats().copyWithGroupBy(groupByColumnIndices);
     }
 
     @Override
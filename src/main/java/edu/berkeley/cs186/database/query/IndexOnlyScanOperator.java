@@ -0,0 +1,226 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
+import edu.berkeley.cs186.database.index.CompositeKey;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Answers a query from the keys of an index alone, without fetching any
+ * records from the table. The output contains only the index's columns (its
+ * key columns and its included columns), in the order they appear in the
+ * table, so the optimizer only picks this operator when those are all the
+ * columns the query reads from the table.
+ *
+ * A predicate on the first key column may be used to limit the range of keys
+ * that is scanned; without one, every key of the index is read.
+ */
+class IndexOnlyScanOperator extends QueryOperator {
+    private TransactionContext transaction;
+    private String tableName;
+    private BPlusTreeMetadata index;
+    private PredicateOperator predicate;
+    private DataBox value;
+
+    // Schema of the indexed table
+    private Schema tableSchema;
+    // The index columns in the order of the table: the ith output column is
+    // column indexPositions.get(i) of a decoded key
+    private List<Integer> indexPositions;
+
+    /**
+     * An index-only scan operator.
+     *
+     * @param transaction the transaction containing this operator
+     * @param tableName the table the index is on
+     * @param index the index to scan
+     * @param predicate the predicate on the first key column to scan for, or
+     *                  null to scan the whole index
+     * @param value the value to compare the first key column against
+     */
+    IndexOnlyScanOperator(TransactionContext transaction,
+                          String tableName,
+                          BPlusTreeMetadata index,
+                          PredicateOperator predicate,
+                          DataBox value) {
+        super(OperatorType.INDEX_SCAN);
+        if (predicate == PredicateOperator.NOT_EQUALS) {
+            throw new IllegalArgumentException("cannot scan an index for " + predicate.toSymbol());
+        }
+        this.transaction = transaction;
+        this.tableName = tableName;
+        this.index = index;
+        this.predicate = predicate;
+        this.tableSchema = transaction.getSchema(tableName);
+        List<String> indexColumns = index.getIndexColumns();
+        this.indexPositions = new ArrayList<>();
+        for (int i = 0; i < indexColumns.size(); ++i) this.indexPositions.add(i);
+        this.indexPositions.sort(Comparator.comparingInt(i -> tableSchema.findField(indexColumns.get(i))));
+        if (predicate != null) {
+            // cast the value to the type of the column, e.g. pad strings, so
+            // that it can be encoded and compared against the keys
+            String column = index.getKeyColumns().get(0);
+            Schema valueSchema = new Schema().add(column,
+                    tableSchema.getFieldType(tableSchema.findField(column)));
+            this.value = valueSchema.verify(new Record(value)).getValue(0);
+        }
+        this.setOutputSchema(this.computeSchema());
+        this.stats = this.estimateStats();
+    }
+
+    @Override
+    public boolean isIndexScan() {
+        return true;
+    }
+
+    @Override
+    public String str() {
+        String columns = String.join(", ", index.getIndexColumns());
+        if (predicate == null) {
+            return String.format("Index Only Scan on %s(%s) (cost=%d)",
+                this.tableName, columns, this.estimateIOCost());
+        }
+        return String.format("Index Only Scan for %s%s%s on %s(%s) (cost=%d)",
+            index.getKeyColumns().get(0), this.predicate.toSymbol(), this.value,
+            this.tableName, columns, this.estimateIOCost());
+    }
+
+    /**
+     * @return the metadata of the index this operator scans
+     */
+    public BPlusTreeMetadata getIndex() {
+        return this.index;
+    }
+
+    @Override
+    public TableStats estimateStats() {
+        TableStats stats = this.transaction.getStats(this.tableName);
+        if (this.predicate != null) {
+            int column = this.tableSchema.findField(index.getKeyColumns().get(0));
+            stats = stats.copyWithPredicate(column, this.predicate, this.value);
+        }
+        List<Integer> columns = new ArrayList<>();
+        for (int i : this.indexPositions) {
+            columns.add(this.tableSchema.findField(index.getIndexColumns().get(i)));
+        }
+        return stats.copyWithProjection(columns);
+    }
+
+    @Override
+    public int estimateIOCost() {
+        int height = Math.max(index.getHeight(), 0);
+        int count = this.estimateStats().getNumRecords();
+        // Same estimate of the leaves read as IndexScanOperator, but no page of
+        // the table is read.
+        return (int) (height + Math.ceil(count / (1.5 * index.getOrder())));
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return new IndexOnlyScanIterator();
+    }
+
+    @Override
+    public Schema computeSchema() {
+        Schema schema = new Schema();
+        for (int position : this.indexPositions) {
+            int i = this.tableSchema.findField(index.getIndexColumns().get(position));
+            schema.add(this.tableName + "." + this.tableSchema.getFieldName(i),
+                       this.tableSchema.getFieldType(i));
+        }
+        return schema;
+    }
+
+    @Override
+    public List<String> sortedBy() {
+        return Collections.singletonList(index.getKeyColumns().get(0));
+    }
+
+    /**
+     * An implementation of Iterator that provides an iterator interface for this operator.
+     */
+    private class IndexOnlyScanIterator implements Iterator<Record> {
+        private Iterator<DataBox> keyIterator;
+        private Record nextRecord;
+        private boolean done;
+
+        private IndexOnlyScanIterator() {
+            DataBox startKey = null;
+            if (predicate == PredicateOperator.EQUALS ||
+                predicate == PredicateOperator.GREATER_THAN ||
+                predicate == PredicateOperator.GREATER_THAN_EQUALS) {
+                startKey = index.isEncoded() ?
+                    CompositeKey.lowerBound(value, index.getIndexColumnTypes(tableSchema)) : value;
+            }
+            this.keyIterator = transaction.scanIndexKeys(tableName, index.getColName(), startKey);
+        }
+
+        /**
+         * @return true if this iterator has another record to yield, otherwise
+         * false
+         */
+        @Override
+        public boolean hasNext() {
+            while (this.nextRecord == null && !this.done && this.keyIterator.hasNext()) {
+                Record r = index.decodeKey(this.keyIterator.next(), tableSchema);
+                if (predicate == null) {
+                    this.nextRecord = toTableOrder(r);
+                    break;
+                }
+                int cmp = r.getValue(0).compareTo(value);
+                switch (predicate) {
+                    case EQUALS:
+                        if (cmp == 0) this.nextRecord = toTableOrder(r);
+                        else this.done = true;
+                        break;
+                    case LESS_THAN:
+                        if (cmp < 0) this.nextRecord = toTableOrder(r);
+                        else this.done = true;
+                        break;
+                    case LESS_THAN_EQUALS:
+                        if (cmp <= 0) this.nextRecord = toTableOrder(r);
+                        else this.done = true;
+                        break;
+                    case GREATER_THAN:
+                        if (cmp > 0) this.nextRecord = toTableOrder(r);
+                        break;
+                    default:
+                        this.nextRecord = toTableOrder(r);
+                }
+            }
+            return this.nextRecord != null;
+        }
+
+        // reorders the values of a decoded key to match the output schema
+        private Record toTableOrder(Record key) {
+            List<DataBox> values = new ArrayList<>();
+            for (int i : indexPositions) values.add(key.getValue(i));
+            return new Record(values);
+        }
+
+        /**
+         * @return the next record from this iterator
+         * @throws NoSuchElementException if there are no more records to yield
+         */
+        @Override
+        public Record next() {
+            if (this.hasNext()) {
+                Record r = this.nextRecord;
+                this.nextRecord = null;
+                return r;
+            }
+            throw new NoSuchElementException();
+        }
+    }
+}
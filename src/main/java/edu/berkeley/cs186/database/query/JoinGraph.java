@@ -0,0 +1,155 @@
+package edu.berkeley.cs186.database.query;
+
+/**
+ * The join graph of a query: one vertex per table, and an edge between two
+ * tables if a join predicate relates them. Sets of tables are bitmasks, bit i
+ * standing for table i, so a query can join at most 64 tables.
+ *
+ * The graph enumerates the pairs of sets of tables a join can combine without
+ * a cartesian product: two disjoint sets that are each connected, with an
+ * edge between them (csg-cmp-pairs, after Moerkotte and Neumann's DPccp).
+ * Each unordered pair is enumerated exactly once, and no time is spent on
+ * sets of tables that could only be joined with a cartesian product.
+ */
+class JoinGraph {
+    static final int MAX_TABLES = Long.SIZE;
+
+    private int numTables;
+
+    // neighbors[i] is the set of tables joined with table i
+    private long[] neighbors;
+
+    // pairs enumerated so far, flattened: pairs[2k] and pairs[2k + 1]
+    private long[] pairs;
+    private int numPairs;
+
+    JoinGraph(int numTables) {
+        if (numTables > MAX_TABLES) {
+            throw new UnsupportedOperationException("cannot join more than " + MAX_TABLES + " tables");
+        }
+        this.numTables = numTables;
+        this.neighbors = new long[numTables];
+    }
+
+    void addEdge(int table1, int table2) {
+        if (table1 == table2) return;
+        neighbors[table1] |= 1L << table2;
+        neighbors[table2] |= 1L << table1;
+    }
+
+    /**
+     * @return the set of every table in the graph
+     */
+    long allTables() {
+        return numTables == MAX_TABLES ? -1L : (1L << numTables) - 1;
+    }
+
+    /**
+     * @return the tables outside of `tables` that are joined with one of them
+     */
+    long neighbors(long tables) {
+        long result = 0;
+        for (long rest = tables; rest != 0; rest &= rest - 1) {
+            result |= neighbors[Long.numberOfTrailingZeros(rest)];
+        }
+        return result & ~tables;
+    }
+
+    /**
+     * @return true if a table of tables1 is joined with a table of tables2
+     */
+    boolean connected(long tables1, long tables2) {
+        return (neighbors(tables1) & tables2) != 0;
+    }
+
+    /**
+     * Enumerates every csg-cmp-pair of the graph: every (S1, S2) such that S1
+     * and S2 are disjoint, connected sets of tables and an edge joins them.
+     * Only one of (S1, S2) and (S2, S1) is enumerated.
+     *
+     * @return the pairs, flattened so that pairs[2k] and pairs[2k + 1] are the
+     * two sides of the kth pair, ordered by the size of their union: every pair
+     * that makes up a set of tables comes before any pair that uses the set as
+     * one of its sides, which is the order dynamic programming needs
+     */
+    long[] csgCmpPairs() {
+        this.pairs = new long[64];
+        this.numPairs = 0;
+        for (int i = numTables - 1; i >= 0; i--) {
+            long table = 1L << i;
+            // tables numbered up to i are excluded, so that every connected
+            // set is enumerated once, from its lowest numbered table
+            long excluded = (table << 1) - 1;
+            emitCsg(table);
+            enumerateCsg(table, excluded);
+        }
+        return sortBySize();
+    }
+
+    private void enumerateCsg(long tables, long excluded) {
+        long neighborhood = neighbors(tables) & ~excluded;
+        for (long subset = neighborhood; subset != 0; subset = (subset - 1) & neighborhood) {
+            emitCsg(tables | subset);
+        }
+        for (long subset = neighborhood; subset != 0; subset = (subset - 1) & neighborhood) {
+            enumerateCsg(tables | subset, excluded | neighborhood);
+        }
+    }
+
+    /**
+     * Emits every pair (tables, S2) for a connected set tables, where S2 only
+     * holds tables numbered higher than the lowest numbered one of tables.
+     */
+    private void emitCsg(long tables) {
+        long lowest = Long.lowestOneBit(tables);
+        long excluded = tables | (lowest | (lowest - 1));
+        long neighborhood = neighbors(tables) & ~excluded;
+        for (long rest = neighborhood; rest != 0; rest &= ~Long.highestOneBit(rest)) {
+            // start from each neighbor in turn, highest numbered first, and
+            // grow the complement without the neighbors numbered below it
+            long table = Long.highestOneBit(rest);
+            addPair(tables, table);
+            enumerateCmp(tables, table, excluded | (neighborhood & (table | (table - 1))));
+        }
+    }
+
+    private void enumerateCmp(long csg, long cmp, long excluded) {
+        long neighborhood = neighbors(cmp) & ~excluded;
+        for (long subset = neighborhood; subset != 0; subset = (subset - 1) & neighborhood) {
+            addPair(csg, cmp | subset);
+        }
+        for (long subset = neighborhood; subset != 0; subset = (subset - 1) & neighborhood) {
+            enumerateCmp(csg, cmp | subset, excluded | neighborhood);
+        }
+    }
+
+    private void addPair(long tables1, long tables2) {
+        if (2 * numPairs + 2 > pairs.length) {
+            long[] newPairs = new long[2 * pairs.length];
+            System.arraycopy(pairs, 0, newPairs, 0, 2 * numPairs);
+            pairs = newPairs;
+        }
+        pairs[2 * numPairs] = tables1;
+        pairs[2 * numPairs + 1] = tables2;
+        numPairs++;
+    }
+
+    private long[] sortBySize() {
+        // counting sort on the number of tables in the union
+        int[] starts = new int[MAX_TABLES + 2];
+        for (int k = 0; k < numPairs; k++) {
+            starts[Long.bitCount(pairs[2 * k] | pairs[2 * k + 1]) + 1]++;
+        }
+        for (int size = 1; size < starts.length; size++) {
+            starts[size] += starts[size - 1];
+        }
+        long[] sorted = new long[2 * numPairs];
+        for (int k = 0; k < numPairs; k++) {
+            int at = starts[Long.bitCount(pairs[2 * k] | pairs[2 * k + 1])]++;
+            sorted[2 * at] = pairs[2 * k];
+            sorted[2 * at + 1] = pairs[2 * k + 1];
+        }
+        this.pairs = null;
+        return sorted;
+    }
+}
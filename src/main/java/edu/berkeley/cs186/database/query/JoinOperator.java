@@ -176,4 +176,30 @@ public abstract class JoinOperator extends QueryOperator {
         DataBox rightRecordValue = rightRecord.getValue(this.rightColumnIndex);
         return leftRecordValue.compareTo(rightRecordValue);
     }
+
+    /**
+     * Estimates the number of partitioning passes a hash join needs before
+     * every partition of the records of `stats` fits in the B - 2 buffers
+     * available to build an in memory hash table, assuming each pass hashes
+     * the records evenly into B - 1 partitions.
+     *
+     * @return the number of passes (at least 1), or -1 if the records sharing
+     * a single value of column `columnIndex` (according to the column's
+     * histogram, if it has one) take up more than B - 2 pages, in which case
+     * no amount of partitioning splits them up
+     */
+    protected static int estimatePartitionPasses(TableStats stats, int columnIndex, int numBuffers) {
+        int numPages = stats.getNumPages();
+        int numDistinct = stats.getHistograms().get(columnIndex).getNumDistinct();
+        if (numDistinct > 0 && Math.ceil((double) numPages / numDistinct) > numBuffers - 2) {
+            return -1;
+        }
+        int numPasses = 1;
+        double partitionPages = (double) numPages / (numBuffers - 1);
+        while (Math.ceil(partitionPages) > numBuffers - 2) {
+            partitionPages /= numBuffers - 1;
+            ++numPasses;
+        }
+        return numPasses;
+    }
 }
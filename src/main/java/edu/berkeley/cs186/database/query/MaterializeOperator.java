@@ -1,11 +1,20 @@
 package edu.berkeley.cs186.database.query;
 
 import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
 
+import java.util.Iterator;
 import java.util.List;
 
-public class MaterializeOperator extends SequentialScanOperator {
+public class MaterializeOperator extends QueryOperator {
+    private TransactionContext transaction;
+    // Scan over the temporary table, or null if the source hasn't been
+    // materialized yet
+    private SequentialScanOperator materializedScan;
+
     /**
      * Operator that materializes the source operator into a temporary table immediately,
      * and then acts as a sequential scan operator over the temporary table.
@@ -14,17 +23,65 @@ public class MaterializeOperator extends SequentialScanOperator {
      */
     public MaterializeOperator(QueryOperator source,
                         TransactionContext transaction) {
-        super(OperatorType.MATERIALIZE, transaction, materializeToTable(source, transaction));
-        setSource(source);
-        setOutputSchema(source.getSchema());
+        this(source, transaction, false);
+    }
+
+    /**
+     * Operator that materializes the source operator into a temporary table,
+     * either immediately or the first time its records are read if lazy is
+     * set. A lazy operator can be built while planning a query without running
+     * any part of it.
+     */
+    MaterializeOperator(QueryOperator source, TransactionContext transaction, boolean lazy) {
+        super(OperatorType.MATERIALIZE, source);
+        this.transaction = transaction;
+        this.materializedScan = null;
+        if (!lazy) materialize();
     }
 
-    private static String materializeToTable(QueryOperator source, TransactionContext transaction) {
-        String materializedTableName = transaction.createTempTable(source.getSchema());
-        for (Record record : source) {
-            transaction.addRecord(materializedTableName, record);
+    private SequentialScanOperator materialize() {
+        if (this.materializedScan == null) {
+            String materializedTableName = transaction.createTempTable(getSource().getSchema());
+            for (Record record : getSource()) {
+                transaction.addRecord(materializedTableName, record);
+            }
+            this.materializedScan = new SequentialScanOperator(transaction, materializedTableName);
         }
-        return materializedTableName;
+        return this.materializedScan;
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return this.backtrackingIterator();
+    }
+
+    @Override
+    public BacktrackingIterator<Record> backtrackingIterator() {
+        return materialize().backtrackingIterator();
+    }
+
+    @Override
+    public boolean materialized() { return true; }
+
+    @Override
+    public Schema computeSchema() {
+        return getSource().getSchema();
+    }
+
+    @Override
+    public TableStats estimateStats() {
+        if (this.materializedScan != null) return this.materializedScan.estimateStats();
+        return getSource().estimateStats();
+    }
+
+    @Override
+    public int estimateIOCost() {
+        // the source is run once to write the temporary table, which is then
+        // read back like any other table
+        int numPages = this.materializedScan != null ? this.materializedScan.estimateIOCost() :
+                       getSource().estimateStats().getNumPages();
+        long cost = (long) getSource().estimateIOCost() + 2L * numPages;
+        return (int) Math.min(Integer.MAX_VALUE, cost);
     }
 
     @Override
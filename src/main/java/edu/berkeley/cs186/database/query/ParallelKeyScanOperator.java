@@ -0,0 +1,268 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+import edu.berkeley.cs186.database.table.stats.TableStats;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Scans a table with several worker threads and produces one
+ * (key, page_num, entry_num) record for every record of the table, where key
+ * is the key the record is stored under in an index (see
+ * BPlusTreeMetadata#buildKey) and (page_num, entry_num) is the record's
+ * RecordId. The records are produced in no particular order; bulk index builds
+ * feed this operator into a SortOperator on the key column.
+ *
+ * The data pages of the table are handed out to the workers one at a time, and
+ * each worker passes the records of a page back to the consuming thread as a
+ * single batch. Workers only read pages, so they never touch the transaction's
+ * temporary tables (which are not thread-safe); everything downstream of this
+ * operator runs on the consuming thread as usual.
+ *
+ * A consumer that stops reading before the end of the scan (for example
+ * because an operator above it failed) must close the operator, which stops
+ * the workers of every iterator it has handed out.
+ */
+public class ParallelKeyScanOperator extends QueryOperator implements AutoCloseable {
+    public static final String KEY_FIELD = "key";
+    public static final String PAGE_NUM_FIELD = "page_num";
+    public static final String ENTRY_NUM_FIELD = "entry_num";
+
+    // Marks the end of a worker's output in the batch queue.
+    private static final List<Record> END_OF_WORKER = new ArrayList<>();
+    // How long a worker waits for room in a full batch queue before checking
+    // whether the scan was closed.
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private TransactionContext transaction;
+    private String tableName;
+    private BPlusTreeMetadata index;
+    private int parallelism;
+    // the data pages to scan, or null to scan the whole table
+    private List<Long> pageNums;
+    // iterators whose workers may still be running
+    private final Set<ParallelScanIterator> openIterators = Collections.synchronizedSet(new HashSet<>());
+
+    /**
+     * @param transaction the transaction containing this operator
+     * @param tableName the table to scan
+     * @param index the index whose keys are the keys of the output
+     * @param parallelism the maximum number of worker threads to use
+     */
+    public ParallelKeyScanOperator(TransactionContext transaction, String tableName,
+                                   BPlusTreeMetadata index, int parallelism) {
+        this(transaction, tableName, index, parallelism, null);
+    }
+
+    /**
+     * Scans only the data pages in `pageNums` (e.g. the pages just added by a
+     * bulk load), or the whole table if pageNums is null.
+     */
+    public ParallelKeyScanOperator(TransactionContext transaction, String tableName,
+                                   BPlusTreeMetadata index, int parallelism, List<Long> pageNums) {
+        super(OperatorType.SEQ_SCAN);
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive, got " + parallelism);
+        }
+        this.transaction = transaction;
+        this.tableName = tableName;
+        this.parallelism = parallelism;
+        this.index = index;
+        this.pageNums = pageNums;
+        this.setOutputSchema(this.computeSchema());
+
+        this.stats = this.estimateStats();
+    }
+
+    @Override
+    public boolean isSequentialScan() {
+        return true;
+    }
+
+    @Override
+    public Iterator<Record> iterator() {
+        return new ParallelScanIterator();
+    }
+
+    /**
+     * Stops the workers of every iterator of this operator that has not been
+     * read to the end. Those iterators produce no more records.
+     */
+    @Override
+    public void close() {
+        List<ParallelScanIterator> iterators;
+        synchronized (openIterators) {
+            iterators = new ArrayList<>(openIterators);
+        }
+        for (ParallelScanIterator iterator : iterators) {
+            iterator.close();
+        }
+    }
+
+    @Override
+    public Schema computeSchema() {
+        return new Schema()
+               .add(KEY_FIELD, this.index.getKeySchema())
+               .add(PAGE_NUM_FIELD, Type.longType())
+               .add(ENTRY_NUM_FIELD, Type.intType());
+    }
+
+    @Override
+    public String str() {
+        return "Parallel Key Scan on " + this.tableName + " (workers=" + this.parallelism +
+               ", cost=" + this.estimateIOCost() + ")";
+    }
+
+    @Override
+    public TableStats estimateStats() {
+        return this.transaction.getStats(this.tableName);
+    }
+
+    @Override
+    public int estimateIOCost() {
+        if (this.pageNums != null) {
+            return this.pageNums.size();
+        }
+        return this.transaction.getNumDataPages(this.tableName);
+    }
+
+    /**
+     * Converts an output record of this operator back into the RecordId it
+     * refers to.
+     */
+    public static RecordId toRecordId(Record record) {
+        return new RecordId(record.getValue(1).getLong(), (short) record.getValue(2).getInt());
+    }
+
+    private class ParallelScanIterator implements Iterator<Record> {
+        private BlockingQueue<List<Record>> batches;
+        private ExecutorService workers;
+        private AtomicReference<RuntimeException> error = new AtomicReference<>();
+        private volatile boolean closed = false;
+        private int workersRunning;
+        private Iterator<Record> batchIterator = Collections.emptyIterator();
+
+        private ParallelScanIterator() {
+            Table table = transaction.getTable(tableName);
+            Schema schema = table.getSchema();
+            List<Long> pageNums = ParallelKeyScanOperator.this.pageNums != null ?
+                                  ParallelKeyScanOperator.this.pageNums : table.getDataPageNums();
+            int numWorkers = Math.max(1, Math.min(parallelism, pageNums.size()));
+            AtomicInteger nextPage = new AtomicInteger();
+
+            this.batches = new ArrayBlockingQueue<>(2 * numWorkers);
+            this.workersRunning = numWorkers;
+            this.workers = Executors.newFixedThreadPool(numWorkers, r -> {
+                Thread thread = new Thread(r, "parallel-scan-" + tableName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            for (int i = 0; i < numWorkers; ++i) {
+                this.workers.execute(() -> {
+                    try {
+                        int pageIndex;
+                        while ((pageIndex = nextPage.getAndIncrement()) < pageNums.size()) {
+                            List<Record> batch = new ArrayList<>();
+                            for (Pair<RecordId, Record> entry : table.getPageRecords(pageNums.get(pageIndex))) {
+                                RecordId rid = entry.getFirst();
+                                batch.add(new Record(index.buildKey(entry.getSecond(), schema),
+                                                     rid.getPageNum(), (int) rid.getEntryNum()));
+                            }
+                            if (!batch.isEmpty() && !send(batch)) {
+                                return;
+                            }
+                        }
+                    } catch (RuntimeException e) {
+                        error.compareAndSet(null, e);
+                    } catch (InterruptedException e) {
+                        // the consumer has given up on the scan
+                        return;
+                    }
+                    try {
+                        send(END_OF_WORKER);
+                    } catch (InterruptedException e) {
+                        // the consumer has given up on the scan
+                    }
+                });
+            }
+            this.workers.shutdown();
+            openIterators.add(this);
+        }
+
+        /**
+         * Queues batch for the consumer, waiting for room in the queue.
+         *
+         * @return false if the iterator was closed before there was room
+         */
+        private boolean send(List<Record> batch) throws InterruptedException {
+            while (!closed) {
+                if (batches.offer(batch, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Stops the workers and drops the batches they have queued.
+         */
+        private void close() {
+            closed = true;
+            workers.shutdownNow();
+            batches.clear();
+            workersRunning = 0;
+            batchIterator = Collections.emptyIterator();
+            openIterators.remove(this);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!batchIterator.hasNext()) {
+                if (workersRunning == 0) {
+                    openIterators.remove(this);
+                    return false;
+                }
+                List<Record> batch;
+                try {
+                    batch = batches.take();
+                } catch (InterruptedException e) {
+                    close();
+                    throw new DatabaseException(e);
+                }
+                if (batch == END_OF_WORKER) {
+                    --workersRunning;
+                    if (error.get() != null) {
+                        close();
+                        throw error.get();
+                    }
+                } else {
+                    batchIterator = batch.iterator();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return batchIterator.next();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.TransactionContext;
+
+import java.util.*;
+
+/**
+ * A cache of the plans chosen by the optimizer, keyed on the normalized text
+ * of their queries (see QueryPlan#getCacheKey), so that a query with the same
+ * shape as one planned before skips the search for its plan. The least
+ * recently used plan is evicted once the cache holds `capacity` plans.
+ *
+ * A plan is dropped from the cache when a table it reads, or an index on one,
+ * is created or dropped (see invalidate), and it goes stale once the number
+ * of records of one of its tables has grown or shrunk by more than a factor
+ * of STATS_CHANGE_FACTOR since it was planned, since the optimizer may then
+ * pick a different plan.
+ */
+public class PlanCache {
+    static final int STATS_CHANGE_FACTOR = 2;
+
+    private static class CachedPlan {
+        QueryPlan.PlanTemplate template;
+        // base tables read by the plan, and their number of records when it
+        // was planned
+        String[] tables;
+        int[] numRecords;
+
+        CachedPlan(QueryPlan.PlanTemplate template, String[] tables, int[] numRecords) {
+            this.template = template;
+            this.tables = tables;
+            this.numRecords = numRecords;
+        }
+
+        boolean isStale(TransactionContext transaction) {
+            for (int i = 0; i < tables.length; i++) {
+                long now = transaction.getStats(tables[i]).getNumRecords();
+                long then = numRecords[i];
+                if (now > STATS_CHANGE_FACTOR * Math.max(then, 1) || STATS_CHANGE_FACTOR * now < then) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private int capacity;
+    // entries in access order, least recently used first
+    private LinkedHashMap<String, CachedPlan> entries;
+    private long numHits;
+    private long numMisses;
+
+    public PlanCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, CachedPlan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPlan> eldest) {
+                return size() > PlanCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the template of the plan cached under key, or null if there is
+     * none or it has gone stale, in which case it is dropped
+     */
+    QueryPlan.PlanTemplate get(String key, TransactionContext transaction) {
+        CachedPlan entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        // the statistics are read outside of the lock, since reading them may
+        // wait for locks on the tables
+        if (entry != null && entry.isStale(transaction)) {
+            synchronized (this) {
+                entries.remove(key, entry);
+            }
+            entry = null;
+        }
+        synchronized (this) {
+            if (entry == null) numMisses++;
+            else numHits++;
+        }
+        return entry == null ? null : entry.template;
+    }
+
+    /**
+     * Caches the template of a plan over the given base tables under key.
+     */
+    void put(String key, QueryPlan.PlanTemplate template, Collection<String> tables,
+             TransactionContext transaction) {
+        String[] tableNames = tables.toArray(new String[0]);
+        int[] numRecords = new int[tableNames.length];
+        for (int i = 0; i < tableNames.length; i++) {
+            numRecords[i] = transaction.getStats(tableNames[i]).getNumRecords();
+        }
+        CachedPlan entry = new CachedPlan(template, tableNames, numRecords);
+        synchronized (this) {
+            if (capacity > 0) entries.put(key, entry);
+        }
+    }
+
+    /**
+     * Drops every plan reading tableName, after the table or its indices
+     * changed.
+     */
+    public synchronized void invalidate(String tableName) {
+        entries.values().removeIf(entry -> {
+            for (String table : entry.tables) {
+                if (table.equalsIgnoreCase(tableName)) return true;
+            }
+            return false;
+        });
+    }
+
+    /**
+     * Drops every plan.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Sets the number of plans kept, evicting the least recently used plans
+     * over it. A capacity of 0 disables the cache.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("plan cache capacity must be nonnegative");
+        }
+        this.capacity = capacity;
+        Iterator<String> keys = entries.keySet().iterator();
+        while (entries.size() > capacity) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of lookups that found a plan
+     */
+    public synchronized long getNumHits() {
+        return numHits;
+    }
+
+    /**
+     * @return the number of lookups that found no plan, or a stale one
+     */
+    public synchronized long getNumMisses() {
+        return numMisses;
+    }
+}
@@ -106,6 +106,25 @@ public class ProjectOperator extends QueryOperator {
                 "\n\tcolumns: " + columns;
     }
 
+    @Override
+    public List<String> sortedBy() {
+        // records come out in the order of the source, so a column that is
+        // copied over as is stays sorted
+        if (!this.groupByColumns.isEmpty()) return Collections.emptyList();
+        List<String> sorted = new ArrayList<>();
+        for (int i = 0; i < this.expressions.size(); i++) {
+            Expression expression = this.expressions.get(i);
+            if (expression.hasAgg()) return Collections.emptyList();
+            Set<String> dependencies = expression.getDependencies();
+            if (dependencies.size() != 1) continue;
+            String column = dependencies.iterator().next();
+            if (expression.toString().equals(column) && this.getSource().isSortedOn(column)) {
+                sorted.add(this.outputColumns.get(i));
+            }
+        }
+        return sorted;
+    }
+
     @Override
     public TableStats estimateStats() {
         return this.getSource().estimateStats();
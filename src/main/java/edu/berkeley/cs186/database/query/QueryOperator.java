@@ -105,10 +105,36 @@ public abstract class QueryOperator implements Iterable<Record> {
         return this.type.equals(OperatorType.INDEX_SCAN);
     }
 
+    /**
+     * @return the columns the output of this operator is sorted on, as named
+     * in its schema or by their unqualified names
+     */
     public List<String> sortedBy() {
         return Collections.emptyList();
     }
 
+    /**
+     * @return True if the output of this operator is sorted on columnName,
+     * which may be qualified or not, false otherwise.
+     */
+    public boolean isSortedOn(String columnName) {
+        Schema schema = getSchema();
+        String fieldName;
+        try {
+            fieldName = schema.matchFieldName(columnName);
+        } catch (RuntimeException e) {
+            return false;
+        }
+        for (String sortedColumn : sortedBy()) {
+            try {
+                if (schema.matchFieldName(sortedColumn).equals(fieldName)) return true;
+            } catch (RuntimeException e) {
+                /* not in the schema, or ambiguous */
+            }
+        }
+        return false;
+    }
+
     /**
      * @return the source operator from which this operator draws records from
      */
@@ -194,11 +220,13 @@ public abstract class QueryOperator implements Iterable<Record> {
      * @param operator a query operator to materialize
      * @param transaction the transaction the materialized table will be created
      *                    within
-     * @return A new MaterializedOperator that draws from the records of `operator`
+     * @return A new MaterializedOperator that draws from the records of
+     * `operator`, materialized the first time they are read so that building
+     * a plan does not run any of it
      */
     public static QueryOperator materialize(QueryOperator operator, TransactionContext transaction) {
         if (!operator.materialized()) {
-            return new MaterializeOperator(operator, transaction);
+            return new MaterializeOperator(operator, transaction, true);
         }
         return operator;
     }
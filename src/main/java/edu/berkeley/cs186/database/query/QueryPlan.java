@@ -3,9 +3,13 @@ package edu.berkeley.cs186.database.query;
 import edu.berkeley.cs186.database.TransactionContext;
 import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
 import edu.berkeley.cs186.database.query.expr.Expression;
 import edu.berkeley.cs186.database.query.join.BNLJOperator;
+import edu.berkeley.cs186.database.query.join.GHJOperator;
+import edu.berkeley.cs186.database.query.join.SHJOperator;
 import edu.berkeley.cs186.database.query.join.SNLJOperator;
+import edu.berkeley.cs186.database.query.join.SortMergeOperator;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 
@@ -17,6 +21,15 @@ import java.util.*;
  * and calling execute generates and executes a QueryPlan DAG.
  */
 public class QueryPlan {
+    // Queries joining more tables than this are planned greedily
+    static final int MAX_EXHAUSTIVE_JOIN_TABLES = 12;
+    static final long DEFAULT_PLANNING_TIME_LIMIT = 1000;
+    // Join types considered by the optimizer, ties going to the first
+    private static final JoinOperator.JoinType[] JOIN_TYPES = {
+        JoinOperator.JoinType.SNLJ, JoinOperator.JoinType.BNLJ, JoinOperator.JoinType.GHJ,
+        JoinOperator.JoinType.SHJ, JoinOperator.JoinType.SORTMERGE
+    };
+
     // The transaction this query will be executed within
     private TransactionContext transaction;
     // A query operator representing the final query plan
@@ -43,6 +56,19 @@ public class QueryPlan {
     private int limit;
     // An offset to the records yielded (OFFSET clause)
     private int offset;
+    // The cheapest plans found so far over a set of tables whose output is
+    // sorted on an interesting column (a join column or the sort column),
+    // keyed by the set (as a bitmask of indices into tableNames) and then by
+    // the lowercased column
+    private Map<Long, Map<String, QueryOperator>> sortedPlans;
+    // The interesting columns, or null if they haven't been computed yet
+    private List<String> interestingColumns;
+    // Time allowed to search all join orders, in milliseconds, before falling
+    // back to a greedy search
+    private long planningTimeLimit;
+    // How the optimizer built each plan it considered, for the plans whose
+    // templates are known (see PlanTemplate)
+    private Map<QueryOperator, PlanTemplate> templates;
 
     /**
      * Creates a new QueryPlan within `transaction` with base table
@@ -85,6 +111,10 @@ public class QueryPlan {
         this.groupByColumns = new ArrayList<>();
         this.limit = -1;
         this.offset = 0;
+        this.sortedPlans = new HashMap<>();
+        this.interestingColumns = null;
+        this.planningTimeLimit = DEFAULT_PLANNING_TIME_LIMIT;
+        this.templates = new IdentityHashMap<>();
 
         // This will be set after calling execute()
         this.finalOperator = null;
@@ -162,6 +192,16 @@ public class QueryPlan {
 
     // Helper Classes //////////////////////////////////////////////////////////
 
+    /**
+     * How the optimizer built a plan, leaving out the values of the select
+     * predicates. Building the template for another query of the same shape
+     * (one with the same cache key, see getCacheKey) gives the same plan with
+     * that query's values, without searching for it again.
+     */
+    interface PlanTemplate {
+        QueryOperator build(QueryPlan query);
+    }
+
     /**
      * Represents a single selection predicate. Some examples:
      *   table1.col = 186
@@ -314,7 +354,7 @@ public class QueryPlan {
      */
     private void addSort() {
         if (this.sortColumn == null) return;
-        if (this.finalOperator.sortedBy().contains(sortColumn.toLowerCase())) {
+        if (this.finalOperator.isSortedOn(this.sortColumn)) {
             return; // already sorted
         }
         this.finalOperator = new SortOperator(
@@ -527,6 +567,51 @@ public class QueryPlan {
         return result;
     }
 
+    /**
+     * Returns the lowercased names of the columns of `table` that this query
+     * reads: projected columns (all of them if there is no projection),
+     * selection, join, group by and sort columns. A column is only left out if
+     * it can't refer to `table`, so ambiguous unqualified names are included.
+     */
+    private Set<String> getReferencedColumns(String table) {
+        List<String> names = new ArrayList<>();
+        if (this.projectFunctions != null) {
+            for (Expression function : this.projectFunctions) {
+                names.addAll(function.getDependencies());
+            }
+        } else {
+            names.addAll(this.projectColumns);
+        }
+        List<String> columns = this.transaction.getSchema(table).getFieldNames();
+        if (this.projectColumns.isEmpty()) {
+            names.addAll(columns);
+        }
+        for (SelectPredicate p : this.selectPredicates) {
+            if (p.tableName.equals(table)) names.add(p.column);
+        }
+        for (JoinPredicate p : this.joinPredicates) {
+            names.add(p.leftColumn);
+            names.add(p.rightColumn);
+        }
+        names.addAll(this.groupByColumns);
+        if (this.sortColumn != null) names.add(this.sortColumn);
+
+        Set<String> result = new HashSet<>();
+        for (String name : names) {
+            String column = name;
+            if (name.contains(".")) {
+                String[] parts = name.split("\\.", 2);
+                if (!parts[0].trim().equalsIgnoreCase(table)) continue;
+                column = parts[1];
+            }
+            column = column.trim();
+            for (String c : columns) {
+                if (c.equalsIgnoreCase(column)) result.add(c.toLowerCase());
+            }
+        }
+        return result;
+    }
+
     /**
      * Applies all eligible select predicates to a given source, except for the
      * predicate at index except. The purpose of except is because there might
@@ -560,8 +645,10 @@ public class QueryPlan {
      * Finds the lowest cost QueryOperator that accesses the given table. First
      * determine the cost of a sequential scan for the given table. Then for
      * every index that can be used on that table, determine the cost of an
-     * index scan. Keep track of the minimum cost operation and push down
-     * eligible select predicates.
+     * index scan, both plain and bitmap. Keep track of the minimum cost
+     * operation and push down eligible select predicates. Indices that
+     * contain every column the query reads from the table are also considered
+     * for an index-only scan.
      *
      * If an index scan was chosen, exclude the redundant select predicate when
      * pushing down selects. This method will be called during the first pass of
@@ -569,12 +656,13 @@ public class QueryPlan {
      * table.
      *
      * @return a QueryOperator that has the lowest cost of scanning the given
-     * table which is either a SequentialScanOperator or an IndexScanOperator
-     * nested within any possible pushed down select operators. Ties for the
+     * table which is either a SequentialScanOperator, an IndexScanOperator, a
+     * BitmapHeapScanOperator or an IndexOnlyScanOperator nested within any possible pushed down select operators. Ties for the
      * minimum cost operator can be broken arbitrarily.
      */
     public QueryOperator minCostSingleAccess(String table) {
         QueryOperator minOp = new SequentialScanOperator(this.transaction, table);
+        PlanTemplate minTemplate = q -> new SequentialScanOperator(q.transaction, table);
 
         // TODO(proj3_part2): implement
         int currentEstimateIOCost = minOp.estimateIOCost();
@@ -582,37 +670,205 @@ public class QueryPlan {
         int bestIndexScanColumn = -1;
 
         for (Integer column : eligibleIndexColumns) {
-            SelectPredicate selectPredicate = selectPredicates.get(column);
-            IndexScanOperator indexScanOperator = new IndexScanOperator(transaction, table, selectPredicate.column, selectPredicate.operator, selectPredicate.value);
+            QueryOperator indexScanOperator = indexScan(table, column);
+            PlanTemplate indexScanTemplate = q -> q.indexScan(table, column);
             int indexCost = indexScanOperator.estimateIOCost();
+            recordSortedPlan(table, withSelections(indexScanOperator, indexScanTemplate, column));
             if (indexCost <= currentEstimateIOCost) {
                 currentEstimateIOCost = indexCost;
                 bestIndexScanColumn = column;
                 minOp = indexScanOperator;
+                minTemplate = indexScanTemplate;
+            }
+            // the same scan, reading each data page only once
+            QueryOperator bitmapScanOperator = bitmapScan(table, column);
+            int bitmapCost = bitmapScanOperator.estimateIOCost();
+            if (bitmapCost < currentEstimateIOCost) {
+                currentEstimateIOCost = bitmapCost;
+                bestIndexScanColumn = column;
+                minOp = bitmapScanOperator;
+                minTemplate = q -> q.bitmapScan(table, column);
             }
         }
         
+        // An index holding every column the query reads from the table can
+        // answer the query without visiting the table at all
+        Set<String> referencedColumns = getReferencedColumns(table);
+        for (BPlusTreeMetadata index : this.transaction.getIndices(table)) {
+            Set<String> indexColumns = new HashSet<>();
+            for (String column : index.getIndexColumns()) {
+                indexColumns.add(column.toLowerCase());
+            }
+            if (!indexColumns.containsAll(referencedColumns)) continue;
+
+            String indexName = index.getColName();
+            String leadingColumn = index.getKeyColumns().get(0);
+            QueryOperator fullScan = indexOnlyScan(table, index, -1);
+            PlanTemplate fullScanTemplate = q -> q.indexOnlyScan(table, q.getIndex(table, indexName), -1);
+            recordSortedPlan(table, withSelections(fullScan, fullScanTemplate, -1));
+            if (fullScan.estimateIOCost() < currentEstimateIOCost) {
+                currentEstimateIOCost = fullScan.estimateIOCost();
+                bestIndexScanColumn = -1;
+                minOp = fullScan;
+                minTemplate = fullScanTemplate;
+            }
+            for (int i = 0; i < this.selectPredicates.size(); i++) {
+                SelectPredicate p = this.selectPredicates.get(i);
+                if (!p.tableName.equals(table) || !p.column.equalsIgnoreCase(leadingColumn)) continue;
+                if (p.operator == PredicateOperator.NOT_EQUALS) continue;
+                int predicate = i;
+                QueryOperator rangeScan = indexOnlyScan(table, index, predicate);
+                PlanTemplate rangeScanTemplate = q -> q.indexOnlyScan(table, q.getIndex(table, indexName), predicate);
+                recordSortedPlan(table, withSelections(rangeScan, rangeScanTemplate, i));
+                if (rangeScan.estimateIOCost() < currentEstimateIOCost) {
+                    currentEstimateIOCost = rangeScan.estimateIOCost();
+                    bestIndexScanColumn = i;
+                    minOp = rangeScan;
+                    minTemplate = rangeScanTemplate;
+                }
+            }
+        }
+
         QueryOperator finalOperator;
         // add select operator to scan operator
         if (minOp.isSequentialScan()) {
-            finalOperator = addEligibleSelections(minOp, -1);
+            finalOperator = withSelections(minOp, minTemplate, -1);
         } else {
             // already used for index scan, needn't apply it again.
-            finalOperator = addEligibleSelections(minOp, bestIndexScanColumn);
+            finalOperator = withSelections(minOp, minTemplate, bestIndexScanColumn);
         }
+        recordSortedPlan(table, finalOperator);
 
         return finalOperator;
     }
 
+    // Scans built from the select predicates, by their index in
+    // this.selectPredicates (-1 for a scan of a whole index). Plan templates
+    // build scans with these, so that they pick up the values of the query
+    // they are built for.
+
+    private QueryOperator indexScan(String table, int predicate) {
+        SelectPredicate p = this.selectPredicates.get(predicate);
+        return new IndexScanOperator(this.transaction, table, p.column, p.operator, p.value);
+    }
+
+    private QueryOperator bitmapScan(String table, int predicate) {
+        SelectPredicate p = this.selectPredicates.get(predicate);
+        return new BitmapHeapScanOperator(this.transaction, table, p.column, p.operator, p.value);
+    }
+
+    private QueryOperator indexOnlyScan(String table, BPlusTreeMetadata index, int predicate) {
+        if (predicate < 0) return new IndexOnlyScanOperator(this.transaction, table, index, null, null);
+        SelectPredicate p = this.selectPredicates.get(predicate);
+        return new IndexOnlyScanOperator(this.transaction, table, index, p.operator, p.value);
+    }
+
+    /**
+     * @return the current metadata of the index on columns of table, whose
+     * root may have moved since a template over it was made
+     */
+    private BPlusTreeMetadata getIndex(String table, String columns) {
+        for (BPlusTreeMetadata index : this.transaction.getIndices(table)) {
+            if (index.getColName().equals(columns)) return index;
+        }
+        throw new IllegalStateException("no index on " + table + "(" + columns + ")");
+    }
+
+    /**
+     * Applies the eligible select predicates to scan, as addEligibleSelections
+     * does, and remembers how the result was built given the template of scan.
+     */
+    private QueryOperator withSelections(QueryOperator scan, PlanTemplate scanTemplate, int except) {
+        QueryOperator result = addEligibleSelections(scan, except);
+        this.templates.put(result, q -> q.addEligibleSelections(scanTemplate.build(q), except));
+        return result;
+    }
+
+    // Sets of Tables //////////////////////////////////////////////////////////
+    // The optimizer represents sets of tables as bitmasks, where bit i stands
+    // for this.tableNames.get(i).
+
+    private long tableBit(String table) {
+        int i = this.tableNames.indexOf(table);
+        if (i < 0) throw new IllegalArgumentException("Unknown table " + table);
+        return 1L << i;
+    }
+
+    private long tableMask(Set<String> tables) {
+        long mask = 0;
+        for (String table : tables) mask |= tableBit(table);
+        return mask;
+    }
+
+    private Set<String> tableSet(long tables) {
+        Set<String> set = new HashSet<>();
+        for (long rest = tables; rest != 0; rest &= rest - 1) {
+            set.add(this.tableNames.get(Long.numberOfTrailingZeros(rest)));
+        }
+        return set;
+    }
+
+    // Interesting Orders //////////////////////////////////////////////////////
+
+    /**
+     * @return the lowercased columns whose sort order a later operator can
+     * make use of: the columns of the join predicates, which a sort merge join
+     * needs sorted, and the sort column unless the query groups its results
+     */
+    private List<String> getInterestingColumns() {
+        if (this.interestingColumns == null) {
+            Set<String> columns = new LinkedHashSet<>();
+            for (JoinPredicate p : this.joinPredicates) {
+                columns.add(p.leftColumn.toLowerCase());
+                columns.add(p.rightColumn.toLowerCase());
+            }
+            if (this.sortColumn != null && this.groupByColumns.isEmpty()) {
+                columns.add(this.sortColumn.toLowerCase());
+            }
+            this.interestingColumns = new ArrayList<>(columns);
+        }
+        return this.interestingColumns;
+    }
+
+    private void recordSortedPlan(String table, QueryOperator operator) {
+        recordSortedPlan(tableBit(table), operator);
+    }
+
+    /**
+     * Records operator as a plan over tables for each interesting column its
+     * output is sorted on, if it is cheaper than the plan recorded so far.
+     */
+    private void recordSortedPlan(long tables, QueryOperator operator) {
+        for (String column : getInterestingColumns()) {
+            if (!operator.isSortedOn(column)) continue;
+            Map<String, QueryOperator> plans = this.sortedPlans.computeIfAbsent(tables, k -> new HashMap<>());
+            QueryOperator current = plans.get(column);
+            if (current == null || operator.estimateIOCost() < current.estimateIOCost()) {
+                plans.put(column, operator);
+            }
+        }
+    }
+
+    /**
+     * @return the cheapest recorded plan over tables whose output is sorted
+     * on column, or null if there is none
+     */
+    private QueryOperator getSortedPlan(long tables, String column) {
+        Map<String, QueryOperator> plans = this.sortedPlans.get(tables);
+        return plans == null ? null : plans.get(column.toLowerCase());
+    }
+
     // Task 6: Join Selection //////////////////////////////////////////////////
 
     /**
      * Given a join predicate between left and right operators, finds the lowest
-     * cost join operator out of join types in JoinOperator.JoinType. By default
-     * only considers SNLJ and BNLJ to prevent dependencies on GHJ, Sort and SMJ.
+     * cost join operator out of join types in JoinOperator.JoinType: SNLJ,
+     * BNLJ, GHJ, SHJ and SMJ. Hash joins that would not fit in the available
+     * buffers cost Integer.MAX_VALUE and so are never picked, and a sort merge
+     * join only pays for sorting the inputs that are not sorted on their join
+     * column already. Ties go to the join type listed first.
      *
-     * Reminder: Your implementation does not need to consider cartesian products
-     * and does not need to keep track of interesting orders.
+     * Does not consider cartesian products.
      *
      * @return lowest cost join QueryOperator between the input operators
      */
@@ -621,26 +877,156 @@ public class QueryPlan {
                                           String leftColumn,
                                           String rightColumn) {
         QueryOperator bestOperator = null;
+        JoinOperator.JoinType bestType = null;
         int minimumCost = Integer.MAX_VALUE;
-        List<QueryOperator> allJoins = new ArrayList<>();
-        allJoins.add(new SNLJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction));
-        allJoins.add(new BNLJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction));
-        for (QueryOperator join : allJoins) {
+        for (JoinOperator.JoinType type : JOIN_TYPES) {
+            QueryOperator join = newJoin(type, leftOp, rightOp, leftColumn, rightColumn);
             int joinCost = join.estimateIOCost();
             if (joinCost < minimumCost) {
                 bestOperator = join;
+                bestType = type;
                 minimumCost = joinCost;
             }
         }
+        if (bestOperator != null) {
+            recordJoinTemplate(bestOperator, bestType, leftOp, rightOp, leftColumn, rightColumn);
+        }
         return bestOperator;
     }
 
+    private QueryOperator newJoin(JoinOperator.JoinType type,
+                                  QueryOperator leftOp,
+                                  QueryOperator rightOp,
+                                  String leftColumn,
+                                  String rightColumn) {
+        switch (type) {
+            case SNLJ: return new SNLJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction);
+            case BNLJ: return new BNLJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction);
+            case GHJ: return new GHJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction);
+            case SHJ: return new SHJOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction);
+            case SORTMERGE: return new SortMergeOperator(leftOp, rightOp, leftColumn, rightColumn, this.transaction);
+            default: throw new UnsupportedOperationException("Unsupported join type " + type);
+        }
+    }
+
+    /**
+     * Remembers how join was built, if the templates of its inputs are known.
+     */
+    private void recordJoinTemplate(QueryOperator join,
+                                    JoinOperator.JoinType type,
+                                    QueryOperator leftOp,
+                                    QueryOperator rightOp,
+                                    String leftColumn,
+                                    String rightColumn) {
+        PlanTemplate left = this.templates.get(leftOp);
+        PlanTemplate right = this.templates.get(rightOp);
+        if (left == null || right == null) return;
+        this.templates.put(join, q -> q.newJoin(type, left.build(q), right.build(q), leftColumn, rightColumn));
+    }
+
+    /**
+     * Finds the cheapest sort merge join between the given table sets, each
+     * side either read with its cheapest plan or with the cheapest recorded
+     * plan that is sorted on its join column, which saves sorting it.
+     */
+    private QueryOperator minCostSortedJoin(long leftTables,
+                                            QueryOperator leftOp,
+                                            long rightTables,
+                                            QueryOperator rightOp,
+                                            String leftColumn,
+                                            String rightColumn) {
+        List<QueryOperator> leftOps = new ArrayList<>(Collections.singletonList(leftOp));
+        List<QueryOperator> rightOps = new ArrayList<>(Collections.singletonList(rightOp));
+        QueryOperator sortedLeft = getSortedPlan(leftTables, leftColumn);
+        if (sortedLeft != null && sortedLeft != leftOp) leftOps.add(sortedLeft);
+        QueryOperator sortedRight = getSortedPlan(rightTables, rightColumn);
+        if (sortedRight != null && sortedRight != rightOp) rightOps.add(sortedRight);
+
+        QueryOperator bestOperator = null;
+        QueryOperator bestLeft = null;
+        QueryOperator bestRight = null;
+        int minimumCost = Integer.MAX_VALUE;
+        for (QueryOperator left : leftOps) {
+            for (QueryOperator right : rightOps) {
+                QueryOperator join = new SortMergeOperator(left, right, leftColumn, rightColumn, this.transaction);
+                int joinCost = join.estimateIOCost();
+                if (bestOperator == null || joinCost < minimumCost) {
+                    bestOperator = join;
+                    bestLeft = left;
+                    bestRight = right;
+                    minimumCost = joinCost;
+                }
+            }
+        }
+        recordJoinTemplate(bestOperator, JoinOperator.JoinType.SORTMERGE, bestLeft, bestRight,
+                           leftColumn, rightColumn);
+        return bestOperator;
+    }
+
+    /**
+     * Considers the cheapest join of leftOp, a plan over leftTables, with
+     * rightOp, a plan over rightTables, and the cheapest sort merge join of
+     * them or of their sorted alternatives. Records the join in plans if it is
+     * the cheapest plan over the union of the tables found so far, and in the
+     * sorted plans if it is sorted on an interesting column.
+     */
+    private void considerJoin(Map<Long, QueryOperator> plans,
+                              long leftTables,
+                              QueryOperator leftOp,
+                              long rightTables,
+                              QueryOperator rightOp,
+                              String leftColumn,
+                              String rightColumn) {
+        long tables = leftTables | rightTables;
+        QueryOperator join = minCostJoinType(leftOp, rightOp, leftColumn, rightColumn);
+        QueryOperator sortedJoin = minCostSortedJoin(leftTables, leftOp, rightTables, rightOp,
+                                                     leftColumn, rightColumn);
+        if (sortedJoin.estimateIOCost() < join.estimateIOCost()) {
+            join = sortedJoin;
+        }
+        recordSortedPlan(tables, sortedJoin);
+        recordSortedPlan(tables, join);
+
+        QueryOperator current = plans.get(tables);
+        if (current == null || join.estimateIOCost() < current.estimateIOCost()) {
+            plans.put(tables, join);
+        }
+    }
+
+    /**
+     * Considers joining the cheapest plans over tables1 and tables2 in either
+     * order, on the first join predicate that relates them.
+     */
+    private void considerJoins(Map<Long, QueryOperator> plans, long tables1, long tables2) {
+        for (JoinPredicate p : this.joinPredicates) {
+            long leftBit = tableBit(p.leftTable);
+            long rightBit = tableBit(p.rightTable);
+            if ((leftBit & tables2) != 0 && (rightBit & tables1) != 0) {
+                long swap = tables1;
+                tables1 = tables2;
+                tables2 = swap;
+            } else if ((leftBit & tables1) == 0 || (rightBit & tables2) == 0) {
+                continue;
+            }
+            QueryOperator op1 = plans.get(tables1);
+            QueryOperator op2 = plans.get(tables2);
+            considerJoin(plans, tables1, op1, tables2, op2, p.leftColumn, p.rightColumn);
+            considerJoin(plans, tables2, op2, tables1, op1, p.rightColumn, p.leftColumn);
+            return;
+        }
+        throw new IllegalArgumentException("No join predicate relates the given tables");
+    }
+
     /**
      * Iterate through all table sets in the previous pass of the search. For
      * each table set, check each join predicate to see if there is a valid join
      * with a new table. If so, find the minimum cost join. Return a map from
      * each set of table names being joined to its lowest cost join operator.
      *
+     * Plans that are not the cheapest for their tables but are sorted on an
+     * interesting column are kept on the side, and joined with sort merge
+     * joins that can skip sorting them.
+     *
      * Join predicates are stored as elements of `this.joinPredicates`.
      *
      * @param prevMap  maps a set of tables to a query operator over the set of
@@ -670,110 +1056,237 @@ public class QueryPlan {
         //      calculate the cheapest join with the new table (the one you
         //      fetched an operator for from pass1Map) and the previously joined
         //      tables. Then, update the result map if needed.
+        Map<Long, QueryOperator> plans = new HashMap<>();
         for (Set<String> prevTableSet : prevMap.keySet()) {
-            QueryOperator queryOperatorLeft = prevMap.get(prevTableSet);
+            QueryOperator prevOperator = prevMap.get(prevTableSet);
+            long prevTables = tableMask(prevTableSet);
             for (JoinPredicate joinPredicate : joinPredicates) {
-                // go through each join predicate, find those
                 String leftTable = joinPredicate.leftTable;
                 String rightTable = joinPredicate.rightTable;
-
-                String targetTable;
                 String leftColumn = joinPredicate.leftColumn;
                 String rightColumn = joinPredicate.rightColumn;
-                QueryOperator bestQueryOperator;
 
+                String targetTable;
+                long leftTables;
+                long rightTables;
                 if (prevTableSet.contains(leftTable) && !prevTableSet.contains(rightTable)) {
                     // in this case, leftTable was already joined while rightTable wasn't
                     targetTable = rightTable;
-                    Set<String> tableInPass1 = new HashSet<>();
-                    tableInPass1.add(targetTable);
-                    QueryOperator singleAccess = pass1Map.get(tableInPass1);
-                    bestQueryOperator = minCostJoinType(prevMap.get(prevTableSet), singleAccess, leftColumn, rightColumn);
+                    leftTables = prevTables;
+                    rightTables = tableBit(targetTable);
                 } else if (prevTableSet.contains(rightTable) && !prevTableSet.contains(leftTable)) {
                     // in this case, rightTable was already joined while leftTable wasn't
                     targetTable = leftTable;
-                    Set<String> tableInPass1 = new HashSet<>();
-                    tableInPass1.add(targetTable);
-                    QueryOperator singleAccess = pass1Map.get(tableInPass1);
-                    bestQueryOperator = minCostJoinType(singleAccess, prevMap.get(prevTableSet), leftColumn, rightColumn);
+                    leftTables = tableBit(targetTable);
+                    rightTables = prevTables;
                 } else {
                     // in this case, leftTable and rightTable were both joined, or both not joined,
                     //  which means they are not considered to be joined in this pass.
                     continue;
                 }
-                Set<String> setAfterJoin = new HashSet<>();
-                setAfterJoin.addAll(prevTableSet);
-                setAfterJoin.add(targetTable);
-                result.put(setAfterJoin, bestQueryOperator);
+                QueryOperator singleAccess = pass1Map.get(Collections.singleton(targetTable));
+                QueryOperator leftOp = leftTables == prevTables ? prevOperator : singleAccess;
+                QueryOperator rightOp = rightTables == prevTables ? prevOperator : singleAccess;
+                considerJoin(plans, leftTables, leftOp, rightTables, rightOp, leftColumn, rightColumn);
             }
         }
+        for (Map.Entry<Long, QueryOperator> entry : plans.entrySet()) {
+            result.put(tableSet(entry.getKey()), entry.getValue());
+        }
         return result;
     }
 
     // Task 7: Optimal Plan Selection //////////////////////////////////////////
 
     /**
-     * Finds the lowest cost QueryOperator in the given mapping. A mapping is
-     * generated on each pass of the search algorithm, and relates a set of tables
-     * to the lowest cost QueryOperator accessing those tables.
+     * Sets how long the search for the cheapest join order may take, in
+     * milliseconds. A search that runs out of time is abandoned for a greedy
+     * one, which is fast but may miss the cheapest plan.
+     */
+    public void setPlanningTimeLimit(long planningTimeLimit) {
+        this.planningTimeLimit = planningTimeLimit;
+    }
+
+    /**
+     * Finds the cheapest plan joining every table through dynamic programming
+     * over the connected subgraphs of the join graph, considering bushy plans
+     * as well as left deep ones: for each pair of disjoint sets of tables that
+     * a join predicate relates, the cheapest plans over the two sets are joined
+     * both ways round, and the cheapest plan over their union is memoized in
+     * plans, which starts out holding the plan over each single table.
      *
-     * @return a QueryOperator in the given mapping
+     * @return false if the search ran past the deadline (a System.nanoTime
+     * value), in which case plans holds the results so far
      */
-    private QueryOperator minCostOperator(Map<Set<String>, QueryOperator> map) {
-        if (map.size() == 0) throw new IllegalArgumentException(
-                "Can't find min cost operator over empty map"
-        );
-        QueryOperator minOp = null;
-        int minCost = Integer.MAX_VALUE;
-        for (Set<String> tables : map.keySet()) {
-            QueryOperator currOp = map.get(tables);
-            int currCost = currOp.estimateIOCost();
-            if (currCost < minCost) {
-                minOp = currOp;
-                minCost = currCost;
+    private boolean minCostJoinsExhaustive(JoinGraph graph, Map<Long, QueryOperator> plans, long deadline) {
+        long[] pairs = graph.csgCmpPairs();
+        for (int i = 0; i < pairs.length; i += 2) {
+            if (System.nanoTime() - deadline > 0) return false;
+            considerJoins(plans, pairs[i], pairs[i + 1]);
+        }
+        return true;
+    }
+
+    /**
+     * Finds a cheap plan joining every table greedily: starting from a plan
+     * per table, repeatedly replaces the two plans whose join is the cheapest
+     * by that join. Joins considered in one round are memoized in plans, so
+     * each round only costs the joins with the plan built in the round before.
+     */
+    private void minCostJoinsGreedy(JoinGraph graph, Map<Long, QueryOperator> plans) {
+        List<Long> components = new ArrayList<>();
+        for (int i = 0; i < this.tableNames.size(); i++) {
+            components.add(1L << i);
+        }
+        while (components.size() > 1) {
+            int bestLeft = -1;
+            int bestRight = -1;
+            int minimumCost = Integer.MAX_VALUE;
+            for (int i = 0; i < components.size(); i++) {
+                for (int j = i + 1; j < components.size(); j++) {
+                    long tables1 = components.get(i);
+                    long tables2 = components.get(j);
+                    if (!graph.connected(tables1, tables2)) continue;
+                    if (!plans.containsKey(tables1 | tables2)) considerJoins(plans, tables1, tables2);
+                    int joinCost = plans.get(tables1 | tables2).estimateIOCost();
+                    if (bestLeft < 0 || joinCost < minimumCost) {
+                        bestLeft = i;
+                        bestRight = j;
+                        minimumCost = joinCost;
+                    }
+                }
+            }
+            if (bestLeft < 0) {
+                throw new UnsupportedOperationException("Cartesian products are not supported");
+            }
+            long joined = components.get(bestLeft) | components.get(bestRight);
+            components.remove(bestRight);
+            components.set(bestLeft, joined);
+        }
+    }
+
+    /**
+     * Finds the cheapest plan joining every table, before any group by,
+     * project, sort or limit operators are added, through the System R cost
+     * based query optimizer, extended to bushy join orders. Queries joining
+     * more than MAX_EXHAUSTIVE_JOIN_TABLES tables, or whose search for the
+     * cheapest join order runs out of time, are planned greedily instead.
+     */
+    private QueryOperator minCostPlan() {
+        this.sortedPlans = new HashMap<>();
+        this.interestingColumns = null;
+        this.templates = new IdentityHashMap<>();
+        long deadline = System.nanoTime() + this.planningTimeLimit * 1000000L;
+
+        // Pass 1: For each table, find the lowest cost QueryOperator to access
+        // the table.
+        JoinGraph graph = new JoinGraph(this.tableNames.size());
+        Map<Long, QueryOperator> singleAccessPlans = new HashMap<>();
+        for (int i = 0; i < this.tableNames.size(); i++) {
+            singleAccessPlans.put(1L << i, minCostSingleAccess(this.tableNames.get(i)));
+        }
+        for (JoinPredicate p : this.joinPredicates) {
+            graph.addEdge(this.tableNames.indexOf(p.leftTable), this.tableNames.indexOf(p.rightTable));
+        }
+
+        // Then find the cheapest way to join them all, searching every join
+        // order (bushy ones included) unless there are too many tables to do so
+        // in time
+        Map<Long, QueryOperator> plans = new HashMap<>(singleAccessPlans);
+        if (this.tableNames.size() > MAX_EXHAUSTIVE_JOIN_TABLES ||
+                !minCostJoinsExhaustive(graph, plans, deadline)) {
+            plans = new HashMap<>(singleAccessPlans);
+            minCostJoinsGreedy(graph, plans);
+        }
+        QueryOperator minOp = plans.get(graph.allTables());
+        if (minOp == null) {
+            throw new UnsupportedOperationException("Cartesian products are not supported");
+        }
+
+        // a plan that comes out sorted may beat the cheapest plan plus a sort
+        if (this.sortColumn != null && this.groupByColumns.isEmpty() && !minOp.isSortedOn(this.sortColumn)) {
+            QueryOperator sortedOperator = getSortedPlan(graph.allTables(), this.sortColumn);
+            int sortCost = SortOperator.estimateSortCost(minOp.estimateStats().getNumPages(),
+                                                         this.transaction.getWorkMemSize());
+            if (sortedOperator != null &&
+                    sortedOperator.estimateIOCost() < (long) minOp.estimateIOCost() + sortCost) {
+                minOp = sortedOperator;
             }
         }
         return minOp;
     }
 
     /**
-     * Generates an optimized QueryPlan based on the System R cost-based query
-     * optimizer.
+     * Returns the normalized text of this query, which identifies its shape:
+     * its SQL with the values of the select predicates replaced by ?, the
+     * columns it projects replaced by the columns they read, and the amount
+     * of memory its joins may use. Queries with the same key are given the
+     * same plan by the optimizer, up to those values.
+     *
+     * @return the key, or null if the query reads temporary tables, whose
+     * plans can't be reused
+     */
+    String getCacheKey() {
+        if (!this.cteAliases.isEmpty()) return null;
+        StringBuilder key = new StringBuilder("SELECT ");
+        if (this.projectFunctions != null) {
+            Set<String> columns = new TreeSet<>();
+            for (Expression function : this.projectFunctions) {
+                columns.addAll(function.getDependencies());
+            }
+            key.append(String.join(", ", columns));
+        } else if (this.projectColumns.isEmpty()) {
+            key.append("*");
+        } else {
+            key.append(String.join(", ", this.projectColumns));
+        }
+        String baseTable = this.tableNames.get(0);
+        key.append(" FROM ").append(this.aliases.get(baseTable)).append(" AS ").append(baseTable);
+        for (JoinPredicate predicate : this.joinPredicates) {
+            key.append(" INNER JOIN ").append(this.aliases.get(predicate.joinTable))
+               .append(" AS ").append(predicate.joinTable)
+               .append(" ON ").append(predicate.leftColumn).append(" = ").append(predicate.rightColumn);
+        }
+        for (int i = 0; i < this.selectPredicates.size(); i++) {
+            SelectPredicate predicate = this.selectPredicates.get(i);
+            key.append(i == 0 ? " WHERE " : " AND ")
+               .append(predicate.tableName).append(".").append(predicate.column)
+               .append(" ").append(predicate.operator.toSymbol()).append(" ?");
+        }
+        if (!this.groupByColumns.isEmpty()) {
+            key.append(" GROUP BY ").append(String.join(", ", this.groupByColumns));
+        }
+        if (this.sortColumn != null) key.append(" ORDER BY ").append(this.sortColumn);
+        key.append(" /* work mem ").append(this.transaction.getWorkMemSize()).append(" */");
+        return key.toString();
+    }
+
+    /**
+     * Generates an optimized QueryPlan, through the optimizer (see
+     * minCostPlan) or from the plan cache when a query of the same shape was
+     * planned before.
      *
      * @return an iterator of records that is the result of this query
      */
     public Iterator<Record> execute() {
         this.transaction.setAliasMap(this.aliases);
-        // TODO(proj3_part2): implement
-        // Pass 1: For each table, find the lowest cost QueryOperator to access
-        // the table. Construct a mapping of each table name to its lowest cost
-        // operator.
-        //
-        // Pass i: On each pass, use the results from the previous pass to find
-        // the lowest cost joins with each table from pass 1. Repeat until all
-        // tables have been joined.
-        //
-        // Set the final operator to the lowest cost operator from the last
-        // pass, add group by, project, sort and limit operators, and return an
-        // iterator over the final operator.
-        // total pass number N
-
-        Map<Set<String>, QueryOperator> pass1Map = new HashMap<>();
-        for (String table: tableNames) {
-            QueryOperator queryOperator = minCostSingleAccess(table);
-            Set<String> oneSet = new HashSet<>();
-            oneSet.add(table);
-            pass1Map.put(oneSet, queryOperator);
-        }
-
-        // for pass 2, prevMap is pass1Map
-        Map<Set<String>, QueryOperator> prevMap = pass1Map;
-        for (int i = 1; i < tableNames.size(); i++) {
-            // dynamic programming, calculate min cost iteratively
-            prevMap = minCostJoins(prevMap, pass1Map);
-        }
-        finalOperator = minCostOperator(prevMap);
-        // add all remained operators
+        PlanCache cache = this.transaction.getPlanCache();
+        String key = cache == null ? null : getCacheKey();
+        PlanTemplate template = key == null ? null : cache.get(key, this.transaction);
+        if (template != null) {
+            finalOperator = template.build(this);
+        } else {
+            finalOperator = minCostPlan();
+            template = this.templates.get(finalOperator);
+            if (key != null && template != null) {
+                Set<String> tables = new HashSet<>();
+                for (String table : this.tableNames) tables.add(this.aliases.get(table));
+                cache.put(key, template, tables, this.transaction);
+            }
+        }
+
+        // Finally, add group by, project, sort and limit operators, and return
+        // an iterator over the final operator.
         this.addGroupBy();
         this.addProject();
         this.addSort();
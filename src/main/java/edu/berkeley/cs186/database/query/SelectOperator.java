@@ -7,6 +7,7 @@ import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 public class SelectOperator extends QueryOperator {
@@ -72,6 +73,11 @@ public class SelectOperator extends QueryOperator {
         return this.getSource().estimateIOCost();
     }
 
+    @Override
+    public List<String> sortedBy() {
+        return this.getSource().sortedBy();
+    }
+
     @Override
     public Iterator<Record> iterator() { return new SelectIterator(); }
 
@@ -47,10 +47,23 @@ public class SortOperator extends QueryOperator {
 
     @Override
     public int estimateIOCost() {
-        int N = getSource().estimateStats().getNumPages();
-        double pass0Runs = Math.ceil(N / numBuffers);
-        double numPasses = 1 + Math.ceil(Math.log(pass0Runs) / Math.log(numBuffers - 1));
-        return (int) (2 * N * numPasses);
+        long cost = (long) getSource().estimateIOCost() +
+                    estimateSortCost(getSource().estimateStats().getNumPages(), numBuffers);
+        return (int) Math.min(Integer.MAX_VALUE, cost);
+    }
+
+    /**
+     * Estimates the IO cost of externally sorting numPages pages of records
+     * with numBuffers buffers, not counting reading the input: pass 0 writes
+     * out ceil(N / B) sorted runs, each merge pass reads and writes every
+     * page to merge B - 1 runs at a time, and the sorted run is read once.
+     */
+    public static int estimateSortCost(int numPages, int numBuffers) {
+        if (numPages == 0) return 0;
+        double pass0Runs = Math.ceil((double) numPages / numBuffers);
+        int numMergePasses = pass0Runs <= 1 ? 0 :
+                (int) Math.ceil(Math.log(pass0Runs) / Math.log(numBuffers - 1));
+        return (int) Math.min(Integer.MAX_VALUE, 2L * numPages * (1 + numMergePasses));
     }
 
     @Override
@@ -120,7 +133,9 @@ public class SortOperator extends QueryOperator {
         PriorityQueue<Pair<Record, Integer>> heap = new PriorityQueue<>(new RecordPairComparator());
 
         for (int i = 0; i < runs.size(); i++) {
-            heap.add(new Pair<>(iteratorsOfRuns.get(i).next(), i));
+            if (iteratorsOfRuns.get(i).hasNext()) {
+                heap.add(new Pair<>(iteratorsOfRuns.get(i).next(), i));
+            }
         }
 
         Run retRun = new Run(transaction, computeSchema());
@@ -161,10 +176,9 @@ public class SortOperator extends QueryOperator {
     public List<Run> mergePass(List<Run> runs) {
         // TODO(proj3_part1): implement
         List<Run> retList = new ArrayList<>();
-        int newRunsNum = numBuffers - 1;
-        int oldRunsPerNewRun = (runs.size() + newRunsNum - 1) / newRunsNum;
-        for (int i = 0; i < newRunsNum; i++) {
-            Run sortedNewRun = mergeSortedRuns(runs.subList(oldRunsPerNewRun * i, Math.min(oldRunsPerNewRun * (i + 1), runs.size())));
+        int runsPerMerge = numBuffers - 1;
+        for (int i = 0; i < runs.size(); i += runsPerMerge) {
+            Run sortedNewRun = mergeSortedRuns(runs.subList(i, Math.min(i + runsPerMerge, runs.size())));
             retList.add(sortedNewRun);
         }
 
@@ -191,6 +205,9 @@ public class SortOperator extends QueryOperator {
             pass.add(sortedRun);
         }
 
+        if (pass.isEmpty()) {
+            return new Run(transaction, computeSchema());
+        }
         while (pass.size() > 1) {
             pass = mergePass(pass);
         }
@@ -15,6 +15,9 @@ import edu.berkeley.cs186.database.table.Schema;
 import java.util.*;
 
 public class GHJOperator extends JoinOperator {
+    // maximum number of partitioning passes before giving up
+    private static final int MAX_PASSES = 5;
+
     private int numBuffers;
     private Run joinedRecords;
 
@@ -31,9 +34,25 @@ public class GHJOperator extends JoinOperator {
 
     @Override
     public int estimateIOCost() {
-        // Since this has a chance of failing on certain inputs we give it the
-        // maximum possible cost to encourage the optimizer to avoid it
-        return Integer.MAX_VALUE;
+        // Each pass reads and writes both inputs (the first pass reads them
+        // from the sources), and the build and probe phase reads the final
+        // partitions. A pair of partitions is split up further only if neither
+        // side fits in memory, so the side needing fewer passes decides.
+        int leftPasses = estimatePartitionPasses(getLeftSource().estimateStats(),
+                                                 getLeftColumnIndex(), numBuffers);
+        int rightPasses = estimatePartitionPasses(getRightSource().estimateStats(),
+                                                  getRightColumnIndex(), numBuffers);
+        int numPasses = leftPasses == -1 ? rightPasses :
+                        rightPasses == -1 ? leftPasses : Math.min(leftPasses, rightPasses);
+        if (numPasses == -1 || numPasses > MAX_PASSES) {
+            // the join would fail
+            return Integer.MAX_VALUE;
+        }
+        int numPages = getLeftSource().estimateStats().getNumPages() +
+                       getRightSource().estimateStats().getNumPages();
+        long cost = (long) getLeftSource().estimateIOCost() + getRightSource().estimateIOCost() +
+                    2L * numPages * numPasses;
+        return (int) Math.min(Integer.MAX_VALUE, cost);
     }
 
     @Override
@@ -161,7 +180,7 @@ public class GHJOperator extends JoinOperator {
      */
     private void run(Iterable<Record> leftRecords, Iterable<Record> rightRecords, int pass) {
         assert pass >= 1;
-        if (pass > 5) throw new IllegalStateException("Reached the max number of passes");
+        if (pass > MAX_PASSES) throw new IllegalStateException("Reached the max number of passes");
 
         // Create empty partitions
         Partition[] leftPartitions = createPartitions(true);
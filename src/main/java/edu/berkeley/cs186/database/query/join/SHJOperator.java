@@ -37,9 +37,17 @@ public class SHJOperator extends JoinOperator {
 
     @Override
     public int estimateIOCost() {
-        // Since this has a chance of failing on certain inputs we give it the
-        // maximum possible cost to encourage the optimizer to avoid it
-        return Integer.MAX_VALUE;
+        // The left records are partitioned once, and every partition has to
+        // fit in memory; each of the B - 1 partitions is then probed with a
+        // full pass over the right source.
+        if (estimatePartitionPasses(getLeftSource().estimateStats(), getLeftColumnIndex(), numBuffers) != 1) {
+            // the join would fail
+            return Integer.MAX_VALUE;
+        }
+        int numLeftPages = getLeftSource().estimateStats().getNumPages();
+        long cost = (long) getLeftSource().estimateIOCost() + 2L * numLeftPages +
+                    (long) (numBuffers - 1) * getRightSource().estimateIOCost();
+        return (int) Math.min(Integer.MAX_VALUE, cost);
     }
 
     @Override
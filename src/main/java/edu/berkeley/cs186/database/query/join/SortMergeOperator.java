@@ -3,7 +3,6 @@ package edu.berkeley.cs186.database.query.join;
 import edu.berkeley.cs186.database.TransactionContext;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.query.JoinOperator;
-import edu.berkeley.cs186.database.query.MaterializeOperator;
 import edu.berkeley.cs186.database.query.QueryOperator;
 import edu.berkeley.cs186.database.query.SortOperator;
 import edu.berkeley.cs186.database.table.Record;
@@ -33,9 +32,8 @@ public class SortMergeOperator extends JoinOperator {
     private static QueryOperator prepareLeft(TransactionContext transaction,
                                              QueryOperator leftSource,
                                              String leftColumn) {
-        leftColumn = leftSource.getSchema().matchFieldName(leftColumn);
-        if (leftSource.sortedBy().contains(leftColumn)) return leftSource;
-        return new SortOperator(transaction, leftSource, leftColumn);
+        if (leftSource.isSortedOn(leftColumn)) return leftSource;
+        return new SortOperator(transaction, leftSource, leftSource.getSchema().matchFieldName(leftColumn));
     }
 
     /**
@@ -48,13 +46,10 @@ public class SortMergeOperator extends JoinOperator {
     private static QueryOperator prepareRight(TransactionContext transaction,
                                               QueryOperator rightSource,
                                               String rightColumn) {
-        rightColumn = rightSource.getSchema().matchFieldName(rightColumn);
-        if (!rightSource.sortedBy().contains(rightColumn)) {
-            return new SortOperator(transaction, rightSource, rightColumn);
-        } else if (!rightSource.materialized()) {
-            return new MaterializeOperator(rightSource, transaction);
+        if (!rightSource.isSortedOn(rightColumn)) {
+            return new SortOperator(transaction, rightSource, rightSource.getSchema().matchFieldName(rightColumn));
         }
-        return rightSource;
+        return materialize(rightSource, transaction);
     }
 
     @Override
@@ -69,8 +64,10 @@ public class SortMergeOperator extends JoinOperator {
 
     @Override
     public int estimateIOCost() {
-        //does nothing
-        return 0;
+        // the sources are sorted (and the right one materialized) already, and
+        // the merge reads each of them once
+        long cost = (long) getLeftSource().estimateIOCost() + getRightSource().estimateIOCost();
+        return (int) Math.min(Integer.MAX_VALUE, cost);
     }
 
     /**
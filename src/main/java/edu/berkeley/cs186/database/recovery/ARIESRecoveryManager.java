@@ -1,6 +1,7 @@
 package edu.berkeley.cs186.database.recovery;
 
 import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.TransactionContext;
 import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.concurrency.DummyLockContext;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
@@ -27,6 +28,16 @@ public class ARIESRecoveryManager implements RecoveryManager {
 
     // Log manager
     LogManager logManager;
+    // Batches the log flushes of committing transactions.
+    GroupCommitter groupCommitter;
+    // Takes checkpoints in the background.
+    Checkpointer checkpointer = new Checkpointer(this);
+    // Serializes checkpoints.
+    private final Object checkpointLock = new Object();
+    // LSN of the begin checkpoint record of the last checkpoint, and the time
+    // that checkpoint was started at.
+    volatile long lastCheckpointLSN = 0L;
+    volatile long lastCheckpointTime = System.currentTimeMillis();
     // Dirty page table (page number -> recLSN).
     Map<Long, Long> dirtyPageTable = new ConcurrentHashMap<>();
     // Transaction table (transaction number -> entry).
@@ -34,6 +45,16 @@ public class ARIESRecoveryManager implements RecoveryManager {
     // true if redo phase of restart has terminated, false otherwise. Used
     // to prevent DPT entries from being flushed during restartRedo.
     boolean redoComplete;
+    // Number of threads replaying the log in restartRedo.
+    private int redoParallelism = 1;
+    // Whether restart leaves the undo pass to deferredUndo.
+    private boolean instantRestart = false;
+    // Rolls back loser transactions after an instant restart, or null.
+    volatile DeferredUndo deferredUndo;
+    // Whether checkpoints truncate the log, and where truncated pages are
+    // archived to (or null).
+    private volatile boolean logTruncation = false;
+    private volatile LogArchiver logArchiver;
 
     public ARIESRecoveryManager(Function<Long, Transaction> newTransaction) {
         this.newTransaction = newTransaction;
@@ -65,6 +86,64 @@ public class ARIESRecoveryManager implements RecoveryManager {
         this.diskSpaceManager = diskSpaceManager;
         this.bufferManager = bufferManager;
         this.logManager = new LogManager(bufferManager);
+        this.groupCommitter = new GroupCommitter(this.logManager);
+    }
+
+    /**
+     * Sets the group commit parameters: the longest the log writer waits for
+     * more commits to join a batch after the first one arrives, and the number
+     * of commits after which it stops waiting. A batch size of 1 disables group
+     * commit, so that every committing transaction flushes the log itself.
+     *
+     * @param maxWaitMicros maximum wait for a batch to fill up, in microseconds
+     * @param maxBatchSize maximum number of commits in a batch
+     */
+    @Override
+    public void setGroupCommit(long maxWaitMicros, int maxBatchSize) {
+        this.groupCommitter.configure(maxWaitMicros, maxBatchSize);
+    }
+
+    /**
+     * Sets how often checkpoints are taken in the background: a checkpoint is
+     * taken once intervalMillis milliseconds have passed, or once
+     * intervalLogPages log pages have been written, since the last checkpoint
+     * began. Either may be 0 to disable that trigger, and both are 0 by
+     * default.
+     *
+     * @param intervalMillis time between checkpoints, in milliseconds
+     * @param intervalLogPages number of log pages between checkpoints
+     */
+    @Override
+    public void setCheckpointInterval(long intervalMillis, long intervalLogPages) {
+        this.checkpointer.configure(intervalMillis, intervalLogPages);
+    }
+
+    /**
+     * Sets whether restart opens the database right after redo (and cleanDPT).
+     * In that case loser transactions are rolled back by a DeferredUndo: in
+     * the background, and on demand when a page they modified is fetched.
+     * Off by default, in which case restart runs the whole undo pass.
+     *
+     * @param instantRestart whether to defer the undo pass of restart
+     */
+    @Override
+    public void setInstantRestart(boolean instantRestart) {
+        this.instantRestart = instantRestart;
+    }
+
+    /**
+     * Sets whether checkpoints truncate the log: once a checkpoint is taken,
+     * the log pages before the oldest record that restart could still need
+     * (see getTruncationLSN) are freed. If archiver is not null, it is given
+     * a copy of every page before the page is freed. Off by default.
+     *
+     * @param enabled whether to truncate the log after checkpoints
+     * @param archiver receives truncated log pages, or null
+     */
+    @Override
+    public void setLogTruncation(boolean enabled, LogArchiver archiver) {
+        this.logArchiver = archiver;
+        this.logTruncation = enabled;
     }
 
     // Forward Processing //////////////////////////////////////////////////////
@@ -77,8 +156,10 @@ public class ARIESRecoveryManager implements RecoveryManager {
      * @param transaction new transaction
      */
     @Override
-    public synchronized void startTransaction(Transaction transaction) {
-        this.transactionTable.put(transaction.getTransNum(), new TransactionTableEntry(transaction));
+    public void startTransaction(Transaction transaction) {
+        TransactionTableEntry entry = new TransactionTableEntry(transaction);
+        entry.startLSN = logManager.getLogTailLSN();
+        this.transactionTable.put(transaction.getTransNum(), entry);
     }
 
     /**
@@ -87,13 +168,26 @@ public class ARIESRecoveryManager implements RecoveryManager {
      * A commit record should be appended, the log should be flushed,
      * and the transaction table and the transaction status should be updated.
      *
+     * The flush goes through the group committer, so that concurrent commits
+     * share a single write of the log tail.
+     *
      * @param transNum transaction being committed
      * @return LSN of the commit record
      */
     @Override
     public long commit(long transNum) {
-        // TODO(proj5): implement
-        return -1L;
+        TransactionTableEntry transactionEntry = transactionTable.get(transNum);
+        assert (transactionEntry != null);
+
+        long prevLSN = transactionEntry.lastLSN;
+        LogRecord record = new CommitTransactionLogRecord(transNum, prevLSN);
+        long LSN = logManager.appendToLog(record);
+        // Update lastLSN and status
+        transactionEntry.lastLSN = LSN;
+        transactionEntry.transaction.setStatus(Transaction.Status.COMMITTING);
+        // Flush log (with any other commits waiting for a flush)
+        groupCommitter.awaitFlush(LSN);
+        return LSN;
     }
 
     /**
@@ -108,8 +202,16 @@ public class ARIESRecoveryManager implements RecoveryManager {
      */
     @Override
     public long abort(long transNum) {
-        // TODO(proj5): implement
-        return -1L;
+        TransactionTableEntry transactionEntry = transactionTable.get(transNum);
+        assert (transactionEntry != null);
+
+        long prevLSN = transactionEntry.lastLSN;
+        LogRecord record = new AbortTransactionLogRecord(transNum, prevLSN);
+        long LSN = logManager.appendToLog(record);
+        // Update lastLSN and status
+        transactionEntry.lastLSN = LSN;
+        transactionEntry.transaction.setStatus(Transaction.Status.ABORTING);
+        return LSN;
     }
 
     /**
@@ -126,8 +228,19 @@ public class ARIESRecoveryManager implements RecoveryManager {
      */
     @Override
     public long end(long transNum) {
-        // TODO(proj5): implement
-        return -1L;
+        TransactionTableEntry transactionEntry = transactionTable.get(transNum);
+        assert (transactionEntry != null);
+
+        Transaction.Status status = transactionEntry.transaction.getStatus();
+        if (status == Transaction.Status.ABORTING || status == Transaction.Status.RECOVERY_ABORTING) {
+            rollbackToLSN(transNum, 0L);
+        }
+        LogRecord record = new EndTransactionLogRecord(transNum, transactionEntry.lastLSN);
+        long LSN = logManager.appendToLog(record);
+        // Remove from the transaction table and update status
+        transactionTable.remove(transNum);
+        transactionEntry.transaction.setStatus(Transaction.Status.COMPLETE);
+        return LSN;
     }
 
     /**
@@ -149,12 +262,20 @@ public class ARIESRecoveryManager implements RecoveryManager {
      */
     private void rollbackToLSN(long transNum, long LSN) {
         TransactionTableEntry transactionEntry = transactionTable.get(transNum);
-        LogRecord lastRecord = logManager.fetchLogRecord(transactionEntry.lastLSN);
-        long lastRecordLSN = lastRecord.getLSN();
-        // Small optimization: if the last record is a CLR we can start rolling
-        // back from the next record that hasn't yet been undone.
-        long currentLSN = lastRecord.getUndoNextLSN().orElse(lastRecordLSN);
-        // TODO(proj5) implement the rollback logic described above
+        // If the last record is a CLR, the reader goes straight on to the next
+        // record that hasn't yet been undone.
+        Iterator<LogRecord> records = logManager.scanBackwardFrom(transactionEntry.lastLSN);
+        while (records.hasNext()) {
+            LogRecord record = records.next();
+            if (record.getLSN() <= LSN) {
+                break;
+            }
+            if (record.isUndoable()) {
+                LogRecord clr = record.undo(transactionEntry.lastLSN);
+                transactionEntry.lastLSN = logManager.appendToLog(clr);
+                clr.redo(this, diskSpaceManager, bufferManager);
+            }
+        }
     }
 
     /**
@@ -183,6 +304,22 @@ public class ARIESRecoveryManager implements RecoveryManager {
         if (redoComplete) dirtyPageTable.remove(pageNum);
     }
 
+    /**
+     * Called before a page is fetched into the buffer cache.
+     *
+     * If loser transactions of an instant restart that modified the page
+     * have not been rolled back yet, they are rolled back first.
+     *
+     * @param pageNum page number of page being fetched
+     */
+    @Override
+    public void pageFetchHook(long pageNum) {
+        DeferredUndo deferredUndo = this.deferredUndo;
+        if (deferredUndo != null) {
+            deferredUndo.pageFetched(pageNum);
+        }
+    }
+
     /**
      * Called when a write to a page happens.
      *
@@ -204,8 +341,16 @@ public class ARIESRecoveryManager implements RecoveryManager {
                              byte[] after) {
         assert (before.length == after.length);
         assert (before.length <= BufferManager.EFFECTIVE_PAGE_SIZE / 2);
-        // TODO(proj5): implement
-        return -1L;
+        TransactionTableEntry transactionEntry = transactionTable.get(transNum);
+        assert (transactionEntry != null);
+
+        long prevLSN = transactionEntry.lastLSN;
+        LogRecord record = new UpdatePageLogRecord(transNum, pageNum, prevLSN, pageOffset, before, after);
+        long LSN = logManager.appendToLog(record);
+        // Update lastLSN and DPT
+        transactionEntry.lastLSN = LSN;
+        dirtyPage(pageNum, LSN);
+        return LSN;
     }
 
     /**
@@ -397,27 +542,97 @@ public class ARIESRecoveryManager implements RecoveryManager {
      *
      * Finally, the master record should be rewritten with the LSN of the
      * begin checkpoint record.
+     *
+     * The checkpoint is fuzzy: the tables are read entry by entry while
+     * transactions keep running, and nothing but other checkpoints waits for
+     * it. Restart analysis starts at the begin checkpoint record, so changes
+     * made while the tables are being read are picked up from the log.
      */
     @Override
-    public synchronized void checkpoint() {
-        // Create begin checkpoint log record and write to log
-        LogRecord beginRecord = new BeginCheckpointLogRecord();
-        long beginLSN = logManager.appendToLog(beginRecord);
+    public void checkpoint() {
+        synchronized (checkpointLock) {
+            // Create begin checkpoint log record and write to log
+            LogRecord beginRecord = new BeginCheckpointLogRecord();
+            long beginLSN = logManager.appendToLog(beginRecord);
+            long beginTime = System.currentTimeMillis();
 
-        Map<Long, Long> chkptDPT = new HashMap<>();
-        Map<Long, Pair<Transaction.Status, Long>> chkptTxnTable = new HashMap<>();
+            Map<Long, Long> chkptDPT = new HashMap<>();
+            Map<Long, Pair<Transaction.Status, Long>> chkptTxnTable = new HashMap<>();
 
-        // TODO(proj5): generate end checkpoint record(s) for DPT and transaction table
+            for (Map.Entry<Long, Long> entry : dirtyPageTable.entrySet()) {
+                if (!EndCheckpointLogRecord.fitsInOneRecord(chkptDPT.size() + 1, chkptTxnTable.size())) {
+                    logManager.appendToLog(new EndCheckpointLogRecord(chkptDPT, chkptTxnTable));
+                    chkptDPT = new HashMap<>();
+                }
+                chkptDPT.put(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<Long, TransactionTableEntry> entry : transactionTable.entrySet()) {
+                if (!EndCheckpointLogRecord.fitsInOneRecord(chkptDPT.size(), chkptTxnTable.size() + 1)) {
+                    logManager.appendToLog(new EndCheckpointLogRecord(chkptDPT, chkptTxnTable));
+                    chkptDPT = new HashMap<>();
+                    chkptTxnTable = new HashMap<>();
+                }
+                TransactionTableEntry transactionEntry = entry.getValue();
+                chkptTxnTable.put(entry.getKey(), new Pair<>(transactionEntry.transaction.getStatus(),
+                                  transactionEntry.lastLSN));
+            }
 
-        // Last end checkpoint record
-        LogRecord endRecord = new EndCheckpointLogRecord(chkptDPT, chkptTxnTable);
-        logManager.appendToLog(endRecord);
-        // Ensure checkpoint is fully flushed before updating the master record
-        flushToLSN(endRecord.getLSN());
+            // Last end checkpoint record
+            LogRecord endRecord = new EndCheckpointLogRecord(chkptDPT, chkptTxnTable);
+            logManager.appendToLog(endRecord);
+            // Ensure checkpoint is fully flushed before updating the master record
+            flushToLSN(endRecord.getLSN());
+
+            // Update master record
+            MasterLogRecord masterRecord = new MasterLogRecord(beginLSN);
+            logManager.rewriteMasterRecord(masterRecord);
+            lastCheckpointLSN = beginLSN;
+            lastCheckpointTime = beginTime;
+
+            if (logTruncation) {
+                truncateLog(beginLSN);
+            }
+        }
+    }
+
+    /**
+     * Returns the LSN of the oldest log record that restart could need, given
+     * that the last checkpoint began at checkpointLSN: the minimum of the
+     * checkpoint's LSN (where analysis starts), the recLSNs in the DPT (where
+     * redo starts), and the first LSNs of the running transactions (where
+     * undo may end up).
+     */
+    long getTruncationLSN(long checkpointLSN) {
+        long LSN = checkpointLSN;
+        for (long recLSN : dirtyPageTable.values()) {
+            LSN = Math.min(LSN, recLSN);
+        }
+        for (TransactionTableEntry entry : transactionTable.values()) {
+            LSN = Math.min(LSN, entry.startLSN);
+        }
+        return LSN;
+    }
 
-        // Update master record
-        MasterLogRecord masterRecord = new MasterLogRecord(beginLSN);
-        logManager.rewriteMasterRecord(masterRecord);
+    /**
+     * Truncates the log below getTruncationLSN(checkpointLSN).
+     *
+     * @return the number of log pages freed
+     */
+    int truncateLog(long checkpointLSN) {
+        long LSN = getTruncationLSN(checkpointLSN);
+        // freeing log pages is not part of whatever transaction the calling
+        // thread is running
+        TransactionContext context = TransactionContext.getTransaction();
+        if (context != null) {
+            TransactionContext.unsetTransaction();
+        }
+        try {
+            return logManager.truncate(LSN, logArchiver);
+        } finally {
+            if (context != null) {
+                TransactionContext.setTransaction(context);
+            }
+        }
     }
 
     /**
@@ -442,6 +657,11 @@ public class ARIESRecoveryManager implements RecoveryManager {
 
     @Override
     public void close() {
+        if (this.deferredUndo != null) {
+            this.deferredUndo.close();
+        }
+        this.checkpointer.close();
+        this.groupCommitter.close();
         this.checkpoint();
         this.logManager.close();
     }
@@ -457,6 +677,9 @@ public class ARIESRecoveryManager implements RecoveryManager {
      * dirty page table of non-dirty pages (pages that aren't dirty in the
      * buffer manager) between redo and undo, and perform a checkpoint after
      * undo.
+     *
+     * With instant restart enabled, the undo pass is handed to a DeferredUndo
+     * instead, and new transactions may start while losers are rolled back.
      */
     @Override
     public void restart() {
@@ -464,7 +687,14 @@ public class ARIESRecoveryManager implements RecoveryManager {
         this.restartRedo();
         this.redoComplete = true;
         this.cleanDPT();
-        this.restartUndo();
+        if (this.instantRestart) {
+            DeferredUndo deferredUndo = new DeferredUndo(this);
+            deferredUndo.prepare();
+            this.deferredUndo = deferredUndo;
+            deferredUndo.start();
+        } else {
+            this.restartUndo();
+        }
         this.checkpoint();
     }
 
@@ -519,8 +749,119 @@ public class ARIESRecoveryManager implements RecoveryManager {
         long LSN = masterRecord.lastCheckpointLSN;
         // Set of transactions that have completed
         Set<Long> endedTransactions = new HashSet<>();
-        // TODO(proj5): implement
-        return;
+
+        Iterator<LogRecord> iter = logManager.scanFrom(LSN);
+        while (iter.hasNext()) {
+            record = iter.next();
+            TransactionTableEntry transactionEntry = null;
+            if (record.getTransNum().isPresent()) {
+                long transNum = record.getTransNum().get();
+                transactionEntry = getOrStartTransaction(transNum);
+                transactionEntry.lastLSN = Math.max(transactionEntry.lastLSN, record.getLSN());
+            }
+
+            if (record.getPageNum().isPresent()) {
+                long pageNum = record.getPageNum().get();
+                switch (record.getType()) {
+                case UPDATE_PAGE:
+                case UNDO_UPDATE_PAGE:
+                    dirtyPageTable.putIfAbsent(pageNum, record.getLSN());
+                    break;
+                case FREE_PAGE:
+                case UNDO_ALLOC_PAGE:
+                    // changes are flushed to disk immediately
+                    dirtyPageTable.remove(pageNum);
+                    break;
+                default:
+                    break;
+                }
+            }
+
+            switch (record.getType()) {
+            case COMMIT_TRANSACTION:
+                transactionEntry.transaction.setStatus(Transaction.Status.COMMITTING);
+                break;
+            case ABORT_TRANSACTION:
+                transactionEntry.transaction.setStatus(Transaction.Status.RECOVERY_ABORTING);
+                break;
+            case END_TRANSACTION:
+                transactionEntry.transaction.cleanup();
+                transactionEntry.transaction.setStatus(Transaction.Status.COMPLETE);
+                transactionTable.remove(transactionEntry.transaction.getTransNum());
+                endedTransactions.add(transactionEntry.transaction.getTransNum());
+                break;
+            case END_CHECKPOINT:
+                dirtyPageTable.putAll(record.getDirtyPageTable());
+                for (Map.Entry<Long, Pair<Transaction.Status, Long>> entry :
+                        record.getTransactionTable().entrySet()) {
+                    long transNum = entry.getKey();
+                    if (endedTransactions.contains(transNum)) {
+                        continue;
+                    }
+                    TransactionTableEntry checkpointEntry = getOrStartTransaction(transNum);
+                    checkpointEntry.lastLSN = Math.max(checkpointEntry.lastLSN, entry.getValue().getSecond());
+                    Transaction.Status status = entry.getValue().getFirst();
+                    if (status == Transaction.Status.ABORTING) {
+                        status = Transaction.Status.RECOVERY_ABORTING;
+                    }
+                    if (statusOrder(status) > statusOrder(checkpointEntry.transaction.getStatus())) {
+                        checkpointEntry.transaction.setStatus(status);
+                    }
+                }
+                break;
+            default:
+                break;
+            }
+        }
+
+        // End committing transactions, and abort running ones
+        for (TransactionTableEntry transactionEntry : new ArrayList<>(transactionTable.values())) {
+            Transaction transaction = transactionEntry.transaction;
+            switch (transaction.getStatus()) {
+            case COMMITTING:
+                transaction.cleanup();
+                transaction.setStatus(Transaction.Status.COMPLETE);
+                transactionTable.remove(transaction.getTransNum());
+                logManager.appendToLog(new EndTransactionLogRecord(transaction.getTransNum(),
+                                       transactionEntry.lastLSN));
+                break;
+            case RUNNING:
+                transaction.setStatus(Transaction.Status.RECOVERY_ABORTING);
+                transactionEntry.lastLSN = logManager.appendToLog(new AbortTransactionLogRecord(
+                                               transaction.getTransNum(), transactionEntry.lastLSN));
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the transaction table entry of a transaction, creating the
+     * transaction if it is not in the table. Only used during analysis.
+     */
+    private TransactionTableEntry getOrStartTransaction(long transNum) {
+        if (!transactionTable.containsKey(transNum)) {
+            // startLSN stays 0: the transaction's first record is not known
+            transactionTable.put(transNum, new TransactionTableEntry(newTransaction.apply(transNum)));
+        }
+        return transactionTable.get(transNum);
+    }
+
+    /**
+     * Orders transaction statuses so that a transaction can only go from a
+     * status to a greater one: running, then committing or aborting, then
+     * complete.
+     */
+    private static int statusOrder(Transaction.Status status) {
+        switch (status) {
+        case RUNNING:
+            return 0;
+        case COMPLETE:
+            return 2;
+        default:
+            return 1;
+        }
     }
 
     /**
@@ -534,10 +875,98 @@ public class ARIESRecoveryManager implements RecoveryManager {
      * - modifies a page (Update/UndoUpdate/Free/UndoAlloc....Page) in
      *   the dirty page table with LSN >= recLSN, the page is fetched from disk,
      *   the pageLSN is checked, and the record is redone if needed.
+     *
+     * With a redo parallelism above 1, records are replayed by ParallelRedo:
+     * page records are split by page across worker threads, so records of
+     * different pages are redone concurrently, and records of the same page
+     * are still redone in LSN order.
      */
     void restartRedo() {
-        // TODO(proj5): implement
-        return;
+        if (dirtyPageTable.isEmpty()) {
+            return;
+        }
+        long startLSN = Collections.min(dirtyPageTable.values());
+        if (redoParallelism > 1) {
+            new ParallelRedo(this, redoParallelism).run(startLSN);
+            return;
+        }
+        Iterator<LogRecord> iter = logManager.scanFrom(startLSN);
+        while (iter.hasNext()) {
+            LogRecord record = iter.next();
+            if (shouldRedo(record)) {
+                redoRecord(record);
+            }
+        }
+    }
+
+    /**
+     * Sets the number of threads that replay the log in the redo pass of
+     * restart recovery. With 1 (the default), the log is replayed serially.
+     *
+     * @param redoParallelism number of redo threads
+     */
+    public void setRedoParallelism(int redoParallelism) {
+        if (redoParallelism < 1) {
+            throw new IllegalArgumentException("redo parallelism must be positive");
+        }
+        this.redoParallelism = redoParallelism;
+    }
+
+    /**
+     * @return whether a record must be redone without checking the pageLSN of
+     * its page: records on partitions, and records that allocate pages
+     */
+    static boolean isAlwaysRedone(LogRecord record) {
+        switch (record.getType()) {
+        case ALLOC_PART:
+        case FREE_PART:
+        case UNDO_ALLOC_PART:
+        case UNDO_FREE_PART:
+        case ALLOC_PAGE:
+        case UNDO_FREE_PAGE:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return whether a record read in the redo pass may need to be redone.
+     * For records that modify a page, the pageLSN must still be checked by
+     * redoRecord.
+     */
+    boolean shouldRedo(LogRecord record) {
+        if (!record.isRedoable()) {
+            return false;
+        }
+        if (isAlwaysRedone(record)) {
+            return true;
+        }
+        if (!record.getPageNum().isPresent()) {
+            return false;
+        }
+        Long recLSN = dirtyPageTable.get(record.getPageNum().get());
+        return recLSN != null && record.getLSN() >= recLSN;
+    }
+
+    /**
+     * Redoes a record accepted by shouldRedo, checking the pageLSN of the page
+     * it modifies first.
+     */
+    void redoRecord(LogRecord record) {
+        if (!isAlwaysRedone(record)) {
+            Page page = bufferManager.fetchPage(new DummyLockContext(), record.getPageNum().get());
+            long pageLSN;
+            try {
+                pageLSN = page.getPageLSN();
+            } finally {
+                page.unpin();
+            }
+            if (pageLSN >= record.getLSN()) {
+                return;
+            }
+        }
+        record.redo(this, diskSpaceManager, bufferManager);
     }
 
     /**
@@ -554,8 +983,47 @@ public class ARIESRecoveryManager implements RecoveryManager {
      *   and remove from transaction table.
      */
     void restartUndo() {
-        // TODO(proj5): implement
-        return;
+        List<Long> toUndo = new ArrayList<>();
+        for (TransactionTableEntry entry : transactionTable.values()) {
+            if (entry.transaction.getStatus() == Transaction.Status.RECOVERY_ABORTING) {
+                toUndo.add(entry.transaction.getTransNum());
+            }
+        }
+        undoTransactions(toUndo);
+    }
+
+    /**
+     * Rolls back the given RECOVERY_ABORTING transactions completely, undoing
+     * their records in decreasing LSN order as described in restartUndo, and
+     * ends each transaction once it reaches its first record.
+     *
+     * @param transNums transactions to roll back
+     */
+    void undoTransactions(Collection<Long> transNums) {
+        PriorityQueue<Pair<Long, Long>> toUndo = new PriorityQueue<>(new PairFirstReverseComparator<>());
+        for (long transNum : transNums) {
+            toUndo.add(new Pair<>(transactionTable.get(transNum).lastLSN, transNum));
+        }
+        while (!toUndo.isEmpty()) {
+            Pair<Long, Long> next = toUndo.poll();
+            long transNum = next.getSecond();
+            TransactionTableEntry entry = transactionTable.get(transNum);
+            LogRecord record = logManager.fetchLogRecord(next.getFirst());
+            if (record.isUndoable()) {
+                LogRecord clr = record.undo(entry.lastLSN);
+                entry.lastLSN = logManager.appendToLog(clr);
+                clr.redo(this, diskSpaceManager, bufferManager);
+            }
+            long nextLSN = record.getUndoNextLSN().orElse(record.getPrevLSN().orElse(0L));
+            if (nextLSN == 0L) {
+                entry.transaction.cleanup();
+                entry.transaction.setStatus(Transaction.Status.COMPLETE);
+                logManager.appendToLog(new EndTransactionLogRecord(transNum, entry.lastLSN));
+                transactionTable.remove(transNum);
+            } else {
+                toUndo.add(new Pair<>(nextLSN, transNum));
+            }
+        }
     }
 
     /**
@@ -0,0 +1,157 @@
+package edu.berkeley.cs186.database.recovery;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Takes fuzzy checkpoints in the background. A checkpoint is taken once a
+ * given amount of time has passed since the last checkpoint began, or once a
+ * given number of log pages have been written since then, whichever comes
+ * first. Either trigger can be disabled by setting it to 0; with both
+ * disabled (the default) no background thread runs.
+ *
+ * Checkpoints are taken with RecoveryManager#checkpoint, which only reads the
+ * dirty page and transaction tables, so transactions keep running (and
+ * committing) while a checkpoint is taken.
+ */
+class Checkpointer implements AutoCloseable {
+    // How often the triggers are checked, at most.
+    private static final long POLL_MILLIS = 100;
+
+    private final ARIESRecoveryManager recoveryManager;
+
+    // Protects all of the fields below.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private long intervalMillis = 0;
+    private long intervalLogPages = 0;
+    private Thread thread;
+    private boolean closed = false;
+
+    // Number of checkpoints taken by the background thread.
+    private long numCheckpoints = 0;
+
+    Checkpointer(ARIESRecoveryManager recoveryManager) {
+        this.recoveryManager = recoveryManager;
+    }
+
+    /**
+     * Sets the checkpoint interval, starting the background thread if
+     * necessary.
+     *
+     * @param intervalMillis time between checkpoints in milliseconds, or 0 to
+     *                       not checkpoint based on time
+     * @param intervalLogPages number of log pages between checkpoints, or 0 to
+     *                         not checkpoint based on log volume
+     */
+    void configure(long intervalMillis, long intervalLogPages) {
+        if (intervalMillis < 0 || intervalLogPages < 0) {
+            throw new IllegalArgumentException("checkpoint interval must be non-negative");
+        }
+        lock.lock();
+        try {
+            this.intervalMillis = intervalMillis;
+            this.intervalLogPages = intervalLogPages;
+            if (thread == null && !closed && (intervalMillis > 0 || intervalLogPages > 0)) {
+                thread = new Thread(this::run, "checkpointer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether a checkpoint is due
+     */
+    private boolean checkpointDue() {
+        if (intervalMillis > 0 &&
+                System.currentTimeMillis() - recoveryManager.lastCheckpointTime >= intervalMillis) {
+            return true;
+        }
+        long logPages = recoveryManager.logManager.getLogTailPageNum() -
+                        LogManager.getLSNPage(recoveryManager.lastCheckpointLSN);
+        return intervalLogPages > 0 && logPages >= intervalLogPages;
+    }
+
+    private void run() {
+        lock.lock();
+        try {
+            while (!closed) {
+                if (intervalMillis == 0 && intervalLogPages == 0) {
+                    changed.awaitUninterruptibly();
+                    continue;
+                }
+                if (!checkpointDue()) {
+                    long wait = POLL_MILLIS;
+                    if (intervalMillis > 0) {
+                        long sinceLast = System.currentTimeMillis() - recoveryManager.lastCheckpointTime;
+                        wait = Math.max(1, Math.min(wait, intervalMillis - sinceLast));
+                    }
+                    try {
+                        changed.await(wait, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                lock.unlock();
+                try {
+                    recoveryManager.checkpoint();
+                } finally {
+                    lock.lock();
+                }
+                ++numCheckpoints;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of checkpoints taken in the background
+     */
+    long getNumCheckpoints() {
+        lock.lock();
+        try {
+            return numCheckpoints;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the background thread, waiting for a checkpoint in progress to
+     * finish.
+     */
+    @Override
+    public void close() {
+        Thread toJoin;
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+            toJoin = thread;
+            thread = null;
+        } finally {
+            lock.unlock();
+        }
+        if (toJoin != null) {
+            boolean interrupted = false;
+            while (toJoin.isAlive()) {
+                try {
+                    toJoin.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.TransactionContext;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The undo pass of an instant restart: rolls back the loser transactions left
+ * by analysis while new transactions run.
+ *
+ * The losers are split into groups of transactions that (transitively)
+ * modified a common page. Each group is rolled back as a unit, in decreasing
+ * LSN order exactly as restartUndo would, so the order of undos on any page
+ * is the same as in a full undo pass; groups touch disjoint pages, so they
+ * can be rolled back in any order. A background thread rolls back the groups
+ * one after another, and the first thread to fetch a page of a group that
+ * has not been rolled back yet rolls that group back on demand before the
+ * fetch goes ahead. Until then the group's pages are never read, which is
+ * the same as the losers still holding exclusive locks on them.
+ *
+ * A few records cannot be gated by page this way: freeing a page (a new
+ * transaction could allocate the page number again before the free is
+ * undone) and allocating or freeing a partition. Groups containing such
+ * records are rolled back by prepare, before the database opens.
+ */
+class DeferredUndo implements AutoCloseable {
+    private final ARIESRecoveryManager recoveryManager;
+
+    // Groups that have not been rolled back yet, by the pages they modified.
+    private final Map<Long, Group> pendingPages = new ConcurrentHashMap<>();
+    // Groups left for the background thread, in the order prepare found them.
+    private final List<Group> groups = new ArrayList<>();
+
+    private volatile Thread thread;
+    private volatile boolean closed = false;
+
+    // Number of groups rolled back on demand, by a thread fetching a page.
+    private final AtomicLong numOnDemand = new AtomicLong();
+
+    /**
+     * A set of loser transactions that must be rolled back together. The
+     * group's monitor is held while it is being rolled back.
+     */
+    private static class Group {
+        final Set<Long> transNums = new HashSet<>();
+        final Set<Long> pageNums = new HashSet<>();
+        boolean undoneBeforeOpen = false;
+        // Guarded by this object's monitor.
+        boolean undone = false;
+    }
+
+    DeferredUndo(ARIESRecoveryManager recoveryManager) {
+        this.recoveryManager = recoveryManager;
+    }
+
+    /**
+     * Reads the remaining records of every RECOVERY_ABORTING transaction to
+     * find the pages it modified, groups the transactions, and rolls back the
+     * groups that must be undone before the database opens.
+     */
+    void prepare() {
+        // union-find over transaction numbers, joining transactions that
+        // modified a common page
+        Map<Long, Long> parents = new HashMap<>();
+        Map<Long, Set<Long>> pagesByTrans = new HashMap<>();
+        Map<Long, Long> pageOwners = new HashMap<>();
+        Set<Long> undoBeforeOpen = new HashSet<>();
+
+        for (TransactionTableEntry entry : recoveryManager.transactionTable.values()) {
+            if (entry.transaction.getStatus() != Transaction.Status.RECOVERY_ABORTING) {
+                continue;
+            }
+            long transNum = entry.transaction.getTransNum();
+            Set<Long> pageNums = new HashSet<>();
+            parents.put(transNum, transNum);
+            pagesByTrans.put(transNum, pageNums);
+
+            long LSN = entry.lastLSN;
+            while (LSN > 0) {
+                LogRecord record = recoveryManager.logManager.fetchLogRecord(LSN);
+                if (record.isUndoable()) {
+                    LogType type = record.getType();
+                    if (type == LogType.FREE_PAGE || type == LogType.ALLOC_PART || type == LogType.FREE_PART) {
+                        undoBeforeOpen.add(transNum);
+                    }
+                    record.getPageNum().ifPresent(pageNums::add);
+                }
+                LSN = record.getUndoNextLSN().orElse(record.getPrevLSN().orElse(0L));
+            }
+            for (long pageNum : pageNums) {
+                Long owner = pageOwners.putIfAbsent(pageNum, transNum);
+                if (owner != null) {
+                    parents.put(find(parents, owner), find(parents, transNum));
+                }
+            }
+        }
+
+        Map<Long, Group> groupsByRoot = new LinkedHashMap<>();
+        for (long transNum : parents.keySet()) {
+            Group group = groupsByRoot.computeIfAbsent(find(parents, transNum), k -> new Group());
+            group.transNums.add(transNum);
+            group.pageNums.addAll(pagesByTrans.get(transNum));
+            group.undoneBeforeOpen |= undoBeforeOpen.contains(transNum);
+        }
+        for (Group group : groupsByRoot.values()) {
+            if (group.undoneBeforeOpen) {
+                undo(group);
+            } else {
+                groups.add(group);
+                for (long pageNum : group.pageNums) {
+                    pendingPages.put(pageNum, group);
+                }
+            }
+        }
+    }
+
+    private static long find(Map<Long, Long> parents, long transNum) {
+        long root = transNum;
+        while (parents.get(root) != root) {
+            root = parents.get(root);
+        }
+        parents.put(transNum, root);
+        return root;
+    }
+
+    /**
+     * Starts rolling back the remaining groups in the background. Once every
+     * loser is rolled back, a checkpoint is taken, as restart would have.
+     */
+    void start() {
+        if (groups.isEmpty()) {
+            return;
+        }
+        thread = new Thread(() -> {
+            for (Group group : groups) {
+                if (closed) {
+                    return;
+                }
+                undo(group);
+            }
+            recoveryManager.checkpoint();
+        }, "restart-undo");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Called before pageNum is fetched: rolls back the losers that modified
+     * the page, if that has not happened yet.
+     */
+    void pageFetched(long pageNum) {
+        if (pendingPages.isEmpty()) {
+            return;
+        }
+        Group group = pendingPages.get(pageNum);
+        // the thread rolling back a group fetches the group's own pages
+        if (group == null || Thread.holdsLock(group)) {
+            return;
+        }
+        if (undo(group) && Thread.currentThread() != thread) {
+            numOnDemand.incrementAndGet();
+        }
+    }
+
+    /**
+     * Rolls back a group, unless that was already done.
+     *
+     * @return whether this call rolled the group back
+     */
+    private boolean undo(Group group) {
+        synchronized (group) {
+            if (group.undone) {
+                return false;
+            }
+            // the CLRs are written on behalf of the losers, not of whatever
+            // transaction the calling thread is running
+            TransactionContext context = TransactionContext.getTransaction();
+            if (context != null) {
+                TransactionContext.unsetTransaction();
+            }
+            try {
+                recoveryManager.undoTransactions(group.transNums);
+            } finally {
+                if (context != null) {
+                    TransactionContext.setTransaction(context);
+                }
+            }
+            group.undone = true;
+            for (long pageNum : group.pageNums) {
+                pendingPages.remove(pageNum, group);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of groups of losers not rolled back yet
+     */
+    int getNumPendingGroups() {
+        int numPending = 0;
+        for (Group group : groups) {
+            synchronized (group) {
+                if (!group.undone) {
+                    ++numPending;
+                }
+            }
+        }
+        return numPending;
+    }
+
+    /**
+     * @return the number of groups of losers rolled back on demand
+     */
+    long getNumOnDemand() {
+        return numOnDemand.get();
+    }
+
+    /**
+     * Waits until the background thread has rolled back every loser.
+     */
+    void awaitCompletion() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Stops the background thread after the group it is rolling back. Losers
+     * left over stay in the transaction table as RECOVERY_ABORTING, and are
+     * rolled back by the next restart.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (thread != null) {
+            boolean interrupted = false;
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -16,6 +16,18 @@ public class DummyRecoveryManager implements RecoveryManager {
     @Override
     public void setManagers(DiskSpaceManager diskSpaceManager, BufferManager bufferManager) {}
 
+    @Override
+    public void setGroupCommit(long maxWaitMicros, int maxBatchSize) {}
+
+    @Override
+    public void setCheckpointInterval(long intervalMillis, long intervalLogPages) {}
+
+    @Override
+    public void setInstantRestart(boolean instantRestart) {}
+
+    @Override
+    public void setLogTruncation(boolean enabled, LogArchiver archiver) {}
+
     @Override
     public void startTransaction(Transaction transaction) {
         runningTransactions.put(transaction.getTransNum(), transaction);
@@ -45,6 +57,9 @@ public class DummyRecoveryManager implements RecoveryManager {
     @Override
     public void diskIOHook(long pageNum) {}
 
+    @Override
+    public void pageFetchHook(long pageNum) {}
+
     @Override
     public long logPageWrite(long transNum, long pageNum, short pageOffset, byte[] before,
                              byte[] after) {
@@ -0,0 +1,260 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.DatabaseException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit for the log. Rather than every committing transaction flushing
+ * the log tail itself (writing the tail page once per commit), committers
+ * register the LSN of their commit record and wait, and a single log writer
+ * thread flushes the log once up to the largest LSN registered, releasing
+ * every committer in the batch with one write.
+ *
+ * The writer starts a flush as soon as it is woken up, which already batches
+ * every commit that arrived while the previous flush was in progress. It can
+ * additionally be told to wait up to maxWait microseconds after the first
+ * commit of a batch arrives for more commits to join, unless the batch already
+ * has maxBatchSize commits. With a maxBatchSize of 1, group commit is disabled
+ * and every committer flushes the log itself.
+ *
+ * The writer thread is only started when the first commit is registered, and
+ * is stopped by close() after the last pending batch is flushed. If a flush
+ * fails, every committer of the failed batch gets the failure and the writer
+ * goes on with the next batch; if the writer thread dies, the committers
+ * waiting on it start a new one.
+ */
+class GroupCommitter implements AutoCloseable {
+    private final LogManager logManager;
+
+    // Protects all of the fields below.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when a commit is registered or the committer is closed.
+    private final Condition commitRegistered = lock.newCondition();
+    // Signalled after every flush of the writer.
+    private final Condition batchFlushed = lock.newCondition();
+
+    private long maxWaitMicros = 0;
+    private int maxBatchSize = 64;
+
+    // Number of commits registered since the writer last took a batch.
+    private int pendingCommits = 0;
+    // Largest commit LSN registered since the writer last took a batch.
+    private long pendingLSN = -1L;
+    // Time the first commit of the pending batch was registered.
+    private long pendingSince;
+
+    private Thread writer;
+    private boolean closed = false;
+
+    // The failure of the last flush that failed, and the largest commit LSN of
+    // its batch: committers up to that LSN whose record is still not flushed
+    // fail with it.
+    private RuntimeException flushError;
+    private long failedLSN = -1L;
+
+    // Statistics, for tuning and tests.
+    private long numCommits = 0;
+    private long numFlushes = 0;
+
+    GroupCommitter(LogManager logManager) {
+        this.logManager = logManager;
+    }
+
+    /**
+     * Sets the group commit parameters.
+     *
+     * @param maxWaitMicros the longest the writer waits after the first commit
+     *                      of a batch for more commits, in microseconds
+     * @param maxBatchSize the number of commits after which the writer stops
+     *                     waiting, or 1 to disable group commit
+     */
+    void configure(long maxWaitMicros, int maxBatchSize) {
+        if (maxWaitMicros < 0) {
+            throw new IllegalArgumentException("group commit wait must be non-negative");
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("group commit batch size must be positive");
+        }
+        lock.lock();
+        try {
+            this.maxWaitMicros = maxWaitMicros;
+            this.maxBatchSize = maxBatchSize;
+            commitRegistered.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until the log is flushed up to and including LSN, flushing it as
+     * part of a batch of commits.
+     *
+     * @param LSN LSN of a commit record
+     */
+    void awaitFlush(long LSN) {
+        lock.lock();
+        try {
+            ++numCommits;
+            if (maxBatchSize == 1 || closed) {
+                ++numFlushes;
+                lock.unlock();
+                try {
+                    logManager.flushToLSN(LSN);
+                } finally {
+                    lock.lock();
+                }
+                return;
+            }
+            startWriter();
+            if (pendingCommits == 0) {
+                pendingSince = System.nanoTime();
+            }
+            ++pendingCommits;
+            pendingLSN = Math.max(pendingLSN, LSN);
+            commitRegistered.signal();
+            boolean interrupted = false;
+            while (logManager.getFlushedLSN() < LSN) {
+                if (flushError != null && LSN <= failedLSN) {
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new DatabaseException(flushError);
+                }
+                try {
+                    batchFlushed.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                startWriter();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts the writer thread if it is not running. Must hold lock.
+     */
+    private void startWriter() {
+        if (writer == null && !closed) {
+            writer = new Thread(this::runWriter, "group-commit-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Body of the writer thread: repeatedly takes the pending batch and
+     * flushes the log for all of it at once.
+     */
+    private void runWriter() {
+        lock.lock();
+        try {
+            while (true) {
+                while (pendingCommits == 0 && !closed) {
+                    commitRegistered.awaitUninterruptibly();
+                }
+                if (pendingCommits == 0) {
+                    return;
+                }
+                // wait for the batch to fill up, unless we are shutting down
+                long deadline = pendingSince + TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+                long remaining;
+                while (!closed && pendingCommits < maxBatchSize &&
+                        (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        commitRegistered.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                long LSN = pendingLSN;
+                pendingCommits = 0;
+                pendingLSN = -1L;
+                ++numFlushes;
+                lock.unlock();
+                RuntimeException error = null;
+                try {
+                    logManager.flushToLSN(LSN);
+                } catch (RuntimeException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                }
+                if (error != null) {
+                    flushError = error;
+                    failedLSN = Math.max(failedLSN, LSN);
+                }
+                batchFlushed.signalAll();
+            }
+        } finally {
+            if (writer == Thread.currentThread()) {
+                // died without being closed: let the committers start another
+                writer = null;
+                batchFlushed.signalAll();
+            }
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of commits flushed through this committer
+     */
+    long getNumCommits() {
+        lock.lock();
+        try {
+            return numCommits;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of log flushes done for those commits
+     */
+    long getNumFlushes() {
+        lock.lock();
+        try {
+            return numFlushes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes any pending batch and stops the writer thread. Commits after
+     * this flush the log themselves.
+     */
+    @Override
+    public void close() {
+        Thread toJoin;
+        lock.lock();
+        try {
+            closed = true;
+            commitRegistered.signalAll();
+            toJoin = writer;
+            writer = null;
+        } finally {
+            lock.unlock();
+        }
+        if (toJoin != null) {
+            boolean interrupted = false;
+            while (toJoin.isAlive()) {
+                try {
+                    toJoin.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package edu.berkeley.cs186.database.recovery;
+
+/**
+ * Receives log pages as they are truncated, e.g. to keep them for media
+ * recovery or replication.
+ */
+@FunctionalInterface
+public interface LogArchiver {
+    /**
+     * Called with the contents of a log page before the page is freed.
+     *
+     * @param pageNum page number of the log page
+     * @param contents the page's bytes
+     */
+    void archive(long pageNum, byte[] contents);
+}
@@ -1,6 +1,7 @@
 package edu.berkeley.cs186.database.recovery;
 
 import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.ByteBuffer;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterable;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.iterator.ConcatBacktrackingIterator;
@@ -13,11 +14,12 @@ import edu.berkeley.cs186.database.memory.Page;
 import edu.berkeley.cs186.database.recovery.records.MasterLogRecord;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The LogManager is responsible for interfacing with the log itself. The log is stored
- * on its own partition (partition 0). Since log pages are never deleted, the page number
- * is always increasing, so we assign LSNs as follow:
+ * on its own partition (partition 0). Log pages are always allocated right after the
+ * last one, so the page number is always increasing, and we assign LSNs as follow:
  * - page 1: [ LSN 10000, LSN 10040, LSN 10080, ...]
  * - page 2: [ LSN 20000, LSN 20030, LSN 20055, ...]
  * - page 3: [ LSN 30000, LSN 30047, LSN 30090, ...]
@@ -28,6 +30,15 @@ import java.util.*;
  * by an empty begin and end checkpoint record. The master record is the only record in the
  * entire log that may be rewritten.
  *
+ * The oldest log pages (other than page 0) can be truncated once no part of recovery
+ * can need them any more (see truncate). The log then consists of page 0 followed by
+ * pages firstPageNum and up.
+ *
+ * Records fetched by LSN (fetchLogRecord, and scanBackwardFrom for rollback and undo)
+ * are read through a small cache of log pages of its own, filled straight from disk a
+ * batch of pages at a time, so that walking back through the log does not evict data
+ * pages from the buffer cache. Forward scans still go through the buffer cache.
+ *
  * The LogManager is also responsible for writing pageLSNs onto pages and flushing the log
  * when pages are flushed, and therefore has a few methods that must be called by the buffer
  * manager when pages are fetched and evicted (fetchPageHook, fetchNewPageHook, and pageEvictHook).
@@ -36,24 +47,86 @@ import java.util.*;
  */
 public class LogManager implements Iterable<LogRecord>, AutoCloseable {
     private BufferManager bufferManager;
-    private Deque<Page> unflushedLogTail;
-    private Page logTail;
-    private Buffer logTailBuffer;
-    private boolean logTailPinned = false;
-    private long flushedLSN;
+    // Log pages that have not been flushed yet, oldest first. Only accessed
+    // while holding this object's monitor.
+    private Deque<LogTail> unflushedLogTail;
+    // The log page that records are currently appended to.
+    private volatile LogTail logTail;
+    private volatile long flushedLSN;
+    // First log page after page 0 that has not been truncated.
+    private volatile long firstPageNum = 1;
 
     public static final int LOG_PARTITION = 0;
 
+    // Default number of log pages kept in the log page cache.
+    static final int DEFAULT_CACHE_PAGES = 64;
+    // Number of log pages read at once on a cache miss: the missing page and
+    // the ones before it, since rollback and undo read the log backwards.
+    static final int READ_BATCH_PAGES = 8;
+
+    private final LogPageCache cache = new LogPageCache(DEFAULT_CACHE_PAGES);
+
     LogManager(BufferManager bufferManager) {
         this.bufferManager = bufferManager;
         this.unflushedLogTail = new ArrayDeque<>();
 
-        this.logTail = bufferManager.fetchNewPage(new DummyLockContext("_dummyLogPageRecord"), LOG_PARTITION);
+        Page page;
+        long lastPageNum = findLastPage();
+        if (lastPageNum < 0) {
+            page = bufferManager.fetchNewPage(new DummyLockContext("_dummyLogPageRecord"), LOG_PARTITION);
+        } else {
+            page = bufferManager.fetchNewPageAt(new DummyLockContext("_dummyLogPageRecord"), lastPageNum + 1);
+        }
+        page.unpin();
+        this.logTail = new LogTail(page);
         this.unflushedLogTail.add(this.logTail);
-        this.logTailBuffer = this.logTail.getBuffer();
-        this.logTail.unpin();
 
-        this.flushedLSN = maxLSN(this.logTail.getPageNum() - 1L);
+        this.flushedLSN = maxLSN(page.getPageNum() - 1L);
+    }
+
+    /**
+     * Finds the last page of an existing log, and the first page that has not
+     * been truncated. Truncation only ever frees the pages between page 0 and
+     * the page of the last checkpoint, so the log is page 0 followed by a
+     * contiguous run of pages including that page.
+     *
+     * @return the last log page, or -1 if there is no log yet
+     */
+    private long findLastPage() {
+        if (!isLogPage(0L)) {
+            return -1L;
+        }
+        long checkpointPageNum = 0L;
+        LogRecord master = fetchLogRecord(0L);
+        if (master instanceof MasterLogRecord) {
+            checkpointPageNum = getLSNPage(((MasterLogRecord) master).lastCheckpointLSN);
+        }
+        // binary search for the first page of the run
+        long low = 1L;
+        long high = Math.max(1L, checkpointPageNum);
+        while (low < high) {
+            long mid = (low + high) / 2;
+            if (isLogPage(mid)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        firstPageNum = low;
+        long lastPageNum = Math.max(checkpointPageNum, low - 1);
+        while (isLogPage(lastPageNum + 1)) {
+            ++lastPageNum;
+        }
+        return lastPageNum;
+    }
+
+    private boolean isLogPage(long pageNum) {
+        try {
+            bufferManager.fetchPage(new DummyLockContext("_dummyLogPageRecord"), pageNum).unpin();
+            return true;
+        } catch (PageException e) {
+            return false;
+        }
     }
 
     /**
@@ -72,44 +145,77 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
 
     /**
      * Appends a log record to the log.
+     *
+     * Appends do not lock the log manager. The record is serialized before
+     * anything is locked, space for it is reserved on the tail page with a
+     * compare-and-set on the page's write offset, and it is copied in while the
+     * tail page is pinned (which in this buffer manager also latches its
+     * frame). The log manager's monitor is only taken when the tail page is
+     * full and a new one has to be allocated, so appends never wait for a
+     * flush of earlier log pages.
+     *
      * @param record log record to append to the log
      * @return LSN of new log record
      */
-    public synchronized long appendToLog(LogRecord record) {
+    public long appendToLog(LogRecord record) {
         byte[] bytes = record.toBytes();
-        // loop in case accessing log tail requires flushing the log in order to evict dirty page to load log tail
-        do {
-            if (logTailBuffer == null || bytes.length > DiskSpaceManager.PAGE_SIZE - logTailBuffer.position()) {
-                logTailPinned = true;
-                logTail = bufferManager.fetchNewPage(new DummyLockContext("_dummyLogPageRecord"), LOG_PARTITION);
-                unflushedLogTail.add(logTail);
-                logTailBuffer = logTail.getBuffer();
-            } else {
-                logTailPinned = true;
-                logTail.pin();
-                if (logTailBuffer == null) {
-                    logTail.unpin();
+        while (true) {
+            LogTail tail = this.logTail;
+            int pos;
+            // Pin before reserving: pinning may evict a page and flush the
+            // log, which must not wait on a reservation this thread holds.
+            tail.page.pin();
+            try {
+                pos = tail.reserve(bytes.length);
+                if (pos >= 0) {
+                    Buffer buf = tail.page.getBuffer();
+                    buf.position(pos);
+                    buf.put(bytes);
                 }
+            } finally {
+                tail.page.unpin();
             }
-        } while (logTailBuffer == null);
-        try {
-            int pos = logTailBuffer.position();
-            logTailBuffer.put(bytes);
-            long LSN = makeLSN(unflushedLogTail.getLast().getPageNum(), pos);
+            if (pos < 0) {
+                // tail page is full or has been flushed
+                advanceLogTail(tail);
+                continue;
+            }
+            long LSN = makeLSN(tail.pageNum, pos);
             record.LSN = LSN;
             return LSN;
-        } finally {
-            logTail.unpin();
-            logTailPinned = false;
         }
     }
 
+    /**
+     * Replaces the log tail with a new log page, unless another append has
+     * already done so.
+     * @param full the log tail that has no room for a record
+     */
+    private synchronized void advanceLogTail(LogTail full) {
+        if (this.logTail != full) {
+            return;
+        }
+        Page page = bufferManager.fetchNewPageAt(new DummyLockContext("_dummyLogPageRecord"), full.pageNum + 1);
+        page.unpin();
+        LogTail tail = new LogTail(page);
+        unflushedLogTail.add(tail);
+        this.logTail = tail;
+    }
+
     /**
      * Fetches a specific log record.
      * @param LSN LSN of record to fetch
      * @return log record with the specified LSN
      */
     public LogRecord fetchLogRecord(long LSN) {
+        byte[] contents = fetchCachedPage(getLSNPage(LSN));
+        if (contents != null) {
+            Buffer buf = ByteBuffer.wrap(contents);
+            buf.position(getLSNIndex(LSN));
+            Optional<LogRecord> record = LogRecord.fromBytes(buf);
+            record.ifPresent((LogRecord e) -> e.setLSN(LSN));
+            return record.orElse(null);
+        }
         try {
             Page logPage = bufferManager.fetchPage(new DummyLockContext("_dummyLogPageRecord"), getLSNPage(LSN));
             try {
@@ -126,30 +232,172 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
         }
     }
 
+    /**
+     * Returns the contents of a log page from the log page cache, reading it
+     * (and the uncached pages just before it) from disk if needed.
+     *
+     * @return the contents of the page, or null if the page cannot be cached:
+     * page 0, pages that have not been flushed yet, and truncated pages
+     */
+    private byte[] fetchCachedPage(long pageNum) {
+        if (cache.getCapacity() == 0 || pageNum < firstPageNum || pageNum > getLSNPage(flushedLSN)) {
+            return null;
+        }
+        byte[] contents = cache.get(pageNum);
+        if (contents != null) {
+            return contents;
+        }
+        long batchStart = Math.max(firstPageNum, pageNum - READ_BATCH_PAGES + 1);
+        // oldest first, so that the page asked for is the most recently used
+        for (long batchPageNum = batchStart; batchPageNum <= pageNum; ++batchPageNum) {
+            if (batchPageNum < pageNum && cache.contains(batchPageNum)) {
+                continue;
+            }
+            byte[] page = new byte[DiskSpaceManager.PAGE_SIZE];
+            try {
+                bufferManager.readPageUncached(batchPageNum, page);
+            } catch (PageException e) {
+                // truncated since we checked
+                if (batchPageNum == pageNum) {
+                    return null;
+                }
+                continue;
+            }
+            cache.put(batchPageNum, page);
+            contents = page;
+        }
+        return contents;
+    }
+
+    /**
+     * Reads backwards through the records of a transaction, starting at the
+     * record at LSN. After a compensation record the next record returned is
+     * the one at its undoNextLSN, skipping the records it undid; otherwise it
+     * is the one at its prevLSN. Records are read through the log page cache.
+     *
+     * @param LSN LSN of the record to start at
+     * @return iterator over the transaction's records that are left to undo
+     */
+    public Iterator<LogRecord> scanBackwardFrom(long LSN) {
+        return new Iterator<LogRecord>() {
+            private long nextLSN = LSN;
+
+            @Override
+            public boolean hasNext() {
+                return nextLSN > 0;
+            }
+
+            @Override
+            public LogRecord next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                LogRecord record = fetchLogRecord(nextLSN);
+                nextLSN = record.getUndoNextLSN().orElse(record.getPrevLSN().orElse(0L));
+                return record;
+            }
+        };
+    }
+
+    /**
+     * Sets the number of pages kept in the log page cache; 0 disables it, in
+     * which case every record is fetched through the buffer cache.
+     */
+    void setCachePages(int numPages) {
+        cache.setCapacity(numPages);
+    }
+
+    /**
+     * @return the log page cache
+     */
+    LogPageCache getCache() {
+        return cache;
+    }
+
     /**
      * Flushes the log to at least the specified record,
      * essentially flushing up to and including the page
      * that contains the record specified by the LSN.
+     *
+     * Pages are flushed oldest first, and each page is sealed against new
+     * appends before it is flushed. An append holds the page pinned from
+     * reserving its space until its record is copied, so by the time the
+     * flush gets hold of the frame every reserved record is on the page, and
+     * flushedLSN only ever advances over complete pages.
+     *
      * @param LSN LSN up to which the log should be flushed
      */
     public synchronized void flushToLSN(long LSN) {
-        Iterator<Page> iter = unflushedLogTail.iterator();
+        Iterator<LogTail> iter = unflushedLogTail.iterator();
         long pageNum = getLSNPage(LSN);
         while (iter.hasNext()) {
-            Page page = iter.next();
-            if (page.getPageNum() > pageNum) {
+            LogTail tail = iter.next();
+            if (tail.pageNum > pageNum) {
                 break;
             }
-            page.flush();
+            tail.seal();
+            tail.page.flush();
             iter.remove();
+            flushedLSN = Math.max(flushedLSN, maxLSN(tail.pageNum));
         }
         flushedLSN = Math.max(flushedLSN, maxLSN(pageNum));
-        if (unflushedLogTail.size() == 0) {
-            if (!logTailPinned) {
-                logTail = null;
+    }
+
+    /**
+     * Truncates the log below LSN: frees every log page before the page
+     * holding LSN, except for page 0 (which holds the master record). The
+     * caller is responsible for making sure that no part of recovery can need
+     * a record before LSN, which must already be flushed.
+     *
+     * @param LSN LSN of the oldest record to keep
+     * @param archiver if not null, receives a copy of each page before it is
+     *                 freed
+     * @return the number of log pages freed
+     */
+    public synchronized int truncate(long LSN, LogArchiver archiver) {
+        if (LSN > flushedLSN) {
+            throw new IllegalArgumentException("cannot truncate the log past flushedLSN");
+        }
+        int numTruncated = 0;
+        for (long pageNum = firstPageNum; pageNum < getLSNPage(LSN); ++pageNum) {
+            Page page = bufferManager.fetchPage(new DummyLockContext("_dummyLogPageRecord"), pageNum);
+            try {
+                if (archiver != null) {
+                    byte[] contents = new byte[DiskSpaceManager.PAGE_SIZE];
+                    page.getBuffer().get(contents);
+                    archiver.archive(pageNum, contents);
+                }
+                firstPageNum = pageNum + 1;
+                cache.invalidate(pageNum);
+                bufferManager.freePage(page);
+            } finally {
+                page.unpin();
             }
-            logTailBuffer = null;
+            ++numTruncated;
         }
+        return numTruncated;
+    }
+
+    /**
+     * @return the first log page after page 0 that has not been truncated
+     */
+    long getFirstPageNum() {
+        return firstPageNum;
+    }
+
+    /**
+     * @return LSN of the start of the page records are currently appended to,
+     * which no record appended from now on precedes
+     */
+    long getLogTailLSN() {
+        return makeLSN(logTail.pageNum, 0);
+    }
+
+    /**
+     * @return page number of the log page records are currently appended to
+     */
+    long getLogTailPageNum() {
+        return logTail.pageNum;
     }
 
     /**
@@ -217,7 +465,54 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
     @Override
     public synchronized void close() {
         if (!this.unflushedLogTail.isEmpty()) {
-            this.flushToLSN(maxLSN(unflushedLogTail.getLast().getPageNum()));
+            this.flushToLSN(maxLSN(unflushedLogTail.getLast().pageNum));
+        }
+    }
+
+    /**
+     * A log page that records are appended to, with the number of bytes
+     * reserved on it by appends so far. Once the page is sealed no more space
+     * can be reserved on it.
+     */
+    private static class LogTail {
+        // set in `reserved` once the page accepts no more appends
+        private static final int SEALED = Integer.MIN_VALUE;
+
+        private final Page page;
+        private final long pageNum;
+        private final AtomicInteger reserved = new AtomicInteger(0);
+
+        private LogTail(Page page) {
+            this.page = page;
+            this.pageNum = page.getPageNum();
+        }
+
+        /**
+         * Reserves length bytes on the page.
+         * @return offset of the reserved bytes, or -1 if the page is sealed or
+         * does not have enough room left (in which case it is sealed)
+         */
+        private int reserve(int length) {
+            while (true) {
+                int pos = reserved.get();
+                if ((pos & SEALED) != 0) {
+                    return -1;
+                }
+                if (length > DiskSpaceManager.PAGE_SIZE - pos) {
+                    reserved.compareAndSet(pos, pos | SEALED);
+                    return -1;
+                }
+                if (reserved.compareAndSet(pos, pos + length)) {
+                    return pos;
+                }
+            }
+        }
+
+        /**
+         * Prevents any further appends to this page.
+         */
+        private void seal() {
+            reserved.getAndUpdate(pos -> pos | SEALED);
         }
     }
 
@@ -313,7 +608,8 @@ public class LogManager implements Iterable<LogRecord>, AutoCloseable {
 
                 nextIter = null;
                 do {
-                    ++nextIndex;
+                    // pages between page 0 and firstPageNum were truncated
+                    nextIndex = nextIndex == 0 ? firstPageNum : nextIndex + 1;
                     try {
                         Page page = bufferManager.fetchPage(new DummyLockContext(), nextIndex);
                         nextIter = new LogPageIterator(page, 0);
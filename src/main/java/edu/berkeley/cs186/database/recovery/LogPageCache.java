@@ -0,0 +1,86 @@
+package edu.berkeley.cs186.database.recovery;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the contents of log pages, kept apart from the buffer
+ * cache so that reading old log records (for rollback and undo) does not
+ * evict data pages. Only pages that can no longer change are cached: the
+ * LogManager never caches page 0 (the master record is rewritten in place)
+ * or pages that have not been flushed yet.
+ *
+ * Pages are evicted in least recently used order.
+ */
+class LogPageCache {
+    private final Map<Long, byte[]> pages;
+    private int capacity;
+
+    private long numHits = 0;
+    private long numMisses = 0;
+
+    LogPageCache(int capacity) {
+        this.capacity = capacity;
+        this.pages = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > LogPageCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the contents of the page, or null if it is not cached
+     */
+    synchronized byte[] get(long pageNum) {
+        byte[] contents = pages.get(pageNum);
+        if (contents == null) {
+            ++numMisses;
+        } else {
+            ++numHits;
+        }
+        return contents;
+    }
+
+    /**
+     * @return whether the page is cached, without counting as a use of it
+     */
+    synchronized boolean contains(long pageNum) {
+        return pages.containsKey(pageNum);
+    }
+
+    synchronized void put(long pageNum, byte[] contents) {
+        if (capacity > 0) {
+            pages.put(pageNum, contents);
+        }
+    }
+
+    synchronized void invalidate(long pageNum) {
+        pages.remove(pageNum);
+    }
+
+    /**
+     * Sets the maximum number of pages cached; 0 disables the cache.
+     */
+    synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("log cache capacity must be non-negative");
+        }
+        this.capacity = capacity;
+        while (pages.size() > capacity) {
+            pages.remove(pages.keySet().iterator().next());
+        }
+    }
+
+    synchronized int getCapacity() {
+        return capacity;
+    }
+
+    synchronized long getNumHits() {
+        return numHits;
+    }
+
+    synchronized long getNumMisses() {
+        return numMisses;
+    }
+}
@@ -0,0 +1,220 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.recovery.records.EndTransactionLogRecord;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The redo pass of restart recovery, run on several threads.
+ *
+ * Three kinds of threads take part:
+ *
+ *   - a prefetch thread reads the log from the start of redo and queues up to
+ *     PREFETCH_RECORDS records, so that reading log pages from disk overlaps
+ *     with replaying the records before them,
+ *   - the thread calling run() takes records off that queue, drops the ones
+ *     that need no redo, and hands each page record to the worker that owns
+ *     its page (page number modulo the number of workers), and
+ *   - the workers check the pageLSN of each record's page and redo it.
+ *
+ * Every record of a page goes to the same worker, in log order, so the
+ * records of a page are redone in LSN order exactly as in a serial redo, while
+ * different pages are redone in parallel.
+ *
+ * Partition records (allocating or freeing a partition) affect every page of
+ * the partition, so they are barriers: the calling thread waits for the
+ * workers to redo everything before them, redoes the partition record itself,
+ * and only then hands out the records after it.
+ */
+class ParallelRedo {
+    // Number of log records read ahead of the records being dispatched.
+    private static final int PREFETCH_RECORDS = 4096;
+
+    // Marks the end of a queue of records (compared by identity).
+    private static final LogRecord END = new EndTransactionLogRecord(-1L, -1L);
+
+    private final ARIESRecoveryManager recoveryManager;
+    private final int numWorkers;
+
+    // Records handed to workers that have not been redone yet. Guarded by
+    // this object's monitor.
+    private long pending = 0;
+    // The first error hit by a worker or the prefetch thread.
+    private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+    ParallelRedo(ARIESRecoveryManager recoveryManager, int numWorkers) {
+        this.recoveryManager = recoveryManager;
+        this.numWorkers = numWorkers;
+    }
+
+    /**
+     * Redoes the log starting at startLSN, returning once every record has
+     * been redone.
+     */
+    void run(long startLSN) {
+        BlockingQueue<LogRecord> prefetched = new ArrayBlockingQueue<>(PREFETCH_RECORDS);
+        Thread prefetcher = new Thread(() -> {
+            try {
+                Iterator<LogRecord> iter = recoveryManager.logManager.scanFrom(startLSN);
+                while (iter.hasNext() && error.get() == null) {
+                    prefetched.put(iter.next());
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                putUninterruptibly(prefetched, END);
+            }
+        }, "redo-prefetch");
+        prefetcher.setDaemon(true);
+
+        List<BlockingQueue<LogRecord>> queues = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < numWorkers; ++i) {
+            BlockingQueue<LogRecord> queue = new LinkedBlockingQueue<>();
+            Thread worker = new Thread(() -> runWorker(queue), "redo-worker-" + i);
+            worker.setDaemon(true);
+            queues.add(queue);
+            workers.add(worker);
+        }
+
+        prefetcher.start();
+        workers.forEach(Thread::start);
+        try {
+            while (error.get() == null) {
+                LogRecord record = takeUninterruptibly(prefetched);
+                if (record == END) {
+                    break;
+                }
+                if (!recoveryManager.shouldRedo(record)) {
+                    continue;
+                }
+                if (!record.getPageNum().isPresent()) {
+                    // partition record: wait for everything before it
+                    awaitWorkers();
+                    if (error.get() == null) {
+                        recoveryManager.redoRecord(record);
+                    }
+                    continue;
+                }
+                long pageNum = record.getPageNum().get();
+                synchronized (this) {
+                    ++pending;
+                }
+                putUninterruptibly(queues.get((int) Math.floorMod(pageNum, (long) numWorkers)), record);
+            }
+        } catch (Throwable e) {
+            error.compareAndSet(null, e);
+        } finally {
+            for (BlockingQueue<LogRecord> queue : queues) {
+                putUninterruptibly(queue, END);
+            }
+            // unblock the prefetch thread if we stopped early
+            prefetched.clear();
+            joinUninterruptibly(prefetcher);
+            workers.forEach(ParallelRedo::joinUninterruptibly);
+        }
+
+        Throwable e = error.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        } else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void runWorker(BlockingQueue<LogRecord> queue) {
+        while (true) {
+            LogRecord record = takeUninterruptibly(queue);
+            if (record == END) {
+                return;
+            }
+            try {
+                if (error.get() == null) {
+                    recoveryManager.redoRecord(record);
+                }
+            } catch (Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                synchronized (this) {
+                    if (--pending == 0) {
+                        notifyAll();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until the workers have redone every record handed to them.
+     */
+    private synchronized void awaitWorkers() {
+        boolean interrupted = false;
+        while (pending > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static LogRecord takeUninterruptibly(BlockingQueue<LogRecord> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void putUninterruptibly(BlockingQueue<LogRecord> queue, LogRecord record) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    queue.put(record);
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
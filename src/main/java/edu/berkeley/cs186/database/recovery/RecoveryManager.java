@@ -23,6 +23,40 @@ public interface RecoveryManager extends AutoCloseable {
      */
     void setManagers(DiskSpaceManager diskSpaceManager, BufferManager bufferManager);
 
+    /**
+     * Sets the group commit parameters: commits are flushed together in
+     * batches of up to maxBatchSize, waiting up to maxWaitMicros for a batch
+     * to fill up. A batch size of 1 disables group commit.
+     * @param maxWaitMicros maximum wait for a batch to fill up, in microseconds
+     * @param maxBatchSize maximum number of commits in a batch
+     */
+    void setGroupCommit(long maxWaitMicros, int maxBatchSize);
+
+    /**
+     * Sets how often checkpoints are taken in the background, by time and by
+     * the number of log pages written since the last checkpoint. 0 disables
+     * the corresponding trigger.
+     * @param intervalMillis time between checkpoints, in milliseconds
+     * @param intervalLogPages number of log pages between checkpoints
+     */
+    void setCheckpointInterval(long intervalMillis, long intervalLogPages);
+
+    /**
+     * Sets whether restart opens the database right after redo, rolling back
+     * loser transactions in the background and on demand instead of before
+     * restart returns. Must be called before restart.
+     * @param instantRestart whether to defer the undo pass of restart
+     */
+    void setInstantRestart(boolean instantRestart);
+
+    /**
+     * Sets whether checkpoints truncate the log below the oldest record that
+     * restart could still need, and where truncated pages are archived to.
+     * @param enabled whether to truncate the log after checkpoints
+     * @param archiver receives truncated log pages, or null to discard them
+     */
+    void setLogTruncation(boolean enabled, LogArchiver archiver);
+
     /**
      * Called when a new transaction is started.
      * @param transaction new transaction
@@ -65,6 +99,13 @@ public interface RecoveryManager extends AutoCloseable {
      */
     void diskIOHook(long pageNum);
 
+    /**
+     * Called before a page is fetched into the buffer cache, outside of any
+     * buffer manager locks.
+     * @param pageNum page number of page being fetched
+     */
+    void pageFetchHook(long pageNum);
+
     /**
      * Called when a write to a page happens.
      *
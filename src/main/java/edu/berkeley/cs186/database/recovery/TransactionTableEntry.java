@@ -12,6 +12,9 @@ class TransactionTableEntry {
     Transaction transaction;
     // lastLSN of transaction, or 0 if no log entries for the transaction exist.
     long lastLSN = 0;
+    // LSN that no log entry of the transaction precedes, or 0 if unknown (for
+    // transactions found by restart analysis).
+    long startLSN = 0;
     // map of transaction's savepoints
     private Map<String, Long> savepoints = new HashMap<>();
 
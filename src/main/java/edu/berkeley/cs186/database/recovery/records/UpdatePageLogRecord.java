@@ -10,11 +10,18 @@ import edu.berkeley.cs186.database.recovery.LogRecord;
 import edu.berkeley.cs186.database.recovery.LogType;
 import edu.berkeley.cs186.database.recovery.RecoveryManager;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Arrays;
 import java.util.Objects;
 import java.util.Optional;
 
 public class UpdatePageLogRecord extends LogRecord {
+    // How the before and after images are serialized (see toBytes).
+    private static final byte RAW = 0;
+    private static final byte DELTA_ENCODED = 1;
+    // Shortest run of zero bytes worth encoding as a run.
+    private static final int MIN_ZERO_RUN = 4;
+
     private long transNum; // transaction that updated the page
     private long pageNum; // page that was updated
     private long prevLSN; // previous log's LSN
@@ -83,19 +90,43 @@ public class UpdatePageLogRecord extends LogRecord {
         }
     }
 
+    /**
+     * Serializes the record. When before and after are the same length (as
+     * they are for every record written by logPageWrite), they are stored as
+     * the before image and the XOR of the two images, each run-length encoded
+     * (see encodeRuns): bytes that the update did not change are zero in the
+     * XOR, and pages are mostly zero-filled before they are first written, so
+     * both compress well. Records that don't get smaller are stored as-is.
+     */
     @Override
     public byte[] toBytes() {
-        byte[] b = new byte[31 + before.length + after.length];
-        ByteBuffer.wrap(b)
-        .put((byte) getType().getValue())
-        .putLong(transNum)
-        .putLong(pageNum)
-        .putLong(prevLSN)
-        .putShort(offset)
-        .putShort((short) before.length)
-        .putShort((short) after.length)
-        .put(before)
-        .put(after);
+        byte[] encodedBefore = null;
+        byte[] encodedDelta = null;
+        if (before.length == after.length) {
+            byte[] delta = new byte[before.length];
+            for (int i = 0; i < delta.length; ++i) {
+                delta[i] = (byte) (before[i] ^ after[i]);
+            }
+            encodedBefore = encodeRuns(before);
+            encodedDelta = encodeRuns(delta);
+        }
+        int rawLength = 32 + before.length + after.length;
+        boolean compress = encodedBefore != null &&
+                           30 + encodedBefore.length + encodedDelta.length < rawLength;
+
+        int length = compress ? 30 + encodedBefore.length + encodedDelta.length : rawLength;
+        byte[] b = new byte[length];
+        Buffer buf = ByteBuffer.wrap(b)
+                     .put((byte) getType().getValue())
+                     .putLong(transNum)
+                     .putLong(pageNum)
+                     .putLong(prevLSN)
+                     .putShort(offset);
+        if (compress) {
+            buf.put(DELTA_ENCODED).putShort((short) before.length).put(encodedBefore).put(encodedDelta);
+        } else {
+            buf.put(RAW).putShort((short) before.length).putShort((short) after.length).put(before).put(after);
+        }
         return b;
     }
 
@@ -104,12 +135,83 @@ public class UpdatePageLogRecord extends LogRecord {
         long pageNum = buf.getLong();
         long prevLSN = buf.getLong();
         short offset = buf.getShort();
-        byte[] before = new byte[buf.getShort()];
-        byte[] after = new byte[buf.getShort()];
-        buf.get(before).get(after);
+        byte encoding = buf.get();
+        byte[] before;
+        byte[] after;
+        if (encoding == DELTA_ENCODED) {
+            short length = buf.getShort();
+            before = decodeRuns(buf, length);
+            after = decodeRuns(buf, length);
+            for (int i = 0; i < length; ++i) {
+                after[i] ^= before[i];
+            }
+        } else {
+            before = new byte[buf.getShort()];
+            after = new byte[buf.getShort()];
+            buf.get(before).get(after);
+        }
         return Optional.of(new UpdatePageLogRecord(transNum, pageNum, prevLSN, offset, before, after));
     }
 
+    /**
+     * Run-length encodes bytes as a sequence of runs, each starting with a
+     * short: a positive n is followed by n bytes copied as-is, and a negative
+     * -n stands for n zero bytes. Runs of zeroes shorter than MIN_ZERO_RUN are
+     * copied as-is, since they would not save any space.
+     */
+    private static byte[] encodeRuns(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int literalStart = 0;
+        int i = 0;
+        while (i < bytes.length) {
+            if (bytes[i] != 0) {
+                ++i;
+                continue;
+            }
+            int zeroStart = i;
+            while (i < bytes.length && bytes[i] == 0) {
+                ++i;
+            }
+            if (i - zeroStart < MIN_ZERO_RUN && i < bytes.length) {
+                continue;
+            }
+            writeRun(out, bytes, literalStart, zeroStart);
+            writeShort(out, -(i - zeroStart));
+            literalStart = i;
+        }
+        writeRun(out, bytes, literalStart, bytes.length);
+        return out.toByteArray();
+    }
+
+    private static void writeRun(ByteArrayOutputStream out, byte[] bytes, int start, int end) {
+        if (end > start) {
+            writeShort(out, end - start);
+            out.write(bytes, start, end - start);
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static byte[] decodeRuns(Buffer buf, int length) {
+        byte[] bytes = new byte[length];
+        int i = 0;
+        while (i < length) {
+            short run = buf.getShort();
+            if (run < 0) {
+                i -= run;
+            } else {
+                byte[] literal = new byte[run];
+                buf.get(literal);
+                System.arraycopy(literal, 0, bytes, i, run);
+                i += run;
+            }
+        }
+        return bytes;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) { return true; }
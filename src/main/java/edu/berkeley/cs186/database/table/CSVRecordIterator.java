@@ -0,0 +1,111 @@
+package edu.berkeley.cs186.database.table;
+
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.databox.DataBox;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams the records of a CSV file with a given schema. Each nonempty line of
+ * the file holds the comma separated values of one record, in the order of the
+ * schema's fields; the file is read a line at a time as the records are
+ * consumed, so files of any size can be loaded.
+ *
+ * A line that does not match the schema raises a DatabaseException naming the
+ * line.
+ */
+public class CSVRecordIterator implements Iterator<Record>, Closeable {
+    private Schema schema;
+    private String fileName;
+    private BufferedReader reader;
+    // the next record, or null if it has not been read yet
+    private Record next;
+    // number of the last line read, starting at 1
+    private long lineNum;
+
+    /**
+     * @param schema the schema of the records in the file
+     * @param fileName path of the file
+     * @param header whether the first line of the file is a header to skip
+     */
+    public CSVRecordIterator(Schema schema, String fileName, boolean header) throws IOException {
+        this.schema = schema;
+        this.fileName = fileName;
+        this.reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8);
+        this.next = null;
+        this.lineNum = 0;
+        if (header) {
+            readLine();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        String line;
+        do {
+            line = readLine();
+            if (line == null) {
+                return false;
+            }
+        } while (line.trim().isEmpty());
+        next = parse(line);
+        return true;
+    }
+
+    @Override
+    public Record next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Record record = next;
+        next = null;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private String readLine() {
+        try {
+            String line = reader.readLine();
+            if (line != null) {
+                ++lineNum;
+            }
+            return line;
+        } catch (IOException e) {
+            throw new DatabaseException(e);
+        }
+    }
+
+    private Record parse(String line) {
+        String[] values = line.split(",", -1);
+        if (values.length != schema.size()) {
+            throw new DatabaseException(String.format("%s:%d: expected %d values, found %d",
+                    fileName, lineNum, schema.size(), values.length));
+        }
+        List<DataBox> parsed = new ArrayList<>();
+        for (int i = 0; i < values.length; ++i) {
+            try {
+                parsed.add(DataBox.fromString(schema.getFieldType(i), values[i]));
+            } catch (NumberFormatException e) {
+                throw new DatabaseException(String.format("%s:%d: bad value for column %s: %s",
+                        fileName, lineNum, schema.getFieldName(i), values[i]));
+            }
+        }
+        return new Record(parsed);
+    }
+}
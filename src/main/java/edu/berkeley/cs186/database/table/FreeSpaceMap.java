@@ -0,0 +1,134 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * In-memory map of the free space on the data pages of a page directory, so
+ * that inserts can find a page with enough space without reading every header
+ * page.
+ *
+ * Slots are numbered in directory order: slot i is entry i % n of header page
+ * i / n, where n is the number of entries per header page. Each slot holds the
+ * free space on its data page, or -1 if it is unused (no data page has been
+ * allocated for it). The free space of used slots is kept in a max tree, so
+ * the first slot with enough space is found in O(log n) time; unused slots
+ * are kept in a bitmap.
+ *
+ * The map is not persisted separately: the header pages already record the
+ * free space of every data page, and the map is rebuilt from them when the
+ * page directory is loaded.
+ */
+class FreeSpaceMap {
+    // value of an unused slot
+    static final short UNUSED = -1;
+
+    // number of slots in the map
+    private int numSlots;
+
+    // number of leaves in the tree (a power of two, at least numSlots)
+    private int capacity;
+
+    // tree[1] is the root, tree[i] is the max of tree[2i] and tree[2i + 1], and
+    // the leaves are tree[capacity + slot]; unused slots are -1
+    private short[] tree;
+
+    // set bits mark the unused slots
+    private BitSet unused;
+
+    FreeSpaceMap() {
+        this.numSlots = 0;
+        this.capacity = 1;
+        this.tree = new short[2];
+        Arrays.fill(this.tree, UNUSED);
+        this.unused = new BitSet();
+    }
+
+    /**
+     * Adds unused slots to the end of the map.
+     */
+    void grow(int numNewSlots) {
+        int newNumSlots = numSlots + numNewSlots;
+        if (newNumSlots > capacity) {
+            int newCapacity = capacity;
+            while (newCapacity < newNumSlots) {
+                newCapacity *= 2;
+            }
+            short[] newTree = new short[2 * newCapacity];
+            Arrays.fill(newTree, UNUSED);
+            System.arraycopy(tree, capacity, newTree, newCapacity, numSlots);
+            for (int i = newCapacity - 1; i > 0; --i) {
+                newTree[i] = (short) Math.max(newTree[2 * i], newTree[2 * i + 1]);
+            }
+            this.tree = newTree;
+            this.capacity = newCapacity;
+        }
+        unused.set(numSlots, newNumSlots);
+        numSlots = newNumSlots;
+    }
+
+    int getNumSlots() {
+        return numSlots;
+    }
+
+    /**
+     * @return the free space of the data page in `slot`, or -1 if unused
+     */
+    short get(int slot) {
+        checkSlot(slot);
+        return tree[capacity + slot];
+    }
+
+    /**
+     * Sets the free space of the data page in `slot`, or marks the slot as
+     * unused if freeSpace is -1.
+     */
+    void set(int slot, short freeSpace) {
+        checkSlot(slot);
+        if (freeSpace < UNUSED) {
+            throw new IllegalArgumentException("bad free space " + freeSpace);
+        }
+        unused.set(slot, freeSpace == UNUSED);
+        int i = capacity + slot;
+        tree[i] = freeSpace;
+        for (i /= 2; i > 0; i /= 2) {
+            short max = (short) Math.max(tree[2 * i], tree[2 * i + 1]);
+            if (tree[i] == max) {
+                break;
+            }
+            tree[i] = max;
+        }
+    }
+
+    /**
+     * @return the first used slot whose data page has at least requiredSpace
+     * bytes free, or -1 if there is none
+     */
+    int findFit(short requiredSpace) {
+        if (requiredSpace <= 0) {
+            throw new IllegalArgumentException("cannot request nonpositive amount of space");
+        }
+        if (tree[1] < requiredSpace) {
+            return -1;
+        }
+        int i = 1;
+        while (i < capacity) {
+            i = tree[2 * i] >= requiredSpace ? 2 * i : 2 * i + 1;
+        }
+        return i - capacity;
+    }
+
+    /**
+     * @return the first unused slot, or -1 if every slot is used
+     */
+    int findUnused() {
+        int slot = unused.nextSetBit(0);
+        return slot < numSlots ? slot : -1;
+    }
+
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= numSlots) {
+            throw new IndexOutOfBoundsException("slot " + slot + " out of range [0, " + numSlots + ")");
+        }
+    }
+}
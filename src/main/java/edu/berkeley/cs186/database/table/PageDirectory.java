@@ -14,6 +14,8 @@ import edu.berkeley.cs186.database.io.PageException;
 import edu.berkeley.cs186.database.memory.BufferManager;
 import edu.berkeley.cs186.database.memory.Page;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
 
@@ -38,6 +40,10 @@ import java.util.Random;
  *
  * The page directory id is a randomly generated 32-bit integer used to help detect bugs (where we attempt
  * to write to a page that is not managed by the page directory).
+ *
+ * The free space of every data page is also kept in memory, in a FreeSpaceMap built from the header
+ * pages when the page directory is loaded, so that finding a page with enough space for an insert
+ * only reads the header page of the chosen data page.
  */
 public class PageDirectory implements BacktrackingIterable<Page> {
     // size of the header in header pages
@@ -64,6 +70,13 @@ public class PageDirectory implements BacktrackingIterable<Page> {
     // First header page
     private HeaderPage firstHeader;
 
+    // All header pages, in order
+    private List<HeaderPage> headerPages;
+
+    // Free space of every data page entry, in directory order. Also serializes changes to the
+    // header page entries.
+    private FreeSpaceMap freeSpaceMap;
+
     // Size of metadata of an empty data page.
     private short emptyPageMetadataSize;
 
@@ -89,7 +102,10 @@ public class PageDirectory implements BacktrackingIterable<Page> {
         this.partNum = partNum;
         this.emptyPageMetadataSize = emptyPageMetadataSize;
         this.lockContext = lockContext;
+        this.headerPages = new ArrayList<>();
+        this.freeSpaceMap = new FreeSpaceMap();
         this.firstHeader = new HeaderPage(pageNum, 0, true);
+        updateCapacity();
     }
 
     public short getEffectivePageSize() {
@@ -112,7 +128,32 @@ public class PageDirectory implements BacktrackingIterable<Page> {
             throw new IllegalArgumentException("requesting page with more space than the size of the page");
         }
 
-        Page page = this.firstHeader.loadPageWithSpace(requiredSpace);
+        Page page = null;
+        long pageNum;
+        synchronized (freeSpaceMap) {
+            // use the first header page with either a data page with enough space (preferred), or
+            // an unused entry to allocate a new data page in
+            int fit = freeSpaceMap.findFit(requiredSpace);
+            int unused = freeSpaceMap.findUnused();
+            if (fit == -1 && unused == -1) {
+                addNewHeaderPage();
+                unused = freeSpaceMap.findUnused();
+            }
+            if (fit != -1 && (unused == -1 || fit / HEADER_ENTRY_COUNT <= unused / HEADER_ENTRY_COUNT)) {
+                pageNum = headerPages.get(fit / HEADER_ENTRY_COUNT).reserveSpace(
+                              (short) (fit % HEADER_ENTRY_COUNT), requiredSpace);
+            } else {
+                page = headerPages.get(unused / HEADER_ENTRY_COUNT).allocatePage(
+                           (short) (unused % HEADER_ENTRY_COUNT), requiredSpace);
+                pageNum = page.getPageNum();
+            }
+        }
+        if (page == null) {
+            // The space is reserved, so the page cannot be freed before we get to it. It is fetched
+            // outside of the free space map's monitor: the page may be pinned by a caller that is
+            // waiting on the monitor to update its free space.
+            page = bufferManager.fetchPage(lockContext, pageNum);
+        }
         LockContext pageContext = lockContext.childContext(page.getPageNum());
         // TODO(proj4_part2): Update the following line
         LockUtil.ensureSufficientLockHeld(pageContext, LockType.NL);
@@ -120,28 +161,107 @@ public class PageDirectory implements BacktrackingIterable<Page> {
         return new DataPage(pageDirectoryId, page);
     }
 
+    /**
+     * Allocates a new data page, and takes usedSpace bytes off of its free
+     * space. Unlike getPageWithSpace, this never returns a page that is
+     * already in use, so the caller may write the page in full (e.g. when
+     * bulk loading).
+     */
+    public Page getNewPage(short usedSpace) {
+        if (usedSpace <= 0) {
+            throw new IllegalArgumentException("cannot use nonpositive amount of space");
+        }
+        if (usedSpace > EFFECTIVE_PAGE_SIZE - emptyPageMetadataSize) {
+            throw new IllegalArgumentException("using more space than the size of the page");
+        }
+
+        Page page;
+        synchronized (freeSpaceMap) {
+            int unused = freeSpaceMap.findUnused();
+            if (unused == -1) {
+                addNewHeaderPage();
+                unused = freeSpaceMap.findUnused();
+            }
+            page = headerPages.get(unused / HEADER_ENTRY_COUNT).allocatePage(
+                       (short) (unused % HEADER_ENTRY_COUNT), usedSpace);
+        }
+        LockContext pageContext = lockContext.childContext(page.getPageNum());
+        LockUtil.ensureSufficientLockHeld(pageContext, LockType.NL);
+
+        return new DataPage(pageDirectoryId, page);
+    }
+
     public void updateFreeSpace(Page page, short newFreeSpace) {
-        if (newFreeSpace <= 0 || newFreeSpace > EFFECTIVE_PAGE_SIZE - emptyPageMetadataSize) {
+        if (newFreeSpace < 0 || newFreeSpace > EFFECTIVE_PAGE_SIZE - emptyPageMetadataSize) {
             throw new IllegalArgumentException("bad size for data page free space");
         }
 
-        int headerIndex;
-        short offset;
+        int slot = getSlot(page);
+        synchronized (freeSpaceMap) {
+            setFreeSpace(page, slot, newFreeSpace);
+        }
+    }
+
+    /**
+     * Takes up to maxSpace bytes of the free space of data page `page`, the
+     * same way getPageWithSpace takes the space it is asked for: the space is
+     * no longer handed out to other callers, and is expected to be filled.
+     *
+     * @return the number of bytes taken
+     */
+    public short reserveFreeSpace(Page page, short maxSpace) {
+        if (maxSpace < 0) {
+            throw new IllegalArgumentException("cannot reserve negative amount of space");
+        }
+        int slot = getSlot(page);
+        synchronized (freeSpaceMap) {
+            short freeSpace = freeSpaceMap.get(slot);
+            short space = (short) Math.min(freeSpace, maxSpace);
+            if (space > 0) {
+                setFreeSpace(page, slot, (short) (freeSpace - space));
+            }
+            return space;
+        }
+    }
+
+    /**
+     * Adds `space` bytes to the free space of data page `page`, freeing the
+     * page if it is then entirely free. Unlike updateFreeSpace, this does not
+     * overwrite space reserved by getPageWithSpace or reserveFreeSpace that
+     * has not been filled yet, so it may be used while other callers are
+     * inserting into the page.
+     */
+    public void releaseFreeSpace(Page page, short space) {
+        if (space <= 0) {
+            throw new IllegalArgumentException("cannot release nonpositive amount of space");
+        }
+        int slot = getSlot(page);
+        synchronized (freeSpaceMap) {
+            setFreeSpace(page, slot, (short) (freeSpaceMap.get(slot) + space));
+        }
+    }
+
+    // returns the free space map slot of a data page, read from the data page's header
+    private int getSlot(Page page) {
         page.pin();
         try {
             Buffer b = ((DataPage) page).getFullBuffer();
             b.position(4); // skip page directory id
-            headerIndex = b.getInt();
-            offset = b.getShort();
+            int headerIndex = b.getInt();
+            short offset = b.getShort();
+            return headerIndex * HEADER_ENTRY_COUNT + offset;
         } finally {
             page.unpin();
         }
+    }
 
-        HeaderPage headerPage = firstHeader;
-        for (int i = 0; i < headerIndex; ++i) {
-            headerPage = headerPage.nextPage;
+    // sets the free space of the data page in `slot`; must be called while synchronized on freeSpaceMap
+    private void setFreeSpace(Page page, int slot, short newFreeSpace) {
+        if (newFreeSpace < 0 || newFreeSpace > EFFECTIVE_PAGE_SIZE - emptyPageMetadataSize) {
+            throw new IllegalArgumentException("bad size for data page free space");
         }
-        headerPage.updateSpace(page, offset, newFreeSpace);
+        headerPages.get(slot / HEADER_ENTRY_COUNT).updateSpace(page, (short) (slot % HEADER_ENTRY_COUNT),
+                                                               newFreeSpace);
     }
 
     @Override
@@ -159,10 +279,46 @@ public class PageDirectory implements BacktrackingIterable<Page> {
         return numDataPages;
     }
 
+    // for lock escalation based on the fraction of the data pages locked (see
+    // EscalationPolicy); called whenever a data page is added or freed
+    private void updateCapacity() {
+        lockContext.setCapacity(getNumDataPages());
+    }
+
     public int getPartNum() {
         return partNum;
     }
 
+    // add a new header page to the end of the header page chain
+    private void addNewHeaderPage() {
+        HeaderPage lastHeader = headerPages.get(headerPages.size() - 1);
+        Page page = bufferManager.fetchNewPage(lockContext, partNum);
+        lastHeader.page.pin();
+        try {
+            lastHeader.nextPage = new HeaderPage(page.getPageNum(), lastHeader.headerOffset + 1, false);
+            // the next page number follows the valid byte and the page directory id
+            lastHeader.page.getBuffer().position(5).putLong(page.getPageNum());
+        } finally {
+            lastHeader.page.unpin();
+            page.unpin();
+        }
+    }
+
+    /**
+     * Returns the page numbers of every data page in this heap file, in
+     * directory order. Only the header pages are read, so callers can split
+     * the data pages up among several readers without fetching them here.
+     */
+    public List<Long> getDataPageNums() {
+        List<Long> pageNums = new ArrayList<>();
+        HeaderPage headerPage = firstHeader;
+        while (headerPage != null) {
+            headerPage.addDataPageNums(pageNums);
+            headerPage = headerPage.nextPage;
+        }
+        return pageNums;
+    }
+
     /**
      * Wrapper around page object to skip the header and verify that it belongs to this
      * page directory.
@@ -249,6 +405,10 @@ public class PageDirectory implements BacktrackingIterable<Page> {
             // data page, which is perfectly fine.
             this.page.disableLocking();
             this.numDataPages = 0;
+            this.headerOffset = headerOffset;
+            headerPages.add(this);
+            freeSpaceMap.grow(HEADER_ENTRY_COUNT);
+            int firstSlot = headerOffset * HEADER_ENTRY_COUNT;
             long nextPageNum;
             try {
                 Buffer pageBuffer = this.page.getBuffer();
@@ -279,13 +439,13 @@ public class PageDirectory implements BacktrackingIterable<Page> {
                         DataPageEntry dpe = DataPageEntry.fromBytes(pageBuffer);
                         if (dpe.isValid()) {
                             ++this.numDataPages;
+                            freeSpaceMap.set(firstSlot + i, dpe.freeSpace);
                         }
                     }
                 }
             } finally {
                 this.page.unpin();
             }
-            this.headerOffset = headerOffset;
             if (nextPageNum == DiskSpaceManager.INVALID_PAGE_NUM) {
                 this.nextPage = null;
             } else {
@@ -293,71 +453,61 @@ public class PageDirectory implements BacktrackingIterable<Page> {
             }
         }
 
-        // add a new header page
-        private void addNewHeaderPage() {
-            if (this.nextPage != null) {
-                this.nextPage.addNewHeaderPage();
-                return;
+        // takes requiredSpace bytes off of the free space of the data page in entry `index`, which
+        // must have at least that much free, and returns the data page's page number
+        private long reserveSpace(short index, short requiredSpace) {
+            this.page.pin();
+            try {
+                Buffer b = this.page.getBuffer();
+                b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * index);
+                DataPageEntry dpe = DataPageEntry.fromBytes(b);
+                assert dpe.isValid() && dpe.freeSpace >= requiredSpace;
+                dpe.freeSpace -= requiredSpace;
+                b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * index);
+                dpe.toBytes(b);
+                freeSpaceMap.set(headerOffset * HEADER_ENTRY_COUNT + index, dpe.freeSpace);
+                return dpe.pageNum;
+            } finally {
+                this.page.unpin();
             }
-            Page page = bufferManager.fetchNewPage(lockContext, partNum);
+        }
+
+        // allocates a new data page in the unused entry `index`, and takes requiredSpace bytes off
+        // of its free space
+        private Page allocatePage(short index, short requiredSpace) {
             this.page.pin();
             try {
-                this.nextPage = new HeaderPage(page.getPageNum(), headerOffset + 1, false);
-                this.page.getBuffer().position(1).putLong(page.getPageNum());
+                Page page = bufferManager.fetchNewPage(lockContext, partNum);
+                DataPageEntry dpe = new DataPageEntry(page.getPageNum(),
+                                                      (short) (EFFECTIVE_PAGE_SIZE - emptyPageMetadataSize - requiredSpace));
+
+                Buffer b = this.page.getBuffer();
+                b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * index);
+                dpe.toBytes(b);
+                freeSpaceMap.set(headerOffset * HEADER_ENTRY_COUNT + index, dpe.freeSpace);
+
+                page.getBuffer().putInt(pageDirectoryId).putInt(headerOffset).putShort(index);
+
+                ++this.numDataPages;
+                updateCapacity();
+                return page;
             } finally {
                 this.page.unpin();
-                page.unpin();
             }
         }
 
-        // gets and loads a page with the required free space
-        private Page loadPageWithSpace(short requiredSpace) {
+        // appends the page numbers of the valid data pages managed by this header page
+        private void addDataPageNums(List<Long> pageNums) {
             this.page.pin();
             try {
                 Buffer b = this.page.getBuffer();
                 b.position(HEADER_HEADER_SIZE);
-
-                // if we have any data page managed by this header page with enough space, return it
-                short unusedSlot = -1;
-                for (short i = 0; i < HEADER_ENTRY_COUNT; ++i) {
+                for (int i = 0; i < HEADER_ENTRY_COUNT; ++i) {
                     DataPageEntry dpe = DataPageEntry.fromBytes(b);
-                    if (!dpe.isValid()) {
-                        if (unusedSlot == -1) {
-                            unusedSlot = i;
-                        }
-                        continue;
+                    if (dpe.isValid()) {
+                        pageNums.add(dpe.pageNum);
                     }
-                    if (dpe.freeSpace >= requiredSpace) {
-                        dpe.freeSpace -= requiredSpace;
-                        b.position(b.position() - DataPageEntry.SIZE);
-                        dpe.toBytes(b);
-
-                        return bufferManager.fetchPage(lockContext, dpe.pageNum);
-                    }
-                }
-
-                // if we have any unused slot in this header page, allocate a new data page
-                if (unusedSlot != -1) {
-                    Page page = bufferManager.fetchNewPage(lockContext, partNum);
-                    DataPageEntry dpe = new DataPageEntry(page.getPageNum(),
-                                                          (short) (EFFECTIVE_PAGE_SIZE - emptyPageMetadataSize - requiredSpace));
-
-                    b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * unusedSlot);
-                    dpe.toBytes(b);
-
-                    page.getBuffer().putInt(pageDirectoryId).putInt(headerOffset).putShort(unusedSlot);
-
-                    ++this.numDataPages;
-                    return page;
                 }
-
-                // if we have no next header page, make one
-                if (this.nextPage == null) {
-                    this.addNewHeaderPage();
-                }
-
-                // no space on this header page, try next one
-                return this.nextPage.loadPageWithSpace(requiredSpace);
             } finally {
                 this.page.unpin();
             }
@@ -375,12 +525,16 @@ public class PageDirectory implements BacktrackingIterable<Page> {
                     dpe.freeSpace = newFreeSpace;
                     b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * index);
                     dpe.toBytes(b);
+                    freeSpaceMap.set(headerOffset * HEADER_ENTRY_COUNT + index, newFreeSpace);
                 } else {
                     // the entire page is free; free it
                     Buffer b = this.page.getBuffer();
                     b.position(HEADER_HEADER_SIZE + DataPageEntry.SIZE * index);
                     (new DataPageEntry()).toBytes(b);
+                    freeSpaceMap.set(headerOffset * HEADER_ENTRY_COUNT + index, FreeSpaceMap.UNUSED);
                     bufferManager.freePage(dataPage);
+                    --this.numDataPages;
+                    updateCapacity();
                 }
             } finally {
                 this.page.unpin();
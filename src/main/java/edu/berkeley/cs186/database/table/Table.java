@@ -3,6 +3,7 @@ package edu.berkeley.cs186.database.table;
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.common.Bits;
 import edu.berkeley.cs186.database.common.Buffer;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterable;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.common.iterator.ConcatBacktrackingIterator;
@@ -14,8 +15,11 @@ import edu.berkeley.cs186.database.io.PageException;
 import edu.berkeley.cs186.database.memory.Page;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -89,6 +93,17 @@ import java.util.Map;
  * only supports locking at the page level, so in cases where tuple-level locks are
  * necessary even at the cost of an I/O per tuple, a full page record may be desirable),
  * and may be explicitly toggled on with the setFullPageRecords method.
+ *
+ * # Concurrency
+ * Record operations do not synchronize on the table. Instead, each keeps the
+ * data page it works on pinned from start to finish, and the buffer frame lock
+ * held by a pin acts as a latch on the page: operations on the same page run
+ * one at a time, and operations on different pages of a table run at the same
+ * time. The latch only protects the bytes of a page for the duration of one
+ * operation; isolation between transactions still comes from the page locks
+ * taken through the lock manager. Inserts reserve space on a page through the
+ * page directory before pinning the page, so every insert that gets to a page
+ * is guaranteed a free entry on it.
  */
 public class Table implements BacktrackingIterable<Record> {
     // The name of the table.
@@ -130,7 +145,13 @@ public class Table implements BacktrackingIterable<Record> {
         this.pageDirectory.setEmptyPageMetadataSize((short) (pageDirectory.getEffectivePageSize() - numRecordsPerPage
                                                * schema.getSizeInBytes()));
         this.stats = stats;
-        if (!this.stats.containsKey(name)) this.stats.put(name, new TableStats(this.schema, this.numRecordsPerPage));
+        if (!this.stats.containsKey(name)) {
+            TableStats tableStats = new TableStats(this.schema, this.numRecordsPerPage);
+            // the sketches of distinct values have not seen the records already
+            // in a table loaded from disk
+            if (pageDirectory.getNumDataPages() > 0) tableStats.markSketchesIncomplete();
+            this.stats.put(name, tableStats);
+        }
     }
 
     public Table(String name, Schema schema, PageDirectory pageDirectory, LockContext lockContext) {
@@ -168,6 +189,14 @@ public class Table implements BacktrackingIterable<Record> {
         return pageDirectory.getPartNum();
     }
 
+    /**
+     * @return the page numbers of all data pages of this table, read from the
+     * page directory's header pages without fetching the data pages themselves
+     */
+    public List<Long> getDataPageNums() {
+        return pageDirectory.getDataPageNums();
+    }
+
     private byte[] getBitMap(Page page) {
         if (bitmapSizeInBytes > 0) {
             byte[] bytes = new byte[bitmapSizeInBytes];
@@ -231,7 +260,15 @@ public class Table implements BacktrackingIterable<Record> {
         this.stats.get(name).refreshHistograms(buckets, this);
     }
 
-    private synchronized void insertRecord(Page page, int entryNum, Record record) {
+    /**
+     * Builds histograms on each of the columns of a table from a sample of at
+     * most maxPages of its data pages; see TableStats#refreshHistograms.
+     */
+    public void buildStatistics(int buckets, int maxPages) {
+        this.stats.get(name).refreshHistograms(buckets, this, maxPages);
+    }
+
+    private void insertRecord(Page page, int entryNum, Record record) {
         int offset = bitmapSizeInBytes + (entryNum * schema.getSizeInBytes());
         page.getBuffer().position(offset).put(record.toBytes(schema));
     }
@@ -244,7 +281,7 @@ public class Table implements BacktrackingIterable<Record> {
      * first free page has bitmap 0b11101000, then the record is inserted into
      * the page with index 3 and the bitmap is updated to 0b11111000.
      */
-    public synchronized RecordId addRecord(Record record) {
+    public RecordId addRecord(Record record) {
         record = schema.verify(record);
         Page page = pageDirectory.getPageWithSpace(schema.getSizeInBytes());
         try {
@@ -276,11 +313,153 @@ public class Table implements BacktrackingIterable<Record> {
         }
     }
 
+    /**
+     * addRecords adds the records in `records` to this table, in order, and
+     * returns their record ids. The records end up where repeated calls to
+     * addRecord would put them, but each data page is filled with as many of
+     * the records as fit on it under a single pin: records going into
+     * consecutive free slots are written together (and logged as one page
+     * write), and the bitmap and the page's free space are updated once per
+     * page rather than once per record.
+     *
+     * If a record does not match the schema, the records before it are
+     * still added, and an exception is thrown.
+     */
+    public List<RecordId> addRecords(Iterator<Record> records) {
+        List<RecordId> rids = new ArrayList<>();
+        short recordSize = schema.getSizeInBytes();
+        while (records.hasNext()) {
+            List<Record> batch = new ArrayList<>();
+            batch.add(schema.verify(records.next()));
+            Page page = pageDirectory.getPageWithSpace(recordSize);
+            try {
+                byte[] bitmap = getBitMap(page);
+                List<Integer> freeEntries = new ArrayList<>();
+                if (numRecordsPerPage == 1) {
+                    freeEntries.add(0);
+                } else {
+                    for (int i = 0; i < numRecordsPerPage; ++i) {
+                        if (Bits.getBit(bitmap, i) == Bits.Bit.ZERO) {
+                            freeEntries.add(i);
+                        }
+                    }
+                }
+                assert (!freeEntries.isEmpty());
+
+                // Reserve the rest of the page's space (entries may also be
+                // reserved by concurrent inserts), and take as many records as
+                // fit in it. getPageWithSpace already took the first record's.
+                int numReserved = 1 + pageDirectory.reserveFreeSpace(
+                                          page, (short) ((freeEntries.size() - 1) * recordSize)) / recordSize;
+                DatabaseException error = null;
+                while (batch.size() < numReserved && records.hasNext()) {
+                    try {
+                        batch.add(schema.verify(records.next()));
+                    } catch (DatabaseException e) {
+                        error = e;
+                        break;
+                    }
+                }
+
+                // Write each run of records going into consecutive entries at once.
+                int start = 0;
+                while (start < batch.size()) {
+                    int end = start + 1;
+                    while (end < batch.size() && freeEntries.get(end) == freeEntries.get(end - 1) + 1) {
+                        ++end;
+                    }
+                    byte[] bytes = new byte[(end - start) * recordSize];
+                    for (int i = start; i < end; ++i) {
+                        Record record = batch.get(i);
+                        System.arraycopy(record.toBytes(schema), 0, bytes, (i - start) * recordSize, recordSize);
+                        Bits.setBit(bitmap, freeEntries.get(i), Bits.Bit.ONE);
+                        stats.get(name).addRecord(record);
+                        rids.add(new RecordId(page.getPageNum(), (short) (int) freeEntries.get(i)));
+                    }
+                    int offset = bitmapSizeInBytes + (freeEntries.get(start) * recordSize);
+                    page.getBuffer().position(offset).put(bytes);
+                    start = end;
+                }
+                writeBitMap(page, bitmap);
+
+                if (batch.size() < numReserved) {
+                    pageDirectory.releaseFreeSpace(page, (short) ((numReserved - batch.size()) * recordSize));
+                }
+                if (error != null) {
+                    throw error;
+                }
+            } finally {
+                page.unpin();
+            }
+        }
+        return rids;
+    }
+
+    /**
+     * bulkLoad appends the records in `records` to this table on newly
+     * allocated data pages, and returns the page numbers of those pages, in
+     * order. Unlike addRecords, the free space left on the table's existing
+     * pages is not reused: each page is built in memory, packed with as many
+     * of the records as fit (only the last page may be partly full), and
+     * written out with a single write, so that it is logged as an image of
+     * the page rather than record by record.
+     *
+     * If a record does not match the schema (or `records` fails to produce
+     * one), the records before it are still added, and the exception is
+     * thrown.
+     */
+    public List<Long> bulkLoad(Iterator<Record> records) {
+        LockUtil.ensureSufficientLockHeld(tableContext, LockType.X);
+
+        List<Long> pageNums = new ArrayList<>();
+        short recordSize = schema.getSizeInBytes();
+        byte[] image = new byte[bitmapSizeInBytes + numRecordsPerPage * recordSize];
+        DatabaseException error = null;
+        while (error == null) {
+            Arrays.fill(image, 0, bitmapSizeInBytes, (byte) 0);
+            int numRecords = 0;
+            while (numRecords < numRecordsPerPage) {
+                Record record;
+                try {
+                    if (!records.hasNext()) {
+                        break;
+                    }
+                    record = schema.verify(records.next());
+                } catch (DatabaseException e) {
+                    error = e;
+                    break;
+                }
+                int offset = bitmapSizeInBytes + numRecords * recordSize;
+                System.arraycopy(record.toBytes(schema), 0, image, offset, recordSize);
+                if (bitmapSizeInBytes > 0) {
+                    Bits.setBit(image, numRecords, Bits.Bit.ONE);
+                }
+                stats.get(name).addRecord(record);
+                ++numRecords;
+            }
+            if (numRecords == 0) {
+                break;
+            }
+
+            Page page = pageDirectory.getNewPage((short) (numRecords * recordSize));
+            try {
+                page.getBuffer().put(image, 0, bitmapSizeInBytes + numRecords * recordSize);
+                pageNums.add(page.getPageNum());
+            } finally {
+                page.unpin();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+        return pageNums;
+    }
+
     /**
      * Retrieves a record from the table, throwing an exception if no such record
      * exists.
      */
-    public synchronized Record getRecord(RecordId rid) {
+    public Record getRecord(RecordId rid) {
         validateRecordId(rid);
         Page page = fetchPage(rid.getPageNum());
         try {
@@ -299,12 +478,64 @@ public class Table implements BacktrackingIterable<Record> {
         }
     }
 
+    /**
+     * Retrieves the records in entries `entryNums` of data page `pageNum`, in
+     * the order given, fetching the page only once. An exception is thrown if
+     * any of the entries is empty.
+     */
+    public List<Record> getRecords(long pageNum, List<Short> entryNums) {
+        for (short entryNum : entryNums) {
+            validateRecordId(new RecordId(pageNum, entryNum));
+        }
+        Page page = fetchPage(pageNum);
+        try {
+            byte[] bitmap = getBitMap(page);
+            Buffer buf = page.getBuffer();
+            List<Record> records = new ArrayList<>();
+            for (short entryNum : entryNums) {
+                if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ZERO) {
+                    String msg = String.format("Record %s does not exist.", new RecordId(pageNum, entryNum));
+                    throw new DatabaseException(msg);
+                }
+                buf.position(bitmapSizeInBytes + (entryNum * schema.getSizeInBytes()));
+                records.add(Record.fromBytes(buf, schema));
+            }
+            return records;
+        } finally {
+            page.unpin();
+        }
+    }
+
+    /**
+     * Retrieves every record on data page `pageNum`, paired with its record id.
+     * Separate threads may read different pages of the same table at the same
+     * time (as the parallel scan of a bulk index build does).
+     */
+    public List<Pair<RecordId, Record>> getPageRecords(long pageNum) {
+        Page page = fetchPage(pageNum);
+        try {
+            byte[] bitmap = getBitMap(page);
+            Buffer buf = page.getBuffer();
+            List<Pair<RecordId, Record>> records = new ArrayList<>();
+            for (int entryNum = 0; entryNum < numRecordsPerPage; ++entryNum) {
+                if (Bits.getBit(bitmap, entryNum) == Bits.Bit.ONE) {
+                    buf.position(bitmapSizeInBytes + (entryNum * schema.getSizeInBytes()));
+                    records.add(new Pair<>(new RecordId(pageNum, (short) entryNum),
+                                           Record.fromBytes(buf, schema)));
+                }
+            }
+            return records;
+        } finally {
+            page.unpin();
+        }
+    }
+
     /**
      * Overwrites an existing record with new values and returns the existing
      * record. stats is updated accordingly. An exception is thrown if rid does
      * not correspond to an existing record in the table.
      */
-    public synchronized Record updateRecord(RecordId rid, Record updated) {
+    public Record updateRecord(RecordId rid, Record updated) {
         validateRecordId(rid);
         // If we're updating a record we'll need exclusive access to the page
         // its on.
@@ -313,10 +544,10 @@ public class Table implements BacktrackingIterable<Record> {
         LockUtil.ensureSufficientLockHeld(pageContext, LockType.NL);
 
         Record newRecord = schema.verify(updated);
-        Record oldRecord = getRecord(rid);
 
         Page page = fetchPage(rid.getPageNum());
         try {
+            Record oldRecord = getRecord(rid);
             insertRecord(page, rid.getEntryNum(), newRecord);
 
             this.stats.get(name).removeRecord(oldRecord);
@@ -332,7 +563,7 @@ public class Table implements BacktrackingIterable<Record> {
      * stats, freePageNums, and numRecords as necessary. An exception is thrown
      * if rid does not correspond to an existing record in the table.
      */
-    public synchronized Record deleteRecord(RecordId rid) {
+    public Record deleteRecord(RecordId rid) {
         validateRecordId(rid);
         LockContext pageContext = tableContext.childContext(rid.getPageNum());
 
@@ -348,9 +579,9 @@ public class Table implements BacktrackingIterable<Record> {
             writeBitMap(page, bitmap);
 
             stats.get(name).removeRecord(record);
-            int numRecords = numRecordsPerPage == 1 ? 0 : numRecordsOnPage(page);
-            pageDirectory.updateFreeSpace(page,
-                                     (short) ((numRecordsPerPage - numRecords) * schema.getSizeInBytes()));
+            // Give the entry's space back, without overwriting space reserved
+            // by concurrent inserts that have not pinned the page yet.
+            pageDirectory.releaseFreeSpace(page, schema.getSizeInBytes());
             return record;
         } finally {
             page.unpin();
@@ -371,17 +602,6 @@ public class Table implements BacktrackingIterable<Record> {
         }
     }
 
-    private int numRecordsOnPage(Page page) {
-        byte[] bitmap = getBitMap(page);
-        int numRecords = 0;
-        for (int i = 0; i < numRecordsPerPage; ++i) {
-            if (Bits.getBit(bitmap, i) == Bits.Bit.ONE) {
-                numRecords++;
-            }
-        }
-        return numRecords;
-    }
-
     private void validateRecordId(RecordId rid) {
         int e = rid.getEntryNum();
 
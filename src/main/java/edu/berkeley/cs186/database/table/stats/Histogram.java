@@ -6,7 +6,11 @@ import edu.berkeley.cs186.database.databox.TypeId;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Table;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * A histogram maintains approximate statistics about a (potentially large) set
@@ -38,6 +42,13 @@ import java.util.Iterator;
  * you will work with a floating point histogram where low and high are defined by floats.
  * For any other data type, we will map it so it fits into a floating point histogram.
  *
+ * Histograms are equi-depth: each bucket holds about the same number of
+ * values, so that the buckets are narrow where the values are dense. A value
+ * frequent enough to fill a bucket on its own gets a bucket of its own, whose
+ * count is then that value's frequency. Histograms are built from a sample of
+ * the values when the table is too large to read in full (see
+ * TableStats#refreshHistograms).
+ *
  *
  * The primary data structure to consider is Bucket<Float>[] buckets, which is a list of Bucket
  * objects
@@ -56,7 +67,6 @@ public class Histogram {
 
     private float minValue;
     private float maxValue;
-    private float width;    // The width of each bucket
 
     /*This constructor initialize an empty histogram object*/
     public Histogram() {
@@ -75,21 +85,59 @@ public class Histogram {
     private Histogram(Bucket[] buckets) {
         this.buckets = buckets;
         this.minValue = buckets[0].getStart();
-        this.width = buckets[0].getEnd() - buckets[0].getStart();
         this.maxValue = buckets[this.buckets.length - 1].getEnd();
     }
 
+    /**
+     * @return the number of bytes toBytes takes for a histogram of numBuckets
+     * buckets
+     */
+    public static int getSizeInBytes(int numBuckets) {
+        // the number of buckets, then the start, end, count and distinct
+        // count of each
+        return Integer.BYTES + numBuckets * (2 * Float.BYTES + 2 * Integer.BYTES);
+    }
+
+    /**
+     * @return the buckets of the histogram, serialized
+     */
+    public byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate(getSizeInBytes(buckets.length));
+        buf.putInt(buckets.length);
+        for (Bucket bucket : buckets) {
+            buf.putFloat(bucket.getStart());
+            buf.putFloat(bucket.getEnd());
+            buf.putInt(bucket.getCount());
+            buf.putInt(bucket.getDistinctCount());
+        }
+        return buf.array();
+    }
+
+    /**
+     * @return the histogram serialized by toBytes at the start of bytes
+     */
+    public static Histogram fromBytes(byte[] bytes) {
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        Bucket[] buckets = new Bucket[buf.getInt()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket(buf.getFloat(), buf.getFloat());
+            buckets[i].setCount(buf.getInt());
+            buckets[i].setDistinctCount(buf.getInt());
+        }
+        return new Histogram(buckets);
+    }
+
     /** We only consider float histograms, and these two methods turn every data type into a float.
      *  We call this mapping quantization. That means given any DataBox, we turn it into a float number.
      *  For Booleans, Integers, Floats, order is preserved in the mapping. But for strings, only equalities
      *  are preserved.
      */
-    private float quantization(Record record, int index) {
+    static float quantization(Record record, int index) {
         DataBox d = record.getValue(index);
         return quantization(d);
     }
 
-    private float quantization(DataBox d) {
+    static float quantization(DataBox d) {
         switch (d.getTypeId()) {
         case BOOL:   { return (d.getBool()) ? 1.0f : 0.0f; }
         case INT:    { return (float) d.getInt(); }
@@ -100,54 +148,93 @@ public class Histogram {
         throw new IllegalStateException("Unreachable code.");
     }
 
-    /** buildHistogram() takes a table and an attribute and builds a fixed width histogram, with
-     *  the following procedure.
-     *
-     *  1. Take a pass through the full table, and store the min and the max "quantized" value.
-     *  2. Calculate the width which is the (max - min)/#buckets
-     *  3. Create empty bucket objects and place them in the array.
-     *  4. Populate the buckets by incrementing
-     *
-     *  Edge cases: width = 0, put an item only in the last bucket.
-     *              final buckunreachableet is inclusive on the last value.
+    /**
+     * buildHistogram() takes a table and an attribute and builds a histogram
+     * over every value of the attribute, reading the table once.
      */
     public void buildHistogram(Table table, int attribute) {
-        // 1. first calculate the min and the max values
-        // 2. calculate the width of each bin
-        // 3. create each bucket object
-        // 4. populate the data using the increment(value) method
+        float[] values = new float[16];
+        int numValues = 0;
         Iterator<Record> iter = table.iterator();
         while (iter.hasNext()) {
-            Record record = iter.next();
-            float quantizedValue = quantization(record, attribute);
-            this.minValue = Math.min(this.minValue, quantizedValue);
-            this.maxValue = Math.max(this.maxValue, quantizedValue);
+            if (numValues == values.length) values = Arrays.copyOf(values, 2 * numValues);
+            values[numValues++] = quantization(iter.next(), attribute);
         }
+        buildHistogram(values, numValues, numValues);
+    }
 
-        this.width = (this.maxValue - this.minValue) / this.buckets.length;
-
-        for (int i = 0; i < this.buckets.length; i++) {
-            buckets[i] = new Bucket(this.minValue + (i) * width, this.minValue + (i + 1) * width);
+    /**
+     * Builds an equi-depth histogram from the quantized values of a sample of
+     * a table's records:
+     *
+     *  1. Sort the values.
+     *  2. Walk them in order, closing the current bucket once it holds at
+     *     least numValues / #buckets values and the next value differs, so
+     *     that equal values always share a bucket. A bucket ends where the
+     *     next one starts, and the last one ends at the largest value.
+     *  3. Scale the count of each bucket up from the sample to numRecords,
+     *     and estimate its number of distinct values from the sample with
+     *     Haas and Stokes' Duj1 estimator, d / (1 - (1 - q) * f1 / n): a
+     *     sample of n values, a fraction q of the bucket's values, with d
+     *     distinct ones of which f1 appear once. A sample of distinct values
+     *     then stands for a bucket of distinct values, and a sample of
+     *     repeated values for a bucket of those values only.
+     *
+     * @param values the sampled values, sorted in place
+     * @param numValues the number of sampled values (the rest of values is
+     *                  unused)
+     * @param numRecords the number of records in the table sampled
+     */
+    public void buildHistogram(float[] values, int numValues, int numRecords) {
+        if (numValues == 0) {
+            this.buckets = new Bucket[] { new Bucket(0, 0) };
+            this.buckets[0].setDistinctCount(0);
+            this.minValue = 0;
+            this.maxValue = 0;
+            return;
         }
+        Arrays.sort(values, 0, numValues);
+        this.minValue = values[0];
+        this.maxValue = values[numValues - 1];
+        double scale = (double) numRecords / numValues;
+        double depth = (double) numValues / this.buckets.length;
+
+        List<Bucket> newBuckets = new ArrayList<>();
+        int start = 0;
+        while (start < numValues) {
+            int end = Math.max(start + 1, (int) Math.ceil(depth * (newBuckets.size() + 1)));
+            end = Math.min(end, numValues);
+            while (end < numValues && values[end] == values[end - 1]) end++;
+            float high = end < numValues ? values[end] : this.maxValue;
+            newBuckets.add(sampledBucket(values, start, end, high, scale));
+            start = end;
+        }
+        this.buckets = newBuckets.toArray(new Bucket[0]);
+    }
 
-        iter = table.iterator();
-        while (iter.hasNext()) {
-            Record record = iter.next();
-            float quantizedValue = quantization(record, attribute);
-
-            int bucketIndex;
-
-            if (this.width == 0) {
-                bucketIndex = this.buckets.length - 1; //always put in the last bin
-            } else {
-                bucketIndex = (int) Math.floor((quantizedValue - this.minValue) / this.width);
-                bucketIndex = Math.max(0, bucketIndex);
-                bucketIndex = Math.min(bucketIndex, this.buckets.length - 1);
-            }
-
-            buckets[bucketIndex].increment(quantizedValue);
+    /**
+     * @return a bucket from high (exclusive, unless it is the last bucket) of
+     * the sampled values values[start:end], scaled up by scale
+     */
+    private static Bucket sampledBucket(float[] values, int start, int end, float high, double scale) {
+        Bucket bucket = new Bucket(values[start], high);
+        int numDistinct = 0;
+        int numSingletons = 0;
+        for (int i = start; i < end; ) {
+            int j = i + 1;
+            while (j < end && values[j] == values[i]) j++;
+            numDistinct++;
+            if (j - i == 1) numSingletons++;
+            i = j;
         }
+        int numSampled = end - start;
+        int count = (int) Math.round(numSampled * scale);
+        double distinct = numDistinct / (1 - (1 - 1 / scale) * numSingletons / numSampled);
+        bucket.setCount(count);
+        bucket.setDistinctCount((int) Math.max(1, Math.min(count, Math.round(distinct))));
+        return bucket;
     }
+
     //Accessor Methods//////////////////////////////////////////////////////////////
     /** Return an estimate of the number of distinct values in the histogram. */
     public int getNumDistinct() {
@@ -322,6 +409,12 @@ public class Histogram {
         return result;
     }
 
+    // Buckets have different widths; a bucket that contains a value it
+    // doesn't start with has a nonzero width
+    private float width(int i) {
+        return this.buckets[i].getEnd() - this.buckets[i].getStart();
+    }
+
     /**
      *  Given a quantized value, set the bucket that contains the value by (end - q)/width,
      *  and set all other buckets to 1 if higher and 0 if lower.
@@ -331,7 +424,7 @@ public class Histogram {
 
         for (int i = 0; i < this.buckets.length; i++) {
             if (qvalue >= this.buckets[i].getStart() && qvalue < this.buckets[i].getEnd()) {
-                result[i] = (this.buckets[i].getEnd() - qvalue) / this.width;
+                result[i] = (this.buckets[i].getEnd() - qvalue) / width(i);
             } else if (qvalue < this.buckets[i].getStart()) {
                 result[i] = 1.0f;
             } else {
@@ -351,7 +444,7 @@ public class Histogram {
 
         for (int i = 0; i < this.buckets.length; i++) {
             if (qvalue >= this.buckets[i].getStart() && qvalue < this.buckets[i].getEnd()) {
-                result[i] = (qvalue - this.buckets[i].getStart()) / this.width;
+                result[i] = (qvalue - this.buckets[i].getStart()) / width(i);
             } else if (qvalue >= this.buckets[i].getEnd()) {
                 result[i] = 1.0f;
             } else {
@@ -368,7 +461,8 @@ public class Histogram {
      * Return an estimate of the reduction factor for a given filter. For
      * example, consider again the example histogram from the top of the file.
      * The reduction factor for the predicate `>= 25` is 0.5 because roughly half
-     * of the values are greater than or equal to 25.
+     * of the values are greater than or equal to 25. Buckets are weighed by
+     * their counts, so that frequent values weigh as much as they should.
      */
     public float computeReductionFactor(PredicateOperator predicate, DataBox value) {
         float[] reduction = filter(predicate, value);
@@ -378,11 +472,16 @@ public class Histogram {
 
         for (int i = 0; i < this.buckets.length; i++) {
             //non empty buckets
-            sum += reduction[i] * this.buckets[i].getDistinctCount();
-            total += this.buckets[i].getDistinctCount();
+            sum += reduction[i] * this.buckets[i].getCount();
+            total += this.buckets[i].getCount();
         }
 
-        return sum / total;
+        return total == 0 ? 0.0f : sum / total;
+    }
+
+    /** Return the number of buckets of the histogram. */
+    public int getNumBuckets() {
+        return this.buckets.length;
     }
 
     /**
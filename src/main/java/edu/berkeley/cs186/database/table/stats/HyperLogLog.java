@@ -0,0 +1,121 @@
+package edu.berkeley.cs186.database.table.stats;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+
+/**
+ * A HyperLogLog sketch (Flajolet et al.) estimates the number of distinct
+ * values added to it in a fixed amount of memory: 2^PRECISION registers of a
+ * byte each, for a standard error of about 1.04 / sqrt(2^PRECISION), 1.6%.
+ *
+ * Each value is hashed to 64 bits; the first PRECISION bits pick a register,
+ * which keeps the largest number of leading zeros (plus one) seen in the
+ * remaining bits. Small counts are estimated by linear counting over the
+ * empty registers instead, which is nearly exact.
+ *
+ * Values can only be added: removing a value from the table leaves the
+ * estimate unchanged, so that it may overestimate the number of distinct
+ * values until the sketch is rebuilt.
+ */
+public class HyperLogLog {
+    static final int PRECISION = 12;
+    private static final int NUM_REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / NUM_REGISTERS);
+    // registers hold at most 64 - PRECISION + 1 < 2^6, so that they are stored
+    // in 6 bits each
+    public static final int NUM_BYTES = NUM_REGISTERS * 6 / Byte.SIZE;
+
+    private byte[] registers;
+
+    public HyperLogLog() {
+        this.registers = new byte[NUM_REGISTERS];
+    }
+
+    /**
+     * @return the 64 bit hash of d, which HyperLogLog needs to be uniform
+     */
+    static long hash(DataBox d) {
+        return mix(d.hashCode());
+    }
+
+    /**
+     * @return a 64 bit hash of the combination of two hashes, for values
+     * made up of several columns
+     */
+    static long combine(long hash1, long hash2) {
+        return mix(hash1 * 31 + hash2);
+    }
+
+    // MurmurHash3's 64 bit finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public void add(DataBox d) {
+        addHash(hash(d));
+    }
+
+    /**
+     * Adds a value given its 64 bit hash.
+     */
+    void addHash(long hash) {
+        int register = (int) (hash >>> (Long.SIZE - PRECISION));
+        // the low bit set makes sure rank is at most 64 - PRECISION + 1
+        long rest = (hash << PRECISION) | (1L << (PRECISION - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(rest) + 1);
+        if (rank > registers[register]) registers[register] = rank;
+    }
+
+    /**
+     * @return the estimated number of distinct values added
+     */
+    public long estimate() {
+        double sum = 0;
+        int numZeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) numZeros++;
+        }
+        double estimate = ALPHA * NUM_REGISTERS * NUM_REGISTERS / sum;
+        if (estimate <= 2.5 * NUM_REGISTERS && numZeros > 0) {
+            estimate = NUM_REGISTERS * Math.log((double) NUM_REGISTERS / numZeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * @return the registers of the sketch packed into NUM_BYTES bytes, four
+     * registers to every three bytes
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[NUM_BYTES];
+        for (int i = 0, j = 0; i < NUM_REGISTERS; i += 4, j += 3) {
+            int packed = registers[i] | registers[i + 1] << 6 | registers[i + 2] << 12 | registers[i + 3] << 18;
+            bytes[j] = (byte) packed;
+            bytes[j + 1] = (byte) (packed >>> 8);
+            bytes[j + 2] = (byte) (packed >>> 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the sketch whose registers toBytes packed into bytes
+     */
+    public static HyperLogLog fromBytes(byte[] bytes) {
+        if (bytes.length != NUM_BYTES) {
+            throw new IllegalArgumentException("a sketch takes " + NUM_BYTES + " bytes");
+        }
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0, j = 0; i < NUM_REGISTERS; i += 4, j += 3) {
+            int packed = (bytes[j] & 0xff) | (bytes[j + 1] & 0xff) << 8 | (bytes[j + 2] & 0xff) << 16;
+            for (int k = 0; k < 4; k++) {
+                sketch.registers[i + k] = (byte) (packed >>> (6 * k) & 0x3f);
+            }
+        }
+        return sketch;
+    }
+}
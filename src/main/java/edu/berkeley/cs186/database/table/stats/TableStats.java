@@ -1,15 +1,17 @@
 package edu.berkeley.cs186.database.table.stats;
 
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.table.PageDirectory;
 import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.Table;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.*;
 
 /**
  * Every table in a database maintains a set of table statistics which are
@@ -44,13 +46,107 @@ import java.util.List;
  *   stats.getNumRecords(); // Estimated number of records.
  *   stats.getNumPages();   // Estimated number of pages.
  *   stats.getHistograms(); // Histograms on each column.
+ *   stats.getNumDistinct(0); // Estimated number of distinct values of x.
+ *
+ * The number of distinct values of each column is kept in a HyperLogLog
+ * sketch, which addRecord keeps up to date. Correlated columns, such as a
+ * city and its zip code, have far fewer distinct combinations of values than
+ * the product of their numbers of distinct values; for such columns, a
+ * column group (see addColumnGroup) keeps a sketch of the combinations of
+ * their values as well. Sketches only see the records added after they are
+ * created, so the sketches of a table that already held records when its
+ * statistics were created are complete only once refreshHistograms reads the
+ * whole table; until then, distinct counts come from the histograms.
+ *
+ * The statistics of intermediate results (see the copiers below) carry the
+ * distinct counts estimated from those of their inputs instead of sketches.
  */
 public class TableStats {
+    // number of data pages read by default to refresh the histograms
+    public static final int DEFAULT_SAMPLE_PAGES = 1024;
+    // number of bytes a histogram takes in a row of _metadata.statistics
+    // (see toRecords), and the most buckets a histogram is built with so
+    // that it fits
+    public static final int HISTOGRAM_BYTES = 900;
+    public static final int MAX_BUCKETS = (HISTOGRAM_BYTES - Histogram.getSizeInBytes(0)) /
+                                          (Histogram.getSizeInBytes(1) - Histogram.getSizeInBytes(0));
+    // number of characters the column indices of a row of
+    // _metadata.statistics take (see toRecords), which limits the size of
+    // column groups
+    public static final int MAX_COLUMNS_LENGTH = 32;
+
     private Schema schema;
     private int numRecordsPerPage;
     private int numRecords;
     private List<Histogram> histograms;
 
+    // The statistics of a table keep a sketch of the values of each column,
+    // and of each column group; sketchesComplete is whether the sketches of
+    // the columns have seen every record of the table.
+    private HyperLogLog[] sketches;
+    private boolean sketchesComplete;
+    private List<ColumnGroup> columnGroups;
+    // The sketches being rebuilt by refreshHistograms calls in progress,
+    // which addRecord adds to as well (see Refresh).
+    private List<Refresh> refreshes = new ArrayList<>();
+
+    // The statistics of an intermediate result keep the estimated number of
+    // distinct values of each column and of the column groups it inherits,
+    // keyed on their column indices.
+    private int[] numDistinct;
+    private Map<Set<Integer>, Integer> groupNumDistinct;
+
+    // The number of records added or removed since the histograms were last
+    // refreshed, and the trigger run once it reaches refreshThreshold (see
+    // setAutoRefresh).
+    private int numModifications;
+    private int refreshThreshold;
+    private Runnable refreshTrigger;
+    // Incremented on every change to the statistics, to tell whether they
+    // changed since they were last saved.
+    private long version;
+
+    private static class ColumnGroup {
+        List<Integer> columns;
+        HyperLogLog sketch = new HyperLogLog();
+        // whether the sketch has seen every record of the table
+        boolean complete;
+
+        ColumnGroup(List<Integer> columns, boolean complete) {
+            this.columns = columns;
+            this.complete = complete;
+        }
+
+        long hash(Record record) {
+            long hash = 0;
+            for (int i : columns) {
+                hash = HyperLogLog.combine(hash, HyperLogLog.hash(record.getValue(i)));
+            }
+            return hash;
+        }
+    }
+
+    // The sketches a refreshHistograms call rebuilds, of the columns and of
+    // the column groups there were when it started. addRecord adds to them
+    // too while it runs, since the records it adds may be on pages the
+    // refresh has already read (or didn't list).
+    private static class Refresh {
+        HyperLogLog[] sketches;
+        List<ColumnGroup> groups;
+        HyperLogLog[] groupSketches;
+
+        Refresh(int numColumns, List<ColumnGroup> groups) {
+            this.sketches = newSketches(numColumns);
+            this.groups = groups;
+            this.groupSketches = newSketches(groups.size());
+        }
+
+        void add(Record record) {
+            for (int i = 0; i < sketches.length; i++) sketches[i].add(record.getValue(i));
+            for (int i = 0; i < groups.size(); i++) groupSketches[i].addHash(groups.get(i).hash(record));
+        }
+    }
+
     /** Construct a TableStats for an empty table with schema `schema`. */
     public TableStats(Schema schema, int numRecordsPerPage) {
         this.schema = schema;
@@ -61,36 +157,283 @@ public class TableStats {
             Histogram h = new Histogram();
             this.histograms.add(h);
         }
+        this.sketches = newSketches(schema.size());
+        this.sketchesComplete = true;
+        this.columnGroups = new ArrayList<>();
     }
 
     private TableStats(Schema schema, int numRecordsPerPage, int numRecords,
-                       List<Histogram> histograms) {
+                       List<Histogram> histograms, int[] numDistinct,
+                       Map<Set<Integer>, Integer> groupNumDistinct) {
         this.schema = schema;
         this.numRecordsPerPage = numRecordsPerPage;
         this.numRecords = numRecords;
         this.histograms = histograms;
+        this.numDistinct = numDistinct;
+        this.groupNumDistinct = groupNumDistinct;
+    }
+
+    private static HyperLogLog[] newSketches(int numColumns) {
+        HyperLogLog[] sketches = new HyperLogLog[numColumns];
+        for (int i = 0; i < numColumns; i++) sketches[i] = new HyperLogLog();
+        return sketches;
     }
 
     // Modifiers /////////////////////////////////////////////////////////////////
-    public void addRecord(Record record) {
+    // Records may be added to and removed from different pages of a table at
+    // the same time, so these synchronize.
+    public synchronized void addRecord(Record record) {
         numRecords++;
+        for (int i = 0; i < sketches.length; i++) {
+            sketches[i].add(record.getValue(i));
+        }
+        for (ColumnGroup group : columnGroups) {
+            group.sketch.addHash(group.hash(record));
+        }
+        for (Refresh refresh : refreshes) refresh.add(record);
+        modified();
     }
 
-    public void removeRecord(Record record) {
+    /**
+     * A sketch cannot forget a value, so removing a record leaves the
+     * distinct counts unchanged (though they are capped at the number of
+     * records left) until refreshHistograms rebuilds the sketches.
+     */
+    public synchronized void removeRecord(Record record) {
         numRecords = Math.max(numRecords - 1, 0);
+        modified();
+    }
+
+    private void modified() {
+        version++;
+        numModifications++;
+        if (refreshTrigger != null && numModifications >= refreshThreshold) {
+            Runnable trigger = refreshTrigger;
+            refreshTrigger = null;
+            trigger.run();
+        }
+    }
+
+    /**
+     * Runs trigger once the number of records added or removed since the
+     * histograms were last refreshed reaches threshold, right away if it
+     * already has. The trigger runs once, and should refresh the statistics
+     * and set a new trigger; it runs while records are being added or
+     * removed, so it should not refresh them itself.
+     */
+    public synchronized void setAutoRefresh(int threshold, Runnable trigger) {
+        refreshThreshold = threshold;
+        refreshTrigger = null;
+        if (numModifications >= threshold) {
+            trigger.run();
+        } else {
+            refreshTrigger = trigger;
+        }
+    }
+
+    /**
+     * Marks the sketches as missing the records already in the table, for
+     * the statistics of a table loaded from disk: distinct counts come from
+     * the histograms until refreshHistograms reads the whole table.
+     */
+    public synchronized void markSketchesIncomplete() {
+        sketchesComplete = false;
+        for (ColumnGroup group : columnGroups) group.complete = false;
+        version++;
     }
 
+    /**
+     * Keeps track of the number of distinct combinations of values of the
+     * columns named columnNames, so that the optimizer does not assume that
+     * they are independent. Like the sketches of single columns, the sketch
+     * of the group is complete if the table is empty, and otherwise once
+     * refreshHistograms reads the whole table.
+     *
+     * The indices of the columns, separated by commas, may take at most
+     * MAX_COLUMNS_LENGTH characters, so that the group can be saved.
+     */
+    public synchronized void addColumnGroup(List<String> columnNames) {
+        Set<Integer> columns = new TreeSet<>();
+        for (String name : columnNames) columns.add(schema.findField(name));
+        if (columns.size() < 2) {
+            throw new IllegalArgumentException("a column group needs at least two distinct columns");
+        }
+        List<Integer> groupColumns = new ArrayList<>(columns);
+        if (columnsString(groupColumns).length() > MAX_COLUMNS_LENGTH) {
+            throw new IllegalArgumentException("too many columns in column group " + columnNames);
+        }
+        for (ColumnGroup group : columnGroups) {
+            if (group.columns.equals(groupColumns)) return;
+        }
+        columnGroups.add(new ColumnGroup(groupColumns, sketchesComplete && numRecords == 0));
+        version++;
+    }
+
+    /**
+     * Rebuilds the histograms of every column of table, reading at most
+     * DEFAULT_SAMPLE_PAGES of its data pages; see the overload below.
+     */
     public void refreshHistograms(int buckets, Table table) {
+        refreshHistograms(buckets, table, DEFAULT_SAMPLE_PAGES);
+    }
+
+    /**
+     * Rebuilds the histograms of every column of table (see Histogram) in
+     * one pass over a sample of its data pages, costing at most maxPages page
+     * reads. Tables of up to maxPages pages are read in full; for larger
+     * ones, maxPages pages are picked uniformly at random by reservoir
+     * sampling the page numbers in the page directory (which only reads its
+     * header pages), and the histograms and number of records are scaled up
+     * from the records on the sampled pages. Histograms have at most
+     * MAX_BUCKETS buckets, however many are asked for.
+     *
+     * A table read in full has its sketches rebuilt as well; the records
+     * added while it is read are added to the new sketches too, whether or
+     * not they are on the pages read.
+     */
+    public void refreshHistograms(int buckets, Table table, int maxPages) {
+        if (maxPages < 1) throw new IllegalArgumentException("must sample at least one page");
+        buckets = Math.min(buckets, MAX_BUCKETS);
+        // registered before the pages are listed, so that the records added
+        // from here on reach the new sketches even if they are on pages
+        // that are not read
+        Refresh refresh;
+        synchronized (this) {
+            refresh = new Refresh(schema.size(), new ArrayList<>(columnGroups));
+            refreshes.add(refresh);
+        }
+        try {
+            refreshHistograms(buckets, table, maxPages, refresh);
+        } finally {
+            synchronized (this) {
+                refreshes.remove(refresh);
+            }
+        }
+    }
+
+    private void refreshHistograms(int buckets, Table table, int maxPages, Refresh refresh) {
+        Random random = new Random();
+        long[] sample = new long[maxPages];
+        int numPages = 0;
+        for (long pageNum : table.getDataPageNums()) {
+            if (numPages < maxPages) {
+                sample[numPages] = pageNum;
+            } else {
+                int i = random.nextInt(numPages + 1);
+                if (i < maxPages) sample[i] = pageNum;
+            }
+            numPages++;
+        }
+        int numSampled = Math.min(numPages, maxPages);
+        // read the sampled pages in order
+        Arrays.sort(sample, 0, numSampled);
+
+        // a table read in full has its sketches rebuilt as well, which drops
+        // the values of removed records
+        boolean fullRead = numSampled == numPages;
+
+        float[][] values = new float[schema.size()][16];
+        int numValues = 0;
+        for (int i = 0; i < numSampled; i++) {
+            for (Pair<RecordId, Record> entry : table.getPageRecords(sample[i])) {
+                Record record = entry.getSecond();
+                if (numValues == values[0].length) {
+                    for (int j = 0; j < values.length; j++) {
+                        values[j] = Arrays.copyOf(values[j], 2 * numValues);
+                    }
+                }
+                for (int j = 0; j < values.length; j++) {
+                    values[j][numValues] = Histogram.quantization(record, j);
+                }
+                if (fullRead) refresh.add(record);
+                numValues++;
+            }
+        }
+
+        int totalRecords = numSampled == numPages ? numValues :
+                           (int) Math.round((double) numValues * numPages / numSampled);
         List<Histogram> newHistograms = new ArrayList<>();
-        int totalRecords = 0;
-        for (int i = 0; i < schema.size(); i++) {
+        for (int j = 0; j < schema.size(); j++) {
             Histogram h = new Histogram(buckets);
-            h.buildHistogram(table, i);
+            h.buildHistogram(values[j], numValues, totalRecords);
             newHistograms.add(h);
-            totalRecords += h.getCount();
         }
-        this.histograms = newHistograms;
-        this.numRecords = Math.round(((float) totalRecords) / schema.size());
+        synchronized (this) {
+            this.histograms = newHistograms;
+            this.numRecords = totalRecords;
+            this.numModifications = 0;
+            this.version++;
+            if (fullRead) {
+                this.sketches = refresh.sketches;
+                this.sketchesComplete = true;
+                for (int j = 0; j < refresh.groups.size(); j++) {
+                    refresh.groups.get(j).sketch = refresh.groupSketches[j];
+                    refresh.groups.get(j).complete = true;
+                }
+            }
+        }
+    }
+
+    // Persistence ///////////////////////////////////////////////////////////////
+    /**
+     * @return the rows of _metadata.statistics (see
+     * Database#getStatisticsSchema) saving these statistics of the table
+     * tableName: one for each column, with its histogram and sketch, and one
+     * for each column group, with its sketch.
+     */
+    public synchronized List<Record> toRecords(String tableName) {
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < schema.size(); i++) {
+            byte[] histogram = new byte[HISTOGRAM_BYTES];
+            byte[] bytes = histograms.get(i).toBytes();
+            System.arraycopy(bytes, 0, histogram, 0, bytes.length);
+            records.add(new Record(tableName, Integer.toString(i), numRecords, numModifications,
+                                   sketchesComplete, histogram, sketches[i].toBytes()));
+        }
+        for (ColumnGroup group : columnGroups) {
+            records.add(new Record(tableName, columnsString(group.columns), numRecords, numModifications,
+                                   group.complete, new byte[HISTOGRAM_BYTES], group.sketch.toBytes()));
+        }
+        return records;
+    }
+
+    // the column indices of a row of _metadata.statistics
+    private static String columnsString(List<Integer> columns) {
+        StringJoiner joiner = new StringJoiner(",");
+        for (int i : columns) joiner.add(Integer.toString(i));
+        return joiner.toString();
+    }
+
+    /**
+     * @return the statistics of a table with schema `schema` saved in the
+     * rows `records` by toRecords
+     */
+    public static TableStats fromRecords(Schema schema, int numRecordsPerPage, List<Record> records) {
+        TableStats stats = new TableStats(schema, numRecordsPerPage);
+        for (Record record : records) {
+            String[] columns = record.getValue(1).getString().trim().split(",");
+            stats.numRecords = record.getValue(2).getInt();
+            stats.numModifications = record.getValue(3).getInt();
+            boolean complete = record.getValue(4).getBool();
+            HyperLogLog sketch = HyperLogLog.fromBytes(record.getValue(6).toBytes());
+            if (columns.length == 1) {
+                int i = Integer.parseInt(columns[0]);
+                byte[] histogram = record.getValue(5).toBytes();
+                // a histogram that was not saved has no buckets
+                if (ByteBuffer.wrap(histogram).getInt() > 0) {
+                    stats.histograms.set(i, Histogram.fromBytes(histogram));
+                }
+                stats.sketches[i] = sketch;
+                stats.sketchesComplete &= complete;
+            } else {
+                List<Integer> groupColumns = new ArrayList<>();
+                for (String column : columns) groupColumns.add(Integer.parseInt(column));
+                ColumnGroup group = new ColumnGroup(groupColumns, complete);
+                group.sketch = sketch;
+                stats.columnGroups.add(group);
+            }
+        }
+        return stats;
     }
 
     // Accessors /////////////////////////////////////////////////////////////////
@@ -113,6 +456,109 @@ public class TableStats {
         return histograms;
     }
 
+    /**
+     * @return the number of records added or removed since the histograms
+     * were last refreshed
+     */
+    public synchronized int getNumModifications() {
+        return numModifications;
+    }
+
+    /**
+     * @return a number that changes whenever the statistics do
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the estimated number of distinct values of column `column`:
+     * from its sketch if it is complete, and from its histogram otherwise
+     */
+    public int getNumDistinct(int column) {
+        if (numDistinct != null) return numDistinct[column];
+        synchronized (this) {
+            if (sketchesComplete) {
+                return (int) Math.min(sketches[column].estimate(), numRecords);
+            }
+        }
+        return Math.min(histograms.get(column).getNumDistinct(), numRecords);
+    }
+
+    /**
+     * @return the estimated number of distinct combinations of values of
+     * `columns`, for instance the number of groups of a GROUP BY on them. It
+     * comes from a column group on exactly those columns if there is one, and
+     * otherwise from the product of the numbers of distinct values of every
+     * column, which assumes that they are independent.
+     */
+    public int getNumDistinct(Collection<Integer> columns) {
+        Set<Integer> columnSet = new TreeSet<>(columns);
+        if (columnSet.isEmpty()) return Math.min(numRecords, 1);
+        if (columnSet.size() == 1) return getNumDistinct(columnSet.iterator().next());
+        Integer groupDistinct = getGroupNumDistinct().get(columnSet);
+        if (groupDistinct != null) return groupDistinct;
+        long product = 1;
+        for (int i : columnSet) {
+            product *= Math.max(getNumDistinct(i), 1);
+            if (product >= numRecords) break;
+        }
+        return (int) Math.min(product, numRecords);
+    }
+
+    /**
+     * @return the estimated number of distinct values of every column
+     */
+    private int[] getNumDistinct() {
+        int[] result = new int[schema.size()];
+        for (int i = 0; i < result.length; i++) result[i] = getNumDistinct(i);
+        return result;
+    }
+
+    /**
+     * @return the estimated number of distinct combinations of values of
+     * every column group known to be complete, keyed on its columns
+     */
+    private Map<Set<Integer>, Integer> getGroupNumDistinct() {
+        if (groupNumDistinct != null) return groupNumDistinct;
+        Map<Set<Integer>, Integer> result = new HashMap<>();
+        synchronized (this) {
+            for (ColumnGroup group : columnGroups) {
+                if (group.complete) {
+                    result.put(new TreeSet<>(group.columns),
+                               (int) Math.min(group.sketch.estimate(), numRecords));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the expected number of distinct values left of numDistinct
+     * values over numRecords records once only newNumRecords of the records,
+     * picked at random, are kept, assuming that every value appears as often
+     * (Cardenas' formula)
+     */
+    static int reduceNumDistinct(int numDistinct, int numRecords, int newNumRecords) {
+        if (numDistinct <= 0 || numRecords <= 0 || newNumRecords <= 0) return 0;
+        if (newNumRecords >= numRecords) return numDistinct;
+        double kept = 1.0 - (double) newNumRecords / numRecords;
+        double result = numDistinct * (1.0 - Math.pow(kept, (double) numRecords / numDistinct));
+        return (int) Math.max(1, Math.min(Math.round(result), newNumRecords));
+    }
+
+    private static Map<Set<Integer>, Integer> reduceGroupNumDistinct(Map<Set<Integer>, Integer> groups,
+                                                                      int numRecords, int newNumRecords,
+                                                                      int offset) {
+        Map<Set<Integer>, Integer> result = new HashMap<>();
+        for (Map.Entry<Set<Integer>, Integer> group : groups.entrySet()) {
+            Set<Integer> columns = new TreeSet<>();
+            for (int i : group.getKey()) columns.add(i + offset);
+            result.put(columns, reduceNumDistinct(group.getValue(), numRecords, newNumRecords));
+        }
+        return result;
+    }
+
     // Copiers ///////////////////////////////////////////////////////////////////
     /**
      * Estimates the table statistics for the table that would be produced after
@@ -168,7 +614,24 @@ public class TableStats {
             }
         }
         int numRecords = copyHistograms.get(column).getCount();
-        return new TableStats(this.schema, this.numRecordsPerPage, numRecords, copyHistograms);
+
+        // Records are kept at random as far as other columns go, while the
+        // predicate keeps its share of the values of the target column.
+        int[] copyNumDistinct = getNumDistinct();
+        for (int j = 0; j < copyNumDistinct.length; j++) {
+            if (j != column) {
+                copyNumDistinct[j] = reduceNumDistinct(copyNumDistinct[j], this.numRecords, numRecords);
+            } else if (predicate == PredicateOperator.EQUALS) {
+                copyNumDistinct[j] = Math.min(numRecords, 1);
+            } else {
+                int reduced = Math.round(copyNumDistinct[j] * reductionFactor);
+                copyNumDistinct[j] = Math.max(Math.min(reduced, numRecords), Math.min(numRecords, 1));
+            }
+        }
+        Map<Set<Integer>, Integer> copyGroupNumDistinct = reduceGroupNumDistinct(
+                getGroupNumDistinct(), this.numRecords, numRecords, 0);
+        return new TableStats(this.schema, this.numRecordsPerPage, numRecords, copyHistograms,
+                              copyNumDistinct, copyGroupNumDistinct);
     }
 
     /**
@@ -186,15 +649,8 @@ public class TableStats {
         // Compute the new schema.
         Schema joinedSchema = this.schema.concat(rightStats.schema);
         int inputSize = this.numRecords * rightStats.numRecords;
-        int leftNumDistinct = 1;
-        if (this.histograms.size() > 0) {
-            leftNumDistinct = this.histograms.get(leftIndex).getNumDistinct() + 1;
-        }
-
-        int rightNumDistinct = 1;
-        if (rightStats.histograms.size() > 0) {
-            rightNumDistinct = rightStats.histograms.get(rightIndex).getNumDistinct() + 1;
-        }
+        int leftNumDistinct = Math.max(this.getNumDistinct(leftIndex), 1);
+        int rightNumDistinct = Math.max(rightStats.getNumDistinct(rightIndex), 1);
 
         float reductionFactor = 1.0f / Math.max(leftNumDistinct, rightNumDistinct);
         List<Histogram> copyHistograms = new ArrayList<>();
@@ -211,8 +667,93 @@ public class TableStats {
             copyHistograms.add(rightHistogram.copyWithJoin(outputSize, rightReductionFactor));
         }
 
+        // Every value of the join column on the side with fewer of them finds
+        // a match (containment of values), so the records of each side with a
+        // match are a random sample of its records as far as its other columns
+        // go.
+        int joinNumDistinct = Math.min(leftNumDistinct, rightNumDistinct);
+        int leftMatched = (int) ((long) this.numRecords * joinNumDistinct / leftNumDistinct);
+        int rightMatched = (int) ((long) rightStats.numRecords * joinNumDistinct / rightNumDistinct);
+        int[] leftDistinct = this.getNumDistinct();
+        int[] rightDistinct = rightStats.getNumDistinct();
+        int[] copyNumDistinct = new int[leftDistinct.length + rightDistinct.length];
+        for (int j = 0; j < leftDistinct.length; j++) {
+            copyNumDistinct[j] = reduceNumDistinct(leftDistinct[j], this.numRecords, leftMatched);
+        }
+        for (int j = 0; j < rightDistinct.length; j++) {
+            copyNumDistinct[leftDistinct.length + j] = reduceNumDistinct(
+                    rightDistinct[j], rightStats.numRecords, rightMatched);
+        }
+        copyNumDistinct[leftIndex] = joinNumDistinct;
+        copyNumDistinct[leftDistinct.length + rightIndex] = joinNumDistinct;
+        for (int j = 0; j < copyNumDistinct.length; j++) {
+            copyNumDistinct[j] = Math.min(copyNumDistinct[j], outputSize);
+        }
+
+        Map<Set<Integer>, Integer> copyGroupNumDistinct = reduceGroupNumDistinct(
+                this.getGroupNumDistinct(), this.numRecords, leftMatched, 0);
+        copyGroupNumDistinct.putAll(reduceGroupNumDistinct(
+                rightStats.getGroupNumDistinct(), rightStats.numRecords, rightMatched, leftDistinct.length));
+        copyGroupNumDistinct.replaceAll((columns, count) -> Math.min(count, outputSize));
+
         int joinedRecordsPerPage = Table.computeNumRecordsPerPage(
                 PageDirectory.EFFECTIVE_PAGE_SIZE, joinedSchema);
-        return new TableStats(joinedSchema, joinedRecordsPerPage, outputSize, copyHistograms);
+        return new TableStats(joinedSchema, joinedRecordsPerPage, outputSize, copyHistograms,
+                              copyNumDistinct, copyGroupNumDistinct);
+    }
+
+    /**
+     * Creates a new TableStats for the table that results from keeping only
+     * the columns at positions `columns` (in that order) of this table. The
+     * number of records is unchanged, but more of them fit on a page.
+     */
+    public TableStats copyWithProjection(List<Integer> columns) {
+        Schema projectedSchema = new Schema();
+        List<Histogram> copyHistograms = new ArrayList<>();
+        int[] copyNumDistinct = new int[columns.size()];
+        for (int j = 0; j < columns.size(); j++) {
+            int i = columns.get(j);
+            projectedSchema.add(schema.getFieldName(i), schema.getFieldType(i));
+            copyHistograms.add(histograms.get(i));
+            copyNumDistinct[j] = getNumDistinct(i);
+        }
+        // column groups whose columns are all kept carry over
+        Map<Set<Integer>, Integer> copyGroupNumDistinct = new HashMap<>();
+        for (Map.Entry<Set<Integer>, Integer> group : getGroupNumDistinct().entrySet()) {
+            Set<Integer> projected = new TreeSet<>();
+            for (int i : group.getKey()) {
+                if (columns.contains(i)) projected.add(columns.indexOf(i));
+            }
+            if (projected.size() == group.getKey().size()) {
+                copyGroupNumDistinct.put(projected, group.getValue());
+            }
+        }
+        int projectedRecordsPerPage = Table.computeNumRecordsPerPage(
+                PageDirectory.EFFECTIVE_PAGE_SIZE, projectedSchema);
+        return new TableStats(projectedSchema, projectedRecordsPerPage, this.numRecords, copyHistograms,
+                              copyNumDistinct, copyGroupNumDistinct);
+    }
+
+    /**
+     * Creates a new TableStats for the result of grouping this table on the
+     * columns at positions `columns`, with one record per group: the number
+     * of records is the number of distinct combinations of values of the
+     * columns (see getNumDistinct(Collection)).
+     */
+    public TableStats copyWithGroupBy(List<Integer> columns) {
+        int numGroups = getNumDistinct(columns);
+        float reductionFactor = this.numRecords == 0 ? 0 : (float) numGroups / this.numRecords;
+        List<Histogram> copyHistograms = new ArrayList<>();
+        for (Histogram histogram : histograms) {
+            copyHistograms.add(histogram.copyWithReduction(reductionFactor));
+        }
+        int[] copyNumDistinct = getNumDistinct();
+        for (int j = 0; j < copyNumDistinct.length; j++) {
+            copyNumDistinct[j] = Math.min(copyNumDistinct[j], numGroups);
+        }
+        Map<Set<Integer>, Integer> copyGroupNumDistinct = new HashMap<>(getGroupNumDistinct());
+        copyGroupNumDistinct.replaceAll((group, count) -> Math.min(count, numGroups));
+        return new TableStats(this.schema, this.numRecordsPerPage, numGroups, copyHistograms,
+                              copyNumDistinct, copyGroupNumDistinct);
     }
 }
@@ -4,13 +4,18 @@ import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.SystemTests;
 import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
 import edu.berkeley.cs186.database.databox.IntDataBox;
 import edu.berkeley.cs186.database.databox.StringDataBox;
 import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.index.BPlusTreeException;
+import edu.berkeley.cs186.database.index.BPlusTreeMetadata;
+import edu.berkeley.cs186.database.query.PlanCache;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.RecordId;
 import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.stats.TableStats;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -19,10 +24,15 @@ import org.junit.experimental.categories.Category;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
-import java.util.Iterator;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @Category({Proj99Tests.class, SystemTests.class})
 public class TestDatabase {
@@ -306,4 +316,453 @@ public class TestDatabase {
             assertFalse(iter.hasNext());
         }
     }
+
+    @Test
+    public void testBulkLoadIndex() {
+        // Enough rows to span many data pages and several sort runs with a
+        // work memory of 4 pages.
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 5000; ++i) {
+            ids.add(i);
+        }
+        Collections.shuffle(ids, new Random(186));
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("id", Type.intType())
+                    .add("name", Type.stringType(10));
+            t1.createTable(s, "table1");
+            for (int id : ids) {
+                t1.insert("table1", id, "name" + (id % 10));
+            }
+            t1.commit();
+        }
+
+        db.setIndexBuildParallelism(3);
+        try (Transaction t2 = db.beginTransaction()) {
+            t2.createIndex("table1", "id", true);
+            TransactionContext context = t2.getTransactionContext();
+
+            Iterator<Record> iter = context.sortedScan("table1", "id");
+            for (int i = 0; i < 5000; ++i) {
+                assertEquals(new Record(i, "name" + (i % 10)), iter.next());
+            }
+            assertFalse(iter.hasNext());
+
+            iter = context.lookupKey("table1", "id", new IntDataBox(4321));
+            assertEquals(new Record(4321, "name1"), iter.next());
+            assertFalse(iter.hasNext());
+            t2.commit();
+        }
+    }
+
+    @Test
+    public void testInsertBatch() {
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 3000; ++i) {
+            records.add(new Record((i * 7919) % 3000, "name" + (i % 10)));
+        }
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("id", Type.intType())
+                    .add("name", Type.stringType(10));
+            t1.createTable(s, "table1");
+            t1.createIndex("table1", "id", false);
+            t1.insertBatch("table1", records.iterator());
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            TransactionContext context = t2.getTransactionContext();
+            Iterator<Record> iter = context.getRecordIterator("table1");
+            for (Record record : records) {
+                assertEquals(record, iter.next());
+            }
+            assertFalse(iter.hasNext());
+
+            iter = context.sortedScan("table1", "id");
+            for (int i = 0; i < 3000; ++i) {
+                assertEquals(i, iter.next().getValue(0).getInt());
+            }
+            assertFalse(iter.hasNext());
+            t2.commit();
+        }
+    }
+
+    @Test
+    public void testBulkLoad() {
+        Schema s = new Schema()
+                .add("id", Type.intType())
+                .add("name", Type.stringType(10));
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 3000; ++i) {
+            records.add(new Record((i * 7919) % 3000, "name" + (i % 10)));
+        }
+        try (Transaction t1 = db.beginTransaction()) {
+            t1.createTable(s, "table1");
+            t1.createIndex("table1", "id", false);
+            // the empty index is built after the first load, the second load
+            // adds its keys to the existing index
+            assertEquals(2000, t1.bulkLoad("table1", records.subList(0, 2000).iterator()));
+            assertEquals(1000, t1.bulkLoad("table1", records.subList(2000, 3000).iterator()));
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            TransactionContext context = t2.getTransactionContext();
+            Iterator<Record> iter = context.getRecordIterator("table1");
+            for (Record record : records) {
+                assertEquals(record, iter.next());
+            }
+            assertFalse(iter.hasNext());
+
+            iter = context.sortedScan("table1", "id");
+            for (int i = 0; i < 3000; ++i) {
+                assertEquals(i, iter.next().getValue(0).getInt());
+            }
+            assertFalse(iter.hasNext());
+            t2.commit();
+        }
+    }
+
+    @Test
+    public void testCopyFrom() throws IOException {
+        Schema s = new Schema()
+                .add("id", Type.intType())
+                .add("name", Type.stringType(10))
+                .add("score", Type.floatType());
+        File csv = tempFolder.newFile("table1.csv");
+        try (PrintWriter out = new PrintWriter(csv)) {
+            out.println("id,name,score");
+            for (int i = 0; i < 1000; ++i) {
+                out.println(i + ",name" + i + "," + (i / 2.0f));
+            }
+            out.println("oops,name,1.0");
+            out.println("1001,name,1.0");
+        }
+        try (Transaction t1 = db.beginTransaction()) {
+            t1.createTable(s, "table1");
+            t1.createIndex("table1", "name", false);
+            try {
+                t1.copyFrom("table1", csv.getAbsolutePath(), true);
+                fail();
+            } catch (DatabaseException e) {
+                // the records before the bad line are still loaded
+                assertTrue(e.getMessage().contains(":1002:"));
+            }
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            TransactionContext context = t2.getTransactionContext();
+            Iterator<Record> iter = context.getRecordIterator("table1");
+            for (int i = 0; i < 1000; ++i) {
+                assertEquals(new Record(i, "name" + i, i / 2.0f), iter.next());
+            }
+            assertFalse(iter.hasNext());
+            iter = context.lookupKey("table1", "name", new StringDataBox("name123", 10));
+            assertEquals(new Record(123, "name123", 61.5f), iter.next());
+            assertFalse(iter.hasNext());
+            t2.commit();
+        }
+    }
+
+    @Test
+    public void testInsertBatchBadRecord() {
+        try (Transaction t1 = db.beginTransaction()) {
+            Schema s = new Schema()
+                    .add("id", Type.intType())
+                    .add("name", Type.stringType(10));
+            t1.createTable(s, "table1");
+            t1.createIndex("table1", "id", false);
+            t1.insert("table1", 5, "name5");
+
+            // the third record doesn't match the schema
+            List<Record> records = Arrays.asList(new Record(1, "name1"), new Record(2, "name2"),
+                                                 new Record("three", "name3"), new Record(4, "name4"));
+            try {
+                t1.insertBatch("table1", records.iterator());
+                fail("record not matching the schema should be rejected");
+            } catch (DatabaseException e) {
+                // expected
+            }
+            // the third record is already in the index
+            records = Arrays.asList(new Record(6, "name6"), new Record(7, "name7"), new Record(5, "name5"));
+            try {
+                t1.insertBatch("table1", records.iterator());
+                fail("duplicate key should be rejected");
+            } catch (BPlusTreeException e) {
+                // expected
+            }
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            TransactionContext context = t2.getTransactionContext();
+            List<Record> scanned = new ArrayList<>();
+            context.getRecordIterator("table1").forEachRemaining(scanned::add);
+            List<Record> indexed = new ArrayList<>();
+            context.sortedScan("table1", "id").forEachRemaining(indexed::add);
+            assertEquals(Collections.singletonList(new Record(5, "name5")), scanned);
+            assertEquals(scanned, indexed);
+            t2.commit();
+        }
+    }
+
+    @Test
+    public void testCompositeIndex() {
+        Schema s = new Schema()
+                .add("id", Type.intType())
+                .add("name", Type.stringType(10))
+                .add("score", Type.floatType());
+        try (Transaction t1 = db.beginTransaction()) {
+            t1.createTable(s, "table1");
+            t1.createTable(s, "table2");
+            for (int i = 0; i < 300; ++i) {
+                // ids repeat, so only (id, name) is unique
+                t1.insert("table1", i % 30, "name" + (299 - i), (float) i);
+                t1.insert("table2", i % 30, "name" + (299 - i), (float) i);
+            }
+            t1.commit();
+        }
+
+        try (Transaction t2 = db.beginTransaction()) {
+            t2.createIndex("table1", Arrays.asList("id", "name"), Collections.singletonList("score"), false);
+            t2.createIndex("table2", Arrays.asList("id", "name"), Collections.singletonList("score"), true);
+            t2.insert("table1", -1, "name", 0.5f);
+            t2.delete("table1", "score", PredicateOperator.EQUALS, new FloatDataBox(0.0f));
+            t2.commit();
+        }
+
+        try (Transaction t3 = db.beginTransaction()) {
+            TransactionContext context = t3.getTransactionContext();
+            for (String table : Arrays.asList("table1", "table2")) {
+                assertFalse(context.indexExists(table, "id"));
+                assertTrue(context.indexExists(table, "id,name"));
+                assertEquals(1, context.getIndices(table).size());
+                Iterator<Record> iter = context.sortedScan(table, "id,name");
+                if (table.equals("table1")) {
+                    assertEquals(new Record(-1, "name", 0.5f), iter.next());
+                }
+                Record prev = null;
+                int count = 0;
+                while (iter.hasNext()) {
+                    Record r = iter.next();
+                    if (prev != null) {
+                        int cmp = prev.getValue(0).compareTo(r.getValue(0));
+                        assertTrue(cmp < 0 || (cmp == 0 && prev.getValue(1).compareTo(r.getValue(1)) < 0));
+                    }
+                    prev = r;
+                    ++count;
+                }
+                assertEquals(table.equals("table1") ? 299 : 300, count);
+            }
+
+            // the keys hold the included column as well
+            Iterator<DataBox> keys = context.scanIndexKeys("table2", "id,name", null);
+            BPlusTreeMetadata index = context.getIndices("table2").get(0);
+            assertEquals(new Record(0, "name119", 180.0f), index.decodeKey(keys.next(), s));
+        }
+    }
+
+    @Test
+    public void testPreparedStatement() {
+        Schema s = new Schema()
+                .add("id", Type.intType())
+                .add("name", Type.stringType(10));
+        try (Transaction t1 = db.beginTransaction()) {
+            t1.createTable(s, "table1");
+            for (int i = 0; i < 1000; ++i) {
+                t1.insert("table1", i, "name" + i);
+            }
+            t1.insert("table1", 1000, "it's");
+            t1.createIndex("table1", "id", false);
+            t1.commit();
+        }
+
+        PlanCache cache = db.getPlanCache();
+        PreparedStatement statement = db.prepare("SELECT * FROM table1 WHERE id = ? AND name != '?';");
+        assertEquals(1, statement.getNumParameters());
+        try (Transaction t2 = db.beginTransaction()) {
+            for (int i = 0; i < 10; ++i) {
+                // planned once, then rebuilt from the cache with each value
+                Iterator<Record> iter = statement.execute(t2, i * 7).get().execute();
+                assertEquals(new Record(i * 7, "name" + (i * 7)), iter.next());
+                assertFalse(iter.hasNext());
+            }
+            assertEquals(1, cache.getNumMisses());
+            assertEquals(9, cache.getNumHits());
+
+            // literals in the text of a statement don't change its shape
+            Iterator<Record> iter = t2.execute("SELECT * FROM table1 WHERE id = 186 AND name != 'a';")
+                    .get().execute();
+            assertEquals(new Record(186, "name186"), iter.next());
+            assertEquals(10, cache.getNumHits());
+
+            iter = db.prepare("SELECT id FROM table1 WHERE name = ?").execute(t2, "it's").get().execute();
+            assertEquals(new Record(1000), iter.next());
+            assertFalse(iter.hasNext());
+        }
+
+        try (Transaction t3 = db.beginTransaction()) {
+            statement.execute(t3, 1, 2);
+            fail();
+        } catch (IllegalArgumentException e) {
+            /* do nothing */
+        }
+    }
+
+    @Test
+    public void testPlanCacheInvalidation() {
+        Schema s = new Schema()
+                .add("id", Type.intType())
+                .add("name", Type.stringType(10));
+        try (Transaction t1 = db.beginTransaction()) {
+            t1.createTable(s, "table1");
+            for (int i = 0; i < 1000; ++i) {
+                t1.insert("table1", i, "name" + i);
+            }
+            t1.commit();
+        }
+
+        PlanCache cache = db.getPlanCache();
+        PreparedStatement statement = db.prepare("SELECT * FROM table1 WHERE id = ?");
+        try (Transaction t2 = db.beginTransaction()) {
+            QueryPlan query = statement.execute(t2, 5).get();
+            assertEquals(new Record(5, "name5"), query.execute().next());
+            assertFalse(query.getFinalOperator().toString().contains("Index Scan"));
+
+            // a new index drops the plans over the table
+            t2.createIndex("table1", "id", false);
+            query = statement.execute(t2, 6).get();
+            assertEquals(new Record(6, "name6"), query.execute().next());
+            assertTrue(query.getFinalOperator().toString().contains("Index Scan"));
+            assertEquals(2, cache.getNumMisses());
+
+            // and so does a table growing more than twofold
+            statement.execute(t2, 7).get().execute();
+            assertEquals(2, cache.getNumMisses());
+            for (int i = 1000; i < 3000; ++i) {
+                t2.insert("table1", i, "name" + i);
+            }
+            query = statement.execute(t2, 2999).get();
+            assertEquals(new Record(2999, "name2999"), query.execute().next());
+            assertEquals(3, cache.getNumMisses());
+
+            // the least recently used plans are evicted
+            cache.setCapacity(1);
+            t2.execute("SELECT id FROM table1 WHERE id > 5").get().execute();
+            assertEquals(1, cache.size());
+            statement.execute(t2, 8).get().execute();
+            assertEquals(5, cache.getNumMisses());
+        }
+    }
+
+    @Test
+    public void testStatisticsPersisted() {
+        Schema s = new Schema()
+                .add("id", Type.intType())
+                .add("bucket", Type.intType());
+        try (Transaction t1 = db.beginTransaction()) {
+            t1.createTable(s, "table1");
+            for (int i = 0; i < 1000; ++i) {
+                t1.insert("table1", i, i % 10);
+            }
+            t1.getTransactionContext().getTable("table1").buildStatistics(10);
+        }
+
+        db.close();
+        db = new Database(this.filename, 32);
+
+        // the statistics come back without reading the table
+        try (Transaction t2 = db.beginTransaction()) {
+            TableStats stats = t2.getTransactionContext().getStats("table1");
+            assertEquals(1000, stats.getNumRecords());
+            assertEquals(1000, stats.getHistograms().get(0).getCount());
+            assertEquals(0.1f, stats.getHistograms().get(1).computeReductionFactor(
+                    PredicateOperator.EQUALS, new IntDataBox(3)), 0.01f);
+            assertEquals(1000, stats.getNumDistinct(0), 50);
+            assertEquals(10, stats.getNumDistinct(1));
+        }
+    }
+
+    @Test
+    public void testStatisticsDroppedWithTable() {
+        Schema s = new Schema().add("id", Type.intType());
+        try (Transaction t1 = db.beginTransaction()) {
+            t1.createTable(s, "table1");
+            for (int i = 0; i < 100; ++i) {
+                t1.insert("table1", i);
+            }
+        }
+        db.close();
+        db = new Database(this.filename, 32);
+
+        try (Transaction t2 = db.beginTransaction()) {
+            assertEquals(100, t2.getTransactionContext().getStats("table1").getNumRecords());
+            t2.dropTable("table1");
+            t2.createTable(s, "table1");
+            assertEquals(0, t2.getTransactionContext().getStats("table1").getNumRecords());
+        }
+    }
+
+    @Test
+    public void testStatisticsRefresh() {
+        db.setStatisticsRefreshThreshold(100, 0.5f);
+        Schema s = new Schema().add("id", Type.intType());
+        try (Transaction t1 = db.beginTransaction()) {
+            t1.createTable(s, "table1");
+            // 99 modifications are not enough for a refresh
+            for (int i = 0; i < 99; ++i) {
+                t1.insert("table1", i);
+            }
+            db.waitStatisticsRefreshes();
+            TableStats stats = t1.getTransactionContext().getStats("table1");
+            assertEquals(0, stats.getHistograms().get(0).getCount());
+            assertEquals(99, stats.getNumModifications());
+
+            t1.insert("table1", 99);
+            db.waitStatisticsRefreshes();
+            assertEquals(100, stats.getHistograms().get(0).getCount());
+            assertEquals(0, stats.getNumModifications());
+
+            // the next refresh is once another 100 + 50% of 100 records change
+            for (int i = 100; i < 249; ++i) {
+                t1.insert("table1", i);
+            }
+            db.waitStatisticsRefreshes();
+            assertEquals(100, stats.getHistograms().get(0).getCount());
+            t1.insert("table1", 249);
+            db.waitStatisticsRefreshes();
+            assertEquals(250, stats.getHistograms().get(0).getCount());
+        }
+
+        // refreshed statistics are saved
+        db.close();
+        db = new Database(this.filename, 32);
+        try (Transaction t2 = db.beginTransaction()) {
+            TableStats stats = t2.getTransactionContext().getStats("table1");
+            assertEquals(250, stats.getHistograms().get(0).getCount());
+            assertEquals(250, stats.getNumRecords());
+        }
+    }
+
+    @Test
+    public void testStatisticsRefreshFailure() {
+        assertNull(db.getStatisticsRefreshError());
+        try (StatisticsRefresher refresher = new StatisticsRefresher(tableName -> {
+            throw new DatabaseException("cannot refresh " + tableName);
+        })) {
+            refresher.configure(1, 0);
+            refresher.schedule("table1");
+            refresher.awaitRefreshes();
+            // the failure is kept, and the refresher goes on with the next table
+            assertEquals(1, refresher.getNumFailures());
+            assertEquals("cannot refresh table1", refresher.getLastError().getMessage());
+            refresher.schedule("table2");
+            refresher.awaitRefreshes();
+            assertEquals(2, refresher.getNumRefreshes());
+            assertEquals(2, refresher.getNumFailures());
+            assertEquals("cannot refresh table2", refresher.getLastError().getMessage());
+        }
+    }
 }
@@ -0,0 +1,214 @@
+package edu.berkeley.cs186.database.concurrency;
+
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestDeadlockDetector {
+    private LockManager lockManager;
+    private ResourceName table;
+    private TransactionContext[] transactions;
+
+    @Before
+    public void setup() {
+        lockManager = new LockManager();
+        table = new ResourceName(new ResourceName("database"), "table");
+        transactions = new TransactionContext[4];
+        for (int i = 0; i < transactions.length; ++i) {
+            transactions[i] = new DummyTransactionContext(new LoggingLockManager(), i);
+        }
+    }
+
+    private ResourceName page(int page) {
+        return new ResourceName(table, Integer.toString(page));
+    }
+
+    /**
+     * A transaction running on its own thread. Its requests that throw
+     * DeadlockException are recorded, and "roll back" the transaction by
+     * releasing all of its locks.
+     */
+    private class Runner {
+        final TransactionContext transaction;
+        final Thread thread;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        volatile boolean aborted = false;
+
+        Runner(TransactionContext transaction, Runnable body) {
+            this.transaction = transaction;
+            this.thread = new Thread(() -> {
+                try {
+                    body.run();
+                } catch (DeadlockException e) {
+                    aborted = true;
+                    for (Lock lock : lockManager.getLocks(transaction)) {
+                        lockManager.release(transaction, lock.name);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            this.thread.start();
+        }
+
+        void join() throws Throwable {
+            thread.join(10000);
+            assertFalse("transaction " + transaction.getTransNum() + " is stuck", thread.isAlive());
+            if (error.get() != null) {
+                throw error.get();
+            }
+        }
+    }
+
+    private void awaitBlocked(TransactionContext... transactions) throws InterruptedException {
+        for (TransactionContext transaction : transactions) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!transaction.getBlocked()) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    @Test
+    public void testTwoTransactionDeadlock() throws Throwable {
+        TransactionContext t0 = transactions[0];
+        TransactionContext t1 = transactions[1];
+        lockManager.acquire(t0, page(0), LockType.X);
+        lockManager.acquire(t1, page(1), LockType.X);
+        Runner r0 = new Runner(t0, () -> lockManager.acquire(t0, page(1), LockType.X));
+        Runner r1 = new Runner(t1, () -> lockManager.acquire(t1, page(0), LockType.X));
+        awaitBlocked(t0, t1);
+
+        // the cycle has to be seen twice
+        assertEquals(0, lockManager.detectDeadlocks());
+        assertEquals(1, lockManager.detectDeadlocks());
+        r0.join();
+        r1.join();
+
+        // both hold one lock, so the youngest is aborted
+        assertFalse(r0.aborted);
+        assertTrue(r1.aborted);
+        assertEquals(LockType.X, lockManager.getLockType(t0, page(1)));
+        assertEquals(LockType.NL, lockManager.getLockType(t1, page(0)));
+        assertEquals(1, lockManager.getNumDeadlockVictims());
+        assertEquals(2, lockManager.getNumLockWaits());
+        assertTrue(lockManager.getMaxLockWaitNanos() > 0);
+        assertTrue(lockManager.getLockWaitNanos() >= lockManager.getMaxLockWaitNanos());
+        assertEquals(0, lockManager.detectDeadlocks());
+    }
+
+    @Test
+    public void testVictimCost() throws Throwable {
+        // T0 holds more locks than T1, but is made the cheaper one to abort
+        lockManager.setDeadlockVictimCost(transaction -> transaction.getTransNum() == 0 ? 0 : 1);
+        TransactionContext t0 = transactions[0];
+        TransactionContext t1 = transactions[1];
+        lockManager.acquire(t0, page(0), LockType.X);
+        lockManager.acquire(t0, page(2), LockType.X);
+        lockManager.acquire(t1, page(1), LockType.X);
+        Runner r0 = new Runner(t0, () -> lockManager.acquire(t0, page(1), LockType.X));
+        Runner r1 = new Runner(t1, () -> lockManager.acquire(t1, page(0), LockType.X));
+        awaitBlocked(t0, t1);
+        lockManager.detectDeadlocks();
+        assertEquals(1, lockManager.detectDeadlocks());
+        r0.join();
+        r1.join();
+        assertTrue(r0.aborted);
+        assertFalse(r1.aborted);
+    }
+
+    @Test
+    public void testPromotionDeadlock() throws Throwable {
+        // two S holders that both promote to X wait for each other
+        TransactionContext t0 = transactions[0];
+        TransactionContext t1 = transactions[1];
+        lockManager.acquire(t0, page(0), LockType.S);
+        lockManager.acquire(t1, page(0), LockType.S);
+        lockManager.acquire(t1, page(1), LockType.S);
+        Runner r0 = new Runner(t0, () -> lockManager.promote(t0, page(0), LockType.X));
+        Runner r1 = new Runner(t1, () -> lockManager.promote(t1, page(0), LockType.X));
+        awaitBlocked(t0, t1);
+        lockManager.detectDeadlocks();
+        assertEquals(1, lockManager.detectDeadlocks());
+        r0.join();
+        r1.join();
+        // T0 holds fewer locks
+        assertTrue(r0.aborted);
+        assertEquals(LockType.X, lockManager.getLockType(t1, page(0)));
+    }
+
+    @Test
+    public void testWaitChainIsNotDeadlock() throws Throwable {
+        // T1 waits for T0, T2 waits behind T1 in the queue, T3 waits for T2
+        lockManager.acquire(transactions[0], page(0), LockType.X);
+        lockManager.acquire(transactions[2], page(1), LockType.X);
+        List<Runner> runners = new ArrayList<>();
+        for (int i = 1; i < 4; ++i) {
+            TransactionContext transaction = transactions[i];
+            ResourceName name = i == 3 ? page(1) : page(0);
+            LockType lockType = i == 3 ? LockType.X : LockType.S;
+            runners.add(new Runner(transaction, () -> {
+                lockManager.acquire(transaction, name, lockType);
+                for (Lock lock : lockManager.getLocks(transaction)) {
+                    lockManager.release(transaction, lock.name);
+                }
+            }));
+            awaitBlocked(transaction);
+        }
+
+        assertEquals(0, lockManager.detectDeadlocks());
+        assertEquals(0, lockManager.detectDeadlocks());
+        lockManager.release(transactions[0], page(0));
+        for (Runner runner : runners) {
+            runner.join();
+            assertFalse(runner.aborted);
+        }
+    }
+
+    @Test
+    public void testBackgroundDetection() throws Throwable {
+        // a three transaction cycle, with T3 waiting on the cycle from outside
+        lockManager.setDeadlockDetectionInterval(10);
+        List<Runner> runners = new ArrayList<>();
+        for (int i = 0; i < 3; ++i) {
+            lockManager.acquire(transactions[i], page(i), LockType.X);
+        }
+        for (int i = 0; i < 3; ++i) {
+            TransactionContext transaction = transactions[i];
+            ResourceName next = page((i + 1) % 3);
+            runners.add(new Runner(transaction, () -> {
+                lockManager.acquire(transaction, next, LockType.X);
+                for (Lock lock : lockManager.getLocks(transaction)) {
+                    lockManager.release(transaction, lock.name);
+                }
+            }));
+        }
+        runners.add(new Runner(transactions[3], () -> {
+            lockManager.acquire(transactions[3], page(0), LockType.S);
+            lockManager.release(transactions[3], page(0));
+        }));
+        int numAborted = 0;
+        for (Runner runner : runners) {
+            runner.join();
+            numAborted += runner.aborted ? 1 : 0;
+        }
+        lockManager.setDeadlockDetectionInterval(0);
+        assertEquals(1, numAborted);
+        assertTrue(runners.get(2).aborted);
+        assertEquals(1, lockManager.getNumDeadlockVictims());
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(lockManager.getLocks(page(i)).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package edu.berkeley.cs186.database.concurrency;
+
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestLockEscalation {
+    private LockManager lockManager;
+    private TableContext tableContext;
+    private TransactionContext t0;
+    private TransactionContext t1;
+
+    /**
+     * A table context with just enough of LockContext to test autoEscalate:
+     * explicit lock types come from the lock manager, and escalate swaps the
+     * page locks for one table lock.
+     */
+    private static class TableContext extends LockContext {
+        int numEscalations = 0;
+
+        TableContext(LockManager lockManager) {
+            super(lockManager, new LockContext(lockManager, null, "database"), "table");
+        }
+
+        @Override
+        public LockType getExplicitLockType(TransactionContext transaction) {
+            return lockman.getLockType(transaction, name);
+        }
+
+        @Override
+        public void escalate(TransactionContext transaction) {
+            ++numEscalations;
+            LockType lockType = getExplicitLockType(transaction) == LockType.IS ? LockType.S : LockType.X;
+            List<ResourceName> releaseNames = new ArrayList<>();
+            for (Lock lock : lockman.getLocks(transaction)) {
+                if (lock.name.isDescendantOf(name) || lock.name.equals(name)) {
+                    releaseNames.add(lock.name);
+                }
+            }
+            lockman.acquireAndRelease(transaction, name, lockType, releaseNames);
+            numChildLocks.put(transaction.getTransNum(), 0);
+        }
+
+        void lockPages(TransactionContext transaction, LockType lockType, int fromPage, int toPage) {
+            for (int i = fromPage; i < toPage; ++i) {
+                lockman.acquire(transaction, new ResourceName(name, Integer.toString(i)), lockType);
+            }
+            numChildLocks.merge(transaction.getTransNum(), toPage - fromPage, Integer::sum);
+        }
+    }
+
+    @Before
+    public void setup() {
+        lockManager = new LockManager();
+        tableContext = new TableContext(lockManager);
+        t0 = new DummyTransactionContext(new LoggingLockManager(), 0);
+        t1 = new DummyTransactionContext(new LoggingLockManager(), 1);
+    }
+
+    @Test
+    public void testShouldEscalate() {
+        EscalationPolicy policy = new EscalationPolicy(100, 0.2, 10, false);
+        assertFalse(policy.shouldEscalate(100, -1));
+        assertTrue(policy.shouldEscalate(101, -1));
+        // 20% of the pages, but below the minimum
+        assertFalse(policy.shouldEscalate(9, 20));
+        assertTrue(policy.shouldEscalate(11, 50));
+        assertFalse(policy.shouldEscalate(10, 50));
+        assertFalse(EscalationPolicy.NEVER.shouldEscalate(1000000, 1000));
+    }
+
+    @Test
+    public void testEscalatesPastThreshold() {
+        lockManager.setEscalationPolicy(new EscalationPolicy(8, 0, 0, false));
+        lockManager.acquire(t0, tableContext.getResourceName(), LockType.IX);
+        tableContext.lockPages(t0, LockType.X, 0, 8);
+        assertFalse(tableContext.autoEscalate(t0));
+        tableContext.lockPages(t0, LockType.X, 8, 9);
+
+        assertTrue(tableContext.autoEscalate(t0));
+        assertEquals(1, tableContext.numEscalations);
+        assertEquals(Collections.singletonList(new Lock(tableContext.getResourceName(), LockType.X, 0L)),
+                     lockManager.getLocks(t0));
+        assertEquals(1, lockManager.getNumEscalations());
+        // nothing left to escalate
+        assertFalse(tableContext.autoEscalate(t0));
+    }
+
+    @Test
+    public void testEscalatesBySaturation() {
+        lockManager.setEscalationPolicy(new EscalationPolicy(0, 0.25, 2, false));
+        tableContext.setCapacity(10);
+        lockManager.acquire(t0, tableContext.getResourceName(), LockType.IS);
+        tableContext.lockPages(t0, LockType.S, 0, 2);
+        assertFalse(tableContext.autoEscalate(t0));
+        tableContext.lockPages(t0, LockType.S, 2, 3);
+        assertTrue(tableContext.autoEscalate(t0));
+        assertEquals(LockType.S, lockManager.getLockType(t0, tableContext.getResourceName()));
+    }
+
+    @Test
+    public void testEscalationRefusedOnConflict() {
+        lockManager.setEscalationPolicy(new EscalationPolicy(2, 0, 0, false));
+        lockManager.acquire(t0, tableContext.getResourceName(), LockType.IX);
+        lockManager.acquire(t1, tableContext.getResourceName(), LockType.IS);
+        lockManager.acquire(t1, new ResourceName(tableContext.getResourceName(), "100"), LockType.S);
+        tableContext.lockPages(t0, LockType.X, 0, 3);
+
+        // X on the table conflicts with T1's IS, so T0 keeps its page locks
+        assertFalse(tableContext.autoEscalate(t0));
+        assertEquals(0, tableContext.numEscalations);
+        assertEquals(4, lockManager.getLocks(t0).size());
+        assertEquals(1, lockManager.getNumRefusedEscalations());
+
+        // once T1 is done, the escalation goes through
+        lockManager.release(t1, new ResourceName(tableContext.getResourceName(), "100"));
+        lockManager.release(t1, tableContext.getResourceName());
+        assertTrue(tableContext.autoEscalate(t0));
+        assertEquals(LockType.X, lockManager.getLockType(t0, tableContext.getResourceName()));
+    }
+
+    @Test
+    public void testCanGrantNow() {
+        ResourceName table = tableContext.getResourceName();
+        lockManager.acquire(t1, table, LockType.IS);
+        assertTrue(lockManager.canGrantNow(t0, table, LockType.IX));
+        assertFalse(lockManager.canGrantNow(t0, table, LockType.X));
+        lockManager.release(t1, table);
+
+        // T1's X turns the table's fast path off, and conflicts with any lock
+        lockManager.acquire(t1, table, LockType.X);
+        assertFalse(lockManager.canGrantNow(t0, table, LockType.IS));
+        assertFalse(lockManager.canGrantNow(t0, table, LockType.IX));
+        assertTrue(lockManager.canGrantNow(t1, table, LockType.X));
+    }
+
+    @Test
+    public void testReadonlyContextNeverEscalates() {
+        lockManager.setEscalationPolicy(new EscalationPolicy(1, 0, 0, true));
+        LockContext index = lockManager.databaseContext().childContext("index");
+        index.disableChildLocks();
+        LockContext child = index.childContext("child");
+        child.numChildLocks.put(0L, 100);
+        assertFalse(child.autoEscalate(t0));
+    }
+}
@@ -0,0 +1,284 @@
+package edu.berkeley.cs186.database.concurrency;
+
+import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestLockManagerThroughput {
+    private static final int NUM_PAGES = 100000;
+
+    private static ResourceName pageName(ResourceName table, int page) {
+        return new ResourceName(table, Integer.toString(page));
+    }
+
+    /**
+     * Runs body(threadIndex) on numThreads threads at once.
+     *
+     * @return the time taken, in nanoseconds
+     */
+    private static long runThreads(int numThreads, ThreadBody body) throws Throwable {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numThreads; ++i) {
+            int threadIndex = i;
+            threads.add(new Thread(() -> {
+                try {
+                    body.run(threadIndex);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return elapsed;
+    }
+
+    private interface ThreadBody {
+        void run(int threadIndex) throws Exception;
+    }
+
+    @Test
+    public void testExclusiveLocksAcrossThreads() throws Throwable {
+        // threads take turns holding X locks on a few hot resources, and hand
+        // them over through the queues
+        LockManager lockManager = new LockManager();
+        ResourceName table = new ResourceName(new ResourceName("database"), "table");
+        int numResources = 4;
+        AtomicInteger[] holders = new AtomicInteger[numResources];
+        for (int i = 0; i < numResources; ++i) {
+            holders[i] = new AtomicInteger();
+        }
+        runThreads(16, threadIndex -> {
+            TransactionContext transaction = new DummyTransactionContext(new LoggingLockManager(), threadIndex);
+            Random random = new Random(threadIndex);
+            for (int i = 0; i < 2000; ++i) {
+                int resource = random.nextInt(numResources);
+                ResourceName name = pageName(table, resource);
+                lockManager.acquire(transaction, name, LockType.X);
+                assertEquals(1, holders[resource].incrementAndGet());
+                holders[resource].decrementAndGet();
+                lockManager.release(transaction, name);
+            }
+            assertTrue(lockManager.getLocks(transaction).isEmpty());
+        });
+        for (int i = 0; i < numResources; ++i) {
+            assertTrue(lockManager.getLocks(pageName(table, i)).isEmpty());
+        }
+    }
+
+    @Test
+    public void testAcquireAndReleaseAcrossShards() throws Throwable {
+        // each thread repeatedly swaps its lock on one resource for an X lock
+        // on another, contending with the other threads' swaps; swaps only go
+        // to higher resources, so the threads cannot deadlock
+        LockManager lockManager = new LockManager();
+        ResourceName table = new ResourceName(new ResourceName("database"), "table");
+        runThreads(8, threadIndex -> {
+            TransactionContext transaction = new DummyTransactionContext(new LoggingLockManager(), threadIndex);
+            Random random = new Random(threadIndex);
+            for (int i = 0; i < 200; ++i) {
+                int held = random.nextInt(4);
+                lockManager.acquire(transaction, pageName(table, held), LockType.S);
+                while (held < 15) {
+                    int next = held + 1 + random.nextInt(15 - held);
+                    List<ResourceName> releaseNames = new ArrayList<>();
+                    releaseNames.add(pageName(table, held));
+                    lockManager.acquireAndRelease(transaction, pageName(table, next), LockType.X, releaseNames);
+                    assertEquals(LockType.X, lockManager.getLockType(transaction, pageName(table, next)));
+                    assertEquals(LockType.NL, lockManager.getLockType(transaction, pageName(table, held)));
+                    held = next;
+                }
+                lockManager.release(transaction, pageName(table, held));
+            }
+        });
+        for (int i = 0; i < 16; ++i) {
+            assertTrue(lockManager.getLocks(pageName(table, i)).isEmpty());
+        }
+    }
+
+    /**
+     * Throughput of acquiring and releasing X locks on random pages, with the
+     * lock table in one shard (a single monitor, as before sharding) and in
+     * the default number of shards.
+     * Only runs with -P benchmark, as it prints the throughput of each setup.
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testAcquireReleaseThroughput() throws Throwable {
+        ResourceName table = new ResourceName(new ResourceName("database"), "table");
+        int opsPerThread = 50000;
+        for (int numThreads : new int[] {1, 4, 16, 64}) {
+            for (int numShards : new int[] {1, LockManager.DEFAULT_NUM_SHARDS}) {
+                LockManager lockManager = new LockManager(numShards, true);
+                long elapsed = runThreads(numThreads, threadIndex -> {
+                    TransactionContext transaction = new DummyTransactionContext(new LoggingLockManager(),
+                            threadIndex);
+                    Random random = new Random(threadIndex);
+                    for (int i = 0; i < opsPerThread; ++i) {
+                        ResourceName name = pageName(table, random.nextInt(NUM_PAGES));
+                        lockManager.acquire(transaction, name, LockType.X);
+                        lockManager.release(transaction, name);
+                    }
+                });
+                System.out.printf("%d thread(s), %d shard(s): %.0f acquire/release pairs per second%n",
+                                  numThreads, numShards, numThreads * opsPerThread * 1e9 / elapsed);
+            }
+        }
+    }
+
+    @Test
+    public void testFastPathHandsOffToQueue() {
+        LockManager lockManager = new LockManager();
+        ResourceName db = new ResourceName("database");
+        TransactionContext[] transactions = new TransactionContext[5];
+        for (int i = 0; i < transactions.length; ++i) {
+            transactions[i] = new DummyTransactionContext(new LoggingLockManager(), i);
+        }
+        DeterministicRunner runner = new DeterministicRunner(5);
+        runner.run(0, () -> lockManager.acquire(transactions[0], db, LockType.IS));
+        runner.run(1, () -> lockManager.acquire(transactions[1], db, LockType.IS));
+        runner.run(1, () -> lockManager.promote(transactions[1], db, LockType.IX));
+        assertEquals(Arrays.asList(new Lock(db, LockType.IS, 0L), new Lock(db, LockType.IX, 1L)),
+                     lockManager.getLocks(db));
+        assertEquals(LockType.IX, lockManager.getLockType(transactions[1], db));
+
+        // X waits for the intention locks granted on the fast path, and IS
+        // waits behind it
+        runner.run(2, () -> lockManager.acquire(transactions[2], db, LockType.X));
+        runner.run(3, () -> lockManager.acquire(transactions[3], db, LockType.IS));
+        assertTrue(transactions[2].getBlocked());
+        assertTrue(transactions[3].getBlocked());
+        assertEquals(Arrays.asList(new Lock(db, LockType.IS, 0L), new Lock(db, LockType.IX, 1L)),
+                     lockManager.getLocks(db));
+
+        runner.run(0, () -> lockManager.release(transactions[0], db));
+        assertTrue(transactions[2].getBlocked());
+        runner.run(1, () -> lockManager.release(transactions[1], db));
+        assertFalse(transactions[2].getBlocked());
+        assertEquals(Collections.singletonList(new Lock(db, LockType.X, 2L)), lockManager.getLocks(db));
+
+        runner.run(2, () -> lockManager.release(transactions[2], db));
+        assertFalse(transactions[3].getBlocked());
+        // T3's lock was granted off the queue, T4's on the fast path again
+        runner.run(4, () -> lockManager.acquire(transactions[4], db, LockType.IS));
+        assertEquals(Arrays.asList(new Lock(db, LockType.IS, 3L), new Lock(db, LockType.IS, 4L)),
+                     lockManager.getLocks(db));
+        assertEquals(Collections.singletonList(new Lock(db, LockType.IS, 4L)),
+                     lockManager.getLocks(transactions[4]));
+
+        // swapping IS for S moves the fast path locks to the resource entry,
+        // keeping their order
+        runner.run(4, () -> lockManager.acquireAndRelease(transactions[4], db, LockType.S,
+                Collections.singletonList(db)));
+        assertEquals(Arrays.asList(new Lock(db, LockType.IS, 3L), new Lock(db, LockType.S, 4L)),
+                     lockManager.getLocks(db));
+        runner.run(3, () -> lockManager.release(transactions[3], db));
+        runner.run(4, () -> lockManager.release(transactions[4], db));
+        assertTrue(lockManager.getLocks(db).isEmpty());
+        runner.joinAll();
+    }
+
+    @Test
+    public void testFastPathExcludesConflictingLocks() throws Throwable {
+        // most transactions take IX on the table, some S or X; the holders
+        // of each kind are counted to check that no conflicting locks are
+        // ever held together
+        LockManager lockManager = new LockManager();
+        ResourceName db = new ResourceName("database");
+        ResourceName table = new ResourceName(db, "table");
+        AtomicInteger intentionHolders = new AtomicInteger();
+        AtomicInteger sharedHolders = new AtomicInteger();
+        AtomicInteger exclusiveHolders = new AtomicInteger();
+        runThreads(16, threadIndex -> {
+            // one transaction after another on each thread
+            TransactionContext transaction = new DummyTransactionContext(new LoggingLockManager(), threadIndex);
+            Random random = new Random(threadIndex);
+            for (int i = 0; i < 2000; ++i) {
+                int kind = random.nextInt(20);
+                lockManager.acquire(transaction, db, kind == 0 ? LockType.IX : LockType.IS);
+                if (kind == 0) {
+                    lockManager.acquire(transaction, table, LockType.X);
+                    assertEquals(1, exclusiveHolders.incrementAndGet());
+                    assertEquals(0, sharedHolders.get() + intentionHolders.get());
+                    exclusiveHolders.decrementAndGet();
+                } else if (kind == 1) {
+                    lockManager.acquire(transaction, table, LockType.S);
+                    sharedHolders.incrementAndGet();
+                    assertEquals(0, exclusiveHolders.get() + intentionHolders.get());
+                    sharedHolders.decrementAndGet();
+                } else {
+                    lockManager.acquire(transaction, table, LockType.IS);
+                    if (kind % 2 == 0) {
+                        lockManager.promote(transaction, table, LockType.IX);
+                    }
+                    intentionHolders.incrementAndGet();
+                    assertEquals(0, exclusiveHolders.get() + sharedHolders.get());
+                    intentionHolders.decrementAndGet();
+                }
+                lockManager.release(transaction, table);
+                lockManager.release(transaction, db);
+                assertTrue(lockManager.getLocks(transaction).isEmpty());
+            }
+        });
+        assertTrue(lockManager.getLocks(db).isEmpty());
+        assertTrue(lockManager.getLocks(table).isEmpty());
+    }
+
+    /**
+     * Throughput of short transactions that each take IS on the database,
+     * IX on a table and X on a random page, with and without the intention
+     * lock fast path.
+     * Also a printed benchmark (-P benchmark).
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testIntentionLockThroughput() throws Throwable {
+        ResourceName db = new ResourceName("database");
+        ResourceName table = new ResourceName(db, "table");
+        int transactionsPerThread = 20000;
+        for (int numThreads : new int[] {1, 4, 16, 64}) {
+            for (boolean fastPath : new boolean[] {false, true}) {
+                LockManager lockManager = new LockManager(LockManager.DEFAULT_NUM_SHARDS, fastPath);
+                long elapsed = runThreads(numThreads, threadIndex -> {
+                    TransactionContext transaction = new DummyTransactionContext(new LoggingLockManager(),
+                            threadIndex);
+                    Random random = new Random(threadIndex);
+                    for (int i = 0; i < transactionsPerThread; ++i) {
+                        ResourceName page = pageName(table, random.nextInt(NUM_PAGES));
+                        lockManager.acquire(transaction, db, LockType.IS);
+                        lockManager.acquire(transaction, table, LockType.IX);
+                        lockManager.acquire(transaction, page, LockType.X);
+                        lockManager.release(transaction, page);
+                        lockManager.release(transaction, table);
+                        lockManager.release(transaction, db);
+                    }
+                });
+                System.out.printf("%d thread(s), fast path %s: %.0f transactions per second%n",
+                                  numThreads, fastPath ? "on" : "off",
+                                  numThreads * transactionsPerThread * 1e9 / elapsed);
+            }
+        }
+    }
+}
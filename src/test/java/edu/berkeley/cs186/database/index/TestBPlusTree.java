@@ -147,6 +147,96 @@ public class TestBPlusTree {
         assertEquals(sexp, tree.toSexp());
     }
 
+    @Test
+    @Category(PublicTests.class)
+    public void testSimpleBulkBuild() {
+        // Same data and fill factor as testSimpleBulkLoad: building the tree
+        // bottom-up should produce the same shape.
+        BPlusTree tree = getBPlusTree(Type.intType(), 2);
+        List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+        for (int i = 1; i <= 11; ++i) {
+            data.add(new Pair<>(new IntDataBox(i), new RecordId(i, (short) i)));
+        }
+
+        tree.bulkBuild(data.iterator(), 0.75f);
+        String leaf0 = "((1 (1 1)) (2 (2 2)) (3 (3 3)))";
+        String leaf1 = "((4 (4 4)) (5 (5 5)) (6 (6 6)))";
+        String leaf2 = "((7 (7 7)) (8 (8 8)) (9 (9 9)))";
+        String leaf3 = "((10 (10 10)) (11 (11 11)))";
+        String sexp = String.format("(%s 4 %s 7 %s 10 %s)", leaf0, leaf1, leaf2, leaf3);
+        assertEquals(sexp, tree.toSexp());
+        assertEquals(1, tree.getMetadata().getHeight());
+    }
+
+    @Test
+    @Category(PublicTests.class)
+    public void testBulkBuildMultipleLevels() {
+        BPlusTree tree = getBPlusTree(Type.intType(), 2);
+        List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+        List<RecordId> rids = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            RecordId rid = new RecordId(i, (short) i);
+            data.add(new Pair<>(new IntDataBox(i), rid));
+            rids.add(rid);
+        }
+        tree.bulkBuild(data.iterator(), 1.0f);
+        assertEquals(rids, indexIteratorToList(tree::scanAll));
+
+        // The root and height are persisted in the metadata.
+        BPlusTree fromDisk = new BPlusTree(bufferManager, metadata, treeContext);
+        assertEquals(4, fromDisk.getMetadata().getHeight());
+        for (int i = 0; i < 1000; ++i) {
+            assertEquals(Optional.of(rids.get(i)), fromDisk.get(new IntDataBox(i)));
+        }
+        assertEquals(rids.subList(500, 1000),
+                     indexIteratorToList(() -> fromDisk.scanGreaterEqual(new IntDataBox(500))));
+
+        // The built tree still supports regular modifications.
+        fromDisk.put(new IntDataBox(1000), new RecordId(1000, (short) 0));
+        fromDisk.remove(new IntDataBox(0));
+        assertEquals(Optional.empty(), fromDisk.get(new IntDataBox(0)));
+        assertEquals(Optional.of(new RecordId(1000, (short) 0)), fromDisk.get(new IntDataBox(1000)));
+    }
+
+    @Test(expected = BPlusTreeException.class)
+    @Category(PublicTests.class)
+    public void testBulkBuildDuplicateKeys() {
+        BPlusTree tree = getBPlusTree(Type.intType(), 2);
+        List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            data.add(new Pair<>(new IntDataBox(i / 2), new RecordId(i, (short) i)));
+        }
+        tree.bulkBuild(data.iterator(), 1.0f);
+    }
+
+    @Test
+    @Category(PublicTests.class)
+    public void testBulkBuildFailureLeavesTreeEmpty() {
+        BPlusTree tree = getBPlusTree(Type.intType(), 2);
+        List<Pair<DataBox, RecordId>> data = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            data.add(new Pair<>(new IntDataBox(i), new RecordId(i, (short) i)));
+        }
+        // several leaves are written before the out of order key
+        data.add(new Pair<>(new IntDataBox(5), new RecordId(20, (short) 20)));
+        try {
+            tree.bulkBuild(data.iterator(), 1.0f);
+            fail("bulk build of unsorted data should fail");
+        } catch (BPlusTreeException e) {
+            // expected
+        }
+        assertEquals("()", tree.toSexp());
+        assertFalse(tree.scanAll().hasNext());
+
+        data.remove(data.size() - 1);
+        tree.bulkBuild(data.iterator(), 1.0f);
+        Iterator<RecordId> iter = tree.scanAll();
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(new RecordId(i, (short) i), iter.next());
+        }
+        assertFalse(iter.hasNext());
+    }
+
     @Test
     @Category(PublicTests.class)
     public void testWhiteBoxTest() {
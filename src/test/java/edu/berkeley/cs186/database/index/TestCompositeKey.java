@@ -0,0 +1,120 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.databox.*;
+import edu.berkeley.cs186.database.table.Record;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestCompositeKey {
+    private static final List<Type> TYPES = Arrays.asList(
+            Type.intType(), Type.floatType(), Type.stringType(4), Type.longType(), Type.boolType());
+
+    private static ByteArrayDataBox key(int i, float f, String s, long l, boolean b) {
+        List<DataBox> values = Arrays.asList(new IntDataBox(i), new FloatDataBox(f),
+                new StringDataBox(s, 4), new LongDataBox(l), new BoolDataBox(b));
+        return CompositeKey.encode(values, TYPES);
+    }
+
+    @Test
+    public void testRoundTrip() {
+        List<DataBox> values = Arrays.asList(new IntDataBox(-7), new FloatDataBox(-1.5f),
+                new StringDataBox("ab", 4), new LongDataBox(Long.MIN_VALUE), new BoolDataBox(true));
+        ByteArrayDataBox key = CompositeKey.encode(values, TYPES);
+        assertEquals(CompositeKey.sizeInBytes(TYPES), key.toBytes().length);
+        assertEquals(values, CompositeKey.decode(key, TYPES));
+    }
+
+    @Test
+    public void testOrder() {
+        // Each key is smaller than the next, and the first column where they
+        // differ exercises every type and sign.
+        List<ByteArrayDataBox> keys = new ArrayList<>();
+        keys.add(key(Integer.MIN_VALUE, 0f, "", 0L, false));
+        keys.add(key(-1, 0f, "", 0L, false));
+        keys.add(key(0, Float.NEGATIVE_INFINITY, "", 0L, false));
+        keys.add(key(0, -2.5f, "", 0L, false));
+        keys.add(key(0, -0.5f, "", 0L, false));
+        keys.add(key(0, 0.5f, "", 0L, false));
+        keys.add(key(0, 2.5f, "", 0L, false));
+        keys.add(key(0, 2.5f, "a", -5L, false));
+        keys.add(key(0, 2.5f, "a", -1L, false));
+        keys.add(key(0, 2.5f, "ab", -1L, false));
+        keys.add(key(0, 2.5f, "ab", 5L, false));
+        keys.add(key(0, 2.5f, "ab", 5L, true));
+        keys.add(key(1, -100f, "", 0L, false));
+        keys.add(key(Integer.MAX_VALUE, 0f, "", 0L, false));
+        for (int i = 0; i + 1 < keys.size(); ++i) {
+            assertTrue(keys.get(i).compareTo(keys.get(i + 1)) < 0);
+            assertTrue(keys.get(i + 1).compareTo(keys.get(i)) > 0);
+        }
+        assertEquals(0, key(3, 1f, "x", 2L, true).compareTo(key(3, 1f, "x", 2L, true)));
+        assertEquals(key(3, 1f, "x", 2L, true), key(3, 1f, "x", 2L, true));
+    }
+
+    @Test
+    public void testLowerBound() {
+        ByteArrayDataBox bound = CompositeKey.lowerBound(new IntDataBox(5), TYPES);
+        assertTrue(bound.compareTo(key(4, Float.MAX_VALUE, "zzzz", Long.MAX_VALUE, true)) > 0);
+        assertTrue(bound.compareTo(key(5, Float.NEGATIVE_INFINITY, "", Long.MIN_VALUE, false)) <= 0);
+        assertTrue(bound.compareTo(key(5, -1f, "", 0L, false)) < 0);
+    }
+
+    @Test
+    public void testIncludedColumns() {
+        // keys on (int, float) including (string, long, bool)
+        Type keyType = Type.byteArrayType(CompositeKey.sizeInBytes(TYPES));
+        BPlusTreeMetadata metadata = new BPlusTreeMetadata("t", "i,f", "s,l,b", keyType,
+                CompositeKey.sizeInBytes(TYPES.subList(0, 2)), 2, 0, 0, 1);
+        assertTrue(metadata.sameKeyColumns(key(1, 2f, "a", 3L, true), key(1, 2f, "b", 4L, false)));
+        assertFalse(metadata.sameKeyColumns(key(1, 2f, "a", 3L, true), key(1, 3f, "a", 3L, true)));
+
+        DataBox bound = metadata.keyColumnsLowerBound(key(1, 2f, "a", 3L, true));
+        assertTrue(metadata.sameKeyColumns(bound, key(1, 2f, "a", 3L, true)));
+        assertTrue(bound.compareTo(key(1, 2f, "", Long.MIN_VALUE, false)) <= 0);
+    }
+
+    @Test
+    public void testOldMetadataRecord() {
+        Type keyType = Type.byteArrayType(CompositeKey.sizeInBytes(TYPES.subList(0, 2)));
+        BPlusTreeMetadata metadata = new BPlusTreeMetadata("t", "i,f", keyType, 2, 3, 4L, 1);
+        // the fields saved before included columns existed
+        List<DataBox> values = new ArrayList<>(metadata.toRecord().getValues().subList(0, 8));
+        for (Record record : Arrays.asList(new Record(values), oldRecordInCurrentLayout(values))) {
+            BPlusTreeMetadata loaded = new BPlusTreeMetadata(record);
+            assertEquals(Arrays.asList("i", "f"), loaded.getKeyColumns());
+            assertEquals(Collections.emptyList(), loaded.getIncludeColumns());
+            assertEquals(keyType.getSizeInBytes(), loaded.getKeySize());
+            assertEquals(metadata.toRecord(), loaded.toRecord());
+        }
+    }
+
+    // the zeroed bytes after an old record, read as the fields it lacks
+    private static Record oldRecordInCurrentLayout(List<DataBox> values) {
+        List<DataBox> padded = new ArrayList<>(values);
+        padded.add(new StringDataBox("", BPlusTreeMetadata.MAX_COLUMN_LIST_LENGTH));
+        padded.add(new IntDataBox(0));
+        return new Record(padded);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncludedColumnsTooLong() {
+        new BPlusTreeMetadata("t", "i", "a_long_column_name,another_long_column_name", Type.byteArrayType(8),
+                              4, 2, 0, 0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongType() {
+        CompositeKey.encode(Arrays.asList(new IntDataBox(1), new IntDataBox(2)),
+                            Arrays.asList(Type.intType(), Type.longType()));
+    }
+}
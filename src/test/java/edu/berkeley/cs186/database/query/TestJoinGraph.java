@@ -0,0 +1,115 @@
+package edu.berkeley.cs186.database.query;
+
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestJoinGraph {
+    private static JoinGraph chain(int n) {
+        JoinGraph graph = new JoinGraph(n);
+        for (int i = 0; i + 1 < n; i++) graph.addEdge(i, i + 1);
+        return graph;
+    }
+
+    private static JoinGraph star(int n) {
+        JoinGraph graph = new JoinGraph(n);
+        for (int i = 1; i < n; i++) graph.addEdge(0, i);
+        return graph;
+    }
+
+    private static JoinGraph clique(int n) {
+        JoinGraph graph = new JoinGraph(n);
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) graph.addEdge(i, j);
+        }
+        return graph;
+    }
+
+    private static boolean isConnected(JoinGraph graph, long tables) {
+        long reached = Long.lowestOneBit(tables);
+        long next;
+        while ((next = reached | (graph.neighbors(reached) & tables)) != reached) {
+            reached = next;
+        }
+        return reached == tables;
+    }
+
+    /**
+     * Checks that pairs holds every csg-cmp-pair of graph exactly once, by
+     * comparing with every pair of subsets of the tables, in DP order: the
+     * pairs making up a set come before those that use it, which are larger.
+     */
+    private static void checkPairs(JoinGraph graph, long[] pairs) {
+        Set<String> seen = new HashSet<>();
+        int size = 0;
+        for (int i = 0; i < pairs.length; i += 2) {
+            long s1 = pairs[i];
+            long s2 = pairs[i + 1];
+            assertEquals(0, s1 & s2);
+            assertTrue(isConnected(graph, s1));
+            assertTrue(isConnected(graph, s2));
+            assertTrue(graph.connected(s1, s2));
+            assertTrue(seen.add(Math.min(s1, s2) + "," + Math.max(s1, s2)));
+            assertTrue(Long.bitCount(s1 | s2) >= size);
+            size = Long.bitCount(s1 | s2);
+        }
+
+        int expected = 0;
+        long all = graph.allTables();
+        for (long s1 = 1; s1 <= all; s1++) {
+            if (!isConnected(graph, s1)) continue;
+            for (long s2 = s1 + 1; s2 <= all; s2++) {
+                if ((s1 & s2) == 0 && isConnected(graph, s2) && graph.connected(s1, s2)) expected++;
+            }
+        }
+        assertEquals(expected, seen.size());
+    }
+
+    @Test
+    public void testNeighbors() {
+        JoinGraph graph = chain(4);
+        assertEquals(0b1111, graph.allTables());
+        assertEquals(0b0010, graph.neighbors(0b0001));
+        assertEquals(0b1001, graph.neighbors(0b0110));
+        assertTrue(graph.connected(0b0011, 0b0100));
+        assertFalse(graph.connected(0b0001, 0b1100));
+        assertEquals(-1L, new JoinGraph(64).allTables());
+    }
+
+    @Test
+    public void testPairCounts() {
+        // chains: (n^3 - n) / 6, stars: (n - 1) * 2^(n - 2), cliques:
+        // (3^n - 2^(n + 1) + 1) / 2
+        assertEquals(2 * 10, chain(4).csgCmpPairs().length);
+        assertEquals(2 * 165, chain(10).csgCmpPairs().length);
+        assertEquals(2 * 12, star(4).csgCmpPairs().length);
+        assertEquals(2 * 2304, star(10).csgCmpPairs().length);
+        assertEquals(2 * 25, clique(4).csgCmpPairs().length);
+        assertEquals(2 * 28501, clique(10).csgCmpPairs().length);
+    }
+
+    @Test
+    public void testPairs() {
+        checkPairs(chain(6), chain(6).csgCmpPairs());
+        checkPairs(star(6), star(6).csgCmpPairs());
+        checkPairs(clique(6), clique(6).csgCmpPairs());
+        Random random = new Random(186);
+        for (int k = 0; k < 10; k++) {
+            JoinGraph graph = new JoinGraph(8);
+            for (int i = 1; i < 8; i++) {
+                // a random spanning tree, plus random edges
+                graph.addEdge(random.nextInt(i), i);
+                graph.addEdge(random.nextInt(8), random.nextInt(8));
+            }
+            checkPairs(graph, graph.csgCmpPairs());
+        }
+    }
+}
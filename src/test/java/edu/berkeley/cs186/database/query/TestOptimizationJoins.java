@@ -5,11 +5,14 @@ import edu.berkeley.cs186.database.TestUtils;
 import edu.berkeley.cs186.database.TimeoutScaling;
 import edu.berkeley.cs186.database.Transaction;
 import edu.berkeley.cs186.database.categories.HiddenTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.Proj3Part2Tests;
 import edu.berkeley.cs186.database.categories.Proj3Tests;
 import edu.berkeley.cs186.database.categories.PublicTests;
 import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.query.join.BNLJOperator;
+import edu.berkeley.cs186.database.query.join.GHJOperator;
+import edu.berkeley.cs186.database.query.join.SortMergeOperator;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import org.junit.After;
@@ -317,4 +320,170 @@ public class TestOptimizationJoins {
         }
     }
 
+    private void insertPages(Transaction transaction, String tableName, int numPages) {
+        int numRecords = numPages * transaction.getTransactionContext().getTable(tableName).getNumRecordsPerPage();
+        for (int i = 0; i < numRecords; ++i) {
+            transaction.insert(tableName, new Record(false, i, "!", 0.0f));
+        }
+        transaction.getTransactionContext().getTable(tableName).buildStatistics(10);
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testJoinTypeHash() {
+        try (Transaction transaction = db.beginTransaction()) {
+            insertPages(transaction, "table1", 30);
+            insertPages(transaction, "table2", 30);
+
+            // SELECT * FROM table1 INNER JOIN table2 ON table1.int = table2.int
+            QueryPlan query = transaction.query("table1");
+            query.join("table2", "table1.int", "table2.int");
+
+            Map<Set<String>, QueryOperator> pass1Map = new HashMap<>();
+            pass1Map.put(Collections.singleton("table1"), query.minCostSingleAccess("table1"));
+            pass1Map.put(Collections.singleton("table2"), query.minCostSingleAccess("table2"));
+            Map<Set<String>, QueryOperator> pass2Map = query.minCostJoins(pass1Map, pass1Map);
+
+            // BNLJ: 30 + ceil(30 / 3) * 30 = 330
+            // GHJ: 30 + 30 + 2 passes * 2 * (30 + 30) = 300
+            // SHJ: partitions don't fit in B - 2 buffers after one pass
+            // SMJ: 30 + 30 + 2 * 2 * 30 * (1 + 2 merge passes) = 420
+            QueryOperator op12 = pass2Map.get(new HashSet<>(Arrays.asList("table1", "table2")));
+            assertTrue(op12 instanceof GHJOperator);
+            assertEquals(300, op12.estimateIOCost());
+        }
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testJoinTypeInterestingOrder() {
+        try (Transaction transaction = db.beginTransaction()) {
+            insertPages(transaction, "table1", 30);
+            insertPages(transaction, "table2", 30);
+
+            // SELECT * FROM table1 INNER JOIN table2 ON table1.int = table2.int
+            //     ORDER BY table1.int
+            QueryPlan query = transaction.query("table1");
+            query.join("table2", "table1.int", "table2.int");
+            query.sort("table1.int");
+            Iterator<Record> records = query.execute();
+
+            // GHJ is cheaper on its own, but its output would need sorting,
+            // while the output of SMJ is sorted already
+            QueryOperator finalOperator = query.getFinalOperator();
+            assertTrue(finalOperator instanceof SortMergeOperator);
+            int numRecords = 0;
+            int prev = Integer.MIN_VALUE;
+            while (records.hasNext()) {
+                int value = records.next().getValue(1).getInt();
+                assertTrue(prev <= value);
+                prev = value;
+                ++numRecords;
+            }
+            assertEquals(30 * transaction.getTransactionContext().getTable("table1").getNumRecordsPerPage(),
+                         numRecords);
+        }
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testBushyJoinsNoWorseThanLeftDeep() {
+        try (Transaction transaction = db.beginTransaction()) {
+            insertPages(transaction, "table1", 1);
+            insertPages(transaction, "table2", 6);
+            insertPages(transaction, "table3", 6);
+            insertPages(transaction, "table4", 1);
+
+            // SELECT * FROM table1
+            //     INNER JOIN table2 ON table1.int = table2.int
+            //     INNER JOIN table3 ON table2.int = table3.int
+            //     INNER JOIN table4 ON table3.int = table4.int
+            QueryPlan query = transaction.query("table1");
+            query.join("table2", "table1.int", "table2.int");
+            query.join("table3", "table2.int", "table3.int");
+            query.join("table4", "table3.int", "table4.int");
+
+            // the cheapest left deep plan, one table at a time
+            Map<Set<String>, QueryOperator> pass1Map = new HashMap<>();
+            for (String name : new String[] {"table1", "table2", "table3", "table4"}) {
+                pass1Map.put(Collections.singleton(name), query.minCostSingleAccess(name));
+            }
+            Map<Set<String>, QueryOperator> passMap = pass1Map;
+            for (int i = 1; i < 4; i++) {
+                passMap = query.minCostJoins(passMap, pass1Map);
+            }
+            int leftDeepCost = Integer.MAX_VALUE;
+            for (QueryOperator op : passMap.values()) {
+                leftDeepCost = Math.min(leftDeepCost, op.estimateIOCost());
+            }
+
+            Iterator<Record> records = query.execute();
+            assertTrue(query.getFinalOperator().estimateIOCost() <= leftDeepCost);
+            int numRecords = 0;
+            while (records.hasNext()) {
+                records.next();
+                ++numRecords;
+            }
+            assertEquals(transaction.getTransactionContext().getTable("table1").getNumRecordsPerPage(),
+                         numRecords);
+        }
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testGreedyJoins() {
+        try (Transaction transaction = db.beginTransaction()) {
+            for (int i = 0; i < 20; ++i) {
+                transaction.insert("table1", new Record(false, i, "!", 0.0f));
+            }
+            transaction.getTransactionContext().getTable("table1").buildStatistics(10);
+
+            // SELECT * FROM table1 AS t0
+            //     INNER JOIN table1 AS t1 ON t0.int = t1.int
+            //     ...
+            //     INNER JOIN table1 AS t19 ON t18.int = t19.int
+            // has too many tables to search every join order
+            QueryPlan query = transaction.query("table1", "t0");
+            for (int i = 1; i < 20; ++i) {
+                query.join("table1", "t" + i, "t" + (i - 1) + ".int", "t" + i + ".int");
+            }
+            Iterator<Record> records = query.execute();
+            int numRecords = 0;
+            while (records.hasNext()) {
+                Record record = records.next();
+                assertEquals(20 * 4, record.size());
+                for (int i = 1; i < 20; ++i) {
+                    assertEquals(record.getValue(1), record.getValue(4 * i + 1));
+                }
+                ++numRecords;
+            }
+            assertEquals(20, numRecords);
+        }
+    }
+
+    @Test
+    @Category(Proj99Tests.class)
+    public void testPlanningTimeLimit() {
+        try (Transaction transaction = db.beginTransaction()) {
+            insertPages(transaction, "table1", 1);
+            insertPages(transaction, "table2", 2);
+            insertPages(transaction, "table3", 3);
+
+            // out of time before the first join, so the joins are planned
+            // greedily
+            QueryPlan query = transaction.query("table1");
+            query.join("table2", "table1.int", "table2.int");
+            query.join("table3", "table2.int", "table3.int");
+            query.setPlanningTimeLimit(0);
+            Iterator<Record> records = query.execute();
+            int numRecords = 0;
+            while (records.hasNext()) {
+                records.next();
+                ++numRecords;
+            }
+            assertEquals(transaction.getTransactionContext().getTable("table1").getNumRecordsPerPage(),
+                         numRecords);
+        }
+    }
+
 }
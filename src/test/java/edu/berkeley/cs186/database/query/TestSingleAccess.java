@@ -9,6 +9,7 @@ import edu.berkeley.cs186.database.categories.Proj3Part2Tests;
 import edu.berkeley.cs186.database.categories.Proj3Tests;
 import edu.berkeley.cs186.database.categories.PublicTests;
 import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.databox.Type;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import org.junit.After;
@@ -22,9 +23,12 @@ import org.junit.rules.TestRule;
 import org.junit.rules.Timeout;
 
 import java.io.File;
-import java.util.Collections;
+import java.util.*;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @Category({Proj3Tests.class, Proj3Part2Tests.class})
 public class TestSingleAccess {
@@ -199,4 +203,116 @@ public class TestSingleAccess {
         }
     }
 
+    @Test
+    @Category(PublicTests.class)
+    public void testIndexOnlyScanSelection() {
+        try(Transaction transaction = this.db.beginTransaction()) {
+            transaction.createIndex("table", Collections.singletonList("int"),
+                                    Collections.singletonList("float"), false);
+            for (int i = 0; i < 2000; ++i) {
+                Record r = new Record(false, i, "!", (float) -i);
+                transaction.insert("table", r);
+            }
+            transaction.getTransactionContext().getTable("table").buildStatistics(10);
+
+            // SELECT int, float FROM table WHERE int >= 1990;
+            QueryPlan query = transaction.query("table");
+            query.project("int", "float");
+            query.select("int", PredicateOperator.GREATER_THAN_EQUALS, 1990);
+            QueryOperator op = query.minCostSingleAccess("table");
+
+            // the index holds both columns, so the table isn't read at all
+            assertTrue(op instanceof IndexOnlyScanOperator);
+            Iterator<Record> records = op.iterator();
+            for (int i = 1990; i < 2000; ++i) {
+                assertEquals(new Record(i, (float) -i), records.next());
+            }
+            assertFalse(records.hasNext());
+
+            // SELECT int, float FROM table WHERE string = '!';
+            query = transaction.query("table");
+            query.project("int", "float");
+            query.select("string", PredicateOperator.EQUALS, "!");
+            op = query.minCostSingleAccess("table");
+
+            // `string` isn't in the index, so the table must be scanned
+            assertTrue(op.isSelect());
+            assertTrue(op.getSource().isSequentialScan());
+        }
+    }
+
+    @Test
+    @Category(PublicTests.class)
+    public void testIndexOnlyScanColumnOrder() {
+        try(Transaction transaction = this.db.beginTransaction()) {
+            Schema schema = new Schema().add("id", Type.intType()).add("name", Type.stringType(5));
+            transaction.createTable(schema, "pairs");
+            transaction.createIndex("pairs", Collections.singletonList("name"),
+                                    Collections.singletonList("id"), false);
+            for (int i = 0; i < 1000; ++i) {
+                transaction.insert("pairs", i, "n" + i);
+            }
+            transaction.getTransactionContext().getTable("pairs").buildStatistics(10);
+
+            // SELECT * FROM pairs WHERE name = 'n998';
+            QueryPlan query = transaction.query("pairs");
+            query.select("name", PredicateOperator.EQUALS, "n998");
+            QueryOperator op = query.minCostSingleAccess("pairs");
+
+            // the index stores name before id, but the output has the
+            // columns in the order of the table
+            assertTrue(op instanceof IndexOnlyScanOperator);
+            assertEquals(Arrays.asList("pairs.id", "pairs.name"), op.getSchema().getFieldNames());
+            Iterator<Record> records = op.iterator();
+            Record r = records.next();
+            assertEquals(998, r.getValue(0).getInt());
+            assertEquals("n998", r.getValue(1).getString());
+            assertFalse(records.hasNext());
+
+            // a name can only be indexed once, whatever its id
+            try {
+                transaction.insert("pairs", 1000, "n998");
+                fail("duplicate key columns should be rejected");
+            } catch (RuntimeException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    @Category(PublicTests.class)
+    public void testBitmapHeapScanSelection() {
+        try(Transaction transaction = this.db.beginTransaction()) {
+            // wide records, so that the table spans many pages
+            Schema schema = new Schema()
+                    .add("int", Type.intType())
+                    .add("string", Type.stringType(200));
+            transaction.createTable(schema, "wide_table");
+            transaction.createIndex("wide_table", "int", false);
+            List<Integer> values = new ArrayList<>();
+            for (int i = 0; i < 1000; ++i) {
+                values.add(i);
+            }
+            Collections.shuffle(values, new Random(186));
+            for (int i : values) {
+                transaction.insert("wide_table", new Record(i, "!"));
+            }
+            transaction.getTransactionContext().getTable("wide_table").buildStatistics(10);
+
+            // SELECT * FROM wide_table WHERE int < 20;
+            QueryPlan query = transaction.query("wide_table");
+            query.select("int", PredicateOperator.LESS_THAN, 20);
+            QueryOperator op = query.minCostSingleAccess("wide_table");
+
+            // the 20 matching records are scattered over the table, so reading
+            // each of their pages once beats following the index entry by entry
+            assertTrue(op instanceof BitmapHeapScanOperator);
+            Set<Integer> seen = new HashSet<>();
+            for (Record r : op) {
+                assertTrue(r.getValue(0).getInt() < 20);
+                seen.add(r.getValue(0).getInt());
+            }
+            assertEquals(20, seen.size());
+        }
+    }
 }
@@ -2,6 +2,7 @@ package edu.berkeley.cs186.database.recovery;
 
 import edu.berkeley.cs186.database.Transaction;
 import edu.berkeley.cs186.database.TransactionContext;
+import edu.berkeley.cs186.database.common.Pair;
 import edu.berkeley.cs186.database.common.PredicateOperator;
 import edu.berkeley.cs186.database.common.iterator.BacktrackingIterator;
 import edu.berkeley.cs186.database.databox.DataBox;
@@ -15,6 +16,7 @@ import edu.berkeley.cs186.database.table.stats.TableStats;
 
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.function.Function;
@@ -92,6 +94,10 @@ class DummyTransaction extends Transaction {
     @Override
     public void createIndex(String tableName, String columnName, boolean bulkLoad) {}
 
+    @Override
+    public void createIndex(String tableName, List<String> keyColumns,
+                            List<String> includeColumns, boolean bulkLoad) {}
+
     @Override
     public void dropIndex(String tableName, String columnName) {}
 
@@ -108,6 +114,14 @@ class DummyTransaction extends Transaction {
     @Override
     public void insert(String tableName, Record values) {}
 
+    @Override
+    public void insertBatch(String tableName, Iterator<Record> records) {}
+
+    @Override
+    public long bulkLoad(String tableName, Iterator<Record> records) {
+        return 0;
+    }
+
     @Override
     public void update(String tableName, String targetColumnName, UnaryOperator<DataBox> targetValue) {}
 
@@ -177,6 +191,11 @@ class DummyTransaction extends Transaction {
             return false;
         }
 
+        @Override
+        public List<BPlusTreeMetadata> getIndices(String tableName) {
+            return null;
+        }
+
         @Override
         public void updateIndexMetadata(BPlusTreeMetadata metadata) {}
 
@@ -195,6 +214,17 @@ class DummyTransaction extends Transaction {
             return null;
         }
 
+        @Override
+        public Iterator<DataBox> scanIndexKeys(String tableName, String columnName, DataBox startKey) {
+            return null;
+        }
+
+        @Override
+        public Iterator<Pair<DataBox, RecordId>> scanIndexEntries(String tableName, String columnName,
+                                                                 DataBox startKey) {
+            return null;
+        }
+
         @Override
         public BacktrackingIterator<Record> getRecordIterator(String tableName) {
             return null;
@@ -210,6 +240,16 @@ class DummyTransaction extends Transaction {
             return null;
         }
 
+        @Override
+        public List<RecordId> addRecords(String tableName, Iterator<Record> records) {
+            return null;
+        }
+
+        @Override
+        public long bulkLoad(String tableName, Iterator<Record> records) {
+            return 0;
+        }
+
         @Override
         public RecordId deleteRecord(String tableName, RecordId rid) {
             return null;
@@ -0,0 +1,138 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.LRUEvictionPolicy;
+import edu.berkeley.cs186.database.recovery.records.MasterLogRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestCheckpointer {
+    private ARIESRecoveryManager recoveryManager;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws IOException {
+        DummyTransaction.cleanupTransactions();
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        recoveryManager = new ARIESRecoveryManager(DummyTransaction::create);
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(dir, recoveryManager);
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, recoveryManager, 64,
+                new LRUEvictionPolicy());
+        diskSpaceManager.allocPart(0);
+        recoveryManager.setManagers(diskSpaceManager, bufferManager);
+        recoveryManager.initialize();
+        // flush every commit on its own, so that each commit fills a log page
+        recoveryManager.setGroupCommit(0, 1);
+    }
+
+    @After
+    public void cleanup() {
+        recoveryManager.close();
+    }
+
+    private long getMasterCheckpointLSN() {
+        return ((MasterLogRecord) recoveryManager.logManager.fetchLogRecord(0L)).lastCheckpointLSN;
+    }
+
+    private void commitTransactions(long firstTransNum, int numTransactions) {
+        for (long i = firstTransNum; i < firstTransNum + numTransactions; ++i) {
+            recoveryManager.startTransaction(DummyTransaction.create(i));
+            recoveryManager.commit(i);
+            recoveryManager.end(i);
+        }
+    }
+
+    @Test
+    public void testNoBackgroundCheckpointsByDefault() throws InterruptedException {
+        long checkpointLSN = getMasterCheckpointLSN();
+        commitTransactions(1, 50);
+        Thread.sleep(200);
+        assertEquals(0, recoveryManager.checkpointer.getNumCheckpoints());
+        assertEquals(checkpointLSN, getMasterCheckpointLSN());
+    }
+
+    @Test
+    public void testCheckpointByLogVolume() throws InterruptedException {
+        long checkpointLSN = getMasterCheckpointLSN();
+        recoveryManager.setCheckpointInterval(0, 10);
+        commitTransactions(1, 50);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recoveryManager.checkpointer.getNumCheckpoints() == 0 &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(recoveryManager.checkpointer.getNumCheckpoints() > 0);
+        assertTrue(getMasterCheckpointLSN() > checkpointLSN);
+        assertEquals(getMasterCheckpointLSN(), recoveryManager.lastCheckpointLSN);
+    }
+
+    @Test
+    public void testCheckpointByTime() throws InterruptedException {
+        recoveryManager.setCheckpointInterval(20, 0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (recoveryManager.checkpointer.getNumCheckpoints() < 3 &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(recoveryManager.checkpointer.getNumCheckpoints() >= 3);
+    }
+
+    @Test
+    public void testCommitsDuringCheckpoints() throws InterruptedException {
+        // checkpoint as often as possible while transactions commit
+        recoveryManager.setCheckpointInterval(1, 1);
+        List<Thread> threads = new ArrayList<>();
+        List<Transaction> transactions = new ArrayList<>();
+        for (long i = 1; i <= 400; ++i) {
+            Transaction t = DummyTransaction.create(i);
+            recoveryManager.startTransaction(t);
+            transactions.add(t);
+        }
+        for (int i = 0; i < 4; ++i) {
+            List<Transaction> ts = transactions.subList(i * 100, (i + 1) * 100);
+            Thread thread = new Thread(() -> {
+                for (Transaction t : ts) {
+                    recoveryManager.commit(t.getTransNum());
+                    recoveryManager.end(t.getTransNum());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Transaction t : transactions) {
+            assertEquals(Transaction.Status.COMPLETE, t.getStatus());
+        }
+        assertTrue(recoveryManager.transactionTable.isEmpty());
+
+        // every end checkpoint record follows a begin checkpoint record
+        boolean inCheckpoint = false;
+        for (LogRecord record : recoveryManager.logManager) {
+            if (record.getType() == LogType.BEGIN_CHECKPOINT) {
+                inCheckpoint = true;
+            } else if (record.getType() == LogType.END_CHECKPOINT) {
+                assertTrue(inCheckpoint);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.DatabaseException;
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.io.MemoryDiskSpaceManager;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
+import edu.berkeley.cs186.database.memory.LRUEvictionPolicy;
+import edu.berkeley.cs186.database.recovery.records.MasterLogRecord;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestGroupCommit {
+    private ARIESRecoveryManager recoveryManager;
+    private long nextTransNum;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws IOException {
+        DummyTransaction.cleanupTransactions();
+        recoveryManager = newRecoveryManager();
+    }
+
+    @After
+    public void cleanup() {
+        recoveryManager.close();
+    }
+
+    private ARIESRecoveryManager newRecoveryManager() throws IOException {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        ARIESRecoveryManager recoveryManager = new ARIESRecoveryManager(DummyTransaction::create);
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(dir, recoveryManager);
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, recoveryManager, 256,
+                new LRUEvictionPolicy());
+        diskSpaceManager.allocPart(0);
+        recoveryManager.setManagers(diskSpaceManager, bufferManager);
+        recoveryManager.initialize();
+        return recoveryManager;
+    }
+
+    /**
+     * Commits commitsPerThread transactions on each of numThreads threads at
+     * once, checking that the log is flushed past every commit record by the
+     * time commit returns.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    private long runCommits(int numThreads, int commitsPerThread) throws Exception {
+        // DummyTransaction is not thread safe, so create the transactions up front
+        List<List<Transaction>> transactions = new ArrayList<>();
+        for (int i = 0; i < numThreads; ++i) {
+            List<Transaction> ts = new ArrayList<>();
+            for (int j = 0; j < commitsPerThread; ++j) {
+                Transaction t = DummyTransaction.create(++nextTransNum);
+                recoveryManager.startTransaction(t);
+                ts.add(t);
+            }
+            transactions.add(ts);
+        }
+
+        CyclicBarrier barrier = new CyclicBarrier(numThreads + 1);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numThreads; ++i) {
+            List<Transaction> ts = transactions.get(i);
+            Thread thread = new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (Transaction t : ts) {
+                        long LSN = recoveryManager.commit(t.getTransNum());
+                        assertTrue(recoveryManager.logManager.getFlushedLSN() >= LSN);
+                        recoveryManager.end(t.getTransNum());
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        barrier.await();
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        for (List<Transaction> ts : transactions) {
+            for (Transaction t : ts) {
+                assertEquals(Transaction.Status.COMPLETE, t.getStatus());
+            }
+        }
+        return elapsed;
+    }
+
+    @Test
+    public void testSingleCommit() throws Exception {
+        runCommits(1, 10);
+        assertEquals(10, recoveryManager.groupCommitter.getNumCommits());
+    }
+
+    @Test
+    public void testConcurrentCommitsBatched() throws Exception {
+        // wait long enough for every thread to join the first batch
+        recoveryManager.setGroupCommit(200000, 16);
+        runCommits(16, 20);
+        GroupCommitter groupCommitter = recoveryManager.groupCommitter;
+        assertEquals(320, groupCommitter.getNumCommits());
+        assertTrue(groupCommitter.getNumFlushes() < groupCommitter.getNumCommits());
+    }
+
+    @Test
+    public void testGroupCommitDisabled() throws Exception {
+        recoveryManager.setGroupCommit(0, 1);
+        runCommits(8, 10);
+        GroupCommitter groupCommitter = recoveryManager.groupCommitter;
+        assertEquals(80, groupCommitter.getNumCommits());
+        assertEquals(80, groupCommitter.getNumFlushes());
+    }
+
+    @Test
+    public void testCloseFlushesPendingCommits() throws Exception {
+        recoveryManager.setGroupCommit(50000, 1000);
+        Thread closer = new Thread(() -> recoveryManager.groupCommitter.close());
+        Transaction t = DummyTransaction.create(++nextTransNum);
+        recoveryManager.startTransaction(t);
+        closer.start();
+        long LSN = recoveryManager.commit(t.getTransNum());
+        closer.join();
+        assertTrue(recoveryManager.logManager.getFlushedLSN() >= LSN);
+    }
+
+    @Test
+    public void testFlushFailure() throws Exception {
+        DiskSpaceManager diskSpaceManager = new MemoryDiskSpaceManager();
+        diskSpaceManager.allocPart(0);
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(), 64,
+                new ClockEvictionPolicy());
+        AtomicBoolean failing = new AtomicBoolean(true);
+        LogManager logManager = new LogManager(bufferManager) {
+            @Override
+            public synchronized void flushToLSN(long LSN) {
+                if (failing.get()) {
+                    throw new DatabaseException("log device failed");
+                }
+                super.flushToLSN(LSN);
+            }
+        };
+        GroupCommitter groupCommitter = new GroupCommitter(logManager);
+        try {
+            groupCommitter.configure(1000, 16);
+            // the committer of the failed batch gets the failure instead of
+            // waiting forever
+            long LSN = logManager.appendToLog(new MasterLogRecord(1));
+            try {
+                groupCommitter.awaitFlush(LSN);
+                fail("the flush should have failed");
+            } catch (DatabaseException e) {
+                assertEquals("log device failed", e.getCause().getMessage());
+            }
+
+            // and later commits are flushed once the log can be written again
+            failing.set(false);
+            LSN = logManager.appendToLog(new MasterLogRecord(2));
+            groupCommitter.awaitFlush(LSN);
+            assertTrue(logManager.getFlushedLSN() >= LSN);
+        } finally {
+            groupCommitter.close();
+            logManager.close();
+            bufferManager.close();
+        }
+    }
+
+    /**
+     * Commit throughput with and without group commit at 16 to 64 client
+     * threads. Every commit without group commit writes the log tail page, so
+     * the gain grows with the number of concurrent committers. Prints its
+     * measurements, so it only runs with -P benchmark.
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testCommitThroughput() throws Exception {
+        int commitsPerThread = 25;
+        for (int numThreads : new int[] {16, 32, 64}) {
+            recoveryManager.setGroupCommit(0, 1);
+            long individual = runCommits(numThreads, commitsPerThread);
+            recoveryManager.close();
+            recoveryManager = newRecoveryManager();
+            long grouped = runCommits(numThreads, commitsPerThread);
+            GroupCommitter groupCommitter = recoveryManager.groupCommitter;
+            assertTrue(groupCommitter.getNumFlushes() <= groupCommitter.getNumCommits());
+
+            int commits = numThreads * commitsPerThread;
+            System.out.printf("%d threads: %.0f commits/s without group commit, " +
+                              "%.0f commits/s with group commit (%d flushes for %d commits)%n",
+                              numThreads, commits * 1e9 / individual, commits * 1e9 / grouped,
+                              groupCommitter.getNumFlushes(), groupCommitter.getNumCommits());
+            recoveryManager.close();
+            recoveryManager = newRecoveryManager();
+        }
+    }
+}
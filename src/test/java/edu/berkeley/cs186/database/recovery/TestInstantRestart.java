@@ -0,0 +1,265 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.LRUEvictionPolicy;
+import edu.berkeley.cs186.database.memory.Page;
+import edu.berkeley.cs186.database.recovery.records.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestInstantRestart {
+    private static final int NUM_PAGES = 256;
+    private static final int UPDATE_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        DummyTransaction.cleanupTransactions();
+        LogRecord.onRedoHandler(record -> {});
+    }
+
+    private ARIESRecoveryManager load(String dir) {
+        ARIESRecoveryManager recoveryManager = new ARIESRecoveryManager(DummyTransaction::create);
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(dir, recoveryManager);
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, recoveryManager, 64,
+                new LRUEvictionPolicy());
+        boolean isLoaded = true;
+        try {
+            diskSpaceManager.allocPart(0);
+            isLoaded = false;
+        } catch (IllegalStateException e) {
+            // already loaded
+        }
+        recoveryManager.setManagers(diskSpaceManager, bufferManager);
+        if (!isLoaded) {
+            recoveryManager.initialize();
+        }
+        return recoveryManager;
+    }
+
+    /**
+     * Simulates a crash: the log is on disk, but none of the page updates it
+     * records made it to the data pages.
+     */
+    private void crash(ARIESRecoveryManager recoveryManager) {
+        recoveryManager.logManager.close();
+        recoveryManager.bufferManager.evictAll();
+        recoveryManager.bufferManager.close();
+        recoveryManager.diskSpaceManager.close();
+        DummyTransaction.cleanupTransactions();
+    }
+
+    private static long getPageNum(int pageIndex) {
+        return DiskSpaceManager.getVirtualPageNum(1, pageIndex);
+    }
+
+    /**
+     * Sets up partition 1 with NUM_PAGES pages, all zeroed.
+     */
+    private ARIESRecoveryManager createDatabase(String dir) {
+        ARIESRecoveryManager recoveryManager = load(dir);
+        LogManager logManager = recoveryManager.logManager;
+        long LSN = logManager.appendToLog(new AllocPartLogRecord(1L, 1, 0L));
+        recoveryManager.diskSpaceManager.allocPart(1);
+        for (int i = 0; i < NUM_PAGES; ++i) {
+            LSN = logManager.appendToLog(new AllocPageLogRecord(1L, getPageNum(i), LSN));
+            recoveryManager.diskSpaceManager.allocPage(getPageNum(i));
+        }
+        commit(logManager, 1L, LSN);
+        return recoveryManager;
+    }
+
+    /**
+     * Logs numUpdates random updates by transNum to the pages with indices in
+     * [firstPage, lastPage). The before image of every update is zeroed, so
+     * rolling the updates back leaves the pages zeroed.
+     *
+     * @return the LSN of the last update
+     */
+    private long logUpdates(LogManager logManager, long transNum, long prevLSN, int numUpdates,
+                            int firstPage, int lastPage) {
+        Random random = new Random(transNum);
+        for (int i = 0; i < numUpdates; ++i) {
+            int pageIndex = firstPage + random.nextInt(lastPage - firstPage);
+            short offset = (short) random.nextInt(BufferManager.EFFECTIVE_PAGE_SIZE - UPDATE_SIZE);
+            byte[] after = new byte[UPDATE_SIZE];
+            random.nextBytes(after);
+            after[0] = 1;
+            prevLSN = logManager.appendToLog(new UpdatePageLogRecord(transNum, getPageNum(pageIndex), prevLSN,
+                                             offset, new byte[UPDATE_SIZE], after));
+        }
+        return prevLSN;
+    }
+
+    private void commit(LogManager logManager, long transNum, long lastLSN) {
+        long commitLSN = logManager.appendToLog(new CommitTransactionLogRecord(transNum, lastLSN));
+        logManager.appendToLog(new EndTransactionLogRecord(transNum, commitLSN));
+    }
+
+    private boolean isZeroed(ARIESRecoveryManager recoveryManager, int pageIndex) {
+        Page page = recoveryManager.bufferManager.fetchPage(new DummyLockContext(), getPageNum(pageIndex));
+        try {
+            byte[] contents = new byte[BufferManager.EFFECTIVE_PAGE_SIZE];
+            page.getBuffer().get(contents);
+            for (byte b : contents) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            page.unpin();
+        }
+    }
+
+    private String copyDirectory(String dir) throws IOException {
+        File copy = tempFolder.newFolder();
+        for (File file : new File(dir).listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+        }
+        return copy.getAbsolutePath();
+    }
+
+    @Test
+    public void testLosersRolledBackInBackground() throws Exception {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        ARIESRecoveryManager recoveryManager = createDatabase(dir);
+        LogManager logManager = recoveryManager.logManager;
+        // T2 loses on pages [0, 64), T3 wins on pages [64, 128)
+        logUpdates(logManager, 2L, 0L, 500, 0, 64);
+        commit(logManager, 3L, logUpdates(logManager, 3L, 0L, 500, 64, 128));
+        crash(recoveryManager);
+
+        recoveryManager = load(dir);
+        recoveryManager.setInstantRestart(true);
+        recoveryManager.restart();
+        Transaction loser = DummyTransaction.create(2L);
+        recoveryManager.deferredUndo.awaitCompletion();
+
+        assertEquals(Transaction.Status.COMPLETE, loser.getStatus());
+        assertTrue(recoveryManager.transactionTable.isEmpty());
+        assertEquals(0, recoveryManager.deferredUndo.getNumPendingGroups());
+        for (int i = 0; i < 64; ++i) {
+            assertTrue("page " + i, isZeroed(recoveryManager, i));
+        }
+        for (int i = 64; i < 128; ++i) {
+            assertFalse("page " + i, isZeroed(recoveryManager, i));
+        }
+        recoveryManager.close();
+    }
+
+    @Test
+    public void testOnDemandUndo() throws Exception {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        ARIESRecoveryManager recoveryManager = createDatabase(dir);
+        LogManager logManager = recoveryManager.logManager;
+        // T2 and T3 both touch page 0, so they are rolled back together; T4 is
+        // on its own
+        logUpdates(logManager, 2L, 0L, 20000, 0, 128);
+        logUpdates(logManager, 3L, 0L, 10, 0, 1);
+        logUpdates(logManager, 4L, 0L, 10, 200, 201);
+        crash(recoveryManager);
+
+        recoveryManager = load(dir);
+        recoveryManager.setInstantRestart(true);
+        recoveryManager.restart();
+        assertTrue(recoveryManager.deferredUndo.getNumPendingGroups() <= 2);
+
+        // whether or not the background thread got to it first, a fetched page
+        // never shows a loser's changes
+        assertTrue(isZeroed(recoveryManager, 200));
+        assertEquals(Transaction.Status.COMPLETE, DummyTransaction.create(4L).getStatus());
+        assertTrue(isZeroed(recoveryManager, 0));
+        assertEquals(Transaction.Status.COMPLETE, DummyTransaction.create(2L).getStatus());
+        assertEquals(Transaction.Status.COMPLETE, DummyTransaction.create(3L).getStatus());
+
+        recoveryManager.deferredUndo.awaitCompletion();
+        assertTrue(recoveryManager.transactionTable.isEmpty());
+        // the losers were undone exactly once
+        int numEnds = 0;
+        for (LogRecord record : recoveryManager.logManager) {
+            if (record.getType() == LogType.END_TRANSACTION && record.getTransNum().get() != 1L) {
+                ++numEnds;
+            }
+        }
+        assertEquals(3, numEnds);
+        recoveryManager.close();
+    }
+
+    @Test
+    public void testFreePageUndoneBeforeOpen() throws Exception {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        ARIESRecoveryManager recoveryManager = createDatabase(dir);
+        LogManager logManager = recoveryManager.logManager;
+        long LSN = logUpdates(logManager, 2L, 0L, 10, 0, 8);
+        logManager.appendToLog(new FreePageLogRecord(2L, getPageNum(10), LSN));
+        recoveryManager.diskSpaceManager.freePage(getPageNum(10));
+        logManager.flushToLSN(logManager.getFlushedLSN());
+        crash(recoveryManager);
+
+        recoveryManager = load(dir);
+        recoveryManager.setInstantRestart(true);
+        recoveryManager.restart();
+        // the page number can't be handed out again while T2 could still
+        // undo the free, so T2 is rolled back before restart returns
+        assertEquals(Transaction.Status.COMPLETE, DummyTransaction.create(2L).getStatus());
+        assertTrue(recoveryManager.diskSpaceManager.pageAllocated(getPageNum(10)));
+        assertEquals(0, recoveryManager.deferredUndo.getNumPendingGroups());
+        recoveryManager.close();
+    }
+
+    /**
+     * Time from the start of restart until new work can start, with and
+     * without instant restart, after a crash with a long running loser.
+     * Printed, so only run as a benchmark (-P benchmark).
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testRestartToServingTime() throws Exception {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        ARIESRecoveryManager recoveryManager = createDatabase(dir);
+        LogManager logManager = recoveryManager.logManager;
+        long lastLSN = logUpdates(logManager, 2L, 0L, 30000, 0, NUM_PAGES / 2);
+        commit(logManager, 3L, logUpdates(logManager, 3L, 0L, 1000, NUM_PAGES / 2, NUM_PAGES));
+        logManager.flushToLSN(lastLSN);
+        crash(recoveryManager);
+
+        for (boolean instantRestart : new boolean[] {false, true}) {
+            recoveryManager = load(copyDirectory(dir));
+            recoveryManager.setInstantRestart(instantRestart);
+            long start = System.nanoTime();
+            recoveryManager.restart();
+            long elapsed = System.nanoTime() - start;
+            // a page no loser touched is available right away
+            assertFalse(isZeroed(recoveryManager, NUM_PAGES - 1));
+            System.out.printf("restart %s instant restart: %d ms until open%n",
+                              instantRestart ? "with" : "without", elapsed / 1000000);
+            if (recoveryManager.deferredUndo != null) {
+                recoveryManager.deferredUndo.awaitCompletion();
+            }
+            assertTrue(isZeroed(recoveryManager, 0));
+            recoveryManager.close();
+            DummyTransaction.cleanupTransactions();
+        }
+    }
+}
@@ -14,10 +14,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @Category(SystemTests.class)
 public class TestLogManager {
@@ -130,4 +133,44 @@ public class TestLogManager {
         postIO = bufferManager.getNumIOs();
         assertEquals(0, postIO - prevIO);
     }
+
+    @Test
+    public void testConcurrentAppend() throws InterruptedException {
+        int numThreads = 8;
+        int perThread = 2000;
+        long[][] LSNs = new long[numThreads][perThread];
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; ++i) {
+            final int t = i;
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < perThread; ++j) {
+                    LSNs[t][j] = logManager.appendToLog(new MasterLogRecord(t * perThread + j));
+                    if (j % 500 == 0) {
+                        logManager.flushToLSN(LSNs[t][j]);
+                        assertTrue(logManager.getFlushedLSN() >= LSNs[t][j]);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every record is at its own LSN, and LSNs of a thread increase
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < numThreads; ++i) {
+            for (int j = 0; j < perThread; ++j) {
+                assertTrue(seen.add(LSNs[i][j]));
+                assertTrue(j == 0 || LSNs[i][j] > LSNs[i][j - 1]);
+                assertEquals(new MasterLogRecord(i * perThread + j), logManager.fetchLogRecord(LSNs[i][j]));
+            }
+        }
+        int count = 0;
+        for (LogRecord record : logManager) {
+            assertTrue(seen.contains(record.getLSN()));
+            ++count;
+        }
+        assertEquals(numThreads * perThread, count);
+    }
 }
@@ -0,0 +1,196 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.LRUEvictionPolicy;
+import edu.berkeley.cs186.database.memory.Page;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestLogPageCache {
+    private static final int NUM_PAGES = 24;
+    private static final int UPDATE_SIZE = 512;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        DummyTransaction.cleanupTransactions();
+        LogRecord.onRedoHandler(record -> {});
+    }
+
+    private ARIESRecoveryManager load(String dir, int bufferPages) {
+        ARIESRecoveryManager recoveryManager = new ARIESRecoveryManager(DummyTransaction::create);
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(dir, recoveryManager);
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, recoveryManager, bufferPages,
+                new LRUEvictionPolicy());
+        diskSpaceManager.allocPart(0);
+        recoveryManager.setManagers(diskSpaceManager, bufferManager);
+        recoveryManager.initialize();
+        recoveryManager.restart();
+
+        Transaction transaction = DummyTransaction.create(1L);
+        recoveryManager.startTransaction(transaction);
+        recoveryManager.logAllocPart(1L, 1);
+        diskSpaceManager.allocPart(1);
+        for (int i = 0; i < NUM_PAGES; ++i) {
+            recoveryManager.logAllocPage(1L, getPageNum(i));
+            diskSpaceManager.allocPage(getPageNum(i));
+        }
+        recoveryManager.commit(1L);
+        recoveryManager.end(1L);
+        return recoveryManager;
+    }
+
+    private static long getPageNum(int pageIndex) {
+        return DiskSpaceManager.getVirtualPageNum(1, pageIndex);
+    }
+
+    /**
+     * Makes numUpdates random writes to the data pages as transNum.
+     */
+    private void writeRandom(ARIESRecoveryManager recoveryManager, long transNum, int numUpdates) {
+        Random random = new Random(transNum);
+        for (int i = 0; i < numUpdates; ++i) {
+            int pageIndex = random.nextInt(NUM_PAGES);
+            short offset = (short) random.nextInt(BufferManager.EFFECTIVE_PAGE_SIZE - UPDATE_SIZE);
+            Page page = recoveryManager.bufferManager.fetchPage(new DummyLockContext(), getPageNum(pageIndex));
+            try {
+                byte[] before = new byte[UPDATE_SIZE];
+                page.getBuffer().position(offset).get(before);
+                byte[] after = new byte[UPDATE_SIZE];
+                random.nextBytes(after);
+                long LSN = recoveryManager.logPageWrite(transNum, getPageNum(pageIndex), offset, before, after);
+                page.getBuffer().position(offset).put(after);
+                page.setPageLSN(LSN);
+            } finally {
+                page.unpin();
+            }
+        }
+    }
+
+    private boolean isZeroed(ARIESRecoveryManager recoveryManager, int pageIndex) {
+        Page page = recoveryManager.bufferManager.fetchPage(new DummyLockContext(), getPageNum(pageIndex));
+        try {
+            byte[] contents = new byte[BufferManager.EFFECTIVE_PAGE_SIZE];
+            page.getBuffer().get(contents);
+            for (byte b : contents) {
+                if (b != 0) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            page.unpin();
+        }
+    }
+
+    @Test
+    public void testFetchMatchesScan() throws Exception {
+        ARIESRecoveryManager recoveryManager = load(tempFolder.newFolder().getAbsolutePath(), 32);
+        LogManager logManager = recoveryManager.logManager;
+        recoveryManager.startTransaction(DummyTransaction.create(2L));
+        writeRandom(recoveryManager, 2L, 500);
+        logManager.flushToLSN(recoveryManager.transactionTable.get(2L).lastLSN);
+        // one more record that is not flushed, so is not cached
+        writeRandom(recoveryManager, 2L, 1);
+
+        List<LogRecord> records = new ArrayList<>();
+        logManager.forEach(records::add);
+        for (int i = records.size() - 1; i >= 0; --i) {
+            LogRecord record = records.get(i);
+            assertEquals(record, logManager.fetchLogRecord(record.getLSN()));
+        }
+        LogPageCache cache = logManager.getCache();
+        assertTrue(cache.getNumHits() > 0);
+        // read back to front, so every page but the batches' last ones is
+        // already cached when it is needed
+        assertTrue(cache.getNumMisses() <= logManager.getLogTailPageNum() / LogManager.READ_BATCH_PAGES + 1);
+        recoveryManager.close();
+    }
+
+    @Test
+    public void testScanBackwardFollowsChain() throws Exception {
+        ARIESRecoveryManager recoveryManager = load(tempFolder.newFolder().getAbsolutePath(), 32);
+        LogManager logManager = recoveryManager.logManager;
+        recoveryManager.startTransaction(DummyTransaction.create(2L));
+        recoveryManager.startTransaction(DummyTransaction.create(3L));
+        TransactionTableEntry entry = recoveryManager.transactionTable.get(2L);
+        writeRandom(recoveryManager, 2L, 20);
+        long savepointLSN = entry.lastLSN;
+        writeRandom(recoveryManager, 3L, 20);
+        writeRandom(recoveryManager, 2L, 20);
+        // undo T2's last 20 updates, as a rollback to savepointLSN would
+        long LSN = entry.lastLSN;
+        while (LSN > savepointLSN) {
+            LogRecord record = logManager.fetchLogRecord(LSN);
+            entry.lastLSN = logManager.appendToLog(record.undo(entry.lastLSN));
+            LSN = record.getPrevLSN().get();
+        }
+        writeRandom(recoveryManager, 2L, 5);
+
+        // T2's records: 5 updates, then the last CLR, whose undoNextLSN skips
+        // the other CLRs and the 20 updates they undid, then the first 20
+        // updates
+        int numRecords = 0;
+        int numUpdates = 0;
+        Iterator<LogRecord> iter = logManager.scanBackwardFrom(recoveryManager.transactionTable.get(2L).lastLSN);
+        while (iter.hasNext()) {
+            LogRecord record = iter.next();
+            assertEquals(Long.valueOf(2L), record.getTransNum().get());
+            ++numRecords;
+            if (record.getType() == LogType.UPDATE_PAGE) {
+                ++numUpdates;
+            }
+        }
+        assertEquals(26, numRecords);
+        assertEquals(25, numUpdates);
+        recoveryManager.close();
+    }
+
+    /**
+     * Buffer manager I/Os to roll back a transaction with many updates, with
+     * and without the log page cache, with a buffer cache that holds about
+     * as many pages as the transaction modified.
+     */
+    @Test
+    public void testRollbackIOs() throws Exception {
+        long[] numIOs = new long[2];
+        for (int i = 0; i < 2; ++i) {
+            ARIESRecoveryManager recoveryManager = load(tempFolder.newFolder().getAbsolutePath(), NUM_PAGES + 4);
+            recoveryManager.logManager.setCachePages(i == 0 ? 0 : LogManager.DEFAULT_CACHE_PAGES);
+            recoveryManager.startTransaction(DummyTransaction.create(2L));
+            writeRandom(recoveryManager, 2L, 2000);
+            recoveryManager.flushToLSN(recoveryManager.transactionTable.get(2L).lastLSN);
+
+            long startIOs = recoveryManager.bufferManager.getNumIOs();
+            recoveryManager.abort(2L);
+            recoveryManager.end(2L);
+            numIOs[i] = recoveryManager.bufferManager.getNumIOs() - startIOs;
+
+            for (int j = 0; j < NUM_PAGES; ++j) {
+                assertTrue("page " + j, isZeroed(recoveryManager, j));
+            }
+            recoveryManager.close();
+            DummyTransaction.cleanupTransactions();
+        }
+        assertTrue(numIOs[1] < numIOs[0]);
+    }
+}
@@ -9,10 +9,13 @@ import edu.berkeley.cs186.database.recovery.records.*;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 @Category(SystemTests.class)
 public class TestLogRecord {
@@ -86,6 +89,46 @@ public class TestLogRecord {
                                                "zxcvb".getBytes()));
     }
 
+    @Test
+    public void testUpdatePageSerializeDeltaEncoded() {
+        short half = BufferManager.EFFECTIVE_PAGE_SIZE / 2;
+        Random random = new Random(186);
+
+        // a few bytes changed in a large, mostly unchanged range
+        byte[] before = new byte[half];
+        random.nextBytes(before);
+        byte[] after = Arrays.copyOf(before, half);
+        after[3] ^= 1;
+        after[1000] = 0;
+        after[half - 1] ^= 0x7f;
+        LogRecord record = new UpdatePageLogRecord(1L, 2L, 3L, (short) 0, before, after);
+        checkSerialize(record);
+        assertTrue(record.toBytes().length < half + 64);
+
+        // writing to a zeroed part of a page
+        before = new byte[half];
+        after = new byte[half];
+        for (int i = 0; i < half; i += 100) {
+            after[i] = (byte) i;
+        }
+        record = new UpdatePageLogRecord(1L, 2L, 3L, (short) 17, before, after);
+        checkSerialize(record);
+        assertTrue(record.toBytes().length < 256);
+
+        // nothing in common: stored as is
+        random.nextBytes(before);
+        random.nextBytes(after);
+        before[0] = after[0] = 0;
+        record = new UpdatePageLogRecord(1L, 2L, 3L, (short) 17, before, after);
+        checkSerialize(record);
+        assertTrue(record.toBytes().length <= 32 + 2 * half);
+
+        // images of different lengths, and empty images
+        checkSerialize(new UpdatePageLogRecord(1L, 2L, 3L, (short) 0, new byte[3], new byte[5]));
+        checkSerialize(new UpdatePageLogRecord(1L, 2L, 3L, (short) 0, new byte[0], new byte[0]));
+        checkSerialize(new UpdatePageLogRecord(1L, 2L, 3L, (short) 0, new byte[7], new byte[7]));
+    }
+
     @Test
     public void testUndoUpdatePageSerialize() {
         byte[] pageString = new String(new char[BufferManager.EFFECTIVE_PAGE_SIZE]).replace('\0',
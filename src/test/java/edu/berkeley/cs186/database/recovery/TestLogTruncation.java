@@ -0,0 +1,240 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.LRUEvictionPolicy;
+import edu.berkeley.cs186.database.memory.Page;
+import edu.berkeley.cs186.database.recovery.records.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestLogTruncation {
+    private static final int NUM_PAGES = 16;
+    private static final int UPDATE_SIZE = 256;
+
+    private final Random random = new Random(186);
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        DummyTransaction.cleanupTransactions();
+        LogRecord.onRedoHandler(record -> {});
+    }
+
+    private ARIESRecoveryManager load(String dir) {
+        ARIESRecoveryManager recoveryManager = new ARIESRecoveryManager(DummyTransaction::create);
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(dir, recoveryManager);
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, recoveryManager, 32,
+                new LRUEvictionPolicy());
+        boolean isLoaded = true;
+        try {
+            diskSpaceManager.allocPart(0);
+            isLoaded = false;
+        } catch (IllegalStateException e) {
+            // already loaded
+        }
+        recoveryManager.setManagers(diskSpaceManager, bufferManager);
+        if (!isLoaded) {
+            // as the database does, so that flushed pages leave the DPT
+            recoveryManager.initialize();
+            recoveryManager.restart();
+        }
+        return recoveryManager;
+    }
+
+    private void crash(ARIESRecoveryManager recoveryManager) {
+        recoveryManager.logManager.close();
+        recoveryManager.bufferManager.evictAll();
+        recoveryManager.bufferManager.close();
+        recoveryManager.diskSpaceManager.close();
+        DummyTransaction.cleanupTransactions();
+    }
+
+    private static long getPageNum(int pageIndex) {
+        return DiskSpaceManager.getVirtualPageNum(1, pageIndex);
+    }
+
+    /**
+     * Sets up partition 1 with NUM_PAGES pages, plus one extra page that
+     * writeAll does not touch.
+     */
+    private ARIESRecoveryManager createDatabase(String dir) {
+        ARIESRecoveryManager recoveryManager = load(dir);
+        Transaction transaction = DummyTransaction.create(1L);
+        recoveryManager.startTransaction(transaction);
+        recoveryManager.logAllocPart(1L, 1);
+        recoveryManager.diskSpaceManager.allocPart(1);
+        for (int i = 0; i <= NUM_PAGES; ++i) {
+            recoveryManager.logAllocPage(1L, getPageNum(i));
+            recoveryManager.diskSpaceManager.allocPage(getPageNum(i));
+        }
+        recoveryManager.commit(1L);
+        recoveryManager.end(1L);
+        return recoveryManager;
+    }
+
+    /**
+     * Runs a committed transaction that writes value to every page.
+     */
+    private void writeAll(ARIESRecoveryManager recoveryManager, long transNum, byte value) {
+        recoveryManager.startTransaction(DummyTransaction.create(transNum));
+        for (int i = 0; i < NUM_PAGES; ++i) {
+            write(recoveryManager, transNum, i, value);
+        }
+        recoveryManager.commit(transNum);
+        recoveryManager.end(transNum);
+    }
+
+    private void write(ARIESRecoveryManager recoveryManager, long transNum, int pageIndex, byte value) {
+        Page page = recoveryManager.bufferManager.fetchPage(new DummyLockContext(), getPageNum(pageIndex));
+        try {
+            byte[] before = new byte[UPDATE_SIZE];
+            page.getBuffer().get(before);
+            // varied bytes, so that the update records are not tiny
+            byte[] after = new byte[UPDATE_SIZE];
+            random.nextBytes(after);
+            after[0] = value;
+            long LSN = recoveryManager.logPageWrite(transNum, getPageNum(pageIndex), (short) 0, before, after);
+            page.getBuffer().put(after);
+            page.setPageLSN(LSN);
+        } finally {
+            page.unpin();
+        }
+    }
+
+    private byte read(ARIESRecoveryManager recoveryManager, int pageIndex) {
+        Page page = recoveryManager.bufferManager.fetchPage(new DummyLockContext(), getPageNum(pageIndex));
+        try {
+            return page.getBuffer().get();
+        } finally {
+            page.unpin();
+        }
+    }
+
+    private int countLogPages(ARIESRecoveryManager recoveryManager) {
+        int numPages = 0;
+        for (long i = 0; i < recoveryManager.logManager.getLogTailLSN() / 10000L + 1; ++i) {
+            if (recoveryManager.diskSpaceManager.pageAllocated(i)) {
+                ++numPages;
+            }
+        }
+        return numPages;
+    }
+
+    @Test
+    public void testCheckpointTruncatesLog() throws Exception {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        ARIESRecoveryManager recoveryManager = createDatabase(dir);
+        Map<Long, byte[]> archived = new TreeMap<>();
+        recoveryManager.setLogTruncation(true, archived::put);
+
+        for (int i = 0; i < 20; ++i) {
+            writeAll(recoveryManager, 2L + i, (byte) (i + 1));
+        }
+        long tailPage = LogManager.getLSNPage(recoveryManager.logManager.getLogTailLSN());
+        recoveryManager.bufferManager.evictAll();
+        recoveryManager.checkpoint();
+
+        assertTrue(recoveryManager.logManager.getFirstPageNum() > 1);
+        assertTrue(countLogPages(recoveryManager) < tailPage);
+        // every truncated page was archived, and none of the others
+        assertEquals(recoveryManager.logManager.getFirstPageNum() - 1, archived.size());
+        for (Map.Entry<Long, byte[]> entry : archived.entrySet()) {
+            assertTrue(entry.getKey() > 0 && entry.getKey() < recoveryManager.logManager.getFirstPageNum());
+            assertEquals(DiskSpaceManager.PAGE_SIZE, entry.getValue().length);
+            assertFalse(recoveryManager.diskSpaceManager.pageAllocated(entry.getKey()));
+        }
+        // the log can still be read from the start, and skips from page 0 to
+        // the first page left
+        Iterator<LogRecord> iter = recoveryManager.logManager.iterator();
+        assertEquals(LogType.MASTER, iter.next().getType());
+        LogRecord record = iter.next();
+        while (LogManager.getLSNPage(record.getLSN()) == 0) {
+            record = iter.next();
+        }
+        assertEquals(recoveryManager.logManager.getFirstPageNum(), LogManager.getLSNPage(record.getLSN()));
+
+        // restart after truncation recovers the last update
+        writeAll(recoveryManager, 100L, (byte) 42);
+        recoveryManager.logManager.flushToLSN(recoveryManager.logManager.getFlushedLSN());
+        long firstPageNum = recoveryManager.logManager.getFirstPageNum();
+        crash(recoveryManager);
+
+        recoveryManager = load(dir);
+        assertEquals(firstPageNum, recoveryManager.logManager.getFirstPageNum());
+        recoveryManager.restart();
+        for (int i = 0; i < NUM_PAGES; ++i) {
+            assertEquals(42, read(recoveryManager, i));
+        }
+        // new records keep going after the old tail
+        assertTrue(LogManager.getLSNPage(recoveryManager.logManager.getLogTailLSN()) > tailPage);
+        recoveryManager.close();
+    }
+
+    @Test
+    public void testActiveTransactionBlocksTruncation() throws Exception {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        ARIESRecoveryManager recoveryManager = createDatabase(dir);
+        recoveryManager.setLogTruncation(true, null);
+
+        // T2 writes the extra page, then stays active while others write the
+        // log
+        recoveryManager.startTransaction(DummyTransaction.create(2L));
+        write(recoveryManager, 2L, NUM_PAGES, (byte) 7);
+        long firstLSN = recoveryManager.transactionTable.get(2L).lastLSN;
+        for (int i = 0; i < 20; ++i) {
+            writeAll(recoveryManager, 3L + i, (byte) (i + 1));
+        }
+        recoveryManager.bufferManager.evictAll();
+        recoveryManager.checkpoint();
+        assertTrue(recoveryManager.logManager.getFirstPageNum() <= LogManager.getLSNPage(firstLSN));
+
+        // T2 can still roll back, all the way to its first record
+        recoveryManager.abort(2L);
+        recoveryManager.end(2L);
+        assertEquals(0, read(recoveryManager, NUM_PAGES));
+        assertEquals(20, read(recoveryManager, 0));
+
+        // with T2 gone, the next checkpoint truncates past its records
+        recoveryManager.bufferManager.evictAll();
+        recoveryManager.checkpoint();
+        assertTrue(recoveryManager.logManager.getFirstPageNum() > LogManager.getLSNPage(firstLSN));
+        recoveryManager.close();
+    }
+
+    @Test
+    public void testDirtyPageBlocksTruncation() throws Exception {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        ARIESRecoveryManager recoveryManager = createDatabase(dir);
+        recoveryManager.setLogTruncation(true, null);
+
+        writeAll(recoveryManager, 2L, (byte) 1);
+        long recLSN = recoveryManager.dirtyPageTable.get(getPageNum(0));
+        for (int i = 0; i < 20; ++i) {
+            writeAll(recoveryManager, 3L + i, (byte) (i + 2));
+        }
+        // the pages are still dirty, so redo would start at their recLSN
+        recoveryManager.checkpoint();
+        assertTrue(recoveryManager.logManager.getFirstPageNum() <= LogManager.getLSNPage(recLSN));
+        assertEquals(recLSN, recoveryManager.getTruncationLSN(recoveryManager.lastCheckpointLSN));
+        recoveryManager.close();
+    }
+}
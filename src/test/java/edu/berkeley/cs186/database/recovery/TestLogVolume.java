@@ -0,0 +1,90 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.Database;
+import edu.berkeley.cs186.database.Transaction;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.concurrency.DummyLockManager;
+import edu.berkeley.cs186.database.databox.BoolDataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
+import edu.berkeley.cs186.database.recovery.records.UpdatePageLogRecord;
+import edu.berkeley.cs186.database.table.Schema;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestLogVolume {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    /**
+     * Size of the page update records in the log at dir, as written and as
+     * they would be with both images stored in full.
+     *
+     * @return {bytes written, bytes with full images}
+     */
+    private long[] measureUpdateRecords(String dir) {
+        ARIESRecoveryManager recoveryManager = new ARIESRecoveryManager(DummyTransaction::create);
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(dir, recoveryManager);
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, recoveryManager, 64,
+                new ClockEvictionPolicy());
+        recoveryManager.setManagers(diskSpaceManager, bufferManager);
+        long written = 0;
+        long full = 0;
+        try {
+            for (LogRecord record : recoveryManager.logManager) {
+                if (record.getType() == LogType.UPDATE_PAGE) {
+                    UpdatePageLogRecord update = (UpdatePageLogRecord) record;
+                    written += record.toBytes().length;
+                    full += 31 + update.before.length + update.after.length;
+                }
+            }
+        } finally {
+            recoveryManager.logManager.close();
+            bufferManager.close();
+            diskSpaceManager.close();
+        }
+        return new long[] {written, full};
+    }
+
+    /**
+     * Log volume of page updates for a table load followed by an update of
+     * one column of every record.
+     */
+    @Test
+    public void testUpdateWorkloadLogVolume() throws IOException {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        try (Database db = new Database(dir, 128, new DummyLockManager(), new ClockEvictionPolicy(), true)) {
+            db.waitAllTransactions();
+            try (Transaction t = db.beginTransaction()) {
+                t.createTable(new Schema()
+                              .add("id", Type.intType())
+                              .add("name", Type.stringType(20))
+                              .add("score", Type.floatType()), "scores");
+                for (int i = 0; i < 2000; ++i) {
+                    t.insert("scores", i, "name" + i, (float) i);
+                }
+            }
+            try (Transaction t = db.beginTransaction()) {
+                t.update("scores", "score", r -> new FloatDataBox(r.getValue(2).getFloat() + 1),
+                         r -> new BoolDataBox(r.getValue(0).getInt() % 2 == 0));
+            }
+        }
+
+        long[] sizes = measureUpdateRecords(dir);
+        assertTrue(sizes[1] > 0);
+        // delta encoding saves at least a tenth of the log volume
+        assertTrue(sizes[0] * 10 < sizes[1] * 9);
+    }
+}
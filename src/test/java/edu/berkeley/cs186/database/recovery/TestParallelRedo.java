@@ -0,0 +1,185 @@
+package edu.berkeley.cs186.database.recovery;
+
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.LRUEvictionPolicy;
+import edu.berkeley.cs186.database.memory.Page;
+import edu.berkeley.cs186.database.recovery.records.*;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestParallelRedo {
+    private static final int NUM_PAGES = 256;
+    private static final int UPDATE_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        DummyTransaction.cleanupTransactions();
+        LogRecord.onRedoHandler(record -> {});
+    }
+
+    private ARIESRecoveryManager load(String dir, int bufferPages) {
+        ARIESRecoveryManager recoveryManager = new ARIESRecoveryManager(DummyTransaction::create);
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(dir, recoveryManager);
+        BufferManager bufferManager = new BufferManager(diskSpaceManager, recoveryManager, bufferPages,
+                new LRUEvictionPolicy());
+        boolean isLoaded = true;
+        try {
+            diskSpaceManager.allocPart(0);
+            isLoaded = false;
+        } catch (IllegalStateException e) {
+            // already loaded
+        }
+        recoveryManager.setManagers(diskSpaceManager, bufferManager);
+        if (!isLoaded) {
+            recoveryManager.initialize();
+        }
+        return recoveryManager;
+    }
+
+    /**
+     * Simulates a crash: the log is on disk, but none of the changes it
+     * records made it to the data pages.
+     */
+    private void crash(ARIESRecoveryManager recoveryManager) {
+        recoveryManager.logManager.close();
+        recoveryManager.bufferManager.evictAll();
+        recoveryManager.bufferManager.close();
+        recoveryManager.diskSpaceManager.close();
+        DummyTransaction.cleanupTransactions();
+    }
+
+    /**
+     * Writes a log of numUpdates random page updates by a few transactions
+     * (all but one committing) to dir, and crashes before any page is
+     * written.
+     *
+     * @return the expected contents of each page once the log is redone
+     */
+    private byte[][] writeCrashWorkload(String dir, int numUpdates) {
+        ARIESRecoveryManager recoveryManager = load(dir, 64);
+        LogManager logManager = recoveryManager.logManager;
+        long[] lastLSNs = new long[8];
+
+        // partition 1 and its pages are allocated before the crash
+        logManager.appendToLog(new AllocPartLogRecord(1L, 1, 0L));
+        recoveryManager.diskSpaceManager.allocPart(1);
+        for (int i = 0; i < NUM_PAGES; ++i) {
+            long pageNum = DiskSpaceManager.getVirtualPageNum(1, i);
+            logManager.appendToLog(new AllocPageLogRecord(1L, pageNum, 0L));
+            recoveryManager.diskSpaceManager.allocPage(pageNum);
+        }
+
+        byte[][] pages = new byte[NUM_PAGES][BufferManager.EFFECTIVE_PAGE_SIZE];
+        Random random = new Random(186);
+        for (int i = 0; i < numUpdates; ++i) {
+            int transIndex = random.nextInt(lastLSNs.length);
+            int pageIndex = random.nextInt(NUM_PAGES);
+            short offset = (short) random.nextInt(BufferManager.EFFECTIVE_PAGE_SIZE - UPDATE_SIZE);
+            byte[] before = Arrays.copyOfRange(pages[pageIndex], offset, offset + UPDATE_SIZE);
+            byte[] after = new byte[UPDATE_SIZE];
+            random.nextBytes(after);
+            System.arraycopy(after, 0, pages[pageIndex], offset, UPDATE_SIZE);
+            lastLSNs[transIndex] = logManager.appendToLog(new UpdatePageLogRecord(transIndex + 1,
+                                   DiskSpaceManager.getVirtualPageNum(1, pageIndex), lastLSNs[transIndex], offset,
+                                   before, after));
+        }
+        // every transaction but the last commits
+        for (int i = 0; i + 1 < lastLSNs.length; ++i) {
+            long commitLSN = logManager.appendToLog(new CommitTransactionLogRecord(i + 1, lastLSNs[i]));
+            logManager.appendToLog(new EndTransactionLogRecord(i + 1, commitLSN));
+        }
+        crash(recoveryManager);
+        return pages;
+    }
+
+    /**
+     * Runs analysis and redo on the database in dir, and checks that every
+     * page matches `expected` afterwards.
+     *
+     * @return the time redo took, in nanoseconds
+     */
+    private long recover(String dir, int redoParallelism, byte[][] expected) {
+        ARIESRecoveryManager recoveryManager = load(dir, 64);
+        recoveryManager.setRedoParallelism(redoParallelism);
+        recoveryManager.restartAnalysis();
+        long start = System.nanoTime();
+        recoveryManager.restartRedo();
+        long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < NUM_PAGES; ++i) {
+            long pageNum = DiskSpaceManager.getVirtualPageNum(1, i);
+            Page page = recoveryManager.bufferManager.fetchPage(new DummyLockContext(), pageNum);
+            byte[] contents = new byte[BufferManager.EFFECTIVE_PAGE_SIZE];
+            try {
+                page.getBuffer().get(contents);
+            } finally {
+                page.unpin();
+            }
+            assertArrayEquals("page " + pageNum, expected[i], contents);
+        }
+        crash(recoveryManager);
+        return elapsed;
+    }
+
+    private String copyDirectory(String dir) throws IOException {
+        File copy = tempFolder.newFolder();
+        for (File file : new File(dir).listFiles()) {
+            Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+        }
+        return copy.getAbsolutePath();
+    }
+
+    @Test
+    public void testParallelRedoMatchesLog() throws IOException {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        byte[][] expected = writeCrashWorkload(dir, 5000);
+        recover(dir, 4, expected);
+    }
+
+    @Test
+    public void testRepeatedRedo() throws IOException {
+        // a second restart redoes nothing new and leaves the pages as they are
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        byte[][] expected = writeCrashWorkload(dir, 2000);
+        recover(dir, 3, expected);
+        recover(dir, 3, expected);
+    }
+
+    /**
+     * Recovery time of the redo pass with 1, 2, 4 and 8 redo threads after a
+     * crash with 50,000 page updates in the log and a buffer much smaller than
+     * the updated pages.
+     * A benchmark (-P benchmark): it prints the time of each run.
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testRedoTime() throws IOException {
+        String dir = tempFolder.newFolder().getAbsolutePath();
+        byte[][] expected = writeCrashWorkload(dir, 50000);
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            long elapsed = recover(copyDirectory(dir), threads, expected);
+            System.out.printf("redo with %d thread(s): %d ms%n", threads, elapsed / 1000000);
+        }
+    }
+}
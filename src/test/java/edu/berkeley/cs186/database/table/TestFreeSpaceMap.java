@@ -0,0 +1,93 @@
+package edu.berkeley.cs186.database.table;
+
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestFreeSpaceMap {
+    @Test
+    public void testEmpty() {
+        FreeSpaceMap map = new FreeSpaceMap();
+        assertEquals(-1, map.findFit((short) 1));
+        assertEquals(-1, map.findUnused());
+        map.grow(3);
+        assertEquals(-1, map.findFit((short) 1));
+        assertEquals(0, map.findUnused());
+        assertEquals(FreeSpaceMap.UNUSED, map.get(2));
+    }
+
+    @Test
+    public void testFindFit() {
+        FreeSpaceMap map = new FreeSpaceMap();
+        map.grow(5);
+        map.set(0, (short) 10);
+        map.set(1, (short) 0);
+        map.set(3, (short) 50);
+        assertEquals(0, map.findFit((short) 10));
+        assertEquals(3, map.findFit((short) 11));
+        assertEquals(-1, map.findFit((short) 51));
+        assertEquals(2, map.findUnused());
+
+        map.set(0, (short) 5);
+        map.set(2, (short) 20);
+        assertEquals(2, map.findFit((short) 6));
+        assertEquals(4, map.findUnused());
+
+        // growing keeps the existing slots
+        map.grow(100);
+        assertEquals(105, map.getNumSlots());
+        assertEquals(2, map.findFit((short) 6));
+        assertEquals(4, map.findUnused());
+        map.set(104, (short) 100);
+        assertEquals(104, map.findFit((short) 51));
+
+        map.set(3, FreeSpaceMap.UNUSED);
+        assertEquals(3, map.findUnused());
+        assertEquals(104, map.findFit((short) 21));
+    }
+
+    @Test
+    public void testMatchesLinearScan() {
+        Random random = new Random(186);
+        FreeSpaceMap map = new FreeSpaceMap();
+        short[] freeSpace = new short[0];
+        for (int i = 0; i < 10000; ++i) {
+            if (random.nextInt(500) == 0) {
+                int numSlots = freeSpace.length + 1 + random.nextInt(300);
+                short[] newFreeSpace = new short[numSlots];
+                Arrays.fill(newFreeSpace, FreeSpaceMap.UNUSED);
+                System.arraycopy(freeSpace, 0, newFreeSpace, 0, freeSpace.length);
+                freeSpace = newFreeSpace;
+                map.grow(numSlots - map.getNumSlots());
+            }
+            if (freeSpace.length == 0) {
+                continue;
+            }
+            int slot = random.nextInt(freeSpace.length);
+            short space = (short) (random.nextInt(4001) - 1);
+            freeSpace[slot] = space;
+            map.set(slot, space);
+
+            short requiredSpace = (short) (1 + random.nextInt(4000));
+            int expectedFit = -1;
+            int expectedUnused = -1;
+            for (int j = freeSpace.length - 1; j >= 0; --j) {
+                if (freeSpace[j] >= requiredSpace) {
+                    expectedFit = j;
+                }
+                if (freeSpace[j] == FreeSpaceMap.UNUSED) {
+                    expectedUnused = j;
+                }
+            }
+            assertEquals(expectedFit, map.findFit(requiredSpace));
+            assertEquals(expectedUnused, map.findUnused());
+        }
+    }
+}
@@ -3,6 +3,7 @@ package edu.berkeley.cs186.database.table;
 import edu.berkeley.cs186.database.categories.Proj99Tests;
 import edu.berkeley.cs186.database.categories.SystemTests;
 import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.concurrency.LockContext;
 import edu.berkeley.cs186.database.io.DiskSpaceManager;
 import edu.berkeley.cs186.database.io.MemoryDiskSpaceManager;
 import edu.berkeley.cs186.database.io.PageException;
@@ -248,4 +249,90 @@ public class TestPageDirectory {
             assertEquals(page, p);
         }
     }
+
+    @Test
+    public void testGetPageWithSpaceAcrossHeaderPages() {
+        createPageDirectory((short) 0);
+        short pageSize = (short) pageDirectory.getEffectivePageSize();
+
+        // fill enough pages to need three header pages
+        int numPages = 1000;
+        List<Page> pages = new ArrayList<>();
+        for (int i = 0; i < numPages; ++i) {
+            Page page = pageDirectory.getPageWithSpace(pageSize);
+            page.unpin();
+            pages.add(page);
+        }
+        assertEquals(numPages, pageDirectory.getNumDataPages());
+
+        // space freed up on a page managed by a later header page is found first...
+        pageDirectory.updateFreeSpace(pages.get(900), (short) 100);
+        pageDirectory.updateFreeSpace(pages.get(950), (short) 200);
+        Page page = pageDirectory.getPageWithSpace((short) 100);
+        page.unpin();
+        assertEquals(pages.get(900), page);
+        page = pageDirectory.getPageWithSpace((short) 150);
+        page.unpin();
+        assertEquals(pages.get(950), page);
+
+        // ...but an empty page on an earlier header page takes precedence
+        pageDirectory.updateFreeSpace(pages.get(10), pageSize);
+        pageDirectory.updateFreeSpace(pages.get(960), (short) 100);
+        page = pageDirectory.getPageWithSpace((short) 100);
+        page.unpin();
+        assertFalse(pages.contains(page));
+    }
+
+    @Test
+    public void testFreeSpaceReloaded() {
+        Page headerPage = bufferManager.fetchNewPage(new DummyLockContext("_dummyPageDirectoryRecord"), 0);
+        headerPage.unpin();
+        createPageDirectory(headerPage.getPageNum(), (short) 0);
+        short pageSize = (short) pageDirectory.getEffectivePageSize();
+
+        List<Page> pages = new ArrayList<>();
+        for (int i = 0; i < 600; ++i) {
+            Page page = pageDirectory.getPageWithSpace(pageSize);
+            page.unpin();
+            pages.add(page);
+        }
+        pageDirectory.updateFreeSpace(pages.get(500), (short) 50);
+
+        // the free space of each page is read back from the header pages
+        createPageDirectory(headerPage.getPageNum(), (short) 0);
+        assertEquals(600, pageDirectory.getNumDataPages());
+        Page page = pageDirectory.getPageWithSpace((short) 50);
+        page.unpin();
+        assertEquals(pages.get(500), page);
+        page = pageDirectory.getPageWithSpace((short) 50);
+        page.unpin();
+        assertFalse(pages.contains(page));
+    }
+
+    @Test
+    public void testCapacity() {
+        Page headerPage = bufferManager.fetchNewPage(new DummyLockContext("_dummyPageDirectoryRecord"), 0);
+        headerPage.unpin();
+        LockContext lockContext = new DummyLockContext();
+        pageDirectory = new PageDirectory(bufferManager, 0, headerPage.getPageNum(), (short) 0, lockContext);
+        short pageSize = (short) pageDirectory.getEffectivePageSize();
+        assertEquals(0, lockContext.capacity());
+
+        // the capacity of the lock context follows the number of data pages
+        List<Page> pages = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            Page page = pageDirectory.getPageWithSpace(pageSize);
+            page.unpin();
+            pages.add(page);
+        }
+        assertEquals(10, lockContext.capacity());
+        pageDirectory.updateFreeSpace(pages.get(3), pageSize);
+        assertEquals(9, lockContext.capacity());
+        assertEquals(9, pageDirectory.getNumDataPages());
+
+        // and is read back with the pages
+        pageDirectory = new PageDirectory(bufferManager, 0, headerPage.getPageNum(), (short) 0,
+                                          new DummyLockContext());
+        assertEquals(9, pageDirectory.getNumDataPages());
+    }
 }
@@ -92,6 +92,128 @@ public class TestTable {
         }
     }
 
+    @Test
+    public void testAddRecords() {
+        int numRecords = table.getNumRecordsPerPage() * 3;
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < numRecords; ++i) {
+            records.add(createRecordWithAllTypes(i));
+        }
+        List<RecordId> rids = table.addRecords(records.iterator());
+        assertEquals(numRecords, rids.size());
+        assertEquals(3, table.getNumDataPages());
+        assertEquals(numRecords, table.getStats().getNumRecords());
+        for (int i = 0; i < numRecords; ++i) {
+            assertEquals(new RecordId(rids.get(0).getPageNum() + i / table.getNumRecordsPerPage(),
+                                      (short) (i % table.getNumRecordsPerPage())), rids.get(i));
+            assertEquals(records.get(i), table.getRecord(rids.get(i)));
+        }
+    }
+
+    @Test
+    public void testAddRecordsFillsGaps() {
+        int numRecords = table.getNumRecordsPerPage() * 2;
+        List<RecordId> rids = new ArrayList<>();
+        for (int i = 0; i < numRecords; ++i) {
+            rids.add(table.addRecord(createRecordWithAllTypes(i)));
+        }
+        // free up runs of one and two entries on both pages
+        List<RecordId> expected = new ArrayList<>();
+        for (int i = 0; i < numRecords; i += 3) {
+            table.deleteRecord(rids.get(i));
+            expected.add(rids.get(i));
+            if (i % 2 == 0) {
+                table.deleteRecord(rids.get(i + 1));
+                expected.add(rids.get(i + 1));
+            }
+        }
+
+        // the gaps are filled in order, and the rest go on a new page
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < expected.size() + 10; ++i) {
+            records.add(createRecordWithAllTypes(-i));
+        }
+        List<RecordId> newRids = table.addRecords(records.iterator());
+        assertEquals(expected, newRids.subList(0, expected.size()));
+        assertEquals(3, table.getNumDataPages());
+        for (int i = 0; i < records.size(); ++i) {
+            assertEquals(records.get(i), table.getRecord(newRids.get(i)));
+        }
+
+        // the pages are full again, so single inserts go on the new page
+        RecordId rid = table.addRecord(createRecordWithAllTypes(0));
+        assertEquals(newRids.get(newRids.size() - 1).getPageNum(), rid.getPageNum());
+        assertEquals(10, rid.getEntryNum());
+    }
+
+    @Test
+    public void testAddRecordsInvalidRecord() {
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            records.add(createRecordWithAllTypes(i));
+        }
+        records.add(new Record(1, 2));
+        records.add(createRecordWithAllTypes(6));
+        Iterator<Record> iter = records.iterator();
+        try {
+            table.addRecords(iter);
+            fail();
+        } catch (DatabaseException e) { /* do nothing */ }
+
+        // the records before the invalid one were added, and the page's free
+        // space accounts for them
+        assertEquals(5, table.getStats().getNumRecords());
+        RecordId rid = table.addRecord(createRecordWithAllTypes(5));
+        assertEquals(5, rid.getEntryNum());
+        assertEquals(6, table.addRecords(iter).get(0).getEntryNum());
+    }
+
+    @Test
+    public void testBulkLoad() {
+        // a page with a free entry, which the bulk load leaves alone
+        RecordId first = table.addRecord(createRecordWithAllTypes(-1));
+
+        int numRecords = table.getNumRecordsPerPage() * 2 + 10;
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < numRecords; ++i) {
+            records.add(createRecordWithAllTypes(i));
+        }
+        List<Long> pageNums = table.bulkLoad(records.iterator());
+        assertEquals(3, pageNums.size());
+        assertEquals(4, table.getNumDataPages());
+        assertEquals(numRecords + 1, table.getStats().getNumRecords());
+        for (int i = 0; i < numRecords; ++i) {
+            RecordId rid = new RecordId(pageNums.get(i / table.getNumRecordsPerPage()),
+                                        (short) (i % table.getNumRecordsPerPage()));
+            assertEquals(records.get(i), table.getRecord(rid));
+        }
+
+        // the free space on the first and last pages is used by later inserts
+        for (int i = 1; i < table.getNumRecordsPerPage(); ++i) {
+            assertEquals(first.getPageNum(), table.addRecord(createRecordWithAllTypes(0)).getPageNum());
+        }
+        assertEquals(new RecordId(pageNums.get(2), (short) 10), table.addRecord(createRecordWithAllTypes(0)));
+    }
+
+    @Test
+    public void testBulkLoadInvalidRecord() {
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 5; ++i) {
+            records.add(createRecordWithAllTypes(i));
+        }
+        records.add(new Record(1, 2));
+        records.add(createRecordWithAllTypes(6));
+        try {
+            table.bulkLoad(records.iterator());
+            fail();
+        } catch (DatabaseException e) { /* do nothing */ }
+
+        // the records before the invalid one were loaded
+        assertEquals(5, table.getStats().getNumRecords());
+        assertEquals(1, table.getNumDataPages());
+        assertEquals(5, table.addRecord(createRecordWithAllTypes(5)).getEntryNum());
+    }
+
     @Test
     public void testSingleDelete() {
         Record r = createRecordWithAllTypes(0);
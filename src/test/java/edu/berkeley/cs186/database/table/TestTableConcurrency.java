@@ -0,0 +1,217 @@
+package edu.berkeley.cs186.database.table;
+
+import edu.berkeley.cs186.database.TestUtils;
+import edu.berkeley.cs186.database.categories.BenchmarkTests;
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
+import edu.berkeley.cs186.database.memory.Page;
+import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestTableConcurrency {
+    private BufferManager bufferManager;
+    private Table table;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws IOException {
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(tempFolder.newFolder().getAbsolutePath(),
+                new DummyRecoveryManager());
+        diskSpaceManager.allocPart(1);
+        this.bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(), 256,
+                new ClockEvictionPolicy());
+        this.table = createTable();
+    }
+
+    @After
+    public void cleanup() {
+        bufferManager.close();
+    }
+
+    private Table createTable() {
+        Page page = bufferManager.fetchNewPage(new DummyLockContext(), 1);
+        try {
+            PageDirectory pageDirectory = new PageDirectory(bufferManager, 1, page.getPageNum(), (short) 0,
+                    new DummyLockContext());
+            return new Table("testtable", TestUtils.createSchemaWithAllTypes(), pageDirectory,
+                    new DummyLockContext());
+        } finally {
+            page.unpin();
+        }
+    }
+
+    private static Record createRecord(int thread, int i) {
+        return new Record(false, thread * 1000000 + i, "a", 1.2f);
+    }
+
+    /**
+     * Runs body(threadIndex) on numThreads threads at once.
+     *
+     * @return the time taken, in nanoseconds
+     */
+    private static long runThreads(int numThreads, ThreadBody body) throws Throwable {
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numThreads; ++i) {
+            int threadIndex = i;
+            threads.add(new Thread(() -> {
+                try {
+                    body.run(threadIndex);
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        long start = System.nanoTime();
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (error.get() != null) {
+            throw error.get();
+        }
+        return elapsed;
+    }
+
+    private interface ThreadBody {
+        void run(int threadIndex) throws Exception;
+    }
+
+    @Test
+    public void testConcurrentInsertsAndDeletes() throws Throwable {
+        // writers share pages: each inserts records, deletes every other one,
+        // and reinserts into the space freed up by itself and the others
+        int numThreads = 8;
+        int numRecords = 1000;
+        List<Map<RecordId, Record>> live = new ArrayList<>();
+        for (int i = 0; i < numThreads; ++i) {
+            live.add(new HashMap<>());
+        }
+        runThreads(numThreads, threadIndex -> {
+            Map<RecordId, Record> records = live.get(threadIndex);
+            List<RecordId> rids = new ArrayList<>();
+            for (int i = 0; i < numRecords; ++i) {
+                Record record = createRecord(threadIndex, i);
+                RecordId rid = table.addRecord(record);
+                assertNull(records.put(rid, record));
+                rids.add(rid);
+            }
+            for (int i = 0; i < numRecords; i += 2) {
+                assertEquals(records.remove(rids.get(i)), table.deleteRecord(rids.get(i)));
+            }
+            List<Record> batch = new ArrayList<>();
+            for (int i = numRecords; i < numRecords + numRecords / 2; ++i) {
+                batch.add(createRecord(threadIndex, i));
+            }
+            List<RecordId> batchRids = table.addRecords(batch.iterator());
+            for (int i = 0; i < batch.size(); ++i) {
+                assertNull(records.put(batchRids.get(i), batch.get(i)));
+            }
+        });
+
+        // no entry was handed out twice, and every record is intact
+        Map<RecordId, Record> expected = new HashMap<>();
+        for (Map<RecordId, Record> records : live) {
+            for (Map.Entry<RecordId, Record> entry : records.entrySet()) {
+                assertNull(expected.put(entry.getKey(), entry.getValue()));
+                assertEquals(entry.getValue(), table.getRecord(entry.getKey()));
+            }
+        }
+        assertEquals(numThreads * numRecords, expected.size());
+        assertEquals(expected.size(), table.getStats().getNumRecords());
+        Iterator<Record> iter = table.iterator();
+        int numScanned = 0;
+        while (iter.hasNext()) {
+            iter.next();
+            ++numScanned;
+        }
+        assertEquals(expected.size(), numScanned);
+
+        // the freed space was all reused
+        assertEquals(numThreads * numRecords / table.getNumRecordsPerPage(), table.getNumDataPages());
+    }
+
+    @Test
+    public void testConcurrentUpdatesAndReads() throws Throwable {
+        // each writer updates the records on its own pages, while the readers
+        // read them back; a read must never see a half written record
+        int numWriters = 4;
+        int numPagesPerWriter = 2;
+        List<List<RecordId>> rids = new ArrayList<>();
+        for (int i = 0; i < numWriters; ++i) {
+            List<Record> records = new ArrayList<>();
+            for (int j = 0; j < numPagesPerWriter * table.getNumRecordsPerPage(); ++j) {
+                records.add(createRecord(i, 0));
+            }
+            rids.add(table.addRecords(records.iterator()));
+        }
+        runThreads(2 * numWriters, threadIndex -> {
+            int writer = threadIndex % numWriters;
+            Random random = new Random(threadIndex);
+            for (int i = 1; i <= 2000; ++i) {
+                RecordId rid = rids.get(writer).get(random.nextInt(rids.get(writer).size()));
+                if (threadIndex < numWriters) {
+                    table.updateRecord(rid, new Record(false, writer * 1000000 + i, "a" , 1.2f));
+                } else {
+                    Record record = table.getRecord(rid);
+                    assertEquals(writer, record.getValue(1).getInt() / 1000000);
+                    assertEquals(new Record(false, record.getValue(1).getInt(), "a", 1.2f), record);
+                }
+            }
+        });
+    }
+
+    /**
+     * Throughput of writers inserting, updating and deleting records, each on
+     * its own pages, as the number of writers grows. Before page latches, every
+     * operation on a table held the table's monitor.
+     * The throughput is printed, so this runs with -P benchmark only.
+     */
+    @Test
+    @Category(BenchmarkTests.class)
+    public void testWriterThroughput() throws Throwable {
+        int opsPerThread = 20000;
+        for (int numThreads : new int[] {1, 4, 16, 64}) {
+            Table table = createTable();
+            long elapsed = runThreads(numThreads, threadIndex -> {
+                Random random = new Random(threadIndex);
+                List<RecordId> rids = new ArrayList<>();
+                for (int i = 0; i < opsPerThread; ++i) {
+                    int op = random.nextInt(4);
+                    if (rids.isEmpty() || op == 0) {
+                        rids.add(table.addRecord(createRecord(threadIndex, i)));
+                    } else if (op == 1) {
+                        RecordId rid = rids.remove(rids.size() - 1);
+                        table.deleteRecord(rid);
+                    } else if (op == 2) {
+                        table.updateRecord(rids.get(random.nextInt(rids.size())), createRecord(threadIndex, i));
+                    } else {
+                        table.getRecord(rids.get(random.nextInt(rids.size())));
+                    }
+                }
+            });
+            System.out.printf("%d writer(s): %.0f record operations per second%n",
+                              numThreads, numThreads * opsPerThread * 1e9 / elapsed);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package edu.berkeley.cs186.database.table.stats;
+
+import edu.berkeley.cs186.database.categories.Proj99Tests;
+import edu.berkeley.cs186.database.categories.SystemTests;
+import edu.berkeley.cs186.database.common.Pair;
+import edu.berkeley.cs186.database.common.PredicateOperator;
+import edu.berkeley.cs186.database.concurrency.DummyLockContext;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.Type;
+import edu.berkeley.cs186.database.io.DiskSpaceManager;
+import edu.berkeley.cs186.database.io.DiskSpaceManagerImpl;
+import edu.berkeley.cs186.database.memory.BufferManager;
+import edu.berkeley.cs186.database.memory.ClockEvictionPolicy;
+import edu.berkeley.cs186.database.memory.Page;
+import edu.berkeley.cs186.database.recovery.DummyRecoveryManager;
+import edu.berkeley.cs186.database.table.PageDirectory;
+import edu.berkeley.cs186.database.table.Record;
+import edu.berkeley.cs186.database.table.RecordId;
+import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@Category({Proj99Tests.class, SystemTests.class})
+public class TestTableStats {
+    private BufferManager bufferManager;
+    private Table table;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() throws IOException {
+        DiskSpaceManager diskSpaceManager = new DiskSpaceManagerImpl(tempFolder.newFolder().getAbsolutePath(),
+                new DummyRecoveryManager());
+        diskSpaceManager.allocPart(1);
+        this.bufferManager = new BufferManager(diskSpaceManager, new DummyRecoveryManager(), 256,
+                new ClockEvictionPolicy());
+        Schema schema = new Schema().add("skewed", Type.intType()).add("uniform", Type.intType());
+        this.table = newTable("table", schema);
+    }
+
+    private Table newTable(String name, Schema schema) {
+        Page page = bufferManager.fetchNewPage(new DummyLockContext(), 1);
+        try {
+            PageDirectory pageDirectory = new PageDirectory(bufferManager, 1, page.getPageNum(), (short) 0,
+                    new DummyLockContext());
+            return new Table(name, schema, pageDirectory, new DummyLockContext());
+        } finally {
+            page.unpin();
+        }
+    }
+
+    @After
+    public void cleanup() {
+        bufferManager.close();
+    }
+
+    /**
+     * Adds numRecords records in random order: the first column is 0 for half
+     * of them and distinct otherwise, the second is distinct.
+     */
+    private void addRecords(int numRecords) {
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < numRecords; i++) {
+            records.add(new Record(i % 2 == 0 ? 0 : i, i));
+        }
+        // so that every page holds a random sample of the values
+        Collections.shuffle(records, new Random(186));
+        table.addRecords(records.iterator());
+    }
+
+    @Test
+    public void testEquiDepth() {
+        addRecords(10000);
+        table.buildStatistics(10);
+        TableStats stats = table.getStats();
+        assertEquals(10000, stats.getNumRecords());
+
+        // the frequent value has a bucket of its own
+        Histogram skewed = stats.getHistograms().get(0);
+        assertEquals(0.5f, skewed.computeReductionFactor(PredicateOperator.EQUALS, new IntDataBox(0)), 0.01f);
+        assertEquals(0.75f, skewed.computeReductionFactor(PredicateOperator.LESS_THAN, new IntDataBox(5000)), 0.02f);
+        assertEquals(5000, stats.copyWithPredicate(0, PredicateOperator.EQUALS, new IntDataBox(0))
+                                .getNumRecords(), 50);
+
+        // every bucket of a uniform column holds as many values
+        Histogram uniform = stats.getHistograms().get(1);
+        assertEquals(10, uniform.getNumBuckets());
+        for (int i = 0; i < uniform.getNumBuckets(); i++) {
+            assertEquals(1000, uniform.get(i).getCount());
+            assertEquals(1000, uniform.get(i).getDistinctCount());
+        }
+        assertEquals(0.3f, uniform.computeReductionFactor(PredicateOperator.GREATER_THAN_EQUALS,
+                                                          new IntDataBox(7000)), 0.01f);
+    }
+
+    @Test
+    public void testSampled() {
+        addRecords(100 * table.getNumRecordsPerPage());
+        int numRecords = table.getStats().getNumRecords();
+        table.getStats().refreshHistograms(10, table, 20);
+        TableStats stats = table.getStats();
+
+        // every page is full, so the sample predicts the number of records
+        assertEquals(numRecords, stats.getNumRecords());
+        Histogram skewed = stats.getHistograms().get(0);
+        assertEquals(0.5f, skewed.computeReductionFactor(PredicateOperator.EQUALS, new IntDataBox(0)), 0.05f);
+        Histogram uniform = stats.getHistograms().get(1);
+        assertEquals(numRecords, uniform.getCount(), numRecords / 100);
+        assertEquals(numRecords, uniform.getNumDistinct(), numRecords / 10);
+        assertEquals(numRecords / 2, skewed.getNumDistinct(), numRecords / 10);
+        assertEquals(0.5f, uniform.computeReductionFactor(PredicateOperator.LESS_THAN,
+                                                          new IntDataBox(numRecords / 2)), 0.1f);
+    }
+
+    @Test
+    public void testEmpty() {
+        table.buildStatistics(10);
+        TableStats stats = table.getStats();
+        assertEquals(0, stats.getNumRecords());
+        assertEquals(0, stats.getHistograms().get(0).getCount());
+        assertEquals(0, stats.copyWithPredicate(0, PredicateOperator.EQUALS, new IntDataBox(0)).getNumRecords());
+    }
+
+    @Test
+    public void testHyperLogLog() {
+        HyperLogLog sketch = new HyperLogLog();
+        assertEquals(0, sketch.estimate());
+        for (int i = 0; i < 100000; i++) {
+            sketch.add(new IntDataBox(i % 50000));
+        }
+        // the standard error is under 2%
+        assertEquals(50000, sketch.estimate(), 2500);
+    }
+
+    @Test
+    public void testNumDistinct() {
+        // the sketches are maintained as records are added, without
+        // refreshing the histograms
+        addRecords(10000);
+        TableStats stats = table.getStats();
+        assertEquals(5001, stats.getNumDistinct(0), 250);
+        assertEquals(10000, stats.getNumDistinct(1), 500);
+        // at most one distinct value per record
+        assertTrue(stats.getNumDistinct(1) <= stats.getNumRecords());
+
+        // independent columns
+        assertEquals(10000, stats.getNumDistinct(Arrays.asList(0, 1)));
+
+        table.buildStatistics(10);
+        assertEquals(1, stats.copyWithPredicate(1, PredicateOperator.EQUALS, new IntDataBox(0))
+                             .getNumDistinct(1));
+    }
+
+    @Test
+    public void testSketchesIncomplete() {
+        addRecords(1000);
+        TableStats stats = table.getStats();
+        stats.markSketchesIncomplete();
+        // the histograms have not been built yet
+        assertEquals(0, stats.getNumDistinct(1));
+
+        table.buildStatistics(10);
+        assertEquals(1000, stats.getNumDistinct(1), 50);
+    }
+
+    @Test
+    public void testAddDuringRefresh() {
+        Schema schema = new Schema().add("constant", Type.intType()).add("id", Type.intType());
+        Page page = bufferManager.fetchNewPage(new DummyLockContext(), 1);
+        Table refreshed;
+        try {
+            PageDirectory pageDirectory = new PageDirectory(bufferManager, 1, page.getPageNum(), (short) 0,
+                    new DummyLockContext());
+            refreshed = new Table("refreshed", schema, pageDirectory, new DummyLockContext()) {
+                boolean added = false;
+
+                @Override
+                public List<Pair<RecordId, Record>> getPageRecords(long pageNum) {
+                    // records added while the table is read, on pages that
+                    // are not
+                    if (!added) {
+                        added = true;
+                        for (int i = 1; i <= 500; i++) getStats().addRecord(new Record(i, -i));
+                    }
+                    return super.getPageRecords(pageNum);
+                }
+            };
+        } finally {
+            page.unpin();
+        }
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) records.add(new Record(0, i));
+        refreshed.addRecords(records.iterator());
+
+        TableStats stats = refreshed.getStats();
+        stats.refreshHistograms(10, refreshed);
+        // the rebuilt sketch has seen the records added during the refresh
+        assertEquals(501, stats.getNumDistinct(0), 25);
+    }
+
+    @Test
+    public void testJoin() {
+        // the skewed column has ~5000 distinct values and the uniform one
+        // 10000; joining on the uniform column matches every record once
+        addRecords(10000);
+        TableStats stats = table.getStats();
+        TableStats joined = stats.copyWithJoin(1, stats, 1);
+        assertEquals(10000, joined.getNumRecords(), 500);
+        assertEquals(5001, joined.getNumDistinct(0), 500);
+        assertEquals(joined.getNumDistinct(1), joined.getNumDistinct(3));
+    }
+
+    @Test
+    public void testColumnGroup() {
+        Schema schema = new Schema().add("city", Type.intType()).add("zip", Type.intType())
+                                    .add("other", Type.intType());
+        Table correlated = newTable("correlated", schema);
+        correlated.getStats().addColumnGroup(Arrays.asList("city", "zip"));
+        List<Record> records = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            // every zip code is in a single city
+            int zip = i % 1000;
+            records.add(new Record(zip / 10, zip, i % 100));
+        }
+        correlated.addRecords(records.iterator());
+        TableStats stats = correlated.getStats();
+        assertEquals(100, stats.getNumDistinct(0), 5);
+        assertEquals(1000, stats.getNumDistinct(1), 50);
+        assertEquals(1000, stats.getNumDistinct(Arrays.asList(0, 1)), 50);
+        // no column group, so assumed independent
+        assertEquals(10000, stats.getNumDistinct(Arrays.asList(0, 2)));
+
+        TableStats grouped = stats.copyWithGroupBy(Arrays.asList(1, 0));
+        assertEquals(1000, grouped.getNumRecords(), 50);
+        // the column group carries over a projection
+        assertEquals(1000, stats.copyWithProjection(Arrays.asList(2, 1, 0))
+                                .getNumDistinct(Arrays.asList(1, 2)), 50);
+    }
+
+    @Test
+    public void testHistogramSaved() {
+        addRecords(10000);
+        // more buckets than fit in a row of _metadata.statistics
+        table.buildStatistics(100);
+        TableStats stats = table.getStats();
+        assertEquals(TableStats.MAX_BUCKETS, stats.getHistograms().get(1).getNumBuckets());
+
+        List<Record> records = stats.toRecords("table");
+        for (Record record : records) {
+            assertEquals(TableStats.HISTOGRAM_BYTES, record.getValue(5).toBytes().length);
+        }
+        TableStats loaded = TableStats.fromRecords(table.getSchema(), table.getNumRecordsPerPage(), records);
+        Histogram uniform = loaded.getHistograms().get(1);
+        assertEquals(TableStats.MAX_BUCKETS, uniform.getNumBuckets());
+        assertEquals(10000, uniform.getCount());
+    }
+
+    @Test
+    public void testColumnGroupTooLong() {
+        Schema schema = new Schema();
+        for (int i = 0; i < 16; i++) schema.add("c" + i, Type.intType());
+        Table wide = newTable("wide", schema);
+        TableStats stats = wide.getStats();
+
+        // "0,1,...,13" takes 31 characters
+        List<String> columns = new ArrayList<>();
+        for (int i = 0; i < 14; i++) columns.add("c" + i);
+        stats.addColumnGroup(columns);
+        // "0,1,...,14" takes 34
+        columns.add("c14");
+        try {
+            stats.addColumnGroup(columns);
+            fail("a column group too long to be saved should be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        List<Record> records = stats.toRecords("wide");
+        Record group = records.get(records.size() - 1);
+        assertTrue(group.getValue(1).getString().length() <= TableStats.MAX_COLUMNS_LENGTH);
+        TableStats loaded = TableStats.fromRecords(schema, wide.getNumRecordsPerPage(), records);
+        assertEquals(records, loaded.toRecords("wide"));
+    }
+}